@@ -2,8 +2,10 @@ package org.update4j;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.lang.module.ModuleFinder;
+import java.nio.file.AccessDeniedException;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
@@ -12,11 +14,16 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.ProviderNotFoundException;
 import java.nio.file.StandardOpenOption;
-import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
 import java.util.stream.Stream;
 
 import org.update4j.mapper.FileMapper;
@@ -35,9 +42,27 @@ public class Archive {
     static final String FILES_DIR = "files";
     static final String DYNAMIC_NODE = "dynamic-properties";
 
+    /**
+     * Reads the archive, or staged directory, at the given location.
+     * 
+     * <p>
+     * If the archive has a manifest, as written by update4j, each zip entry is
+     * checked against it by the size and CRC-32 recorded in the zip's central
+     * directory, without reading its content; use {@link #read(Path, int)} to
+     * rehash each entry as well. The files of a staged directory have no CRC-32
+     * to compare, so they are always rehashed. Archives without a manifest are
+     * always rehashed.
+     * 
+     * @param location
+     *            The zip archive or staged directory.
+     * @return The archive.
+     * @throws IOException
+     *             If the archive cannot be read, or an entry does not match its
+     *             file in the configuration.
+     */
     public static Archive read(Path location) throws IOException {
         Archive archive = new Archive(location);
-        archive.load();
+        archive.load(0);
 
         return archive;
     }
@@ -46,6 +71,40 @@ public class Archive {
         return read(Paths.get(location));
     }
 
+    /**
+     * Reads the archive, or staged directory, at the given location, and
+     * rehashes the content of every entry with the checksum algorithm of its
+     * file in the configuration, besides the checks of {@link #read(Path)}.
+     * 
+     * <p>
+     * Entries are rehashed in parallel on up to {@code threads} threads, never
+     * more than there are entries; a single thread rehashes them on the calling
+     * thread. The first entry that does not match fails the read, and the
+     * remaining ones are cancelled.
+     * 
+     * @param location
+     *            The zip archive or staged directory.
+     * @param threads
+     *            The number of threads to rehash on, at least 1.
+     * @return The archive.
+     * @throws IllegalArgumentException
+     *             If {@code threads} is less than 1.
+     * @throws InterruptedIOException
+     *             If interrupted while waiting for the rehashing threads.
+     * @throws IOException
+     *             If the archive cannot be read, or an entry does not match its
+     *             file in the configuration.
+     */
+    public static Archive read(Path location, int threads) throws IOException {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+
+        Archive archive = new Archive(location);
+        archive.load(threads);
+
+        return archive;
+    }
+
     Archive(Path location) {
         this.location = location;
     }
@@ -54,12 +113,20 @@ public class Archive {
         return config;
     }
 
-    private void load() throws IOException {
-        try (FileSystem zip = openConnection()) {
-            Path filesPath = zip.getPath(FILES_DIR);
-            Path reservedPath = zip.getPath(RESERVED_DIR);
+    /*
+     * If the archive has a manifest, each entry is checked against it and its configuration
+     * without reading the entry's content, unless threads are given to rehash all entries.
+     * Archives without a manifest, and staged directories, are always rehashed.
+     */
+    private void load(int threads) throws IOException {
+        boolean directory = isStaged();
+        try (FileSystem zip = directory ? null : openConnection()) {
+            Path root = directory ? getLocation() : zip.getPath("/");
+            Path filesPath = root.resolve(FILES_DIR);
+            Path reservedPath = root.resolve(RESERVED_DIR);
             Path configPath = reservedPath.resolve(CONFIG_PATH);
             Path dynamicPath = configPath.resolveSibling(DYNAMIC_PATH);
+            Path manifestPath = root.resolve(ArchiveManifest.PATH);
 
             if (Files.notExists(configPath))
                 throw new NoSuchFileException(configPath.toString(), null, "Configuration file is missing");
@@ -75,30 +142,111 @@ public class Archive {
                 config = Configuration.read(in, dynamicProperties);
             }
 
+            // first one wins, as when files were searched in config order
+            Map<String, FileMetadata> byPath = new HashMap<>();
+            for (FileMetadata file : config.getFiles()) {
+                byPath.putIfAbsent(linkKey(file.getNormalizedPath().toString()), file);
+            }
+
+            Map<Path, FileMetadata> entries = new LinkedHashMap<>();
             try (Stream<Path> stream = Files.walk(filesPath)) {
-                files = stream.filter(p -> !Files.isDirectory(p))
-                                .map(Archive::toRelativeFileString)
-                                .map(p -> getConfiguration().getFiles()
-                                                .stream()
-                                                .filter(file -> file.getNormalizedPath()
-                                                                .toString()
-                                                                .replace("\\", "/")
-                                                                .equals(p.toString()))
-                                                .findAny()
-                                                .orElseThrow(() -> new IllegalStateException(p
-                                                                + ": Archive entry cannot be linked to a file in the configuration")))
-                                .collect(Collectors.toList());
-
-                // Collectors.toUnmodifiableList() was added in JDK 10
-                files = Collections.unmodifiableList(files);
+                stream.filter(p -> !Files.isDirectory(p)).forEach(p -> {
+                    String relative = linkKey(filesPath.relativize(p).toString());
+                    FileMetadata file = byPath.get(relative);
+                    if (file == null)
+                        throw new IllegalStateException(
+                                        relative + ": Archive entry cannot be linked to a file in the configuration");
+
+                    entries.put(p, file);
+                });
             }
 
-            for (FileMetadata file : getFiles()) {
-                Path p = FileUtils.resolve(filesPath, file.getNormalizedPath());
-                if (FileMapper.getChecksum(p) != file.getChecksum()) {
-                    throw new IOException(p + ": File has been tampered with");
+            files = List.copyOf(entries.values());
+
+            ArchiveManifest manifest = null;
+            if (Files.exists(manifestPath)) {
+                try (BufferedReader in = Files.newBufferedReader(manifestPath)) {
+                    manifest = ArchiveManifest.read(in);
+                }
+            }
+
+            if (manifest != null) {
+                for (Map.Entry<Path, FileMetadata> e : entries.entrySet()) {
+                    check(root, e.getKey(), e.getValue(), manifest);
                 }
             }
+
+            // the size of a staged file is all there is to compare, which an in-place edit keeps
+            if (manifest == null || threads > 0 || directory)
+                verify(entries, threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+        }
+    }
+
+    /*
+     * Compares the entry's size and CRC-32 in the central directory, and the checksum of its file
+     * in the configuration, with the manifest.
+     */
+    private static void check(Path root, Path p, FileMetadata file, ArchiveManifest manifest) throws IOException {
+        ArchiveManifest.Entry entry = manifest.get(root.relativize(p).toString().replace("\\", "/"));
+        if (entry == null)
+            throw new IOException(p + ": File is missing from the manifest");
+
+        if (entry.size != file.getSize() || entry.size != Files.size(p)
+                        || !entry.checksum.equals(ArchiveManifest.checksum(file))) {
+            throw new IOException(p + ": File has been tampered with");
+        }
+
+        // a staged directory has no CRC to compare, and is rehashed instead
+        if (p.getFileSystem() != FileSystems.getDefault()
+                        && entry.crc != (long) Files.getAttribute(p, "zip:crc")) {
+            throw new IOException(p + ": File has been tampered with");
+        }
+    }
+
+    private static void verify(Map<Path, FileMetadata> entries, int threads) throws IOException {
+        if (threads <= 1 || entries.size() <= 1) {
+            for (Map.Entry<Path, FileMetadata> e : entries.entrySet()) {
+                verify(e.getKey(), e.getValue());
+            }
+
+            return;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, entries.size()),
+                        ConfigImpl.daemonThreads("update4j-verify"));
+        try {
+            CompletionService<Void> checks = new ExecutorCompletionService<>(pool);
+            for (Map.Entry<Path, FileMetadata> e : entries.entrySet()) {
+                checks.submit(() -> {
+                    verify(e.getKey(), e.getValue());
+                    return null;
+                });
+            }
+
+            // fail on the first tampered entry, shutdownNow() cancels the rest
+            for (int i = 0; i < entries.size(); i++) {
+                checks.take().get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while verifying the archive");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+
+            throw new IOException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static void verify(Path p, FileMetadata file) throws IOException {
+        if (!FileMapper.getChecksumHex(p, file.getChecksumAlgorithm()).equals(file.getChecksumString())) {
+            throw new IOException(p + ": File has been tampered with");
         }
     }
 
@@ -111,17 +259,20 @@ public class Archive {
     }
 
     public void install(boolean deleteArchive) throws IOException {
+        boolean directory = isStaged();
+
         // we move out the files, so must be writable
-        FileUtils.verifyAccessible(getLocation());
+        if (directory && !Files.isWritable(getLocation()))
+            throw new AccessDeniedException(getLocation().toString());
+        if (!directory)
+            FileUtils.verifyAccessible(getLocation());
 
-        try (FileSystem zip = openConnection()) {
-            Path filesPath = zip.getPath(FILES_DIR);
+        try (FileSystem zip = directory ? null : openConnection()) {
+            Path root = directory ? getLocation() : zip.getPath("/");
 
             Map<Path, Path> files = new HashMap<>();
             for (FileMetadata file : getFiles()) {
-                Path path = FileUtils.resolve(filesPath, file.getNormalizedPath());
-                if (!Files.isRegularFile(path))
-                    throw new IOException(path + ": File is missing or invalid");
+                Path path = entry(root, file, directory);
 
                 FileUtils.verifyAccessible(file.getPath());
                 files.put(path, file.getNormalizedPath());
@@ -135,7 +286,9 @@ public class Archive {
             }
         }
 
-        if (deleteArchive)
+        if (deleteArchive && directory)
+            FileUtils.deleteDirectory(getLocation());
+        else if (deleteArchive)
             Files.deleteIfExists(getLocation());
     }
 
@@ -143,6 +296,33 @@ public class Archive {
         install(true);
     }
 
+    /*
+     * Moves each file out of the archive to the given target, which must not exist.
+     */
+    void moveFiles(Function<FileMetadata, Path> targets) throws IOException {
+        boolean directory = isStaged();
+        try (FileSystem zip = directory ? null : openConnection()) {
+            Path root = directory ? getLocation() : zip.getPath("/");
+
+            for (FileMetadata file : getFiles()) {
+                Path target = targets.apply(file);
+                if (target.getParent() != null)
+                    Files.createDirectories(target.getParent());
+
+                Files.move(entry(root, file, directory), target);
+            }
+        }
+    }
+
+    private static Path entry(Path root, FileMetadata file, boolean directory) throws IOException {
+        String name = entryName(file);
+        Path path = root.resolve(directory ? DirectoryArchiveWriter.toEntryName(name) : name);
+        if (!Files.isRegularFile(path))
+            throw new IOException(path + ": File is missing or invalid");
+
+        return path;
+    }
+
     public FileSystem openConnection() throws IOException {
         if (Files.notExists(getLocation())) {
             // I can't use Map.of("create", "true") since the overload taking a path was only added in JDK 13
@@ -166,13 +346,26 @@ public class Archive {
         }
     }
     
-    private static String toRelativeFileString(Path path) {
-        String str = path.toString();
-        
-        String pattern = "^(:?\\\\|/)?" + FILES_DIR;
-        if(OS.CURRENT == OS.WINDOWS)
-            pattern += "(:?\\\\|/)";
-        
-        return str.replaceFirst(pattern, "");
+    /*
+     * The name of the file's entry, as it is compared when the archive is loaded.
+     */
+    static String entryName(FileMetadata file) {
+        return FILES_DIR + "/" + file.getNormalizedPath().toString().replace("\\", "/").replaceFirst("^/", "");
+    }
+
+    /*
+     * Whether the update was staged into a directory rather than a zip archive.
+     */
+    public boolean isStaged() {
+        return Files.isDirectory(getLocation());
+    }
+
+    /*
+     * Links an entry, relative to files/, to the normalized path of its file: separators are
+     * unified, and the leading separator and the colon of a Windows drive dropped, since
+     * neither is in the entry name of a staged directory.
+     */
+    private static String linkKey(String path) {
+        return path.replace("\\", "/").replaceFirst("^/", "").replaceFirst("^([A-Za-z]):", "$1");
     }
 }
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2020 Mordechai Meisels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.update4j;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Lists the size, CRC-32 and checksum of each file in the archive, as validated when it was
+ * downloaded. One line per entry, after a header line:
+ *
+ *     <size> <crc-32 hex> <algorithm>:<checksum hex> <entry name>
+ *
+ * The name is last, so it may contain spaces.
+ */
+class ArchiveManifest {
+
+    static final String PATH = Archive.RESERVED_DIR + "/manifest";
+
+    private static final String HEADER = "update4j-manifest 1";
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    static String checksum(FileMetadata file) {
+        return file.getChecksumAlgorithm().getName() + ":" + file.getChecksumString();
+    }
+
+    void add(String name, long size, long crc, String checksum) {
+        entries.put(name, new Entry(size, crc, checksum));
+    }
+
+    Entry get(String name) {
+        return entries.get(name);
+    }
+
+    Entry remove(String name) {
+        return entries.remove(name);
+    }
+
+    Set<String> names() {
+        return entries.keySet();
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    byte[] toBytes() {
+        StringBuilder builder = new StringBuilder(HEADER).append('\n');
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            builder.append(entry.size)
+                            .append(' ')
+                            .append(Long.toHexString(entry.crc))
+                            .append(' ')
+                            .append(entry.checksum)
+                            .append(' ')
+                            .append(e.getKey())
+                            .append('\n');
+        }
+
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    static ArchiveManifest read(BufferedReader in) throws IOException {
+        if (!HEADER.equals(in.readLine()))
+            throw new IOException("Unsupported archive manifest");
+
+        ArchiveManifest manifest = new ArchiveManifest();
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.isEmpty())
+                continue;
+
+            String[] parts = line.split(" ", 4);
+            if (parts.length < 4)
+                throw new IOException("Malformed archive manifest line: " + line);
+
+            try {
+                manifest.add(parts[3], Long.parseLong(parts[0]), Long.parseLong(parts[1], 16), parts[2]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed archive manifest line: " + line, e);
+            }
+        }
+
+        return manifest;
+    }
+
+    static class Entry {
+        final long size;
+        final long crc;
+        final String checksum;
+
+        Entry(long size, long crc, String checksum) {
+            this.size = size;
+            this.crc = crc;
+            this.checksum = checksum;
+        }
+    }
+}
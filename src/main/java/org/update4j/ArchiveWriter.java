@@ -0,0 +1,95 @@
+/*
+ * Copyright 2020 Mordechai Meisels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.update4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+
+import org.update4j.UpdateOptions.ArchiveUpdateOptions;
+
+/*
+ * Writes the files of an update, with the configuration under reserved/ and each file under
+ * files/, into a zip archive or a staging directory of the same layout. Files are written once
+ * validated, possibly from several download threads.
+ */
+interface ArchiveWriter extends Closeable {
+
+    /*
+     * If resuming, the files listed in the manifest of the existing archive are kept until
+     * claimed with reuse(); any left unclaimed are dropped when closed.
+     */
+    static ArchiveWriter open(ArchiveUpdateOptions options, boolean resume) throws IOException {
+        if (options.isStaged())
+            return new DirectoryArchiveWriter(options.getArchiveLocation(), resume);
+
+        return new ZipArchiveWriter(options.getArchiveLocation(), options.getBufferPool(), resume);
+    }
+
+    void write(String name, byte[] content) throws IOException;
+
+    /*
+     * Writes the file, whose size and CRC-32 are already known, and lists it in the manifest
+     * with the given checksum, as written by ArchiveManifest.checksum(), if not null. Returns
+     * the location of the file once written.
+     */
+    Path write(String name, Path file, long size, long crc, boolean store, String checksum) throws IOException;
+
+    /*
+     * Takes over the file from the resumed archive if it is listed with the same size and
+     * checksum, and its content, as read back, passes the check. Returns its location, or the
+     * archive if it has no location of its own, or null if the file must be written anew.
+     */
+    Path reuse(String name, long size, String checksum, ContentCheck check) throws IOException;
+
+    default Path write(String name, Path file, long size, long crc, boolean store) throws IOException {
+        return write(name, file, size, crc, store, null);
+    }
+
+    /*
+     * Starts writing a file of the expected size straight into the archive while it is
+     * downloaded, if supported; returns null otherwise, and the file is staged and written
+     * with write(). Nothing else may be written until the entry is committed or closed.
+     */
+    default StreamedEntry stream(String name, long size) throws IOException {
+        return null;
+    }
+
+    /*
+     * Checks the content of a file before it is reused, as the archive kept by a failed update
+     * may have been changed since.
+     */
+    @FunctionalInterface
+    interface ContentCheck {
+
+        boolean matches(InputStream content) throws IOException;
+    }
+
+    /*
+     * A file written into the archive as it is downloaded. Closing it before it was committed
+     * drops everything written to it.
+     */
+    interface StreamedEntry extends WritableByteChannel {
+
+        /*
+         * Completes the entry, listing it in the manifest with the given checksum, and
+         * returns the location of the archive.
+         */
+        Path commit(long crc, String checksum) throws IOException;
+    }
+}
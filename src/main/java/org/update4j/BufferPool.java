@@ -0,0 +1,177 @@
+/*
+ * Copyright 2020 Mordechai Meisels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.update4j;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of reusable I/O buffers of a fixed size, so hashing local files and
+ * downloading do not allocate a buffer for each file.
+ * 
+ * <p>
+ * Direct buffers are handed out for channel I/O, where the JDK reads straight
+ * into them and checksums read them without copying. Heap buffers are handed
+ * out where the data passes through byte arrays anyway, e.g. streams returned
+ * by an update handler or signatures. Only a bounded number of idle buffers is
+ * retained; buffers released beyond that are left to the garbage collector.
+ * 
+ * <p>
+ * This class is thread-safe.
+ * 
+ * @author Mordechai Meisels
+ *
+ */
+public final class BufferPool {
+
+    /**
+     * The default buffer size, 64 KiB.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private static volatile BufferPool defaultPool = create(DEFAULT_BUFFER_SIZE);
+
+    private final int bufferSize;
+    private final int maxIdle;
+
+    private final Queue<ByteBuffer> direct = new ConcurrentLinkedQueue<>();
+    private final Queue<ByteBuffer> heap = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleDirect = new AtomicInteger();
+    private final AtomicInteger idleHeap = new AtomicInteger();
+
+    private BufferPool(int bufferSize, int maxIdle) {
+        if (bufferSize < 1024)
+            throw new IllegalArgumentException("Buffer size must be at least 1024: " + bufferSize);
+        if (maxIdle < 0)
+            throw new IllegalArgumentException("Idle buffers must not be negative: " + maxIdle);
+
+        this.bufferSize = bufferSize;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Creates a pool of buffers of the given size, retaining up to twice the
+     * number of processors idle buffers of each kind.
+     * 
+     * @param bufferSize
+     *            The size of each buffer in bytes, at least {@code 1024}.
+     * @return A new pool.
+     */
+    public static BufferPool create(int bufferSize) {
+        return create(bufferSize, 2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a pool of buffers of the given size.
+     * 
+     * @param bufferSize
+     *            The size of each buffer in bytes, at least {@code 1024}.
+     * @param maxIdle
+     *            The maximum number of idle buffers retained of each kind.
+     * @return A new pool.
+     */
+    public static BufferPool create(int bufferSize, int maxIdle) {
+        return new BufferPool(bufferSize, maxIdle);
+    }
+
+    /**
+     * Returns the pool used by {@link FileUtils} and by updates that do not set
+     * their own pool.
+     * 
+     * @return The default pool.
+     */
+    public static BufferPool getDefault() {
+        return defaultPool;
+    }
+
+    /**
+     * Replaces the default pool, e.g. to use larger buffers on fast storage.
+     * 
+     * @param pool
+     *            The new default pool.
+     */
+    public static void setDefault(BufferPool pool) {
+        if (pool == null)
+            throw new NullPointerException("pool");
+
+        defaultPool = pool;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Returns a cleared direct buffer, to be passed back to
+     * {@link #release(ByteBuffer)} once done.
+     * 
+     * @return A direct buffer.
+     */
+    public ByteBuffer acquireDirect() {
+        ByteBuffer buffer = direct.poll();
+        if (buffer == null)
+            return ByteBuffer.allocateDirect(bufferSize);
+
+        idleDirect.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Returns a cleared heap buffer, whose {@link ByteBuffer#array() array} may
+     * be used directly, to be passed back to {@link #release(ByteBuffer)} once
+     * done.
+     * 
+     * @return A heap buffer.
+     */
+    public ByteBuffer acquireHeap() {
+        ByteBuffer buffer = heap.poll();
+        if (buffer == null)
+            return ByteBuffer.allocate(bufferSize);
+
+        idleHeap.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. It must not be used afterwards. Buffers of a
+     * different size are ignored.
+     * 
+     * @param buffer
+     *            The buffer to release.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize)
+            return;
+
+        buffer.clear();
+
+        if (buffer.isDirect()) {
+            if (idleDirect.incrementAndGet() <= maxIdle) {
+                direct.offer(buffer);
+            } else {
+                idleDirect.decrementAndGet();
+            }
+        } else {
+            if (idleHeap.incrementAndGet() <= maxIdle) {
+                heap.offer(buffer);
+            } else {
+                idleHeap.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2020 Mordechai Meisels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.update4j;
+
+import java.util.Locale;
+
+/**
+ * The algorithm used to compute the checksum of a file, listed in the
+ * {@code checksumAlgorithm} attribute of a file in the configuration. Files
+ * without this attribute use {@link #ADLER32}.
+ * 
+ * <p>
+ * Checksums are written in lowercase hex. 32 bit checksums are written without
+ * leading zeros, as in previous versions.
+ * 
+ * @author Mordechai Meisels
+ *
+ */
+public enum ChecksumAlgorithm {
+
+    /**
+     * Adler-32, the default. Fast, but weak for small files.
+     */
+    ADLER32("adler32", 32),
+
+    /**
+     * CRC-32C (Castagnoli). Computed with hardware instructions on most modern
+     * CPUs, usually the fastest option.
+     */
+    CRC32C("crc32c", 32),
+
+    /**
+     * SHA-256. Collision resistant, at the cost of speed.
+     */
+    SHA256("sha256", 256);
+
+    private final String name;
+    private final int bits;
+
+    ChecksumAlgorithm(String name, int bits) {
+        this.name = name;
+        this.bits = bits;
+    }
+
+    /**
+     * Returns the name of this algorithm as used in the configuration.
+     * 
+     * @return The name of this algorithm.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the algorithm of the given name, case insensitive. A {@code null}
+     * name returns {@link #ADLER32}.
+     * 
+     * @param name
+     *            The name of the algorithm, as returned by {@link #getName()}.
+     * @return The algorithm of the given name.
+     * @throws IllegalArgumentException
+     *             If no algorithm has that name.
+     */
+    public static ChecksumAlgorithm fromName(String name) {
+        if (name == null)
+            return ADLER32;
+
+        switch (name.toLowerCase(Locale.ROOT)) {
+        case "adler32":
+            return ADLER32;
+        case "crc32c":
+            return CRC32C;
+        case "sha256":
+        case "sha-256":
+            return SHA256;
+        default:
+            throw new IllegalArgumentException("Unknown checksum algorithm: " + name);
+        }
+    }
+
+    boolean isLongValue() {
+        return bits <= 64;
+    }
+
+    /*
+     * Validates a hex checksum and returns it in its canonical form,
+     * so checksums can be compared as strings.
+     */
+    String normalize(String checksum) {
+        if (checksum == null)
+            return isLongValue() ? "0" : null;
+
+        if (isLongValue()) {
+            long value = Long.parseUnsignedLong(checksum, 16);
+            if (value < 0 || (bits < 64 && value >>> bits != 0))
+                throw new IllegalArgumentException("Invalid " + name + " checksum: " + checksum);
+
+            return Long.toHexString(value);
+        }
+
+        String lower = checksum.toLowerCase(Locale.ROOT);
+        if (lower.length() != bits / 4 || !lower.chars().allMatch(c -> Character.digit(c, 16) >= 0))
+            throw new IllegalArgumentException("Invalid " + name + " checksum: " + checksum);
+
+        return lower;
+    }
+}
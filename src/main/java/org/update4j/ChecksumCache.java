@@ -0,0 +1,263 @@
+/*
+ * Copyright 2020 Mordechai Meisels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.update4j;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.update4j.util.FileUtils;
+
+/**
+ * A persistent cache of checksums of installed files, keyed by the file's path
+ * and validated by its size, last modified time, file key (e.g. the inode
+ * number on Unix) and checksum algorithm.
+ *
+ * <p>
+ * When passed to {@link UpdateOptions#checksumCache(ChecksumCache)} or
+ * {@link FileMetadata#requiresUpdate(ChecksumCache)}, a file whose attributes
+ * did not change since it was last hashed is confirmed with a single
+ * {@code readAttributes} call instead of reading its whole content. Any change
+ * in the attributes falls back to a full read, which refreshes the entry.
+ *
+ * <p>
+ * The cache is only a shortcut. A file modified without changing its size and
+ * last modified time will not be noticed; call {@link #invalidate()} or check
+ * without a cache to force a full verification.
+ *
+ * <pre>
+ * ChecksumCache cache = ChecksumCache.load(Paths.get("app/.checksums"));
+ * if (config.requiresUpdate(UpdateOptions.archive(zip).checksumCache(cache))) {
+ *     // ...
+ * }
+ * </pre>
+ *
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author Mordechai Meisels
+ *
+ */
+public class ChecksumCache {
+
+    private static final String HEADER = "update4j-checksum-cache 1";
+
+    /*
+     * Files modified this close to the time they were hashed are not cached,
+     * as a subsequent write within the timestamp granularity of the filesystem
+     * would go unnoticed.
+     */
+    private static final long RACY_WINDOW_MILLIS = 2000;
+
+    private final Path location;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile boolean dirty;
+
+    private ChecksumCache(Path location) {
+        this.location = location;
+    }
+
+    /**
+     * Loads the cache from the given file. If the file does not exist or is not
+     * a valid cache file an empty cache is returned; it will be created on
+     * {@link #save()}.
+     *
+     * @param location
+     *            The location of the cache file.
+     * @return The loaded cache.
+     * @throws IOException
+     *             If the file exists but could not be read.
+     */
+    public static ChecksumCache load(Path location) throws IOException {
+        ChecksumCache cache = new ChecksumCache(Objects.requireNonNull(location));
+
+        if (Files.notExists(location))
+            return cache;
+
+        try (BufferedReader in = Files.newBufferedReader(location)) {
+            if (!HEADER.equals(in.readLine()))
+                return cache;
+
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split("\t", 6);
+                if (parts.length != 6) {
+                    cache.entries.clear();
+                    break;
+                }
+
+                try {
+                    Entry entry = new Entry(Long.parseLong(parts[0]), Long.parseLong(parts[1]),
+                                    parts[2].equals("-") ? null : parts[2], ChecksumAlgorithm.fromName(parts[3]),
+                                    parts[4]);
+                    cache.entries.put(parts[5], entry);
+                } catch (IllegalArgumentException e) {
+                    cache.entries.clear();
+                    break;
+                }
+            }
+        }
+
+        return cache;
+    }
+
+    /**
+     * Returns the location of the cache file.
+     *
+     * @return The location of the cache file.
+     */
+    public Path getLocation() {
+        return location;
+    }
+
+    /**
+     * Returns the checksum of the given file in the given algorithm, reading its
+     * content only if the file changed since it was last hashed.
+     *
+     * @param path
+     *            The file to hash.
+     * @param algorithm
+     *            The checksum algorithm.
+     * @return The checksum of the file, in lowercase hex.
+     * @throws IOException
+     *             If any exception arises while reading the file.
+     */
+    public String getChecksum(Path path, ChecksumAlgorithm algorithm) throws IOException {
+        return getChecksum(path, algorithm, Files.readAttributes(path, BasicFileAttributes.class));
+    }
+
+    String getChecksum(Path path, ChecksumAlgorithm algorithm, BasicFileAttributes attrs) throws IOException {
+        String key = key(path);
+        Entry cached = entries.get(key);
+
+        long modified = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        String fileKey = attrs.fileKey() == null ? null : attrs.fileKey().toString();
+
+        if (cached != null && cached.matches(attrs.size(), modified, fileKey, algorithm))
+            return cached.checksum;
+
+        String checksum = FileUtils.getChecksumString(path, algorithm);
+
+        if (System.currentTimeMillis() - attrs.lastModifiedTime().toMillis() > RACY_WINDOW_MILLIS) {
+            entries.put(key, new Entry(attrs.size(), modified, fileKey, algorithm, checksum));
+            dirty = true;
+        } else if (entries.remove(key) != null) {
+            dirty = true;
+        }
+
+        return checksum;
+    }
+
+    /**
+     * Removes the entry of the given file, forcing a full read on the next
+     * check.
+     *
+     * @param path
+     *            The file to invalidate.
+     */
+    public void invalidate(Path path) {
+        if (entries.remove(key(path)) != null)
+            dirty = true;
+    }
+
+    /**
+     * Removes all entries, forcing a full read of every file on the next check.
+     */
+    public void invalidate() {
+        if (!entries.isEmpty())
+            dirty = true;
+
+        entries.clear();
+    }
+
+    /**
+     * Writes the cache to its location if it changed since it was loaded or last
+     * saved. The file is replaced atomically where supported.
+     *
+     * @throws IOException
+     *             If the file could not be written.
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty)
+            return;
+
+        // clear first, so changes made while writing are saved next time
+        dirty = false;
+
+        Path parent = location.toAbsolutePath().getParent();
+        if (parent != null)
+            Files.createDirectories(parent);
+
+        Path temp = Files.createTempFile(parent, location.getFileName().toString(), null);
+        try {
+            try (BufferedWriter out = Files.newBufferedWriter(temp)) {
+                out.write(HEADER);
+                out.newLine();
+
+                for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                    Entry entry = e.getValue();
+                    out.write(entry.size + "\t" + entry.modified + "\t" + (entry.fileKey == null ? "-" : entry.fileKey)
+                                    + "\t" + entry.algorithm.getName() + "\t" + entry.checksum + "\t" + e.getKey());
+                    out.newLine();
+                }
+            }
+
+            try {
+                Files.move(temp, location, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, location, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            dirty = true;
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    private static String key(Path path) {
+        return path.toAbsolutePath().normalize().toString();
+    }
+
+    private static class Entry {
+        private final long size;
+        private final long modified;
+        private final String fileKey;
+        private final ChecksumAlgorithm algorithm;
+        private final String checksum;
+
+        Entry(long size, long modified, String fileKey, ChecksumAlgorithm algorithm, String checksum) {
+            this.size = size;
+            this.modified = modified;
+            this.fileKey = fileKey;
+            this.algorithm = algorithm;
+            this.checksum = checksum;
+        }
+
+        boolean matches(long size, long modified, String fileKey, ChecksumAlgorithm algorithm) {
+            return this.size == size && this.modified == modified && Objects.equals(this.fileKey, fileKey)
+                            && this.algorithm == algorithm;
+        }
+    }
+}
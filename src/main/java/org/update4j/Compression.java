@@ -0,0 +1,130 @@
+/*
+ * Copyright 2020 Mordechai Meisels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.update4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The compression of a precompressed file, listed in the {@code compression}
+ * attribute of a file in the configuration. The file's uri points to the
+ * compressed artifact and it is decompressed while downloading; its size and
+ * checksum are those of the decompressed file.
+ * 
+ * @author Mordechai Meisels
+ *
+ */
+public enum Compression {
+
+    /**
+     * Gzip, as written by {@code gzip} or {@link GZIPOutputStream}.
+     */
+    GZIP("gzip"),
+
+    /**
+     * Zlib-wrapped deflate, as written by {@link DeflaterOutputStream}.
+     */
+    DEFLATE("deflate");
+
+    private final String name;
+
+    Compression(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the name of this compression as used in the configuration.
+     * 
+     * @return The name of this compression.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the compression of the given name, case insensitive.
+     * 
+     * @param name
+     *            The name of the compression, as returned by {@link #getName()}.
+     * @return The compression of the given name.
+     * @throws IllegalArgumentException
+     *             If no compression has that name.
+     */
+    public static Compression fromName(String name) {
+        switch (name.toLowerCase(Locale.ROOT)) {
+        case "gzip":
+            return GZIP;
+        case "deflate":
+            return DEFLATE;
+        default:
+            throw new IllegalArgumentException("Unknown compression: " + name);
+        }
+    }
+
+    /**
+     * Wraps the given compressed stream with one that decompresses it.
+     * 
+     * @param in
+     *            The compressed stream.
+     * @return The decompressed stream.
+     * @throws IOException
+     *             If the stream header could not be read.
+     */
+    public InputStream decompress(InputStream in) throws IOException {
+        if (this == GZIP)
+            return new GZIPInputStream(in, 1024 * 8);
+
+        return new InflaterInputStream(in);
+    }
+
+    /**
+     * Wraps the given stream with one that compresses into it, using the best
+     * compression.
+     * 
+     * @param out
+     *            The stream to write the compressed data to.
+     * @return The compressing stream.
+     * @throws IOException
+     *             If the stream header could not be written.
+     */
+    public OutputStream compress(OutputStream out) throws IOException {
+        if (this == GZIP) {
+            return new GZIPOutputStream(out, 1024 * 8) {
+                {
+                    def.setLevel(Deflater.BEST_COMPRESSION);
+                }
+            };
+        }
+
+        return new DeflaterOutputStream(out, new Deflater(Deflater.BEST_COMPRESSION), 1024 * 8) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    def.end();
+                }
+            }
+        };
+    }
+}
@@ -15,12 +15,13 @@
  */
 package org.update4j;
 
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.io.StringWriter;
 import java.lang.module.FindException;
 import java.lang.module.InvalidModuleDescriptorException;
 import java.lang.module.ModuleDescriptor;
@@ -31,7 +32,9 @@ import java.lang.reflect.InvocationTargetException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
-import java.nio.file.FileSystem;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
@@ -44,13 +47,25 @@ import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 import org.update4j.UpdateOptions.ArchiveUpdateOptions;
+import org.update4j.UpdateOptions.TempUpdateOptions;
 import org.update4j.inject.Injectable;
 import org.update4j.inject.UnsatisfiedInjectionException;
 import org.update4j.mapper.MapMapper;
+import org.update4j.service.DownloadSource;
 import org.update4j.service.Launcher;
 import org.update4j.service.Service;
 import org.update4j.service.UpdateHandler;
@@ -67,7 +82,21 @@ class ConfigImpl {
     @Deprecated
     static boolean doLegacyUpdate(Configuration config, Path tempDir, PublicKey key, Injectable injectable,
                     UpdateHandler handler) {
+        return doLegacyUpdate(config, tempDir, key, injectable, handler, null).getException() == null;
+    }
+
+    static UpdateResult doTempUpdate(Configuration config, TempUpdateOptions options) {
+        return doLegacyUpdate(config, Objects.requireNonNull(options.getTempLocation()), options.getPublicKey(),
+                        options.getInjectable(), options.getUpdateHandler(), options);
+    }
 
+    /*
+     * Options are null when called from the deprecated methods.
+     */
+    private static UpdateResult doLegacyUpdate(Configuration config, Path tempDir, PublicKey key,
+                    Injectable injectable, UpdateHandler handler, UpdateOptions<?> options) {
+
+        Throwable exception = null;
         boolean updateTemp = tempDir != null;
         boolean doneDownloads = false;
         boolean success;
@@ -93,7 +122,8 @@ class ConfigImpl {
             List<FileMetadata> requiresUpdate = new ArrayList<>();
             List<FileMetadata> updated = new ArrayList<>();
 
-            UpdateContext ctx = new UpdateContext(config, requiresUpdate, updated, tempDir, key, null);
+            ProgressTracker progress = ProgressTracker.of(options);
+            UpdateContext ctx = new UpdateContext(config, requiresUpdate, updated, tempDir, key, null, progress);
             handler.init(ctx);
 
             handler.startCheckUpdates();
@@ -104,24 +134,7 @@ class ConfigImpl {
                             .filter(FileMetadata::appliesToCurrentPlatform)
                             .collect(Collectors.toList());
 
-            long updateJobSize = osFiles.stream().mapToLong(FileMetadata::getSize).sum();
-            double updateJobCompleted = 0;
-
-            for (FileMetadata file : osFiles) {
-                if (handler.shouldCheckForUpdate(file)) {
-                    handler.startCheckUpdateFile(file);
-
-                    boolean needsUpdate = file.requiresUpdate();
-
-                    if (needsUpdate)
-                        requiresUpdate.add(file);
-
-                    handler.doneCheckUpdateFile(file, needsUpdate);
-                }
-
-                updateJobCompleted += file.getSize();
-                handler.updateCheckUpdatesProgress(clamp((float) (updateJobCompleted / updateJobSize)));
-            }
+            checkUpdates(handler, osFiles, requiresUpdate, 1, null, null);
 
             handler.doneCheckUpdates();
 
@@ -132,7 +145,8 @@ class ConfigImpl {
             }
 
             long downloadJobSize = requiresUpdate.stream().mapToLong(FileMetadata::getSize).sum();
-            double downloadJobCompleted = 0;
+            progress.size.set(downloadJobSize);
+            progress.files.set(requiresUpdate.size());
 
             if (!requiresUpdate.isEmpty()) {
                 if (key == null && config.getSignature() != null) {
@@ -141,54 +155,101 @@ class ConfigImpl {
                 
                 handler.startDownloads();
 
-                for (FileMetadata file : requiresUpdate) {
-                    handler.startDownloadFile(file);
-
-                    int read = 0;
-                    double currentCompleted = 0;
-                    byte[] buffer = new byte[1024 * 8];
-
-                    Path output;
-                    if (!updateTemp) {
-                        Files.createDirectories(file.getNormalizedPath().getParent());
-                        output = Files.createTempFile(file.getNormalizedPath().getParent(), null, null);
-                    } else {
-                        Files.createDirectories(tempDir);
-                        output = Files.createTempFile(tempDir, null, null);
-                    }
-                    downloadedCollection.put(file, output);
+                RateLimiter limiter = options == null ? null : options.getRateLimiter();
+                BufferPool buffers = options == null ? BufferPool.getDefault() : options.getBufferPool();
+                ByteBuffer pooled = buffers.acquireHeap();
+                try {
+                    byte[] buffer = pooled.array();
 
-                    try (InputStream in = handler.openDownloadStream(file);
-                                    OutputStream out = Files.newOutputStream(output)) {
+                    for (FileMetadata file : requiresUpdate) {
+                        handler.startDownloadFile(file);
 
-                        // We should set download progress only AFTER the request has returned.
-                        // The delay can be monitored by the difference between calls from startDownload to this.
-                        if (downloadJobCompleted == 0) {
-                            handler.updateDownloadProgress(0f);
+                        int read = 0;
+                        long currentCompleted = 0;
+
+                        Path output;
+                        if (!updateTemp) {
+                            Files.createDirectories(file.getNormalizedPath().getParent());
+                            output = Files.createTempFile(file.getNormalizedPath().getParent(), null, null);
+                        } else {
+                            Files.createDirectories(tempDir);
+                            output = Files.createTempFile(tempDir, null, null);
                         }
-                        handler.updateDownloadFileProgress(file, 0f);
+                        downloadedCollection.put(file, output);
 
-                        while ((read = in.read(buffer, 0, buffer.length)) > -1) {
-                            out.write(buffer, 0, read);
+                        FileDigest digest = new FileDigest(file.getChecksumAlgorithm(), sig);
 
-                            if (sig != null) {
-                                sig.update(buffer, 0, read);
+                        boolean segmented = false;
+                        if (options != null && options.isSegmented(file)) {
+                            if (progress.completed.get() == 0) {
+                                handler.updateDownloadProgress(0f);
                             }
+                            handler.updateDownloadFileProgress(file, 0f);
+
+                            segmented = downloadSegments(file, output, digest, options, handler, progress);
+                        }
 
-                            downloadJobCompleted += read;
-                            currentCompleted += read;
+                        if (!segmented) {
+                            try (DownloadSource source = handler.openDownloadSource(file, 0)) {
+                                Downloader.checkLength(file, source, 0);
 
-                            handler.updateDownloadFileProgress(file, clamp((float) (currentCompleted / file.getSize())));
-                            handler.updateDownloadProgress(clamp((float) downloadJobCompleted / downloadJobSize));
+                                // We should set download progress only AFTER the request has returned.
+                                // The delay can be monitored by the difference between calls from
+                                // startDownload to this.
+                                if (progress.completed.get() == 0) {
+                                    handler.updateDownloadProgress(0f);
+                                }
+                                handler.updateDownloadFileProgress(file, 0f);
+
+                                if (limiter == null && file.getCompression() == null
+                                                && source.getChannel() instanceof FileChannel) {
+                                    UpdateHandler callbacks = handler;
+                                    Downloader.Publisher publisher = completed -> {
+                                        callbacks.updateDownloadFileProgress(file,
+                                                        clamp((float) completed / file.getSize()));
+                                        callbacks.updateDownloadProgress(
+                                                        clamp((float) progress.completed.get() / downloadJobSize));
+                                    };
+
+                                    try (FileChannel out = FileChannel.open(output, StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE)) {
+                                        Downloader.transferLocal(file, (FileChannel) source.getChannel(), out,
+                                                        Downloader.localChunk(options, buffers), digest, buffers,
+                                                        progress, () -> false, publisher);
+                                    }
+                                } else {
+                                    try (InputStream download = RateLimiter.limit(limiter, source.toInputStream());
+                                                    InputStream in = decompress(file, download);
+                                                    OutputStream out = Files.newOutputStream(output)) {
+
+                                        while ((read = in.read(buffer, 0, buffer.length)) > -1) {
+                                            out.write(buffer, 0, read);
+                                            digest.update(buffer, 0, read);
+
+                                            progress.completed.addAndGet(read);
+                                            currentCompleted += read;
+
+                                            if (currentCompleted == file.getSize() || progress.due()) {
+                                                handler.updateDownloadFileProgress(file,
+                                                                clamp((float) currentCompleted / file.getSize()));
+                                                handler.updateDownloadProgress(clamp(
+                                                                (float) progress.completed.get() / downloadJobSize));
+                                            }
+                                        }
+                                    }
+                                }
+                            }
                         }
 
                         handler.validatingFile(file, output);
-                        validateFile(file, output, sig);
+                        validateFile(file, output, digest);
 
                         updated.add(file);
+                        progress.completedFiles.incrementAndGet();
                         handler.doneDownloadFile(file, output);
-
                     }
+                } finally {
+                    buffers.release(pooled);
                 }
 
                 completeDownloads(downloadedCollection, tempDir, updateTemp);
@@ -199,6 +260,8 @@ class ConfigImpl {
 
             success = true;
         } catch (Throwable t) {
+            exception = t;
+
             // clean-up as update failed
 
             try {
@@ -232,8 +295,40 @@ class ConfigImpl {
 
         handler.stop();
 
-        return success;
+        return new UpdateResult(handler, exception, Map.of());
+
+    }
+
+    /*
+     * Downloads the file in concurrent ranges; returns false if the handler cannot serve ranges.
+     * Handler callbacks are serialized, as the legacy handler contract is single threaded.
+     */
+    private static boolean downloadSegments(FileMetadata file, Path output, FileDigest digest, UpdateOptions<?> options,
+                    UpdateHandler handler, ProgressTracker progress) throws Throwable {
+        SegmentedDownload download = new SegmentedDownload(output, file.getSize(), options.getDownloadSegments(),
+                        options.getBufferPool());
+        AtomicLong fileCompleted = new AtomicLong();
+
+        boolean done = download.download(file.getPath().getFileName().toString(),
+                        (offset, length) -> RateLimiter.limit(options.getRateLimiter(),
+                                        handler.openDownloadStream(file, offset, length)),
+                        read -> {
+                            long completed = fileCompleted.addAndGet(read);
+                            progress.completed.addAndGet(read);
+
+                            if (completed == file.getSize() || progress.due()) {
+                                synchronized (fileCompleted) {
+                                    handler.updateDownloadFileProgress(file, clamp((float) completed / file.getSize()));
+                                    handler.updateDownloadProgress(
+                                                    clamp((float) progress.completed.get() / progress.size.get()));
+                                }
+                            }
+                        });
+
+        if (done)
+            download.digest(digest);
 
+        return done;
     }
 
     static UpdateResult doUpdate(Configuration config, ArchiveUpdateOptions options) {
@@ -257,12 +352,16 @@ class ConfigImpl {
             }
         }
 
+        Path partsDir = options.getPartsLocation();
+        Downloader downloader = null;
+
         try {
             List<FileMetadata> requiresUpdate = new ArrayList<>();
             List<FileMetadata> updated = new ArrayList<>();
 
+            ProgressTracker progress = ProgressTracker.of(options);
             UpdateContext ctx = new UpdateContext(config, requiresUpdate, updated, null, options.getPublicKey(),
-                            options.getArchiveLocation());
+                            options.getArchiveLocation(), progress);
 
             handler.init(ctx);
 
@@ -274,108 +373,50 @@ class ConfigImpl {
                             .filter(FileMetadata::appliesToCurrentPlatform)
                             .collect(Collectors.toList());
 
-            long updateJobSize = osFiles.stream().mapToLong(FileMetadata::getSize).sum();
-            double updateJobCompleted = 0;
+            ChecksumCache cache = options.getChecksumCache();
 
-            for (FileMetadata file : osFiles) {
-                if (handler.shouldCheckForUpdate(file)) {
-                    handler.startCheckUpdateFile(file);
-
-                    boolean needsUpdate = file.requiresUpdate();
+            if (options.isPipelineDownloads()) {
+                downloader = new Downloader(handler, key, requiresUpdate, updated, partsDir, options,
+                                Mirrors.of(config), progress);
+                doPipelinedUpdate(config, options, handler, downloader, osFiles, requiresUpdate, cache);
+                doneDownloads = true;
 
-                    if (needsUpdate)
-                        requiresUpdate.add(file);
+                if (!requiresUpdate.isEmpty()) {
+                    if (key == null && config.getSignature() != null) {
+                        Warning.signature();
+                    }
 
-                    handler.doneCheckUpdateFile(file, needsUpdate);
+                    handler.doneDownloads();
                 }
+            } else {
+                checkUpdates(handler, osFiles, requiresUpdate, options.getConcurrentChecks(), cache, null);
 
-                updateJobCompleted += file.getSize();
-                handler.updateCheckUpdatesProgress(clamp((float) (updateJobCompleted / updateJobSize)));
-            }
-
-            handler.doneCheckUpdates();
+                if (cache != null)
+                    cache.save();
 
-            Signature sig = null;
-            if (key != null) {
-                sig = FileUtils.getSignature(key);
-                sig.initVerify(key);
-            }
+                handler.doneCheckUpdates();
 
-            long downloadJobSize = requiresUpdate.stream().mapToLong(FileMetadata::getSize).sum();
-            double downloadJobCompleted = 0;
+                downloader = new Downloader(handler, key, requiresUpdate, updated, partsDir, options,
+                                Mirrors.of(config), progress);
 
-            if (!requiresUpdate.isEmpty()) {
-                if (key == null && config.getSignature() != null) {
-                    Warning.signature();
-                }
-                
-                Archive archive = new Archive(options.getArchiveLocation());
-                try (FileSystem zip = archive.openConnection()) {
-
-                    // first save the config in the archive
-                    Path configPath = zip.getPath(Archive.RESERVED_DIR, Archive.CONFIG_PATH);
-                    Files.createDirectories(configPath.getParent());
-                    try (BufferedWriter out = Files.newBufferedWriter(configPath)) {
-                        config.write(out);
-                    }
-                    
-                    // Save dynamic properties, if any. #110
-                    if(!config.getDynamicProperties().isEmpty()) {
-                        Path dynamicPath = zip.getPath(Archive.RESERVED_DIR,  Archive.DYNAMIC_PATH);
-                        try(BufferedWriter out = Files.newBufferedWriter(dynamicPath)) {
-                            MapMapper.write(out, config.getDynamicProperties(), Archive.DYNAMIC_NODE);
-                        }
+                if (!requiresUpdate.isEmpty()) {
+                    if (key == null && config.getSignature() != null) {
+                        Warning.signature();
                     }
-                    
-
-                    handler.startDownloads();
-                    for (FileMetadata file : requiresUpdate) {
-                        handler.startDownloadFile(file);
-
-                        Path output = FileUtils.resolve(zip.getPath(Archive.FILES_DIR), file.getNormalizedPath());
-                        Files.createDirectories(output.getParent());
-
-                        int read = 0;
-                        double currentCompleted = 0;
-                        byte[] buffer = new byte[1024 * 8];
-
-                        try (InputStream in = handler.openDownloadStream(file);
-                                        OutputStream out = Files.newOutputStream(output)) {
-
-                            // We should set download progress only AFTER the request has returned.
-                            // The delay can be monitored by the difference between calls from startDownload to this.
-                            if (downloadJobCompleted == 0) {
-                                handler.updateDownloadProgress(0f);
-                            }
-                            handler.updateDownloadFileProgress(file, 0f);
-
-                            while ((read = in.read(buffer, 0, buffer.length)) > -1) {
-                                out.write(buffer, 0, read);
-
-                                if (sig != null) {
-                                    sig.update(buffer, 0, read);
-                                }
-
-                                downloadJobCompleted += read;
-                                currentCompleted += read;
-
-                                handler.updateDownloadFileProgress(file, clamp((float) (currentCompleted / file.getSize())));
-                                handler.updateDownloadProgress(clamp((float) downloadJobCompleted / downloadJobSize));
-                            }
+                
+                    try (ArchiveWriter archive = openArchive(options)) {
+                        writeArchiveConfig(archive, config);
 
-                        }
+                        handler.startDownloads();
 
-                        handler.validatingFile(file, output);
-                        validateFile(file, output, sig);
+                        downloader.downloadAll(requiresUpdate, archive, options.getConcurrentDownloads(),
+                                        options.getConcurrentDownloadsPerHost());
 
-                        updated.add(file);
-                        handler.doneDownloadFile(file, output);
+                        doneDownloads = true;
                     }
 
-                    doneDownloads = true;
+                    handler.doneDownloads();
                 }
-
-                handler.doneDownloads();
             }
 
             success = true;
@@ -384,7 +425,10 @@ class ConfigImpl {
 
             if (!doneDownloads) {
                 try {
-                    Files.deleteIfExists(options.getArchiveLocation());
+                    if (options.isResumeDownloads())
+                        keepArchive(options);
+                    else
+                        deleteArchive(options);
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
@@ -396,12 +440,274 @@ class ConfigImpl {
             handler.failed(t);
         }
 
+        // the archive is complete, partial downloads are no longer needed; otherwise
+        // only kept if resumed by the next update
+        if (success || !options.isResumeDownloads()) {
+            try {
+                deleteParts(partsDir);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
         if (success)
             handler.succeeded();
 
         handler.stop();
-        return new UpdateResult(handler, exception);
+        return new UpdateResult(handler, exception, downloader == null ? Map.of() : downloader.getMirrors());
+
+    }
+
+    /*
+     * The archive is opened before the check, and each file requiring an update is downloaded
+     * as soon as it is found, while the rest are still checked. The archive is deleted if
+     * nothing required an update.
+     */
+    private static void doPipelinedUpdate(Configuration config, ArchiveUpdateOptions options, UpdateHandler handler,
+                    Downloader downloader, List<FileMetadata> osFiles, List<FileMetadata> requiresUpdate,
+                    ChecksumCache cache) throws Throwable {
+
+        try (ArchiveWriter archive = openArchive(options)) {
+            writeArchiveConfig(archive, config);
+
+            downloader.pipeline(osFiles, archive, options.getConcurrentDownloads(),
+                            options.getConcurrentDownloadsPerHost());
+
+            boolean checked = false;
+            try {
+                checkUpdates(handler, osFiles, requiresUpdate, options.getConcurrentChecks(), cache, downloader);
+                checked = true;
+            } finally {
+                // downloads must stop before the archive closes
+                if (!checked)
+                    downloader.finish(true);
+            }
+
+            if (cache != null)
+                cache.save();
+
+            synchronized (downloader.getLock()) {
+                handler.doneCheckUpdates();
+            }
+
+            downloader.finish(false);
+        }
+
+        if (requiresUpdate.isEmpty())
+            deleteArchive(options);
+    }
+
+    /*
+     * If resuming, restores the archive kept by a failed update, so the files it holds are
+     * reused rather than downloaded again.
+     */
+    private static ArchiveWriter openArchive(ArchiveUpdateOptions options) throws IOException {
+        Path kept = keptArchive(options);
+        if (!options.isResumeDownloads() || Files.notExists(kept))
+            return ArchiveWriter.open(options, false);
+
+        deleteArchive(options);
+        Files.move(kept, options.getArchiveLocation());
+
+        return ArchiveWriter.open(options, true);
+    }
+
+    /*
+     * Moves an incomplete archive along with the partial downloads, where it is never taken
+     * for a complete one.
+     */
+    private static void keepArchive(ArchiveUpdateOptions options) throws IOException {
+        Path location = options.getArchiveLocation();
+        if (Files.notExists(location))
+            return;
+
+        Path kept = keptArchive(options);
+        Files.createDirectories(kept.getParent());
+        FileUtils.deleteDirectory(kept);
+        Files.move(location, kept);
+    }
+
+    private static Path keptArchive(ArchiveUpdateOptions options) {
+        return options.getPartsLocation().resolve(options.getArchiveLocation().getFileName());
+    }
+
+    private static void deleteArchive(ArchiveUpdateOptions options) throws IOException {
+        if (options.isStaged())
+            FileUtils.deleteDirectory(options.getArchiveLocation());
+        else
+            Files.deleteIfExists(options.getArchiveLocation());
+    }
+
+    private static void writeArchiveConfig(ArchiveWriter archive, Configuration config) throws IOException {
+        // first save the config in the archive
+        StringWriter out = new StringWriter();
+        config.write(out);
+        archive.write(Archive.RESERVED_DIR + "/" + Archive.CONFIG_PATH, out.toString().getBytes(StandardCharsets.UTF_8));
+
+        // Save dynamic properties, if any. #110
+        if (!config.getDynamicProperties().isEmpty()) {
+            out = new StringWriter();
+            MapMapper.write(out, config.getDynamicProperties(), Archive.DYNAMIC_NODE);
+            archive.write(Archive.RESERVED_DIR + "/" + Archive.DYNAMIC_PATH,
+                            out.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /*
+     * Checks each file and fills requiresUpdate in config order.
+     * 
+     * With more than one thread, shouldCheckForUpdate() is first called for all files, then
+     * the approved files are hashed on a pool while this thread reports the results in order.
+     * startCheckUpdateFile() and doneCheckUpdateFile() are always called in pairs from the calling thread.
+     * 
+     * If a pipeline is given, each result is passed on to it so files requiring an update are downloaded
+     * right away, and the callbacks hold its lock, as downloads report progress at the same time.
+     */
+    static void checkUpdates(UpdateHandler handler, List<FileMetadata> osFiles, List<FileMetadata> requiresUpdate,
+                    int threads, ChecksumCache cache, Downloader pipeline) throws Throwable {
+
+        Object lock = pipeline == null ? new Object() : pipeline.getLock();
+        long updateJobSize = osFiles.stream().mapToLong(FileMetadata::getSize).sum();
+        double updateJobCompleted = 0;
+
+        if (threads <= 1 || osFiles.size() <= 1) {
+            for (FileMetadata file : osFiles) {
+                boolean shouldCheck;
+                boolean needsUpdate = false;
+
+                synchronized (lock) {
+                    shouldCheck = handler.shouldCheckForUpdate(file);
+                    if (shouldCheck)
+                        handler.startCheckUpdateFile(file);
+                }
+
+                if (shouldCheck) {
+                    // hash without the lock, so downloads progress meanwhile
+                    needsUpdate = file.requiresUpdate(cache);
+
+                    synchronized (lock) {
+                        if (needsUpdate)
+                            requiresUpdate.add(file);
+
+                        handler.doneCheckUpdateFile(file, needsUpdate);
+                    }
+                }
+
+                updateJobCompleted += file.getSize();
+                synchronized (lock) {
+                    handler.updateCheckUpdatesProgress(clamp((float) (updateJobCompleted / updateJobSize)));
+                }
+
+                if (pipeline != null)
+                    pipeline.checked(file, needsUpdate);
+            }
+
+            return;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, osFiles.size()),
+                        daemonThreads("update4j-check"));
+        try {
+            List<Future<Boolean>> checks = new ArrayList<>();
+            synchronized (lock) {
+                for (FileMetadata file : osFiles) {
+                    checks.add(handler.shouldCheckForUpdate(file) ? pool.submit(() -> file.requiresUpdate(cache))
+                                    : null);
+                }
+            }
+
+            for (int i = 0; i < osFiles.size(); i++) {
+                FileMetadata file = osFiles.get(i);
+                Future<Boolean> check = checks.get(i);
+                boolean needsUpdate = false;
+
+                if (check != null) {
+                    synchronized (lock) {
+                        handler.startCheckUpdateFile(file);
+                    }
+
+                    try {
+                        needsUpdate = check.get();
+                    } catch (ExecutionException e) {
+                        throw e.getCause();
+                    }
+
+                    synchronized (lock) {
+                        if (needsUpdate)
+                            requiresUpdate.add(file);
+
+                        handler.doneCheckUpdateFile(file, needsUpdate);
+                    }
+                }
+
+                updateJobCompleted += file.getSize();
+                synchronized (lock) {
+                    handler.updateCheckUpdatesProgress(clamp((float) (updateJobCompleted / updateJobSize)));
+                }
+
+                if (pipeline != null)
+                    pipeline.checked(file, needsUpdate);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    static boolean requiresUpdate(List<FileMetadata> files, int threads, ChecksumCache cache) throws IOException {
+        if (threads <= 1 || files.size() <= 1) {
+            for (FileMetadata file : files) {
+                if (file.requiresUpdate(cache))
+                    return true;
+            }
+
+            return false;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, files.size()),
+                        daemonThreads("update4j-check"));
+        try {
+            CompletionService<Boolean> checks = new ExecutorCompletionService<>(pool);
+            for (FileMetadata file : files) {
+                checks.submit(() -> file.requiresUpdate(cache));
+            }
+
+            // return on the first outdated file, shutdownNow() cancels the rest
+            for (int i = 0; i < files.size(); i++) {
+                if (checks.take().get())
+                    return true;
+            }
+
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while checking for updates");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+
+            throw new IOException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
 
+    private static void deleteParts(Path partsDir) throws IOException {
+        // may hold the archive kept by a failed update
+        FileUtils.deleteDirectory(partsDir);
+    }
+
+    static ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+
+        return r -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
     }
 
     @Deprecated
@@ -453,10 +759,30 @@ class ConfigImpl {
         }
     }
 
-    private static void validateFile(FileMetadata file, Path output, Signature sig)
+    /*
+     * Decompresses the download stream of a precompressed file, so everything
+     * downstream only sees the file's own bytes.
+     */
+    static InputStream decompress(FileMetadata file, InputStream in) throws IOException {
+        if (file.getCompression() == null)
+            return in;
+
+        try {
+            return file.getCompression().decompress(in);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /*
+     * Validates a downloaded file against the digest taken while it was written,
+     * without reading it again. Only the boot conflict check, if applicable, opens the file.
+     */
+    static void validateFile(FileMetadata file, Path output, FileDigest digest)
                     throws IOException, SignatureException {
 
-        long actualSize = Files.size(output);
+        long actualSize = digest.getSize();
         if (actualSize != file.getSize()) {
             throw new IllegalStateException("Size mismatch for file '" + file.getPath().getFileName()
                             + "'. Expected: " + file.getSize() + " bytes, found: " + actualSize + " bytes. "
@@ -466,16 +792,17 @@ class ConfigImpl {
                             + "Verify the remote file size and regenerate your configuration.");
         }
 
-        long actualChecksum = FileUtils.getChecksum(output);
-        if (actualChecksum != file.getChecksum()) {
+        String actualChecksum = digest.getChecksum();
+        if (!actualChecksum.equals(file.getChecksumString())) {
             throw new IllegalStateException("Checksum mismatch for file '" + file.getPath().getFileName()
-                            + "'. Expected: " + Long.toHexString(file.getChecksum()) + ", found: " + Long.toHexString(actualChecksum) + ". "
+                            + "'. Expected: " + file.getChecksumString() + ", found: " + actualChecksum + ". "
                             + "Possible causes: (1) Download was interrupted or corrupted, "
                             + "(2) The remote file was modified but your configuration is outdated, "
                             + "(3) File was modified after download. "
                             + "Verify the remote file checksum (sha256) and regenerate your configuration.");
         }
 
+        Signature sig = digest.getSignature();
         if (sig != null) {
             if (file.getSignature() == null)
                 throw new SecurityException("Missing signature for file: " + file.getPath().getFileName() 
@@ -489,16 +816,23 @@ class ConfigImpl {
                                 + "(3) Using wrong public key. Verify the file integrity and your public key.");
         }
 
-        if (file.getPath().toString().endsWith(".jar") && !file.isIgnoreBootConflict()
-                        && !ModuleUtils.userBootModules().isEmpty()) {
-            checkBootConflicts(file, output);
+        if (checksBootConflicts(file)) {
+            checkBootConflicts(file, output, digest.isZipFile());
         }
     }
 
-    private static void checkBootConflicts(FileMetadata file, Path download) throws IOException {
+    /*
+     * Whether validateFile() opens the downloaded file, to check it against the boot modules.
+     */
+    static boolean checksBootConflicts(FileMetadata file) {
+        return file.getPath().toString().endsWith(".jar") && !file.isIgnoreBootConflict()
+                        && !ModuleUtils.userBootModules().isEmpty();
+    }
+
+    private static void checkBootConflicts(FileMetadata file, Path download, boolean isZip) throws IOException {
         String filename = file.getPath().getFileName().toString();
 
-        if (!FileUtils.isZipFile(download)) {
+        if (!isZip) {
             Warning.nonZip(filename);
             throw new IllegalStateException("File '" + filename + "' is not a valid zip file.");
         }
@@ -725,7 +1059,7 @@ class ConfigImpl {
         }
     }
     
-    private static float clamp(float val) {
+    static float clamp(float val) {
         return Math.max(0,  Math.min(1, val));
     }
     
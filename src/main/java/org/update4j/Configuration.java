@@ -41,6 +41,7 @@ import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import org.update4j.UpdateOptions.ArchiveUpdateOptions;
+import org.update4j.UpdateOptions.TempUpdateOptions;
 import org.update4j.inject.Injectable;
 import org.update4j.inject.PostInject;
 import org.update4j.mapper.ConfigMapper;
@@ -200,6 +201,11 @@ import static java.lang.System.Logger.Level.WARNING;
  * &lt;/files&gt;
  * </pre>
  * 
+ * <p>
+ * Checksums are computed with the algorithm in the file's
+ * {@code checksumAlgorithm} attribute, or Adler32 if missing. See
+ * {@link ChecksumAlgorithm} for the supported values.
+ * 
  * 
  * <h3>3. Manual XML Manipulation</h3>
  * <p>
@@ -455,6 +461,7 @@ public class Configuration {
     private String signature;
 
     private URI baseUri;
+    private List<URI> mirrors;
     private Path basePath;
     private String updateHandler;
     private String launcher;
@@ -522,6 +529,30 @@ public class Configuration {
         return baseUri;
     }
 
+    /**
+     * Returns the mirrors of the base URI. Each mirror hosts the same layout as
+     * the base URI, so files (and their patches and indexes) whose URI is
+     * relative to the base URI may be downloaded from any of them instead.
+     * 
+     * <p>
+     * When updating, the base URI and its mirrors are probed by opening the first
+     * file that requires an update from each, and files are downloaded from the
+     * one expected to be fastest. If a download fails or does not match its
+     * checksum, the file is downloaded again from the next mirror. Files with an
+     * absolute URI outside the base URI are always downloaded from that URI.
+     * Only archive-based updates use mirrors; the legacy
+     * {@link #update(TempUpdateOptions)} ignores them.
+     * 
+     * <p>
+     * This is read from the {@code uri} attribute of each {@code <mirror>} element
+     * in the {@code <base>} element.
+     * 
+     * @return The mirrors of the base URI, never {@code null}.
+     */
+    public List<URI> getMirrors() {
+        return mirrors;
+    }
+
     /**
      * Returns the base path against whom all <em>relative</em> paths in individual
      * files are resolved. The path points to the location the files should be saved
@@ -862,12 +893,38 @@ public class Configuration {
      *             If any {@code IOException} arises while reading the files.
      */
     public boolean requiresUpdate() throws IOException {
-        for (FileMetadata file : getFiles()) {
-            if (file.requiresUpdate())
-                return true;
-        }
+        return ConfigImpl.requiresUpdate(getFiles(), 1, null);
+    }
+
+    /**
+     * Checks the metadata of every file and returns {@code true} if at-least one
+     * file requires an update, hashing up to
+     * {@link UpdateOptions#getConcurrentChecks()} files at the same time. Returns
+     * as soon as an outdated file is found, without waiting for the remaining
+     * checks.
+     * 
+     * <p>
+     * This method is completely unaware of
+     * {@link UpdateHandler#shouldCheckForUpdate(FileMetadata)}, and only uses the
+     * concurrency settings and checksum cache of the given options. The cache,
+     * if any, is saved before returning.
+     * 
+     * @param options
+     *            The options to use.
+     * @return If at-least one file requires an update.
+     * @throws IOException
+     *             If any {@code IOException} arises while reading the files.
+     */
+    public boolean requiresUpdate(UpdateOptions<?> options) throws IOException {
+        Objects.requireNonNull(options);
 
-        return false;
+        ChecksumCache cache = options.getChecksumCache();
+        boolean requiresUpdate = ConfigImpl.requiresUpdate(getFiles(), options.getConcurrentChecks(), cache);
+
+        if (cache != null)
+            cache.save();
+
+        return requiresUpdate;
     }
 
     /**
@@ -915,6 +972,36 @@ public class Configuration {
         return ConfigImpl.doUpdate(this, options);
     }
 
+    /**
+     * Starts the update process by locating the class returned by
+     * {@link #getUpdateHandler()} or -- if it returns {@code null} -- the
+     * registered highest version {@link UpdateHandler} or
+     * {@link DefaultUpdateHandler} if non were found. If the options has a handler
+     * it will be used instead.
+     * 
+     * <p>
+     * It will download all files in the temp location of the options, which can
+     * later be finalized by calling {@link Update#finalizeUpdate(Path)}. Unlike
+     * {@link #updateTemp(Path)}, the options may enable segmented downloads of
+     * large files.
+     * 
+     * <p>
+     * Any error that arises once the update handler was loaded just get's passed to
+     * {@link UpdateHandler#failed(Throwable)} and is available in the returned
+     * {@link UpdateResult}. An exception thrown in
+     * {@link UpdateHandler#failed(Throwable)}, {@link UpdateHandler#succeeded()} or
+     * {@link UpdateHandler#stop()} will be thrown back to the caller of this
+     * method.
+     * 
+     * <p>
+     * This method is intended to be used on the client machine only.
+     * 
+     * @param options
+     */
+    public UpdateResult update(TempUpdateOptions options) {
+        return ConfigImpl.doTempUpdate(this, options);
+    }
+
     /**
      * Starts the update process by locating the class returned by
      * {@link #getUpdateHandler()} or -- if it returns {@code null} -- the
@@ -1799,6 +1886,16 @@ public class Configuration {
             config.baseUri = URI.create(uri);
         }
 
+        List<URI> mirrors = new ArrayList<>();
+        for (String m : configMapper.mirrors) {
+            String uri = config.resolvePlaceholders(m, true);
+            if (!uri.endsWith("/"))
+                uri = uri + "/";
+
+            mirrors.add(URI.create(uri));
+        }
+        config.mirrors = Collections.unmodifiableList(mirrors);
+
         if (configMapper.basePath != null)
             config.basePath = Paths.get(config.resolvePlaceholders(configMapper.basePath, true));
 
@@ -1842,6 +1939,9 @@ public class Configuration {
             if (fm.checksum != null)
                 fileBuilder.checksum(fm.checksum);
 
+            if (fm.checksumAlgorithm != null)
+                fileBuilder.checksumAlgorithm(fm.checksumAlgorithm);
+
             if (fm.size != null)
                 fileBuilder.size(fm.size);
 
@@ -1866,6 +1966,21 @@ public class Configuration {
             fileBuilder.exports(fm.addExports);
             fileBuilder.opens(fm.addOpens);
             fileBuilder.reads(fm.addReads);
+            fileBuilder.patches(fm.patches);
+
+            if (fm.compression != null) {
+                // without the size on the wire, assume no saving
+                long compressedSize = fm.compressedSize != null ? fm.compressedSize : fm.size != null ? fm.size : 0;
+                fileBuilder.compression(fm.compression, compressedSize);
+            }
+
+            if (fm.blockIndex != null) {
+                fileBuilder.blockIndex(URI.create(fm.blockIndex));
+            }
+
+            if (fm.jarIndex != null) {
+                fileBuilder.jarIndex(URI.create(fm.jarIndex));
+            }
 
             FileMetadata file = fileBuilder.build();
             for (FileMetadata prevFile : files) {
@@ -2025,9 +2140,9 @@ public class Configuration {
 
             FileMapper fileMapper = newMapper.files.get(i);
 
-            long checksum = FileUtils.getChecksum(path);
+            String checksum = FileUtils.getChecksumString(path, fm.getChecksumAlgorithm());
             fileMapper.size = Files.size(path);
-            fileMapper.checksum = Long.toString(checksum, 16);
+            fileMapper.checksum = checksum;
 
             if (signer == null) {
                 fileMapper.signature = null;
@@ -2035,9 +2150,23 @@ public class Configuration {
                 fileMapper.signature = Base64.getEncoder().encodeToString(FileUtils.sign(path, signer));
             }
 
-            if (fm.getSize() != fileMapper.size || fm.getChecksum() != checksum) {
+            if (fm.getSize() != fileMapper.size || !checksum.equals(fm.getChecksumString())) {
                 logger.log(INFO, "Synced '" + path.getFileName() + "'.");
                 changed = true;
+
+                // patches produce the old content
+                if (!fileMapper.patches.isEmpty()) {
+                    logger.log(WARNING, "Dropped outdated patches of '" + path.getFileName() + "'.");
+                    fileMapper.patches.clear();
+                }
+                if (fileMapper.compression != null) {
+                    logger.log(WARNING, "Compressed artifact of '" + path.getFileName() + "' must be regenerated.");
+                }
+                if (fileMapper.blockIndex != null || fileMapper.jarIndex != null) {
+                    logger.log(WARNING, "Dropped outdated indexes of '" + path.getFileName() + "'.");
+                    fileMapper.blockIndex = null;
+                    fileMapper.jarIndex = null;
+                }
             }
 
         }
@@ -2194,6 +2323,7 @@ public class Configuration {
      */
     public static class Builder {
         private String baseUri;
+        private List<String> mirrors;
         private String basePath;
         private String updateHandler;
         private String launcher;
@@ -2206,8 +2336,19 @@ public class Configuration {
 
         private PrivateKey signer;
         private PlaceholderMatchType matcher;
+        private ChecksumAlgorithm checksumAlgorithm;
+        private List<FileMetadata.PatchRelease> releasePatches;
+        private Path blockIndexDir;
+        private String blockIndexUri;
+        private Path jarIndexDir;
+        private String jarIndexUri;
+        private Compression compression;
+        private Path compressedDir;
+        private String compressedUri;
 
         private Builder() {
+            releasePatches = new ArrayList<>();
+            mirrors = new ArrayList<>();
             files = new ArrayList<>();
             properties = new ArrayList<>();
             systemProperties = new ArrayList<>();
@@ -2271,6 +2412,62 @@ public class Configuration {
             return baseUri;
         }
 
+        /**
+         * Add a mirror of the base URI, hosting the same files at the same relative
+         * locations. Files are downloaded from the fastest of the base URI and its
+         * mirrors, failing over to the others. See
+         * {@link Configuration#getMirrors()}.
+         * 
+         * <p>
+         * You may use a placeholder value for this field.
+         * 
+         * @param uri
+         *            The base URI of the mirror.
+         * @return The builder for chaining.
+         */
+        public Builder mirror(String uri) {
+            mirrors.add(Objects.requireNonNull(uri));
+
+            return this;
+        }
+
+        /**
+         * Add a mirror of the base URI. This is equivalent to:
+         * 
+         * <pre>
+         * mirror(uri.toString())
+         * </pre>
+         * 
+         * @param uri
+         *            The base URI of the mirror.
+         * @return The builder for chaining.
+         */
+        public Builder mirror(URI uri) {
+            return mirror(uri.toString());
+        }
+
+        /**
+         * Add mirrors of the base URI.
+         * 
+         * @param uris
+         *            The base URIs of the mirrors.
+         * @return The builder for chaining.
+         */
+        public Builder mirrors(List<String> uris) {
+            uris.forEach(this::mirror);
+
+            return this;
+        }
+
+        /**
+         * Returns the mirrors added in {@link #mirror(String)}.
+         * 
+         * @return The mirrors of the base URI.
+         */
+        public List<String> getMirrors() {
+            return Collections.unmodifiableList(mirrors);
+        }
+
         /**
          * Set the base path that files with a relative {@code path} should resolve
          * against. Files with an absolute path will ignore this field.
@@ -2835,6 +3032,173 @@ public class Configuration {
             return matcher == null ? PlaceholderMatchType.WHOLE_WORD : matcher;
         }
 
+        /**
+         * Sets the algorithm used to compute file checksums, unless overridden by
+         * {@link FileMetadata.Reference#checksumAlgorithm(ChecksumAlgorithm)}. By
+         * default, or if you use {@code null}, it will use
+         * {@link ChecksumAlgorithm#ADLER32}.
+         * 
+         * <p>
+         * Files using any other algorithm cannot be read by versions of this
+         * framework that predate this setting.
+         * 
+         * @param algorithm
+         *            The checksum algorithm.
+         * @return The builder for chaining.
+         */
+        public Builder checksumAlgorithm(ChecksumAlgorithm algorithm) {
+            this.checksumAlgorithm = algorithm;
+
+            return this;
+        }
+
+        /**
+         * Returns the algorithm passed in
+         * {@link #checksumAlgorithm(ChecksumAlgorithm)}. It will never return
+         * {@code null} but instead {@link ChecksumAlgorithm#ADLER32}.
+         * 
+         * @return The checksum algorithm.
+         */
+        public ChecksumAlgorithm getChecksumAlgorithm() {
+            return checksumAlgorithm == null ? ChecksumAlgorithm.ADLER32 : checksumAlgorithm;
+        }
+
+        /**
+         * Generates delta patches from a previous release directory when the
+         * configuration is built. For every listed file with a relative path (or
+         * no path at all, in which case the file name is used), the file at that
+         * path under {@code previousRelease} is used as the base, and the patch is
+         * written to the same path under {@code patchDir} with a {@code .patch}
+         * suffix. Its uri is the same relative path appended to {@code patchUri}.
+         * 
+         * <p>
+         * Call this once for each previous release you want clients to patch from,
+         * each with a distinct patch directory and uri. See
+         * {@link FileMetadata.Reference#patchFrom(Path, Path, String)} for a single
+         * file.
+         * 
+         * @param previousRelease
+         *            The directory of the previous release.
+         * @param patchDir
+         *            The directory to write the patches to.
+         * @param patchUri
+         *            The uri the patch directory will be uploaded to, absolute or
+         *            relative to the base uri.
+         * @return The builder for chaining.
+         */
+        public Builder patchesFrom(Path previousRelease, Path patchDir, String patchUri) {
+            String uri = Objects.requireNonNull(patchUri).replace("\\", "/");
+            if (!uri.isEmpty() && !uri.endsWith("/"))
+                uri += "/";
+
+            releasePatches.add(new FileMetadata.PatchRelease(Objects.requireNonNull(previousRelease),
+                            Objects.requireNonNull(patchDir), uri));
+
+            return this;
+        }
+
+        /**
+         * Writes a block index for every listed file with a relative path (or no
+         * path at all, in which case the file name is used) when the configuration
+         * is built. The index is written to the same path under {@code indexDir}
+         * with a {@code .blocks} suffix, and its uri is the same relative path
+         * appended to {@code indexUri}.
+         * 
+         * <p>
+         * Clients with an outdated file installed reuse the blocks that did not
+         * change, and download the rest with range requests. See
+         * {@link FileMetadata.Reference#blockIndex(Path, String)} for a single file.
+         * 
+         * <p>
+         * Only archive-based updates use the indexes; the legacy
+         * {@link Configuration#update(TempUpdateOptions)} downloads such files in
+         * full.
+         * 
+         * @param indexDir
+         *            The directory to write the indexes to.
+         * @param indexUri
+         *            The uri the index directory will be uploaded to, absolute or
+         *            relative to the base uri.
+         * @return The builder for chaining.
+         */
+        public Builder blockIndexes(Path indexDir, String indexUri) {
+            String uri = Objects.requireNonNull(indexUri).replace("\\", "/");
+            if (!uri.isEmpty() && !uri.endsWith("/"))
+                uri += "/";
+
+            this.blockIndexDir = Objects.requireNonNull(indexDir);
+            this.blockIndexUri = uri;
+
+            return this;
+        }
+
+        /**
+         * Writes a jar index for every listed jar (or other zip) file with a
+         * relative path (or no path at all, in which case the file name is used)
+         * when the configuration is built. The index is written to the same path under {@code indexDir}
+         * with a {@code .entries} suffix, and its uri is the same relative path
+         * appended to {@code indexUri}.
+         * 
+         * <p>
+         * Clients with an outdated jar installed reuse the entries that did not
+         * change, and download the rest with range requests. See
+         * {@link FileMetadata.Reference#jarIndex(Path, String)} for a single file.
+         * 
+         * @param indexDir
+         *            The directory to write the indexes to.
+         * @param indexUri
+         *            The uri the index directory will be uploaded to, absolute or
+         *            relative to the base uri.
+         * @return The builder for chaining.
+         */
+        public Builder jarIndexes(Path indexDir, String indexUri) {
+            String uri = Objects.requireNonNull(indexUri).replace("\\", "/");
+            if (!uri.isEmpty() && !uri.endsWith("/"))
+                uri += "/";
+
+            this.jarIndexDir = Objects.requireNonNull(indexDir);
+            this.jarIndexUri = uri;
+
+            return this;
+        }
+
+        /**
+         * Writes a compressed copy of every listed file with a relative path (or no
+         * path at all, in which case the file name is used) when the configuration
+         * is built, and lists it as the download location instead of the file. The
+         * copy is written to the same path under {@code compressedDir} with a
+         * {@code .gz} or {@code .deflate} suffix, and its uri is the same relative
+         * path appended to {@code compressedUri}. Files that do not shrink are
+         * listed as usual.
+         * 
+         * <p>
+         * Clients decompress the file while downloading, and validate the
+         * decompressed file. Compressed files cannot be updated with a jar index or
+         * block index, but patches still apply. See
+         * {@link FileMetadata.Reference#compress(Compression, Path, String)} for a
+         * single file.
+         * 
+         * @param compression
+         *            The compression to use.
+         * @param compressedDir
+         *            The directory to write the compressed copies to.
+         * @param compressedUri
+         *            The uri the directory will be uploaded to, absolute or relative
+         *            to the base uri.
+         * @return The builder for chaining.
+         */
+        public Builder compressFiles(Compression compression, Path compressedDir, String compressedUri) {
+            String uri = Objects.requireNonNull(compressedUri).replace("\\", "/");
+            if (!uri.isEmpty() && !uri.endsWith("/"))
+                uri += "/";
+
+            this.compression = Objects.requireNonNull(compression);
+            this.compressedDir = Objects.requireNonNull(compressedDir);
+            this.compressedUri = uri;
+
+            return this;
+        }
+
         /**
          * Collects all information passed to the builder, replaces matches with
          * placeholder according to the {@link #getMatchType()} policy and validates all
@@ -2858,6 +3222,12 @@ public class Configuration {
             if (baseUri != null)
                 mapper.baseUri = pm.implyPlaceholders(baseUri, matcher, true);
 
+            if (!mirrors.isEmpty() && baseUri == null)
+                throw new IllegalStateException("Mirrors require a base URI.");
+
+            for (String m : mirrors)
+                mapper.mirrors.add(pm.implyPlaceholders(m, matcher, true));
+
             if (basePath != null)
                 mapper.basePath = pm.implyPlaceholders(basePath, matcher, true);
 
@@ -2872,7 +3242,36 @@ public class Configuration {
 
             if (!files.isEmpty()) {
                 for (FileMetadata.Reference fileRef : files) {
-                    mapper.files.add(fileRef.getFileMapper(pm, baseUri, basePath, matcher, signer));
+                    FileMetadata.Artifacts artifacts = new FileMetadata.Artifacts();
+                    String relative = fileRef.getPath() != null ? fileRef.getPath()
+                                    : fileRef.getSource().getFileName().toString();
+
+                    if (!PropertyManager.containsPlaceholder(relative) && !Paths.get(relative).isAbsolute()) {
+                        relative = relative.replace("\\", "/");
+                        for (FileMetadata.PatchRelease release : releasePatches) {
+                            artifacts.patches.add(release.resolve(relative));
+                        }
+
+                        if (blockIndexDir != null) {
+                            artifacts.blockIndexFile = blockIndexDir.resolve(relative + ".blocks");
+                            artifacts.blockIndexUri = blockIndexUri + relative + ".blocks";
+                        }
+
+                        if (jarIndexDir != null) {
+                            artifacts.jarIndexFile = jarIndexDir.resolve(relative + ".entries");
+                            artifacts.jarIndexUri = jarIndexUri + relative + ".entries";
+                        }
+
+                        if (compression != null) {
+                            String suffix = compression == Compression.GZIP ? ".gz" : ".deflate";
+                            artifacts.compression = compression;
+                            artifacts.compressedFile = compressedDir.resolve(relative + suffix);
+                            artifacts.compressedUri = compressedUri + relative + suffix;
+                        }
+                    }
+
+                    mapper.files.add(fileRef.getFileMapper(pm, baseUri, basePath, matcher, getChecksumAlgorithm(),
+                                    artifacts, signer));
                 }
             }
 
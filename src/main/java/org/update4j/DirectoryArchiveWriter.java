@@ -0,0 +1,145 @@
+/*
+ * Copyright 2020 Mordechai Meisels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.update4j;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import org.update4j.util.FileUtils;
+
+import static java.lang.System.Logger.Level.WARNING;
+
+/*
+ * Stages the update in a directory with the layout of an archive. Files are moved in from
+ * where they were downloaded, which is a rename if both are on the same file system, and are
+ * later installed by renaming them again; no byte is written twice.
+ *
+ * The drive of a Windows path, as in files/C:/app, is written without its colon, which is
+ * not allowed in a path element.
+ *
+ * A resumed directory keeps the files listed in its manifest until they are reused; those that
+ * are not are deleted when closed.
+ */
+class DirectoryArchiveWriter implements ArchiveWriter {
+
+    private static final System.Logger logger = System.getLogger(DirectoryArchiveWriter.class.getName());
+
+    private final Path root;
+    private final ArchiveManifest manifest = new ArchiveManifest();
+    private final ArchiveManifest reusable;
+
+    DirectoryArchiveWriter(Path root, boolean resume) throws IOException {
+        this.root = root;
+        this.reusable = resume ? readManifest(root) : new ArchiveManifest();
+
+        // never link leftovers of an earlier update, other than listed files
+        if (!resume || reusable.isEmpty())
+            FileUtils.deleteDirectory(root.resolve(Archive.FILES_DIR));
+        FileUtils.deleteDirectory(root.resolve(Archive.RESERVED_DIR));
+        Files.createDirectories(root);
+    }
+
+    private static ArchiveManifest readManifest(Path root) {
+        Path file = root.resolve(ArchiveManifest.PATH);
+        if (!Files.isRegularFile(file))
+            return new ArchiveManifest();
+
+        try (BufferedReader in = Files.newBufferedReader(file)) {
+            return ArchiveManifest.read(in);
+        } catch (IOException e) {
+            logger.log(WARNING, "Cannot reuse the files of '" + root + "'; writing it anew.", e);
+            return new ArchiveManifest();
+        }
+    }
+
+    @Override
+    public Path reuse(String name, long size, String checksum, ContentCheck check) throws IOException {
+        String entryName = toEntryName(name);
+        ArchiveManifest.Entry entry;
+        synchronized (reusable) {
+            entry = reusable.remove(entryName);
+        }
+
+        Path target = resolve(name);
+        if (entry == null || entry.size != size || !checksum.equals(entry.checksum) || !Files.isRegularFile(target)
+                        || Files.size(target) != size) {
+            return null;
+        }
+
+        boolean matches;
+        try (InputStream in = Files.newInputStream(target)) {
+            matches = check.matches(in);
+        }
+
+        // no longer listed, so would not be deleted when closed
+        if (!matches) {
+            Files.delete(target);
+            return null;
+        }
+
+        synchronized (manifest) {
+            manifest.add(entryName, size, entry.crc, checksum);
+        }
+
+        return target;
+    }
+
+    @Override
+    public void write(String name, byte[] content) throws IOException {
+        Path target = resolve(name);
+        Files.createDirectories(target.getParent());
+        Files.write(target, content);
+    }
+
+    @Override
+    public Path write(String name, Path file, long size, long crc, boolean store, String checksum)
+                    throws IOException {
+        Path target = resolve(name);
+        Files.createDirectories(target.getParent());
+        Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
+
+        if (checksum != null) {
+            synchronized (manifest) {
+                manifest.add(toEntryName(name), size, crc, checksum);
+            }
+        }
+
+        return target;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // only the listed files were kept, so only those can be left over
+        for (String name : reusable.names()) {
+            Files.deleteIfExists(root.resolve(name));
+        }
+
+        if (!manifest.isEmpty())
+            write(ArchiveManifest.PATH, manifest.toBytes());
+    }
+
+    private Path resolve(String name) {
+        return root.resolve(toEntryName(name));
+    }
+
+    static String toEntryName(String name) {
+        return name.replaceFirst("^(" + Archive.FILES_DIR + "/[A-Za-z]):", "$1");
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2020 Mordechai Meisels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.update4j;
+
+import org.update4j.service.UpdateHandler;
+
+/**
+ * A snapshot of the download progress of a running update, as returned by
+ * {@link UpdateContext#getDownloadProgress()}.
+ * 
+ * <p>
+ * Handlers may poll snapshots at their own pace (e.g. from a UI timer) instead
+ * of, or in addition to, the coalesced
+ * {@link UpdateHandler#updateDownloadProgress(float)} callbacks. Taking a
+ * snapshot is cheap and may be done from any thread.
+ * 
+ * @author Mordechai Meisels
+ *
+ */
+public final class DownloadProgress {
+
+    private final long downloadedBytes;
+    private final long totalBytes;
+    private final int completedFiles;
+    private final int totalFiles;
+
+    DownloadProgress(long downloadedBytes, long totalBytes, int completedFiles, int totalFiles) {
+        this.downloadedBytes = downloadedBytes;
+        this.totalBytes = totalBytes;
+        this.completedFiles = completedFiles;
+        this.totalFiles = totalFiles;
+    }
+
+    /**
+     * Returns the number of bytes downloaded so far, including bytes reused from
+     * installed files or resumed from partial downloads.
+     * 
+     * @return The number of bytes downloaded.
+     */
+    public long getDownloadedBytes() {
+        return downloadedBytes;
+    }
+
+    /**
+     * Returns the total size of the files to download. With
+     * {@link UpdateOptions#pipelineDownloads(boolean)} it shrinks until the update
+     * check completes.
+     * 
+     * @return The total number of bytes.
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Returns the number of files downloaded and validated so far.
+     * 
+     * @return The number of completed files.
+     */
+    public int getCompletedFiles() {
+        return completedFiles;
+    }
+
+    /**
+     * Returns the number of files to download. With
+     * {@link UpdateOptions#pipelineDownloads(boolean)} it grows until the update
+     * check completes.
+     * 
+     * @return The number of files.
+     */
+    public int getTotalFiles() {
+        return totalFiles;
+    }
+
+    /**
+     * Returns the download progress between {@code 0} and {@code 1}, as passed to
+     * {@link UpdateHandler#updateDownloadProgress(float)}.
+     * 
+     * @return The fraction downloaded.
+     */
+    public float getFraction() {
+        return totalBytes == 0 ? 0 : ConfigImpl.clamp((float) downloadedBytes / totalBytes);
+    }
+
+    @Override
+    public String toString() {
+        return "DownloadProgress[" + downloadedBytes + "/" + totalBytes + " bytes, " + completedFiles + "/"
+                        + totalFiles + " files]";
+    }
+}
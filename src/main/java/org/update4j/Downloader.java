@@ -0,0 +1,1174 @@
+/*
+ * Copyright 2020 Mordechai Meisels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.update4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+
+import org.update4j.UpdateOptions.ArchiveUpdateOptions;
+import org.update4j.service.DownloadSource;
+import org.update4j.service.UpdateHandler;
+import org.update4j.util.BlockIndex;
+import org.update4j.util.Delta;
+import org.update4j.util.FileUtils;
+import org.update4j.util.Hasher;
+import org.update4j.util.JarIndex;
+
+import static java.lang.System.Logger.Level.WARNING;
+
+/*
+ * Downloads the files of a single update into the archive writer, either sequentially on the
+ * calling thread or on a bounded pool of worker threads. In the pipelined mode, files are queued
+ * on the pool while the update check is still running.
+ *
+ * Handler callbacks are always invoked while holding a single lock, so a handler never observes
+ * two callbacks at the same time. For each file the order is: startDownloadFile,
+ * updateDownloadFileProgress (repeatedly), validatingFile, doneDownloadFile; a file reused from
+ * a resumed archive only gets startDownloadFile and reusedFile. Callbacks of different files may
+ * interleave when downloading concurrently.
+ *
+ * Each file is written into a part file in the parts directory and handed to the archive writer
+ * once validated, so no more files are staged than are in flight. If asked for, files downloaded
+ * one at a time are streamed straight into the archive instead.
+ */
+class Downloader {
+
+    private static final System.Logger logger = System.getLogger(Downloader.class.getName());
+
+    private final UpdateHandler handler;
+    private final PublicKey key;
+    private final List<FileMetadata> updated;
+    private final Path stagingDir;
+    private final boolean resume;
+    private final UpdateOptions<?> options;
+    // local files are copied in chunks of at most this size, so progress is still reported
+    static final long LOCAL_CHUNK = 1024 * 1024;
+    private final long localChunk;
+
+    private final HttpTransport transport;
+    private final BufferPool buffers;
+    private final Mirrors mirrors;
+    private final Map<FileMetadata, URI> served = new ConcurrentHashMap<>();
+
+    private final ProgressTracker progress;
+    private final AtomicLong downloadJobSize;
+    private final AtomicLong downloadJobCompleted;
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    private final Object lock = new Object();
+
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private volatile boolean aborted;
+
+    private ExecutorService pool;
+    private ArchiveWriter archive;
+    private boolean sequential;
+    private final boolean streamToArchive;
+    private int threadsPerHost;
+    private final Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+    private boolean pipelineStarted;
+
+    Downloader(UpdateHandler handler, PublicKey key, List<FileMetadata> requiresUpdate, List<FileMetadata> updated,
+                    Path stagingDir, UpdateOptions<?> options, Mirrors mirrors, ProgressTracker progress)
+                    throws GeneralSecurityException {
+        this.handler = handler;
+        this.key = key;
+        this.updated = updated;
+        this.stagingDir = stagingDir;
+        this.resume = options.isResumeDownloads();
+        this.options = options;
+        this.transport = options.getHttpTransport() != null && !customStreams(handler) ? options.getHttpTransport()
+                        : null;
+        this.streamToArchive = options instanceof ArchiveUpdateOptions
+                        && ((ArchiveUpdateOptions) options).isStreamToArchive();
+        this.mirrors = mirrors;
+        this.buffers = options.getBufferPool();
+        this.localChunk = localChunk(options, buffers);
+        this.progress = progress;
+        this.downloadJobSize = progress.size;
+        this.downloadJobCompleted = progress.completed;
+
+        downloadJobSize.set(requiresUpdate.stream().mapToLong(FileMetadata::getSize).sum());
+        progress.files.set(requiresUpdate.size());
+
+        // fail early on an unusable key, before anything was downloaded
+        newSignature();
+    }
+
+    void downloadAll(List<FileMetadata> files, ArchiveWriter archive, int threads, int threadsPerHost)
+                    throws Throwable {
+
+        if (mirrors != null)
+            rankMirrors(files);
+
+        if (threads <= 1 || files.size() <= 1) {
+            this.archive = archive;
+            this.sequential = true;
+            for (FileMetadata file : files) {
+                download(file);
+            }
+
+            return;
+        }
+
+        start(archive, Math.min(threads, files.size()), threadsPerHost);
+        try {
+            for (FileMetadata file : files) {
+                submit(file);
+            }
+        } finally {
+            await();
+        }
+
+        if (failure.get() != null)
+            throw failure.get();
+    }
+
+    /*
+     * Starts the pipelined mode, where files are passed to checked() as the update check
+     * reports them and downloaded right away, always on worker threads.
+     *
+     * The job size starts as the size of all candidates, and shrinks as files are found up to
+     * date, so the reported download progress never goes backwards. Once the check completes it
+     * is the size of the files requiring an update.
+     */
+    void pipeline(List<FileMetadata> candidates, ArchiveWriter archive, int threads, int threadsPerHost) {
+        downloadJobSize.set(candidates.stream().mapToLong(FileMetadata::getSize).sum());
+        progress.files.set(0);
+
+        if (mirrors != null && !candidates.isEmpty())
+            rankMirrors(candidates);
+
+        start(archive, threads, threadsPerHost);
+    }
+
+    /*
+     * Called by the update check for each candidate, in config order on a single thread.
+     * Throws the failure of an earlier download, so the check stops early.
+     */
+    void checked(FileMetadata file, boolean needsUpdate) throws Throwable {
+        if (!needsUpdate) {
+            downloadJobSize.addAndGet(-file.getSize());
+            return;
+        }
+
+        if (failure.get() != null)
+            throw failure.get();
+
+        progress.files.incrementAndGet();
+
+        if (!pipelineStarted) {
+            pipelineStarted = true;
+            synchronized (lock) {
+                handler.startDownloads();
+            }
+        }
+
+        submit(file);
+    }
+
+    /*
+     * Waits for the pipelined downloads. If aborting, downloads not yet started are
+     * skipped, the others stop at their next read, and their failures are ignored.
+     */
+    void finish(boolean abort) throws Throwable {
+        if (abort)
+            aborted = true;
+
+        await();
+
+        if (!abort && failure.get() != null)
+            throw failure.get();
+    }
+
+    /*
+     * The lock of all handler callbacks, which the pipelined check also holds.
+     */
+    Object getLock() {
+        return lock;
+    }
+
+    private void start(ArchiveWriter archive, int threads, int threadsPerHost) {
+        this.archive = archive;
+        this.threadsPerHost = threadsPerHost;
+        this.pool = Executors.newFixedThreadPool(Math.max(1, threads), ConfigImpl.daemonThreads("update4j-download"));
+    }
+
+    private void submit(FileMetadata file) {
+        pool.execute(() -> {
+            if (aborted)
+                return;
+
+            Semaphore permit = null;
+            if (threadsPerHost > 0) {
+                permit = hostPermits.computeIfAbsent(hostKey(file.getUri()), h -> new Semaphore(threadsPerHost, true));
+            }
+
+            try {
+                if (permit != null)
+                    permit.acquire();
+
+                try {
+                    if (!aborted)
+                        download(file);
+                } finally {
+                    if (permit != null)
+                        permit.release();
+                }
+            } catch (Throwable t) {
+                fail(t);
+            }
+        });
+    }
+
+    private void await() {
+        // Workers are never interrupted; they observe the aborted flag instead.
+        // Interrupting a thread that writes into a file channel closes it.
+        pool.shutdown();
+
+        boolean interrupted = false;
+        while (!pool.isTerminated()) {
+            try {
+                pool.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /*
+     * Probes the mirrors with the first mirrored file. Each stream is then opened from the
+     * preferred mirror, and a full download that fails or does not match its checksum is
+     * retried from the next one.
+     */
+    private void rankMirrors(List<FileMetadata> files) {
+        FileMetadata sample = files.stream().filter(mirrors::isMirrored).findFirst().orElse(null);
+        if (sample == null)
+            return;
+
+        mirrors.rank(sample, downloadJobSize.get() / files.size(), f -> openDownloadSource(f, 0).toInputStream());
+    }
+
+    /*
+     * The origin that served each updated file, if it was mirrored.
+     */
+    Map<FileMetadata, URI> getMirrors() {
+        Map<FileMetadata, URI> result = new HashMap<>();
+        synchronized (lock) {
+            for (FileMetadata file : updated) {
+                if (served.containsKey(file))
+                    result.put(file, served.get(file));
+            }
+        }
+
+        return result;
+    }
+
+    /*
+     * Writes the file into its part file, validates it and writes it to the archive, or streams
+     * it straight into the archive if possible. The part file, if still there, is deleted once
+     * archived; a resumed archive reuses the file from then on.
+     *
+     * If the installed file matches the base of one of the file's patches, the patch is applied
+     * instead. Otherwise, if the file has a jar index or a block index, the entries or blocks
+     * found in the installed file are reused and only the rest is downloaded. All fall back to
+     * a full download if they fail.
+     */
+    void download(FileMetadata file) throws Throwable {
+        synchronized (lock) {
+            handler.startDownloadFile(file);
+        }
+
+        // already validated into the archive kept by a failed update
+        if (reuse(file)) {
+            started(file, file.getSize());
+
+            synchronized (lock) {
+                updated.add(file);
+                progress.completedFiles.incrementAndGet();
+                handler.reusedFile(file);
+            }
+
+            return;
+        }
+
+        Path staged = stagingDir.resolve(partName(file));
+
+        FileDigest digest = null;
+        Path installed = file.getNormalizedPath();
+
+        if (Files.isRegularFile(installed)) {
+            Files.createDirectories(stagingDir);
+            if (!file.getPatches().isEmpty())
+                digest = rebuild(file, "patch", staged, d -> applyPatch(file, installed, staged, d));
+            // ranges of a compressed artifact are meaningless
+            if (digest == null && file.getJarIndex() != null && file.getCompression() == null)
+                digest = rebuild(file, "jar index", staged, d -> applyJarIndex(file, installed, staged, d));
+            if (digest == null && file.getBlockIndex() != null && file.getCompression() == null)
+                digest = rebuild(file, "block index", staged, d -> applyBlockIndex(file, installed, staged, d));
+        }
+
+        if (digest == null && streamable(file) && stream(file)) {
+            synchronized (lock) {
+                updated.add(file);
+                progress.completedFiles.incrementAndGet();
+                handler.doneDownloadFile(file, null);
+            }
+
+            return;
+        }
+
+        if (digest == null) {
+            Files.createDirectories(stagingDir);
+            while (true) {
+                digest = new FileDigest(file.getChecksumAlgorithm(), newSignature(), true);
+
+                try {
+                    fetch(file, staged, digest);
+                    break;
+                } catch (IOException e) {
+                    URI origin = served.get(file);
+                    if (mirrors == null || origin == null || !mirrors.fail(origin, file, e))
+                        throw e;
+
+                    // a part file is kept and resumed from the next mirror
+                    downloadJobCompleted.addAndGet(-digest.getSize());
+                }
+            }
+        }
+
+        synchronized (lock) {
+            handler.validatingFile(file, staged);
+        }
+
+        Path archived;
+        try {
+            ConfigImpl.validateFile(file, staged, digest);
+            archived = archive.write(Archive.entryName(file), staged, file.getSize(), digest.getCrc(),
+                            digest.isCompressed(), ArchiveManifest.checksum(file));
+        } catch (Throwable t) {
+            // never resume from bad bytes
+            Files.deleteIfExists(staged);
+
+            throw t;
+        }
+
+        synchronized (lock) {
+            updated.add(file);
+            progress.completedFiles.incrementAndGet();
+            handler.doneDownloadFile(file, archived);
+        }
+
+        Files.deleteIfExists(staged);
+    }
+
+    /*
+     * Downloads the file in full, resuming the part file if any. With mirrors, the checksum is
+     * verified right away so a mirror serving stale content is failed over like one that errors.
+     */
+    private void fetch(FileMetadata file, Path staged, FileDigest digest) throws Throwable {
+        if (options.isSegmented(file) && (!resume || Files.notExists(staged))
+                        && fetchSegments(file, staged, digest)) {
+            // checked below, like any other full download
+        } else if (!resume) {
+            transfer(file, staged, 0, digest);
+        } else {
+            long offset = resume(file, staged, digest);
+            if (offset < file.getSize()) {
+                transfer(file, staged, offset, digest);
+            } else {
+                started(file, offset);
+            }
+        }
+
+        if (mirroredMismatch(file, digest)) {
+            Files.deleteIfExists(staged);
+
+            throw new IOException("Checksum mismatch for file '" + file.getPath().getFileName() + "' from '"
+                            + served.get(file) + "'");
+        }
+    }
+
+    private boolean mirroredMismatch(FileMetadata file, FileDigest digest) {
+        return mirrors != null && mirrors.isMirrored(file)
+                        && (digest.getSize() != file.getSize() || !digest.getChecksum().equals(file.getChecksumString()));
+    }
+
+    /*
+     * Whether the file is downloaded straight into the archive: it was asked for, the file is
+     * the only one in flight, is neither resumed nor segmented, and is not read back to check
+     * boot conflicts.
+     */
+    private boolean streamable(FileMetadata file) {
+        return streamToArchive && sequential && !resume && !options.isSegmented(file)
+                        && !ConfigImpl.checksBootConflicts(file);
+    }
+
+    /*
+     * Downloads the file in full straight into the archive, failing over to the next mirror
+     * like fetch(). Returns false, having downloaded nothing, if the archive cannot be written
+     * this way. The file never exists on its own, so the handler is passed no path.
+     */
+    private boolean stream(FileMetadata file) throws Throwable {
+        while (true) {
+            FileDigest digest = new FileDigest(file.getChecksumAlgorithm(), newSignature(), true);
+
+            // closing the entry before it is committed drops it from the archive
+            try (ArchiveWriter.StreamedEntry entry = archive.stream(Archive.entryName(file), file.getSize())) {
+                if (entry == null)
+                    return false;
+
+                try {
+                    try (DownloadSource source = openDownloadSource(remote(file), 0);
+                                    ReadableByteChannel in = decompress(file, source)) {
+                        checkLength(file, source, 0);
+                        started(file, 0);
+                        copy(file, in, entry, digest);
+                    }
+
+                    if (mirroredMismatch(file, digest))
+                        throw new IOException("Checksum mismatch for file '" + file.getPath().getFileName()
+                                        + "' from '" + served.get(file) + "'");
+                } catch (IOException e) {
+                    URI origin = served.get(file);
+                    if (mirrors == null || origin == null || !mirrors.fail(origin, file, e))
+                        throw e;
+
+                    downloadJobCompleted.addAndGet(-digest.getSize());
+                    continue;
+                }
+
+                synchronized (lock) {
+                    handler.validatingFile(file, null);
+                }
+
+                ConfigImpl.validateFile(file, null, digest);
+                entry.commit(digest.getCrc(), ArchiveManifest.checksum(file));
+
+                return true;
+            }
+        }
+    }
+
+    /*
+     * Downloads the file as concurrent ranges, if segmented downloads are enabled and no part
+     * file is resumed. Returns false if the source cannot serve ranges,
+     * having reported no progress. On failure the progress reported is rolled back, as for
+     * a full download the retry starts from the digest size.
+     */
+    private boolean fetchSegments(FileMetadata file, Path target, FileDigest digest) throws Throwable {
+        SegmentedDownload download = new SegmentedDownload(target, file.getSize(), options.getDownloadSegments(),
+                        buffers);
+        AtomicLong fileCompleted = new AtomicLong();
+        FileMetadata remote = remote(file);
+
+        try {
+            boolean done = download.download(file.getPath().getFileName().toString(), (offset, length) -> {
+                InputStream in = openDownloadStream(remote, offset, length);
+                // the first range is opened alone, before the others
+                if (offset == 0)
+                    started(file, 0);
+
+                return in;
+            }, read -> {
+                if (aborted)
+                    throw new CancellationException("Download of '" + file.getPath().getFileName() + "' aborted");
+
+                long completed = fileCompleted.addAndGet(read);
+                downloadJobCompleted.addAndGet(read);
+
+                if (completed == file.getSize() || progress.due())
+                    publish(file, completed);
+            });
+
+            if (!done)
+                return false;
+        } catch (Throwable t) {
+            downloadJobCompleted.addAndGet(-fileCompleted.get());
+            Files.deleteIfExists(target);
+
+            throw t;
+        }
+
+        // the digest now holds the full size, which replaces the segment progress
+        downloadJobCompleted.addAndGet(-fileCompleted.get());
+        download.digest(digest);
+        downloadJobCompleted.addAndGet(digest.getSize());
+
+        return true;
+    }
+
+    /*
+     * Whether the archive kept by a failed update holds the file. Its content is hashed again,
+     * and its signature verified if there is a public key, as it may have changed since it was
+     * validated; if it does not match, or cannot be read, the file is downloaded again.
+     */
+    private boolean reuse(FileMetadata file) throws Throwable {
+        String name = Archive.entryName(file);
+        try {
+            return archive.reuse(name, file.getSize(), ArchiveManifest.checksum(file), in -> {
+                ByteBuffer buffer = buffers.acquireHeap();
+                try {
+                    FileDigest digest = new FileDigest(file.getChecksumAlgorithm(), newSignature());
+                    int read;
+                    while ((read = in.read(buffer.array())) > -1) {
+                        if (aborted)
+                            throw new CancellationException();
+
+                        digest.update(buffer.array(), 0, read);
+                    }
+
+                    if (digest.getSize() == file.getSize() && digest.getChecksum().equals(file.getChecksumString())
+                                    && verifies(file, digest))
+                        return true;
+                } catch (GeneralSecurityException e) {
+                    throw new IOException(e);
+                } finally {
+                    buffers.release(buffer);
+                }
+
+                logger.log(WARNING, "The archived '" + file.getPath().getFileName()
+                                + "' no longer matches; downloading it again.");
+                return false;
+            }) != null;
+        } catch (IOException e) {
+            logger.log(WARNING, "Cannot reuse the archived '" + file.getPath().getFileName()
+                            + "'; downloading it again.", e);
+            return false;
+        }
+    }
+
+    private static boolean verifies(FileMetadata file, FileDigest digest) throws SignatureException {
+        Signature sig = digest.getSignature();
+
+        return sig == null || file.getSignature() != null
+                        && sig.verify(Base64.getDecoder().decode(file.getSignature()));
+    }
+
+    /*
+     * Writes the file by reusing the installed one, instead of downloading it in full.
+     * The writer returns false if there is nothing to reuse. Any exception other than
+     * cancellation is logged and null is returned, so the caller downloads the file in full;
+     * the progress already reported is rolled back. Errors are not hidden this way.
+     */
+    private FileDigest rebuild(FileMetadata file, String source, Path staged, Rebuilder writer) throws Throwable {
+        FileDigest digest = new FileDigest(file.getChecksumAlgorithm(), newSignature(), true);
+
+        try {
+            if (!writer.write(digest))
+                return null;
+
+            if (digest.getSize() != file.getSize() || !digest.getChecksum().equals(file.getChecksumString()))
+                throw new IOException("The " + source + " produced a different file");
+
+            return digest;
+        } catch (CancellationException e) {
+            throw e;
+        } catch (Exception e) {
+            downloadJobCompleted.addAndGet(-digest.getSize());
+            // would otherwise be resumed as a partial download
+            Files.deleteIfExists(staged);
+            logger.log(WARNING, "Failed to update '" + file.getPath().getFileName() + "' using its " + source
+                            + "; downloading in full.", e);
+
+            return null;
+        }
+    }
+
+    /*
+     * The file as served by the preferred mirror, which is recorded as the file's source.
+     */
+    private FileMetadata remote(FileMetadata file) {
+        if (mirrors == null || !mirrors.isMirrored(file))
+            return file;
+
+        URI origin = mirrors.current();
+        served.put(file, origin);
+
+        return mirrors.locate(file, origin);
+    }
+
+    /*
+     * Full downloads are opened as sources and copied through direct buffers; ranges, patches
+     * and indexes are opened as streams. All draw from the rate limiter, if any.
+     */
+    private DownloadSource openDownloadSource(FileMetadata file, long offset) throws Throwable {
+        // local files are opened as channels by the handler
+        boolean local = "file".equalsIgnoreCase(file.getUri().getScheme());
+        DownloadSource source = transport == null || local ? handler.openDownloadSource(file, offset)
+                        // files are only decompressed by the caller, as their compression says
+                        : DownloadSource.of(transport.open(file.getUri(), offset, -1, false));
+
+        if (options.getRateLimiter() == null)
+            return source;
+
+        return DownloadSource.of(options.getRateLimiter().limit(source.getChannel()), source.getLength(),
+                        source.getETag());
+    }
+
+    private InputStream openDownloadStream(FileMetadata file, long offset, long length) throws Throwable {
+        if (transport == null)
+            return limit(handler.openDownloadStream(file, offset, length));
+
+        return limit(transport.open(file.getUri(), offset, length, false));
+    }
+
+    private InputStream openPatchStream(FileMetadata file, Patch patch) throws Throwable {
+        return limit(transport == null ? handler.openPatchStream(file, patch)
+                        : transport.open(patch.getUri(), 0, -1, false));
+    }
+
+    private InputStream openBlockIndexStream(FileMetadata file) throws Throwable {
+        return limit(transport == null ? handler.openBlockIndexStream(file)
+                        : transport.open(file.getBlockIndex(), 0, -1, false));
+    }
+
+    private InputStream openJarIndexStream(FileMetadata file) throws Throwable {
+        return limit(transport == null ? handler.openJarIndexStream(file)
+                        : transport.open(file.getJarIndex(), 0, -1, false));
+    }
+
+    // every remote byte passes here, so all downloads share the bandwidth limit
+    private InputStream limit(InputStream in) {
+        return RateLimiter.limit(options.getRateLimiter(), in);
+    }
+
+    /*
+     * Whether the handler opens any stream itself, e.g. to authenticate; the HTTP transport
+     * must not bypass it.
+     */
+    private static boolean customStreams(UpdateHandler handler) {
+        for (Method m : UpdateHandler.class.getMethods()) {
+            if (!m.getName().startsWith("open") || !m.getName().endsWith("Stream") && !m.getName().endsWith("Source"))
+                continue;
+
+            try {
+                if (handler.getClass().getMethod(m.getName(), m.getParameterTypes())
+                                .getDeclaringClass() != UpdateHandler.class)
+                    return true;
+            } catch (NoSuchMethodException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        return false;
+    }
+
+    @FunctionalInterface
+    private interface Rebuilder {
+        boolean write(FileDigest digest) throws Throwable;
+    }
+
+    /*
+     * Applies the patch whose base matches the installed file, if any.
+     */
+    private boolean applyPatch(FileMetadata file, Path installed, Path output, FileDigest digest) throws Throwable {
+        String checksum = FileUtils.getChecksumString(installed, file.getChecksumAlgorithm());
+
+        FileMetadata remote = remote(file);
+        Patch patch = null;
+        for (Patch p : remote.getPatches()) {
+            if (p.getBaseChecksum().equals(checksum)) {
+                patch = p;
+                break;
+            }
+        }
+
+        if (patch == null)
+            return false;
+
+        Hasher patchHasher = Hasher.of(file.getChecksumAlgorithm());
+        long[] patchSize = new long[1];
+
+        InputStream raw = new FilterInputStream(openPatchStream(remote, patch)) {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, len);
+                if (read > 0) {
+                    patchHasher.update(b, off, read);
+                    patchSize[0] += read;
+                }
+
+                return read;
+            }
+        };
+
+        try (InputStream in = Delta.apply(installed, raw); OutputStream out = Files.newOutputStream(output)) {
+            started(file, 0);
+            copy(file, in, out, -1, digest);
+        }
+
+        if (patchSize[0] != patch.getSize() || !patchHasher.getValue().equals(patch.getChecksum()))
+            throw new IOException("Checksum mismatch for patch '" + patch.getUri() + "'");
+
+        return true;
+    }
+
+    /*
+     * Copies the entries found in the installed jar, and downloads each run of missing
+     * entries (and the literals between them) with a single range request.
+     */
+    private boolean applyJarIndex(FileMetadata file, Path installed, Path output, FileDigest digest)
+                    throws Throwable {
+        JarIndex index;
+        try (InputStream in = openJarIndexStream(remote(file))) {
+            index = JarIndex.read(in);
+        }
+
+        if (index.getSize() != file.getSize())
+            throw new IOException("Jar index '" + file.getJarIndex() + "' does not match the file");
+
+        long[] local = index.match(installed);
+        if (Arrays.stream(local).allMatch(offset -> offset < 0))
+            return false;
+
+        try (FileChannel channel = FileChannel.open(installed, StandardOpenOption.READ);
+                        OutputStream out = Files.newOutputStream(output)) {
+
+            InputStream localIn = Channels.newInputStream(channel);
+            started(file, 0);
+
+            int segment = 0;
+            int count = index.getSegmentCount();
+            while (segment < count) {
+                byte[] literal = index.getLiteral(segment);
+                if (literal != null) {
+                    copy(file, new ByteArrayInputStream(literal), out, -1, digest);
+                    segment++;
+                    continue;
+                }
+
+                if (local[segment] >= 0) {
+                    channel.position(local[segment]);
+                    copy(file, localIn, out, index.getLength(segment), digest);
+                    segment++;
+                    continue;
+                }
+
+                int end = segment + 1;
+                for (int next = end; next < count; next++) {
+                    if (index.getLiteral(next) != null)
+                        continue;
+                    if (local[next] >= 0)
+                        break;
+
+                    end = next + 1;
+                }
+
+                long offset = index.getOffset(segment);
+                long length = index.getOffset(end - 1) + index.getLength(end - 1) - offset;
+
+                try (InputStream in = openDownloadStream(remote(file), offset, length)) {
+                    copy(file, in, out, length, digest);
+                }
+
+                segment = end;
+            }
+        }
+
+        return true;
+    }
+
+    /*
+     * Copies the blocks found in the installed file, and downloads each run of missing
+     * blocks with a single range request.
+     */
+    private boolean applyBlockIndex(FileMetadata file, Path installed, Path output, FileDigest digest)
+                    throws Throwable {
+        BlockIndex index;
+        try (InputStream in = openBlockIndexStream(remote(file))) {
+            index = BlockIndex.read(in);
+        }
+
+        if (index.getSize() != file.getSize())
+            throw new IOException("Block index '" + file.getBlockIndex() + "' does not match the file");
+
+        long[] local = index.match(installed);
+        if (Arrays.stream(local).allMatch(offset -> offset < 0))
+            return false;
+
+        try (FileChannel channel = FileChannel.open(installed, StandardOpenOption.READ);
+                        OutputStream out = Files.newOutputStream(output)) {
+
+            InputStream localIn = Channels.newInputStream(channel);
+            started(file, 0);
+
+            int block = 0;
+            while (block < local.length) {
+                if (local[block] >= 0) {
+                    channel.position(local[block]);
+                    copy(file, localIn, out, index.getBlockLength(block), digest);
+                    block++;
+                    continue;
+                }
+
+                int end = block;
+                while (end < local.length && local[end] < 0)
+                    end++;
+
+                long offset = index.getBlockOffset(block);
+                long length = index.getBlockOffset(end - 1) + index.getBlockLength(end - 1) - offset;
+
+                try (InputStream in = openDownloadStream(remote(file), offset, length)) {
+                    copy(file, in, out, length, digest);
+                }
+
+                block = end;
+            }
+        }
+
+        return true;
+    }
+
+    /*
+     * Local files are copied with transferTo() into a target on the default file system.
+     */
+    private void transfer(FileMetadata file, Path target, long offset, FileDigest digest) throws Throwable {
+        try (DownloadSource source = openDownloadSource(remote(file), offset);
+                        ReadableByteChannel in = decompress(file, source);
+                        SeekableByteChannel out = openTarget(target, offset, in instanceof FileChannel)) {
+
+            checkLength(file, source, offset);
+
+            // We should set download progress only AFTER the request has returned.
+            // The delay can be monitored by the difference between calls from startDownload to this.
+            started(file, offset);
+
+            if (in instanceof FileChannel && out instanceof FileChannel) {
+                transferLocal(file, (FileChannel) in, (FileChannel) out, localChunk, digest, buffers, progress,
+                                () -> aborted, completed -> publish(file, completed));
+            } else {
+                copy(file, in, out, digest);
+            }
+        }
+    }
+
+    /*
+     * Opens the target positioned at the offset. A target on the default file system is
+     * also opened for reading if the source is local, so transferLocal() can hash it.
+     */
+    private static SeekableByteChannel openTarget(Path target, long offset, boolean local) throws IOException {
+        if (local && target.getFileSystem() == FileSystems.getDefault()) {
+            FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                            StandardOpenOption.WRITE);
+            try {
+                channel.truncate(offset).position(offset);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+
+            return channel;
+        }
+
+        if (offset == 0)
+            return Files.newByteChannel(target, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                            StandardOpenOption.WRITE);
+
+        return Files.newByteChannel(target, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /*
+     * The size of each local transfer, between progress updates; a smaller progress step is
+     * still honored. Options are null for the deprecated update methods.
+     */
+    static long localChunk(UpdateOptions<?> options, BufferPool buffers) {
+        if (options == null || options.getProgressStep() <= 0)
+            return LOCAL_CHUNK;
+
+        return Math.max(buffers.getBufferSize(), Math.min(options.getProgressStep(), LOCAL_CHUNK));
+    }
+
+    /*
+     * Copies a local source with transferLocal(), counting each chunk towards the job and
+     * publishing the file's progress at the rate of the tracker. Shared with the legacy update,
+     * which has no downloader, so both report local copies alike.
+     */
+    static void transferLocal(FileMetadata file, FileChannel in, FileChannel out, long chunk, FileDigest digest,
+                    BufferPool buffers, ProgressTracker progress, BooleanSupplier aborted, Publisher publisher)
+                    throws Throwable {
+        transferLocal(in, out, chunk, digest, buffers, read -> {
+            if (aborted.getAsBoolean())
+                throw new CancellationException("Download of '" + file.getPath().getFileName() + "' aborted");
+
+            progress.completed.addAndGet(read);
+
+            if (digest.getSize() == file.getSize() || progress.due())
+                publisher.publish(digest.getSize());
+        });
+    }
+
+    @FunctionalInterface
+    interface Publisher {
+        void publish(long fileCompleted) throws Throwable;
+    }
+
+    /*
+     * Copies a local source with transferTo(), which the OS may carry out without copying
+     * through user space, in chunks so progress is still reported. Each chunk is hashed by
+     * reading it back from the target, which is still in the page cache; a network share is
+     * therefore read only once. Hashing what was written also covers the write itself.
+     */
+    static void transferLocal(FileChannel in, FileChannel out, long chunk, FileDigest digest, BufferPool buffers,
+                    SegmentedDownload.Progress progress) throws Throwable {
+        ByteBuffer buffer = buffers.acquireDirect();
+
+        try {
+            long size = in.size();
+            while (in.position() < size) {
+                long position = out.position();
+                long transferred = in.transferTo(in.position(), Math.min(chunk, size - in.position()), out);
+                if (transferred <= 0)
+                    throw new EOFException("Local file ended early");
+
+                in.position(in.position() + transferred);
+
+                for (long read = 0; read < transferred;) {
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), transferred - read));
+                    int n = out.read(buffer, position + read);
+                    if (n < 0)
+                        throw new EOFException("Target ended early");
+
+                    buffer.flip();
+                    digest.update(buffer);
+                    read += n;
+                }
+
+                progress.update((int) transferred);
+            }
+        } finally {
+            buffers.release(buffer);
+        }
+    }
+
+    /*
+     * Fails before anything is read if the source knows its length, and it does not add up.
+     */
+    static void checkLength(FileMetadata file, DownloadSource source, long offset) throws IOException {
+        if (file.getCompression() == null && source.getLength() >= 0
+                        && offset + source.getLength() != file.getSize()) {
+            throw new IOException("Source of '" + file.getPath().getFileName() + "' has "
+                            + (offset + source.getLength()) + " bytes, expected " + file.getSize()
+                            + (source.getETag() == null ? "" : " (ETag " + source.getETag() + ")"));
+        }
+    }
+
+    private static ReadableByteChannel decompress(FileMetadata file, DownloadSource source) throws IOException {
+        if (file.getCompression() == null)
+            return source.getChannel();
+
+        return Channels.newChannel(ConfigImpl.decompress(file, source.toInputStream()));
+    }
+
+    /*
+     * Copies the channel through a pooled direct buffer, which is written and hashed
+     * without passing through an array.
+     */
+    private void copy(FileMetadata file, ReadableByteChannel in, WritableByteChannel out, FileDigest digest)
+                    throws Throwable {
+        ByteBuffer buffer = buffers.acquireDirect();
+
+        try {
+            int read;
+            while ((read = in.read(buffer)) > -1) {
+                if (aborted)
+                    throw new CancellationException("Download of '" + file.getPath().getFileName() + "' aborted");
+
+                buffer.flip();
+                ByteBuffer written = buffer.duplicate();
+                while (written.hasRemaining()) {
+                    out.write(written);
+                }
+                digest.update(buffer);
+                buffer.clear();
+
+                downloadJobCompleted.addAndGet(read);
+
+                if (digest.getSize() == file.getSize() || progress.due())
+                    publish(file, digest.getSize());
+            }
+        } finally {
+            buffers.release(buffer);
+        }
+    }
+
+    /*
+     * Copies the stream, or only its first length bytes if not negative, reporting progress
+     * by the number of bytes the digest has seen.
+     */
+    private void copy(FileMetadata file, InputStream in, OutputStream out, long length, FileDigest digest)
+                    throws Throwable {
+        int read = 0;
+        long remaining = length < 0 ? Long.MAX_VALUE : length;
+        ByteBuffer pooled = buffers.acquireHeap();
+        byte[] buffer = pooled.array();
+
+        try {
+            while (remaining > 0 && (read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) > -1) {
+                if (aborted)
+                    throw new CancellationException("Download of '" + file.getPath().getFileName() + "' aborted");
+
+                out.write(buffer, 0, read);
+                digest.update(buffer, 0, read);
+                remaining -= read;
+
+                downloadJobCompleted.addAndGet(read);
+
+                if (digest.getSize() == file.getSize() || progress.due())
+                    publish(file, digest.getSize());
+            }
+        } finally {
+            buffers.release(pooled);
+        }
+
+        if (length >= 0 && remaining > 0)
+            throw new EOFException("Stream of '" + file.getPath().getFileName() + "' ended early");
+    }
+
+    /*
+     * Progress is counted on every read, but only published at the rate of the progress
+     * tracker and once a file completes. The job progress is read under the lock, so it never
+     * goes backwards when concurrent downloads publish out of order.
+     */
+    private void publish(FileMetadata file, long fileCompleted) throws Throwable {
+        synchronized (lock) {
+            handler.updateDownloadFileProgress(file, ConfigImpl.clamp((float) fileCompleted / file.getSize()));
+            handler.updateDownloadProgress(ConfigImpl.clamp((float) downloadJobCompleted.get() / downloadJobSize.get()));
+        }
+    }
+
+    private void started(FileMetadata file, long offset) throws Throwable {
+        long jobCompleted = downloadJobCompleted.addAndGet(offset);
+
+        synchronized (lock) {
+            if (started.compareAndSet(false, true)) {
+                handler.updateDownloadProgress(0f);
+            }
+            handler.updateDownloadFileProgress(file, ConfigImpl.clamp((float) offset / file.getSize()));
+
+            if (offset > 0)
+                handler.updateDownloadProgress(ConfigImpl.clamp((float) jobCompleted / downloadJobSize.get()));
+        }
+    }
+
+    /*
+     * Returns the number of bytes already downloaded into the part file.
+     * Digest and signature state cannot be persisted portably, so it is
+     * rebuilt by hashing the local bytes, which is far cheaper than downloading them again.
+     */
+    private long resume(FileMetadata file, Path part, FileDigest digest) throws IOException, SignatureException {
+        if (Files.notExists(part))
+            return 0;
+
+        long length = Files.size(part);
+
+        // a compressed stream cannot be resumed halfway
+        if (length > file.getSize() || (file.getCompression() != null && length < file.getSize())) {
+            Files.delete(part);
+            return 0;
+        }
+
+        ByteBuffer buffer = buffers.acquireHeap();
+        try (FileChannel in = FileChannel.open(part)) {
+            int read;
+            while ((read = in.read(buffer)) > -1) {
+                digest.update(buffer.array(), 0, read);
+                buffer.clear();
+            }
+        } finally {
+            buffers.release(buffer);
+        }
+
+        return length;
+    }
+
+    /*
+     * Keyed by content and path, so a changed remote file never resumes from stale bytes
+     * and two files with the same content never share a part.
+     */
+    private static String partName(FileMetadata file) {
+        String path = file.getNormalizedPath().toString().replace("\\", "/");
+
+        return file.getChecksumAlgorithm().getName() + "-" + file.getChecksumString() + "-"
+                        + Integer.toHexString(path.hashCode()) + ".part";
+    }
+
+    private Signature newSignature() throws GeneralSecurityException {
+        if (key == null)
+            return null;
+
+        Signature sig = FileUtils.getSignature(key);
+        sig.initVerify(key);
+
+        return sig;
+    }
+
+    private void fail(Throwable t) {
+        failure.compareAndSet(null, t);
+        aborted = true;
+    }
+
+    private static String hostKey(URI uri) {
+        if (uri.getHost() != null)
+            return uri.getHost().toLowerCase();
+
+        return String.valueOf(uri.getScheme());
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2020 Mordechai Meisels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.update4j;
+
+import java.nio.ByteBuffer;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.zip.CRC32;
+import org.update4j.util.Hasher;
+
+/*
+ * Accumulates everything validation needs while a file is being written,
+ * so the downloaded file never has to be read back.
+ */
+class FileDigest {
+
+    private static final int ZIP_MAGIC = 0x504b0304;
+
+    private final Hasher checksum;
+    private final Signature signature;
+    private final CRC32 crc;
+
+    private long size;
+    private int header;
+
+    FileDigest(ChecksumAlgorithm algorithm, Signature signature) {
+        this(algorithm, signature, false);
+    }
+
+    /*
+     * The CRC-32 is only needed to write the file into an archive.
+     */
+    FileDigest(ChecksumAlgorithm algorithm, Signature signature, boolean crc) {
+        this.checksum = Hasher.of(algorithm);
+        this.signature = signature;
+        this.crc = crc ? new CRC32() : null;
+    }
+
+    void update(byte[] b, int off, int len) throws SignatureException {
+        // first 4 bytes, big-endian, to tell whether this is a zip file
+        for (int i = 0; i < len && size + i < 4; i++) {
+            header = (header << 8) | (b[off + i] & 0xff);
+        }
+
+        size += len;
+        checksum.update(b, off, len);
+
+        if (crc != null)
+            crc.update(b, off, len);
+
+        if (signature != null)
+            signature.update(b, off, len);
+    }
+
+    /*
+     * Consumes the remaining bytes of the buffer.
+     */
+    void update(ByteBuffer buffer) throws SignatureException {
+        int len = buffer.remaining();
+        for (int i = 0; i < len && size + i < 4; i++) {
+            header = (header << 8) | (buffer.get(buffer.position() + i) & 0xff);
+        }
+
+        size += len;
+
+        if (signature != null)
+            signature.update(buffer.duplicate());
+
+        if (crc != null)
+            crc.update(buffer.duplicate());
+
+        checksum.update(buffer);
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    String getChecksum() {
+        return checksum.getValue();
+    }
+
+    Signature getSignature() {
+        return signature;
+    }
+
+    long getCrc() {
+        return crc.getValue();
+    }
+
+    boolean isZipFile() {
+        return size >= 4 && header == ZIP_MAGIC;
+    }
+
+    /*
+     * Whether the content is in a common compressed format, by its magic number.
+     */
+    boolean isCompressed() {
+        return size >= 4 && isCompressed(header);
+    }
+
+    /*
+     * By the first 4 bytes of the content, big-endian.
+     */
+    static boolean isCompressed(int header) {
+        return header == ZIP_MAGIC
+                        || header >>> 16 == 0x1f8b // gzip
+                        || header == 0x89504e47 // png
+                        || header >>> 8 == 0xffd8ff // jpeg
+                        || header == 0xfd377a58 // xz
+                        || header == 0x28b52ffd // zstd
+                        || header >>> 8 == 0x425a68 // bzip2
+                        || header == 0x377abcaf; // 7z
+    }
+}
@@ -16,10 +16,13 @@
 package org.update4j;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.PrivateKey;
 import java.util.ArrayList;
 import java.util.Base64;
@@ -34,8 +37,11 @@ import java.util.stream.Stream;
 import org.update4j.mapper.ConfigMapper;
 import org.update4j.mapper.FileMapper;
 import org.update4j.service.UpdateHandler;
+import org.update4j.util.BlockIndex;
+import org.update4j.util.Delta;
 import org.update4j.util.FileUtils;
 import org.update4j.util.FilenameMatch;
+import org.update4j.util.JarIndex;
 import org.update4j.util.PropertyManager;
 
 /**
@@ -71,8 +77,11 @@ public class FileMetadata {
     private Path normalizedPath;
     private final OS os;
     private final String arch;
-    private final long checksum;
+    private final ChecksumAlgorithm checksumAlgorithm;
+    private final String checksum;
     private final long size;
+    private final Compression compression;
+    private final long compressedSize;
     private final boolean classpath;
     private final boolean modulepath;
     private final String comment;
@@ -82,10 +91,15 @@ public class FileMetadata {
     private final List<AddPackage> addExports;
     private final List<AddPackage> addOpens;
     private final List<String> addReads;
+    private final List<Patch> patches;
+    private final URI blockIndex;
+    private final URI jarIndex;
 
-    private FileMetadata(URI uri, Path path, OS os, String arch, long checksum, long size, boolean classpath, boolean modulepath,
+    private FileMetadata(URI uri, Path path, OS os, String arch, ChecksumAlgorithm checksumAlgorithm, String checksum,
+                    long size, Compression compression, long compressedSize, boolean classpath, boolean modulepath,
                     String comment, boolean ignoreBootConflict, String signature, List<AddPackage> addExports,
-                    List<AddPackage> addOpens, List<String> addReads) {
+                    List<AddPackage> addOpens, List<String> addReads, List<Patch> patches, URI blockIndex,
+                    URI jarIndex) {
 
         this.uri = uri;
 
@@ -114,16 +128,19 @@ public class FileMetadata {
         this.os = os;
         this.arch = arch;
 
-
-        if (checksum < 0)
-            throw new IllegalArgumentException("Negative checksum: " + checksum);
-
-        this.checksum = checksum;
+        this.checksumAlgorithm = checksumAlgorithm == null ? ChecksumAlgorithm.ADLER32 : checksumAlgorithm;
+        this.checksum = this.checksumAlgorithm.normalize(checksum);
 
         if (size < 0)
             throw new IllegalArgumentException("Negative file size: " + size);
 
         this.size = size;
+
+        if (compression != null && compressedSize < 0)
+            throw new IllegalArgumentException("Negative compressed size: " + compressedSize);
+
+        this.compression = compression;
+        this.compressedSize = compression == null ? size : compressedSize;
         this.classpath = classpath;
         this.modulepath = modulepath;
         this.comment = comment;
@@ -133,6 +150,15 @@ public class FileMetadata {
         this.addExports = Collections.unmodifiableList(new ArrayList<>(addExports));
         this.addOpens = Collections.unmodifiableList(new ArrayList<>(addOpens));
         this.addReads = Collections.unmodifiableList(new ArrayList<>(addReads));
+
+        List<Patch> normalized = new ArrayList<>();
+        for (Patch patch : patches) {
+            normalized.add(new Patch(this.checksumAlgorithm.normalize(patch.getBaseChecksum()), patch.getUri(),
+                            patch.getSize(), this.checksumAlgorithm.normalize(patch.getChecksum())));
+        }
+        this.patches = Collections.unmodifiableList(normalized);
+        this.blockIndex = blockIndex;
+        this.jarIndex = jarIndex;
     }
 
     /**
@@ -222,18 +248,54 @@ public class FileMetadata {
     }
 
     /**
-     * Returns the Adler32 checksum of this file. Used to check if an update is
+     * Returns the checksum of this file as a number. Used to check if an update is
      * needed and to validate the file post-download.
      * 
      * <p>
      * This field is only used for updating.
      * 
-     * @return The Adler32 checksum of this file.
+     * @return The checksum of this file.
+     * @throws UnsupportedOperationException
+     *             If the checksum algorithm does not produce a 64 bit value, such
+     *             as {@link ChecksumAlgorithm#SHA256}.
+     * @deprecated Not every checksum algorithm fits in a {@code long}; use
+     *             {@link #getChecksumString()} instead.
      */
+    @Deprecated
     public long getChecksum() {
+        if (!checksumAlgorithm.isLongValue())
+            throw new UnsupportedOperationException(
+                            checksumAlgorithm.getName() + " checksum cannot be represented as long, use getChecksumString()");
+
+        return checksum == null ? 0 : Long.parseUnsignedLong(checksum, 16);
+    }
+
+    /**
+     * Returns the checksum of this file in lowercase hex, as listed in the
+     * configuration. This works for all algorithms.
+     * 
+     * <p>
+     * This field is only used for updating.
+     * 
+     * @return The checksum of this file.
+     */
+    public String getChecksumString() {
         return checksum;
     }
 
+    /**
+     * Returns the algorithm of the checksum of this file, {@link ChecksumAlgorithm#ADLER32}
+     * if not listed in the configuration.
+     * 
+     * <p>
+     * This field is only used for updating.
+     * 
+     * @return The checksum algorithm of this file.
+     */
+    public ChecksumAlgorithm getChecksumAlgorithm() {
+        return checksumAlgorithm;
+    }
+
     /**
      * Returns the file size. Used to check if an update is needed, validate the
      * file post-download, and to calculate proper download deltas.
@@ -247,6 +309,35 @@ public class FileMetadata {
         return size;
     }
 
+    /**
+     * Returns the compression of the artifact at {@link #getUri()}, or
+     * {@code null} if it is not compressed. A compressed artifact is decompressed
+     * while downloading; {@link #getSize()} and the checksum always refer to the
+     * decompressed file.
+     * 
+     * <p>
+     * This field is only used for updating.
+     * 
+     * @return The compression, or {@code null}.
+     */
+    public Compression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Returns the number of bytes transferred to download this file: the size of
+     * the compressed artifact if {@link #getCompression()} is set, otherwise the
+     * file size.
+     * 
+     * <p>
+     * This field is only used for updating.
+     * 
+     * @return The size on the wire.
+     */
+    public long getCompressedSize() {
+        return compressedSize;
+    }
+
     /**
      * Returns if this file is marked to be loaded on the dynamic classpath. Files
      * in the bootstrap and non-jar files should generally be marked {@code false}.
@@ -387,6 +478,75 @@ public class FileMetadata {
         return addReads;
     }
 
+    /**
+     * Returns an unmodifiable list of delta patches that turn a previous version of
+     * this file into this version. When the installed file matches the base
+     * checksum of a patch, only the patch is downloaded.
+     * 
+     * <p>
+     * This field is only used for updating.
+     * 
+     * @return A list of patches.
+     */
+    public List<Patch> getPatches() {
+        return patches;
+    }
+
+    /**
+     * Returns the download URI of the block index of this file, or {@code null}
+     * if none was published. When the installed file is outdated and no patch
+     * applies, blocks found in the installed file are reused and only the rest
+     * is downloaded, using range requests.
+     * 
+     * <p>
+     * This field is only used for updating.
+     * 
+     * @return The block index URI, or {@code null}.
+     */
+    public URI getBlockIndex() {
+        return blockIndex;
+    }
+
+    /**
+     * Returns the download URI of the jar index of this file, or {@code null} if
+     * none was published. When the installed jar is outdated and no patch applies,
+     * entries whose compressed data did not change are reused and only the
+     * changed entries are downloaded, using range requests.
+     * 
+     * <p>
+     * This field is only used for updating.
+     * 
+     * @return The jar index URI, or {@code null}.
+     */
+    public URI getJarIndex() {
+        return jarIndex;
+    }
+
+    /*
+     * A copy whose URIs relative to the base are moved to a mirror of it. URIs
+     * outside the base are kept.
+     */
+    FileMetadata relocate(URI base, URI mirror) {
+        List<Patch> relocated = new ArrayList<>();
+        for (Patch p : patches) {
+            relocated.add(new Patch(p.getBaseChecksum(), relocate(p.getUri(), base, mirror), p.getSize(),
+                            p.getChecksum()));
+        }
+
+        return new FileMetadata(relocate(uri, base, mirror), path, os, arch, checksumAlgorithm, checksum, size,
+                        compression, compressedSize, classpath, modulepath, comment, ignoreBootConflict, signature,
+                        addExports, addOpens, addReads, relocated, relocate(blockIndex, base, mirror),
+                        relocate(jarIndex, base, mirror));
+    }
+
+    private static URI relocate(URI uri, URI base, URI mirror) {
+        if (uri == null)
+            return null;
+
+        URI relative = base.relativize(uri);
+        return relative.isAbsolute() ? uri : mirror.resolve(relative);
+    }
+
     /**
      * Checks if this file is out of date and requires an update.
      * 
@@ -400,7 +560,38 @@ public class FileMetadata {
             return false;
 
         return Files.notExists(getPath()) || Files.size(getPath()) != getSize()
-                        || FileUtils.getChecksum(getPath()) != getChecksum();
+                        || !FileUtils.getChecksumString(getPath(), getChecksumAlgorithm()).equals(getChecksumString());
+    }
+
+    /**
+     * Checks if this file is out of date and requires an update, using the given
+     * cache to skip reading the file content if it did not change since it was
+     * last hashed.
+     * 
+     * @param cache
+     *            The checksum cache, or {@code null} to always read the file.
+     * @return If this file requires an update.
+     * 
+     * @throws IOException
+     *             If any exception arises while reading the file content.
+     */
+    public boolean requiresUpdate(ChecksumCache cache) throws IOException {
+        if (cache == null)
+            return requiresUpdate();
+
+        if (!appliesToCurrentPlatform())
+            return false;
+
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(getPath(), BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            cache.invalidate(getPath());
+            return true;
+        }
+
+        return attrs.size() != getSize()
+                        || !cache.getChecksum(getPath(), getChecksumAlgorithm(), attrs).equals(getChecksumString());
     }
 
     public boolean appliesToCurrentPlatform() {
@@ -527,10 +718,12 @@ public class FileMetadata {
         private Boolean modulepath;
         private String comment;
         private Boolean ignoreBootConflict;
+        private ChecksumAlgorithm checksumAlgorithm;
 
         private List<AddPackage> addExports;
         private List<AddPackage> addOpens;
         private List<String> addReads;
+        private Artifacts artifacts;
 
         private PlaceholderMatchType matcher;
 
@@ -540,6 +733,7 @@ public class FileMetadata {
             addExports = new ArrayList<>();
             addOpens = new ArrayList<>();
             addReads = new ArrayList<>();
+            artifacts = new Artifacts();
         }
 
         /**
@@ -789,6 +983,26 @@ public class FileMetadata {
             return Boolean.TRUE.equals(ignoreBootConflict);
         }
 
+        /**
+         * Sets the algorithm used to compute the checksum of this file. If
+         * {@code null} or not set, the algorithm passed to
+         * {@link Configuration.Builder#checksumAlgorithm(ChecksumAlgorithm)} is
+         * used.
+         * 
+         * @param algorithm
+         *            The checksum algorithm.
+         * @return This instance for chaining.
+         */
+        public Reference checksumAlgorithm(ChecksumAlgorithm algorithm) {
+            this.checksumAlgorithm = algorithm;
+
+            return this;
+        }
+
+        public ChecksumAlgorithm getChecksumAlgorithm() {
+            return checksumAlgorithm;
+        }
+
         public Reference exports(String pkg, String targetModule) {
             addExports.add(new AddPackage(Objects.requireNonNull(pkg), Objects.requireNonNull(targetModule)));
 
@@ -837,6 +1051,111 @@ public class FileMetadata {
             return addReads;
         }
 
+        /**
+         * Generates a delta patch from a previous version of this file when the
+         * configuration is built, and lists it in the configuration. Clients that
+         * have that previous version installed download only the patch.
+         * 
+         * <p>
+         * The patch is written to {@code patchFile}, which you must then upload to
+         * {@code patchUri}. No patch is listed if the previous file is identical
+         * or if the patch is not smaller than this file.
+         * 
+         * <p>
+         * This method can be called repeatedly, once for each previous version.
+         * 
+         * @param previous
+         *            The previous version of this file.
+         * @param patchFile
+         *            Where to write the patch.
+         * @param patchUri
+         *            The download location of the patch, absolute or relative to the
+         *            base uri.
+         * @return This instance for chaining.
+         */
+        public Reference patchFrom(Path previous, Path patchFile, String patchUri) {
+            artifacts.patches.add(new PatchSource(Objects.requireNonNull(previous), Objects.requireNonNull(patchFile),
+                            Objects.requireNonNull(patchUri)));
+
+            return this;
+        }
+
+        /**
+         * Writes a block index of this file when the configuration is built, and
+         * lists it in the configuration. Clients with an outdated version of this
+         * file installed reuse the blocks that did not change, and download the
+         * rest with range requests.
+         * 
+         * <p>
+         * The index is written to {@code indexFile}, which you must then upload to
+         * {@code indexUri}. The server of this file must support range requests.
+         * 
+         * @param indexFile
+         *            Where to write the index.
+         * @param indexUri
+         *            The download location of the index, absolute or relative to the
+         *            base uri.
+         * @return This instance for chaining.
+         */
+        public Reference blockIndex(Path indexFile, String indexUri) {
+            artifacts.blockIndexFile = Objects.requireNonNull(indexFile);
+            artifacts.blockIndexUri = Objects.requireNonNull(indexUri);
+
+            return this;
+        }
+
+        /**
+         * Writes a jar index of this file when the configuration is built, and lists
+         * it in the configuration. Clients with an outdated version of this jar
+         * installed reuse the entries that did not change, and download the rest
+         * with range requests. Ignored if this file is not a zip file.
+         * 
+         * <p>
+         * The index is written to {@code indexFile}, which you must then upload to
+         * {@code indexUri}. The server of this file must support range requests.
+         * 
+         * @param indexFile
+         *            Where to write the index.
+         * @param indexUri
+         *            The download location of the index, absolute or relative to the
+         *            base uri.
+         * @return This instance for chaining.
+         */
+        public Reference jarIndex(Path indexFile, String indexUri) {
+            artifacts.jarIndexFile = Objects.requireNonNull(indexFile);
+            artifacts.jarIndexUri = Objects.requireNonNull(indexUri);
+
+            return this;
+        }
+
+        /**
+         * Writes a compressed copy of this file when the configuration is built, and
+         * lists it as the download location instead of this file. Clients decompress
+         * it while downloading. If the compressed copy is not smaller, it is deleted
+         * and this file is listed as usual.
+         * 
+         * <p>
+         * The compressed copy is written to {@code compressedFile}, which you must
+         * then upload to {@code compressedUri}. Compressed files cannot be updated
+         * with a jar index or block index, but patches still apply.
+         * 
+         * @param compression
+         *            The compression to use.
+         * @param compressedFile
+         *            Where to write the compressed copy.
+         * @param compressedUri
+         *            The download location of the compressed copy, absolute or
+         *            relative to the base uri.
+         * @return This instance for chaining.
+         */
+        public Reference compress(Compression compression, Path compressedFile, String compressedUri) {
+            artifacts.compression = Objects.requireNonNull(compression);
+            artifacts.compressedFile = Objects.requireNonNull(compressedFile);
+            artifacts.compressedUri = Objects.requireNonNull(compressedUri);
+
+            return this;
+        }
+
         public Reference matchAndReplace(PlaceholderMatchType matcher) {
             this.matcher = matcher;
 
@@ -855,6 +1174,10 @@ public class FileMetadata {
             return FileUtils.getChecksum(source);
         }
 
+        public String getChecksumString(ChecksumAlgorithm algorithm) throws IOException {
+            return FileUtils.getChecksumString(source, algorithm);
+        }
+
         public byte[] getSignature(PrivateKey key) throws IOException {
             if (key == null)
                 return null;
@@ -863,7 +1186,7 @@ public class FileMetadata {
         }
 
         FileMapper getFileMapper(PropertyManager pm, String baseUri, String basePath, PlaceholderMatchType matchType,
-                        PrivateKey key) {
+                        ChecksumAlgorithm defaultAlgorithm, Artifacts release, PrivateKey key) {
             try {
 
                 String path = getPath();
@@ -907,7 +1230,17 @@ public class FileMetadata {
                 mapper.os = getOs();
                 mapper.arch = getArch();
                 mapper.size = getSize();
-                mapper.checksum = Long.toHexString(getChecksum());
+                ChecksumAlgorithm algorithm = getChecksumAlgorithm();
+                if (algorithm == null) {
+                    algorithm = defaultAlgorithm;
+                }
+
+                mapper.checksum = getChecksumString(algorithm);
+
+                // keep the attribute out for the default, so older versions can read it
+                if (algorithm != ChecksumAlgorithm.ADLER32) {
+                    mapper.checksumAlgorithm = algorithm;
+                }
                 mapper.classpath = isClasspath();
                 mapper.modulepath = isFinalModulepath();
                 mapper.ignoreBootConflict = isIgnoreBootConflict();
@@ -921,6 +1254,8 @@ public class FileMetadata {
                 mapper.addOpens.addAll(getAddOpens());
                 mapper.addReads.addAll(getAddReads());
 
+                artifacts.merge(release).write(source, mapper, algorithm);
+
                 return mapper;
             } catch (IOException e) {
                 throw new RuntimeException(e);
@@ -929,6 +1264,144 @@ public class FileMetadata {
 
     }
 
+    /*
+     * Files written next to a file when the configuration is built, set either on a single
+     * reference or for all files of the configuration.
+     */
+    static class Artifacts {
+        final List<PatchSource> patches = new ArrayList<>();
+        Path blockIndexFile;
+        String blockIndexUri;
+        Path jarIndexFile;
+        String jarIndexUri;
+        Compression compression;
+        Path compressedFile;
+        String compressedUri;
+
+        /*
+         * Returns the union of both, preferring this instance's single-valued artifacts.
+         */
+        Artifacts merge(Artifacts other) {
+            Artifacts merged = new Artifacts();
+            merged.patches.addAll(patches);
+            merged.patches.addAll(other.patches);
+
+            merged.blockIndexFile = blockIndexFile != null ? blockIndexFile : other.blockIndexFile;
+            merged.blockIndexUri = blockIndexFile != null ? blockIndexUri : other.blockIndexUri;
+            merged.jarIndexFile = jarIndexFile != null ? jarIndexFile : other.jarIndexFile;
+            merged.jarIndexUri = jarIndexFile != null ? jarIndexUri : other.jarIndexUri;
+            merged.compression = compression != null ? compression : other.compression;
+            merged.compressedFile = compression != null ? compressedFile : other.compressedFile;
+            merged.compressedUri = compression != null ? compressedUri : other.compressedUri;
+
+            return merged;
+        }
+
+        void write(Path source, FileMapper mapper, ChecksumAlgorithm algorithm) throws IOException {
+            for (PatchSource ps : patches) {
+                Patch patch = ps.generate(source, mapper.size, algorithm);
+                if (patch != null)
+                    mapper.patches.add(patch);
+            }
+
+            if (compression != null) {
+                createParent(compressedFile);
+                try (OutputStream out = compression.compress(Files.newOutputStream(compressedFile))) {
+                    Files.copy(source, out);
+                }
+
+                long compressedSize = Files.size(compressedFile);
+                if (compressedSize < mapper.size) {
+                    // the path would otherwise be inferred from the compressed uri
+                    if (mapper.path == null)
+                        mapper.path = mapper.uri;
+
+                    mapper.uri = compressedUri.replace("\\", "/");
+                    mapper.compression = compression;
+                    mapper.compressedSize = compressedSize;
+
+                    // ranges of the compressed artifact are meaningless
+                    return;
+                }
+
+                Files.delete(compressedFile);
+            }
+
+            if (blockIndexFile != null) {
+                createParent(blockIndexFile);
+                BlockIndex.write(source, blockIndexFile);
+                mapper.blockIndex = blockIndexUri.replace("\\", "/");
+            }
+
+            if (jarIndexFile != null && FileUtils.isZipFile(source)) {
+                createParent(jarIndexFile);
+                JarIndex.write(source, jarIndexFile);
+                mapper.jarIndex = jarIndexUri.replace("\\", "/");
+            }
+        }
+
+        private static void createParent(Path file) throws IOException {
+            if (file.getParent() != null)
+                Files.createDirectories(file.getParent());
+        }
+    }
+
+    /*
+     * A previous release, as passed to Configuration.Builder.patchesFrom(), resolved into a
+     * PatchSource for each file.
+     */
+    static class PatchRelease {
+        private final Path previousRelease;
+        private final Path patchDir;
+        private final String patchUri;
+
+        PatchRelease(Path previousRelease, Path patchDir, String patchUri) {
+            this.previousRelease = previousRelease;
+            this.patchDir = patchDir;
+            this.patchUri = patchUri;
+        }
+
+        PatchSource resolve(String relative) {
+            return new PatchSource(previousRelease.resolve(relative), patchDir.resolve(relative + ".patch"),
+                            patchUri + relative + ".patch");
+        }
+    }
+
+    static class PatchSource {
+        private final Path previous;
+        private final Path patchFile;
+        private final String patchUri;
+
+        PatchSource(Path previous, Path patchFile, String patchUri) {
+            this.previous = previous;
+            this.patchFile = patchFile;
+            this.patchUri = patchUri;
+        }
+
+        Patch generate(Path current, long size, ChecksumAlgorithm algorithm) throws IOException {
+            if (Files.notExists(previous))
+                return null;
+
+            String base = FileUtils.getChecksumString(previous, algorithm);
+            if (Files.size(previous) == size && base.equals(FileUtils.getChecksumString(current, algorithm)))
+                return null;
+
+            if (patchFile.getParent() != null)
+                Files.createDirectories(patchFile.getParent());
+
+            Delta.diff(previous, current, patchFile);
+
+            long patchSize = Files.size(patchFile);
+            if (patchSize >= size) {
+                Files.delete(patchFile);
+                return null;
+            }
+
+            return new Patch(base, URI.create(patchUri.replace("\\", "/")), patchSize,
+                            FileUtils.getChecksumString(patchFile, algorithm));
+        }
+    }
+
     static Builder builder() {
         return new Builder();
     }
@@ -941,8 +1414,11 @@ public class FileMetadata {
         private Path path;
         private OS os;
         private String arch;
-        private long checksum;
+        private ChecksumAlgorithm checksumAlgorithm;
+        private String checksum;
         private long size;
+        private Compression compression;
+        private long compressedSize;
         private boolean classpath;
         private boolean modulepath;
         private String comment;
@@ -952,11 +1428,15 @@ public class FileMetadata {
         private List<AddPackage> addExports;
         private List<AddPackage> addOpens;
         private List<String> addReads;
+        private List<Patch> patches;
+        private URI blockIndex;
+        private URI jarIndex;
 
         private Builder() {
             addExports = new ArrayList<>();
             addOpens = new ArrayList<>();
             addReads = new ArrayList<>();
+            patches = new ArrayList<>();
         }
 
         Builder baseUri(URI uri) {
@@ -995,14 +1475,23 @@ public class FileMetadata {
             return this;
         }
 
-        Builder checksum(long checksum) {
-            this.checksum = checksum;
+        Builder checksumAlgorithm(ChecksumAlgorithm algorithm) {
+            this.checksumAlgorithm = algorithm;
 
             return this;
         }
 
+        Builder checksum(long checksum) {
+            if (checksum < 0)
+                throw new IllegalArgumentException("Negative checksum: " + checksum);
+
+            return checksum(Long.toHexString(checksum));
+        }
+
         Builder checksum(String checksum) {
-            return checksum(Long.parseLong(checksum, 16));
+            this.checksum = checksum;
+
+            return this;
         }
 
         Builder size(long size) {
@@ -1011,6 +1500,13 @@ public class FileMetadata {
             return this;
         }
 
+        Builder compression(Compression compression, long compressedSize) {
+            this.compression = compression;
+            this.compressedSize = compressedSize;
+
+            return this;
+        }
+
         Builder classpath(boolean cp) {
             this.classpath = cp;
 
@@ -1080,6 +1576,28 @@ public class FileMetadata {
             return this;
         }
 
+        Builder patches(List<Patch> patches) {
+            for (Patch patch : patches) {
+                Objects.requireNonNull(patch);
+            }
+
+            this.patches.addAll(patches);
+
+            return this;
+        }
+
+        Builder blockIndex(URI blockIndex) {
+            this.blockIndex = blockIndex;
+
+            return this;
+        }
+
+        Builder jarIndex(URI jarIndex) {
+            this.jarIndex = jarIndex;
+
+            return this;
+        }
+
         FileMetadata build() {
             if (path == null && uri != null) {
                 path(FileUtils.fromUri(uri));
@@ -1105,8 +1623,28 @@ public class FileMetadata {
                 this.path = basePath.resolve(path);
             }
 
-            return new FileMetadata(uri, path, os, arch, checksum, size, classpath, modulepath, comment, ignoreBootConflict,
-                            signature, addExports, addOpens, addReads);
+            List<Patch> resolvedPatches = new ArrayList<>();
+            for (Patch patch : patches) {
+                resolvedPatches.add(new Patch(patch.getBaseChecksum(), resolve(patch.getUri()), patch.getSize(),
+                                patch.getChecksum()));
+            }
+
+            return new FileMetadata(uri, path, os, arch, checksumAlgorithm, checksum, size, compression, compressedSize,
+                            classpath, modulepath, comment,
+                            ignoreBootConflict, signature, addExports, addOpens, addReads, resolvedPatches,
+                            blockIndex == null ? null : resolve(blockIndex),
+                            jarIndex == null ? null : resolve(jarIndex));
+        }
+
+        private URI resolve(URI relative) {
+            if (!relative.isAbsolute() && relative.getPath() != null && relative.getPath().startsWith("/")) {
+                relative = URI.create("/").relativize(relative);
+            }
+            if (baseUri != null) {
+                relative = baseUri.resolve(relative);
+            }
+
+            return relative;
         }
     }
 }
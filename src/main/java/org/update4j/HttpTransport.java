@@ -0,0 +1,395 @@
+/*
+ * Copyright 2020 Mordechai Meisels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.update4j;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.Authenticator;
+import java.net.ProxySelector;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import javax.net.ssl.SSLContext;
+
+import org.update4j.service.UpdateHandler;
+
+/**
+ * A download transport on top of {@code java.net.http.HttpClient}, which keeps connections
+ * open between files and multiplexes concurrent requests to the same host over
+ * a single HTTP/2 connection, where the server supports it. Servers that only
+ * speak HTTP/1.1 still benefit from connection reuse.
+ *
+ * <p>
+ * When passed to {@link UpdateOptions#httpTransport(HttpTransport)}, it replaces
+ * the {@code URLConnection} used by the default stream methods of
+ * {@link UpdateHandler}, for files, ranges, patches and indexes alike. If the
+ * handler overrides any of its {@code open*Stream} methods or
+ * {@link UpdateHandler#openDownloadSource(org.update4j.FileMetadata, long)},
+ * the handler is used as is and the transport is ignored.
+ *
+ * <p>
+ * URIs other than {@code http} and {@code https} (e.g. {@code file}) are opened
+ * with {@link java.net.URL#openStream()}.
+ *
+ * <p>
+ * Create a single instance and reuse it for all updates, so its connections
+ * are reused too. This class is thread-safe.
+ *
+ * <p>
+ * The {@code java.net.http} module is an optional dependency of update4j. If
+ * update4j is run as a named module, that module must be resolved before
+ * creating a transport, e.g. with {@code --add-modules java.net.http}.
+ *
+ * <pre>
+ * HttpTransport transport = HttpTransport.create();
+ * config.update(UpdateOptions.archive(zip).concurrentDownloads(8).httpTransport(transport));
+ * </pre>
+ *
+ * @author Mordechai Meisels
+ *
+ */
+public class HttpTransport {
+
+    private static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(10);
+
+    private static final ScheduledThreadPoolExecutor WATCHDOG = newWatchdog();
+
+    private final HttpClient client;
+    private final ProxySelector proxy;
+    private final Authenticator authenticator;
+    private final SSLContext sslContext;
+    private final Duration timeout;
+
+    private HttpTransport(ProxySelector proxy, Authenticator authenticator, SSLContext sslContext,
+                    Duration timeout) {
+        this(newClient(proxy, authenticator, sslContext), proxy, authenticator, sslContext, timeout);
+    }
+
+    private HttpTransport(HttpClient client, ProxySelector proxy, Authenticator authenticator,
+                    SSLContext sslContext, Duration timeout) {
+        this.client = client;
+        this.proxy = proxy;
+        this.authenticator = authenticator;
+        this.sslContext = sslContext;
+        this.timeout = Objects.requireNonNull(timeout);
+    }
+
+    /**
+     * Creates a transport preferring HTTP/2, following redirects (except from
+     * {@code https} to {@code http}) with a connect, response and read timeout of
+     * 10 seconds, as the default stream methods of {@link UpdateHandler}.
+     *
+     * @return A new transport.
+     */
+    public static HttpTransport create() {
+        return new HttpTransport(null, null, null, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Returns a transport with the same settings that connects through the
+     * given proxy selector. Connections are not shared with this transport.
+     *
+     * @param proxy
+     *            The proxy selector, or {@code null} for the system default.
+     * @return A new transport.
+     */
+    public HttpTransport withProxy(ProxySelector proxy) {
+        return new HttpTransport(proxy, authenticator, sslContext, timeout);
+    }
+
+    /**
+     * Returns a transport with the same settings that answers authentication
+     * challenges with the given authenticator. Connections are not shared with
+     * this transport.
+     *
+     * @param authenticator
+     *            The authenticator, or {@code null} for none.
+     * @return A new transport.
+     */
+    public HttpTransport withAuthenticator(Authenticator authenticator) {
+        return new HttpTransport(proxy, authenticator, sslContext, timeout);
+    }
+
+    /**
+     * Returns a transport with the same settings that opens {@code https}
+     * connections with the given SSL context. Connections are not shared with
+     * this transport.
+     *
+     * @param sslContext
+     *            The SSL context, or {@code null} for the default one.
+     * @return A new transport.
+     */
+    public HttpTransport withSslContext(SSLContext sslContext) {
+        return new HttpTransport(proxy, authenticator, sslContext, timeout);
+    }
+
+    /**
+     * Returns a transport on the same client, which fails a request if the
+     * response headers did not arrive within the given timeout, and a read of the
+     * response body if no data arrived for that long. A stalled server thus fails
+     * with an {@code IOException}, and the file is downloaded from a mirror, if
+     * any.
+     *
+     * @param timeout
+     *            The response and read timeout.
+     * @return A new transport.
+     */
+    public HttpTransport withTimeout(Duration timeout) {
+        return new HttpTransport(client, proxy, authenticator, sslContext, timeout);
+    }
+
+    public ProxySelector getProxy() {
+        return proxy;
+    }
+
+    public Authenticator getAuthenticator() {
+        return authenticator;
+    }
+
+    public SSLContext getSslContext() {
+        return sslContext;
+    }
+
+    public Duration getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Opens the resource at the given URI, asking for {@code gzip} content
+     * encoding and decoding it. Used for configurations; update files are
+     * requested as is and only decompressed if their
+     * {@link org.update4j.FileMetadata#getCompression() compression} says so.
+     *
+     * @param uri
+     *            The URI to open.
+     * @return The newly opened input stream, unread.
+     * @throws IOException
+     *             If the request failed or the server returned an error status.
+     */
+    public InputStream open(URI uri) throws IOException {
+        return open(uri, 0, -1, true);
+    }
+
+    /*
+     * Opens the resource, positioned at offset. A negative length reads to the end,
+     * in which case a server ignoring the range is tolerated by skipping. With a
+     * length, the server must honor the range (only length bytes are read, so
+     * skipping the whole file for each range would defeat the purpose). Content
+     * encoding is only requested for whole resources.
+     */
+    InputStream open(URI uri, long offset, long length, boolean decode) throws IOException {
+        String scheme = uri.getScheme();
+        if (!"http".equalsIgnoreCase(scheme) && !"https".equalsIgnoreCase(scheme))
+            return skip(uri.toURL().openStream(), offset);
+
+        HttpRequest.Builder request = HttpRequest.newBuilder(uri)
+                        .timeout(timeout)
+                        // Some downloads may fail with HTTP/403, this may solve it
+                        .header("User-Agent", "Mozilla/5.0");
+
+        boolean ranged = offset > 0 || length >= 0;
+        if (ranged)
+            request.header("Range", "bytes=" + offset + "-" + (length < 0 ? "" : offset + length - 1));
+        else if (decode)
+            request.header("Accept-Encoding", "gzip");
+
+        HttpResponse<InputStream> response;
+        try {
+            response = client.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while connecting to '" + uri + "'");
+        }
+
+        InputStream in = new IdleTimeoutInputStream(response.body(), timeout);
+        int status = response.statusCode();
+
+        if (status == 206 && ranged) {
+            String range = response.headers().firstValue("Content-Range").orElse(null);
+            if (range == null || !range.startsWith("bytes " + offset + "-")) {
+                in.close();
+                throw new IOException("Unexpected Content-Range for '" + uri + "': " + range);
+            }
+
+            return in;
+        }
+
+        if (status != 200) {
+            in.close();
+            throw new IOException("Server returned HTTP " + status + " for '" + uri + "'");
+        }
+
+        if (ranged) {
+            if (length >= 0) {
+                in.close();
+                throw new IOException("Server does not support range requests for '" + uri + "'");
+            }
+
+            // server ignored the range
+            return skip(in, offset);
+        }
+
+        String encoding = response.headers().firstValue("Content-Encoding").orElse(null);
+        if (decode && "gzip".equalsIgnoreCase(encoding))
+            return new GZIPInputStream(in, 1024 * 8);
+
+        return in;
+    }
+
+    private static HttpClient newClient(ProxySelector proxy, Authenticator authenticator, SSLContext sslContext) {
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                        .version(HttpClient.Version.HTTP_2)
+                        .followRedirects(HttpClient.Redirect.NORMAL)
+                        .connectTimeout(DEFAULT_TIMEOUT);
+
+        if (proxy != null)
+            builder.proxy(proxy);
+        if (authenticator != null)
+            builder.authenticator(authenticator);
+        if (sslContext != null)
+            builder.sslContext(sslContext);
+
+        return builder.build();
+    }
+
+    private static ScheduledThreadPoolExecutor newWatchdog() {
+        ScheduledThreadPoolExecutor watchdog = new ScheduledThreadPoolExecutor(1,
+                        ConfigImpl.daemonThreads("update4j-http-watchdog"));
+        watchdog.setRemoveOnCancelPolicy(true);
+
+        return watchdog;
+    }
+
+    /*
+     * The body stream of HttpClient has no read timeout, so a server stalling in the middle
+     * of a body would block the read forever. The watchdog closes the stream once a read
+     * received nothing for the timeout, and the read then fails.
+     */
+    private static class IdleTimeoutInputStream extends FilterInputStream {
+
+        private final long timeout;
+        private final ScheduledFuture<?> check;
+
+        private volatile long lastData = System.nanoTime();
+        private volatile boolean reading;
+        private volatile boolean timedOut;
+
+        IdleTimeoutInputStream(InputStream in, Duration timeout) {
+            super(in);
+            this.timeout = timeout.toNanos();
+
+            long period = Math.max(this.timeout / 4, TimeUnit.MILLISECONDS.toNanos(10));
+            this.check = WATCHDOG.scheduleAtFixedRate(this::check, period, period, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int read() throws IOException {
+            return (int) guard(super::read);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return (int) guard(() -> super.read(b, off, len));
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            return guard(() -> super.skip(n));
+        }
+
+        @Override
+        public void close() throws IOException {
+            check.cancel(false);
+            super.close();
+        }
+
+        private long guard(Read read) throws IOException {
+            lastData = System.nanoTime();
+            reading = true;
+
+            long result;
+            try {
+                result = read.run();
+            } catch (IOException e) {
+                if (timedOut)
+                    throw timeout();
+
+                throw e;
+            } finally {
+                reading = false;
+            }
+
+            // a closed stream may just look ended
+            if (timedOut)
+                throw timeout();
+
+            return result;
+        }
+
+        private void check() {
+            if (!reading || System.nanoTime() - lastData < timeout)
+                return;
+
+            timedOut = true;
+            try {
+                close();
+            } catch (IOException e) {
+                // the pending read fails anyway
+            }
+        }
+
+        private SocketTimeoutException timeout() {
+            return new SocketTimeoutException(
+                            "No data received for " + TimeUnit.NANOSECONDS.toMillis(timeout) + " ms");
+        }
+
+        private interface Read {
+            long run() throws IOException;
+        }
+    }
+
+    private static InputStream skip(InputStream in, long n) throws IOException {
+        try {
+            while (n > 0) {
+                long skipped = in.skip(n);
+                if (skipped <= 0) {
+                    if (in.read() < 0)
+                        throw new EOFException("Stream ended before offset");
+                    skipped = 1;
+                }
+
+                n -= skipped;
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+
+        return in;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2020 Mordechai Meisels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.update4j;
+
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.System.Logger.Level.INFO;
+import static java.lang.System.Logger.Level.WARNING;
+
+/*
+ * The base URI of a configuration and its mirrors, ordered by preference.
+ *
+ * Each origin is probed by opening the same file from all of them at once and reading up to
+ * PROBE_BYTES, measuring the time to the first byte and the throughput after it. Origins are then
+ * ordered by the estimated time to download an average file, which favors low latency for small
+ * files and throughput for large ones. Origins that fail or do not respond within the probe timeout
+ * go last, in declared order.
+ *
+ * An origin that fails during the update is skipped for the rest of it. Once all failed, the base
+ * URI is used again, so the final error comes from it.
+ */
+class Mirrors {
+
+    private static final System.Logger logger = System.getLogger(Mirrors.class.getName());
+
+    private static final int PROBE_BYTES = 64 * 1024;
+    private static final long PROBE_TIMEOUT_MILLIS = 10_000;
+
+    private final URI base;
+    private volatile List<URI> ranked;
+    private final Set<URI> failed = ConcurrentHashMap.newKeySet();
+
+    private Mirrors(URI base, List<URI> mirrors) {
+        this.base = base;
+
+        List<URI> origins = new ArrayList<>();
+        origins.add(base);
+        origins.addAll(mirrors);
+        this.ranked = origins;
+    }
+
+    /*
+     * Returns null if the configuration has no mirrors.
+     */
+    static Mirrors of(Configuration config) {
+        if (config.getBaseUri() == null || config.getMirrors().isEmpty())
+            return null;
+
+        return new Mirrors(config.getBaseUri(), config.getMirrors());
+    }
+
+    /*
+     * Whether the file is downloaded from the base URI, and may therefore come from a mirror.
+     */
+    boolean isMirrored(FileMetadata file) {
+        return file.getUri() != null && !base.relativize(file.getUri()).isAbsolute();
+    }
+
+    /*
+     * The preferred origin that did not fail yet.
+     */
+    URI current() {
+        for (URI origin : ranked) {
+            if (!failed.contains(origin))
+                return origin;
+        }
+
+        return base;
+    }
+
+    FileMetadata locate(FileMetadata file, URI origin) {
+        return origin.equals(base) ? file : file.relocate(base, origin);
+    }
+
+    /*
+     * Marks the origin as failed. Returns whether another origin is left to try.
+     */
+    boolean fail(URI origin, FileMetadata file, Throwable cause) {
+        if (!failed.add(origin))
+            return ranked.stream().anyMatch(o -> !failed.contains(o));
+
+        boolean left = ranked.stream().anyMatch(o -> !failed.contains(o));
+        logger.log(WARNING, "Mirror '" + origin + "' failed to serve '" + file.getPath().getFileName() + "'"
+                        + (left ? "; failing over to '" + current() + "'." : "."), cause);
+
+        return left;
+    }
+
+    /*
+     * Reorders the origins by probing each with the sample file. The average file size
+     * weighs latency against throughput.
+     */
+    void rank(FileMetadata sample, long averageSize, Prober prober) {
+        Map<URI, Double> estimates = new ConcurrentHashMap<>();
+        List<URI> origins = ranked;
+
+        ExecutorService pool = Executors.newFixedThreadPool(origins.size(), ConfigImpl.daemonThreads("update4j-probe"));
+        try {
+            List<Future<?>> probes = new ArrayList<>();
+            for (URI origin : origins) {
+                probes.add(pool.submit(() -> {
+                    try {
+                        estimates.put(origin, probe(prober, locate(sample, origin), averageSize));
+                    } catch (Throwable t) {
+                        logger.log(INFO, "Failed to probe mirror '" + origin + "'.", t);
+                    }
+                }));
+            }
+
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PROBE_TIMEOUT_MILLIS);
+            for (Future<?> probe : probes) {
+                try {
+                    probe.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (Exception e) {
+                    // too slow, ranked last
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        List<URI> sorted = new ArrayList<>(origins);
+        sorted.sort(Comparator.comparingDouble(o -> estimates.getOrDefault(o, Double.POSITIVE_INFINITY)));
+        ranked = sorted;
+
+        logger.log(INFO, "Downloading from mirror '" + current() + "'.");
+    }
+
+    private static double probe(Prober prober, FileMetadata file, long averageSize) throws Throwable {
+        long start = System.nanoTime();
+
+        try (InputStream in = prober.open(file)) {
+            byte[] buffer = new byte[1024 * 8];
+            int read = in.read(buffer);
+            long firstByte = System.nanoTime();
+            long latency = firstByte - start;
+
+            if (read < 0)
+                return latency;
+
+            long total = read;
+            while (total < PROBE_BYTES && (read = in.read(buffer)) > -1) {
+                total += read;
+                if (Thread.currentThread().isInterrupted())
+                    break;
+            }
+
+            long elapsed = Math.max(1, System.nanoTime() - firstByte);
+            return latency + (double) averageSize * elapsed / total;
+        }
+    }
+
+    @FunctionalInterface
+    interface Prober {
+        InputStream open(FileMetadata file) throws Throwable;
+    }
+}
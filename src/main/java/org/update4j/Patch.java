@@ -0,0 +1,103 @@
+/*
+ * Copyright 2020 Mordechai Meisels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.update4j;
+
+import java.net.URI;
+import java.util.Objects;
+
+/**
+ * This class is a simple POJO that represents a delta patch of a file in the
+ * configuration file. A patch turns an installed file with the base checksum
+ * into the file listed in the configuration, without downloading it in full.
+ * 
+ * <p>
+ * All checksums use the checksum algorithm of the file.
+ * 
+ * @author Mordechai Meisels
+ *
+ */
+public class Patch {
+
+    private final String baseChecksum;
+    private final URI uri;
+    private final long size;
+    private final String checksum;
+
+    /**
+     * Constructs a new {@link Patch}.
+     * 
+     * @param baseChecksum
+     *            The checksum of the installed file this patch applies to.
+     * @param uri
+     *            The location of the patch, absolute or relative to the base
+     *            uri.
+     * @param size
+     *            The size of the patch file.
+     * @param checksum
+     *            The checksum of the patch file.
+     * 
+     * @throws NullPointerException
+     *             If any of the checksums or the uri is {@code null}.
+     * @throws IllegalArgumentException
+     *             If the size is negative.
+     */
+    public Patch(String baseChecksum, URI uri, long size, String checksum) {
+        this.baseChecksum = Objects.requireNonNull(baseChecksum, "baseChecksum");
+        this.uri = Objects.requireNonNull(uri, "uri");
+        this.checksum = Objects.requireNonNull(checksum, "checksum");
+
+        if (size < 0)
+            throw new IllegalArgumentException("Negative patch size: " + size);
+
+        this.size = size;
+    }
+
+    /**
+     * Returns the checksum of the installed file this patch applies to.
+     * 
+     * @return The base checksum.
+     */
+    public String getBaseChecksum() {
+        return baseChecksum;
+    }
+
+    /**
+     * Returns the location of the patch.
+     * 
+     * @return The location of the patch.
+     */
+    public URI getUri() {
+        return uri;
+    }
+
+    /**
+     * Returns the size of the patch file.
+     * 
+     * @return The size of the patch file.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the checksum of the patch file.
+     * 
+     * @return The checksum of the patch file.
+     */
+    public String getChecksum() {
+        return checksum;
+    }
+}
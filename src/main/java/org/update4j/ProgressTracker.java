@@ -0,0 +1,80 @@
+/*
+ * Copyright 2020 Mordechai Meisels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.update4j;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * The download progress of a single update, counted with atomics on the I/O path and
+ * published to the handler only once the interval elapsed or the byte step was downloaded,
+ * whichever comes first. A zero interval or step is ignored; if both are zero, every read
+ * is published.
+ *
+ * Callers always publish when a file completes, so the handler sees each file reach 1
+ * regardless of the rate.
+ */
+class ProgressTracker {
+
+    final AtomicLong completed = new AtomicLong();
+    final AtomicLong size = new AtomicLong();
+    final AtomicInteger completedFiles = new AtomicInteger();
+    final AtomicInteger files = new AtomicInteger();
+
+    private final long interval;
+    private final long step;
+
+    private final AtomicLong lastTime = new AtomicLong(System.nanoTime());
+    private volatile long lastBytes;
+
+    ProgressTracker(Duration interval, long step) {
+        this.interval = interval.toNanos();
+        this.step = step;
+    }
+
+    // options are null for the deprecated update methods
+    static ProgressTracker of(UpdateOptions<?> options) {
+        if (options == null)
+            return new ProgressTracker(UpdateOptions.DEFAULT_PROGRESS_INTERVAL, 0);
+
+        return new ProgressTracker(options.getProgressInterval(), options.getProgressStep());
+    }
+
+    /*
+     * Whether progress should be published now. At most one of the threads racing
+     * for the same interval wins.
+     */
+    boolean due() {
+        if (interval == 0 && step == 0)
+            return true;
+
+        long now = System.nanoTime();
+        long last = lastTime.get();
+        long bytes = completed.get();
+
+        boolean due = (interval > 0 && now - last >= interval) || (step > 0 && Math.abs(bytes - lastBytes) >= step);
+        if (!due || !lastTime.compareAndSet(last, now))
+            return false;
+
+        lastBytes = bytes;
+        return true;
+    }
+
+    DownloadProgress snapshot() {
+        return new DownloadProgress(completed.get(), size.get(), completedFiles.get(), files.get());
+    }
+}
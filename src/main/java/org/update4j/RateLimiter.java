@@ -0,0 +1,215 @@
+/*
+ * Copyright 2020 Mordechai Meisels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.update4j;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket capping the total bandwidth of all downloads that share it,
+ * e.g. to update in the background without saturating the user's link.
+ *
+ * <p>
+ * The bucket holds up to one second worth of bytes, so short bursts are
+ * downloaded at full speed. Once it is empty, each read waits until enough
+ * tokens accumulated again. Concurrent downloads, ranges of a segmented
+ * download and patches, indexes and mirrors all draw from the same bucket.
+ *
+ * <p>
+ * The rate may be changed at any time, also while an update is running; reads
+ * already waiting pick up the new rate within a fraction of a second. A rate of
+ * {@code 0} means unlimited. This class is thread-safe.
+ *
+ * <pre>
+ * RateLimiter limiter = RateLimiter.create(512 * 1024);
+ * config.update(UpdateOptions.archive(zip).rateLimiter(limiter));
+ *
+ * // from another thread, once the user is idle
+ * limiter.setRate(0);
+ * </pre>
+ *
+ * @author Mordechai Meisels
+ *
+ */
+public class RateLimiter {
+
+    // waiting reads recheck the rate this often
+    private static final long MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private long rate;
+    private double tokens;
+    private long refilled;
+
+    private RateLimiter(long bytesPerSecond) {
+        setRate(bytesPerSecond);
+    }
+
+    /**
+     * Creates a limiter with the given rate, starting with a full bucket.
+     *
+     * @param bytesPerSecond
+     *            The maximum rate in bytes per second, or {@code 0} for
+     *            unlimited.
+     * @return A new limiter.
+     */
+    public static RateLimiter create(long bytesPerSecond) {
+        return new RateLimiter(bytesPerSecond);
+    }
+
+    /**
+     * Changes the rate, taking effect immediately.
+     *
+     * @param bytesPerSecond
+     *            The maximum rate in bytes per second, or {@code 0} for
+     *            unlimited.
+     */
+    public synchronized void setRate(long bytesPerSecond) {
+        if (bytesPerSecond < 0)
+            throw new IllegalArgumentException("Rate must not be negative: " + bytesPerSecond);
+
+        long now = System.nanoTime();
+        if (rate > 0)
+            refill(now);
+
+        // a full bucket when starting or lifting a limit, any debt is forgiven
+        if (rate == 0 || bytesPerSecond == 0)
+            tokens = bytesPerSecond;
+
+        rate = bytesPerSecond;
+        tokens = Math.min(tokens, rate);
+        refilled = now;
+    }
+
+    /**
+     * Returns the maximum rate in bytes per second, or {@code 0} if unlimited.
+     *
+     * @return The rate.
+     */
+    public synchronized long getRate() {
+        return rate;
+    }
+
+    /**
+     * Takes the given number of bytes from the bucket, waiting until the bucket
+     * is no longer in debt. A single call may take more than the bucket holds.
+     *
+     * @param bytes
+     *            The number of bytes just read.
+     * @throws InterruptedIOException
+     *             If the thread was interrupted while waiting.
+     */
+    public void acquire(int bytes) throws InterruptedIOException {
+        long wait;
+        synchronized (this) {
+            if (rate == 0)
+                return;
+
+            refill(System.nanoTime());
+            tokens -= bytes;
+            wait = waitNanos();
+        }
+
+        while (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(Math.min(wait, MAX_WAIT_NANOS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for download bandwidth");
+            }
+
+            synchronized (this) {
+                if (rate == 0)
+                    return;
+
+                refill(System.nanoTime());
+                wait = waitNanos();
+            }
+        }
+    }
+
+    /*
+     * Wraps the stream so every read draws from the bucket.
+     */
+    InputStream limit(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0)
+                    acquire(1);
+
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, len);
+                if (read > 0)
+                    acquire(read);
+
+                return read;
+            }
+        };
+    }
+
+    /*
+     * Wraps the channel so every read draws from the bucket.
+     */
+    ReadableByteChannel limit(ReadableByteChannel channel) {
+        return new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                int read = channel.read(dst);
+                if (read > 0)
+                    acquire(read);
+
+                return read;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    static InputStream limit(RateLimiter limiter, InputStream in) {
+        return limiter == null ? in : limiter.limit(in);
+    }
+
+    static ReadableByteChannel limit(RateLimiter limiter, ReadableByteChannel channel) {
+        return limiter == null ? channel : limiter.limit(channel);
+    }
+
+    private void refill(long now) {
+        tokens = Math.min(rate, tokens + (double) (now - refilled) * rate / 1e9);
+        refilled = now;
+    }
+
+    private long waitNanos() {
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens * 1e9 / rate);
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2020 Mordechai Meisels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.update4j;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SignatureException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.lang.System.Logger.Level.INFO;
+
+/*
+ * Downloads a single file as concurrent byte ranges, written with positional writes into
+ * the preallocated output. The first range is opened before any other, so a source that
+ * cannot serve ranges is detected before anything was written, and the caller falls back
+ * to a single stream.
+ *
+ * Ranges complete out of order, so the checksum is computed by reading the output once
+ * all ranges are written.
+ */
+class SegmentedDownload {
+
+    private static final System.Logger logger = System.getLogger(SegmentedDownload.class.getName());
+
+    @FunctionalInterface
+    interface RangeOpener {
+        InputStream open(long offset, long length) throws Throwable;
+    }
+
+    /*
+     * Called from the segment threads with the number of bytes just written. Throwing stops
+     * all segments.
+     */
+    @FunctionalInterface
+    interface Progress {
+        void update(int read) throws Throwable;
+    }
+
+    private final Path output;
+    private final long size;
+    private final int segments;
+    private final BufferPool buffers;
+
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    SegmentedDownload(Path output, long size, int segments, BufferPool buffers) {
+        this.output = output;
+        this.size = size;
+        this.segments = (int) Math.max(1, Math.min(segments, size));
+        this.buffers = buffers;
+    }
+
+    /*
+     * Returns false without writing anything if the first range could not be opened.
+     * Otherwise throws the first failure of any segment, after all of them stopped.
+     */
+    boolean download(String name, RangeOpener opener, Progress progress) throws Throwable {
+        long length = (size + segments - 1) / segments;
+
+        InputStream first;
+        try {
+            first = opener.open(0, Math.min(length, size));
+        } catch (CancellationException e) {
+            throw e;
+        } catch (Throwable t) {
+            logger.log(INFO, "Cannot download '" + name + "' in segments; downloading as a single stream.", t);
+            return false;
+        }
+
+        try (InputStream in = first;
+                        FileChannel channel = FileChannel.open(output, StandardOpenOption.CREATE,
+                                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            // preallocate, so positional writes never extend the file concurrently
+            channel.write(ByteBuffer.allocate(1), size - 1);
+
+            ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, segments - 1),
+                            ConfigImpl.daemonThreads("update4j-segment"));
+
+            try {
+                for (int i = 1; i < segments; i++) {
+                    long offset = i * length;
+                    long segmentLength = Math.min(length, size - offset);
+                    if (segmentLength <= 0)
+                        break;
+
+                    pool.execute(() -> {
+                        try (InputStream segment = opener.open(offset, segmentLength)) {
+                            write(name, segment, channel, offset, segmentLength, progress);
+                        } catch (Throwable t) {
+                            failure.compareAndSet(null, t);
+                        }
+                    });
+                }
+
+                try {
+                    write(name, in, channel, 0, Math.min(length, size), progress);
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            } finally {
+                // let the others finish before the channel closes, so no progress
+                // is reported after this returns
+                pool.shutdown();
+
+                boolean interrupted = false;
+                while (!pool.isTerminated()) {
+                    try {
+                        pool.awaitTermination(1, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            }
+        }
+
+        if (failure.get() != null)
+            throw failure.get();
+
+        return true;
+    }
+
+    /*
+     * Stops quietly once another segment failed.
+     */
+    private void write(String name, InputStream in, FileChannel channel, long offset, long length, Progress progress)
+                    throws Throwable {
+        ByteBuffer buffer = buffers.acquireHeap();
+        long position = offset;
+        long remaining = length;
+
+        try {
+            int read;
+            while (remaining > 0 && (read = in.read(buffer.array(), 0, (int) Math.min(buffer.capacity(), remaining))) > -1) {
+                if (failure.get() != null)
+                    return;
+
+                buffer.limit(read);
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                buffer.clear();
+
+                remaining -= read;
+                progress.update(read);
+            }
+        } finally {
+            buffers.release(buffer);
+        }
+
+        if (remaining > 0)
+            throw new EOFException("Segment of '" + name + "' ended early");
+    }
+
+    /*
+     * Computes the checksum and signature of the completed output.
+     */
+    void digest(FileDigest digest) throws IOException, SignatureException {
+        ByteBuffer buffer = buffers.acquireHeap();
+        try (FileChannel in = FileChannel.open(output)) {
+            int read;
+            while ((read = in.read(buffer)) > -1) {
+                digest.update(buffer.array(), 0, read);
+                buffer.clear();
+            }
+        } finally {
+            buffers.release(buffer);
+        }
+    }
+}
@@ -39,9 +39,10 @@ public class UpdateContext {
     private Path archive;
 
     private PublicKey key;
+    private ProgressTracker progress;
 
     UpdateContext(Configuration config, List<FileMetadata> requiresUpdate, List<FileMetadata> updated, Path tempDir,
-                    PublicKey key, Path archive) {
+                    PublicKey key, Path archive, ProgressTracker progress) {
         configuration = Objects.requireNonNull(config);
 
         this.requiresUpdate = Collections.unmodifiableList(requiresUpdate);
@@ -49,6 +50,7 @@ public class UpdateContext {
         this.tempDir = tempDir;
         this.key = key;
         this.archive = archive;
+        this.progress = progress;
     }
 
     /**
@@ -75,8 +77,10 @@ public class UpdateContext {
     /**
      * Returns an unmodifiable list of files that were successfully downloaded. This
      * list is updated live together with calls to
-     * {@link UpdateHandler#doneDownloadFile(FileMetadata, Path)}. The list gets
-     * updated just before the aforementioned method is called.
+     * {@link UpdateHandler#doneDownloadFile(FileMetadata, Path)}, or
+     * {@link UpdateHandler#reusedFile(FileMetadata)} for files reused from a
+     * resumed archive. The list gets updated just before the aforementioned
+     * methods are called.
      * 
      * <p>
      * The files in this list are not actually in their final location expressed in
@@ -124,11 +128,28 @@ public class UpdateContext {
     }
     
     /**
-     * Returns the {@link Path} passed into {@link UpdateOptions#archive(Path)}.
+     * Returns the {@link Path} passed into {@link UpdateOptions#archive(Path)},
+     * or the directory passed into {@link UpdateOptions#staged(Path)}.
      * 
      * @return The archive path
      */
     public Path getArchiveLocation() {
         return archive;
     }
+
+    /**
+     * Returns a snapshot of the download progress. It may be called from any
+     * thread at any time; before downloads start, nothing was downloaded yet.
+     * 
+     * <p>
+     * Unlike {@link UpdateHandler#updateDownloadProgress(float)}, which is only
+     * called at the rate set with
+     * {@link UpdateOptions#progressInterval(java.time.Duration)}, a snapshot
+     * always reflects every byte read so far.
+     * 
+     * @return The current download progress.
+     */
+    public DownloadProgress getDownloadProgress() {
+        return progress.snapshot();
+    }
 }
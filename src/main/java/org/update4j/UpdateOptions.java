@@ -2,18 +2,43 @@ package org.update4j;
 
 import java.nio.file.Path;
 import java.security.PublicKey;
+import java.time.Duration;
 
 import org.update4j.inject.Injectable;
 import org.update4j.service.UpdateHandler;
 
 public class UpdateOptions<T extends UpdateOptions<T>> {
 
+    /**
+     * The default minimum size of files downloaded in segments, 16 MiB.
+     */
+    public static final long DEFAULT_SEGMENT_THRESHOLD = 16 * 1024 * 1024;
+
+    /**
+     * The default interval between download progress callbacks, 100
+     * milliseconds.
+     */
+    public static final Duration DEFAULT_PROGRESS_INTERVAL = Duration.ofMillis(100);
+
     private UpdateOptions() {
     }
 
     private PublicKey publicKey;
     private UpdateHandler updateHandler;
     private Injectable injectable;
+    private int concurrentDownloads = 1;
+    private int concurrentDownloadsPerHost;
+    private int concurrentChecks = 1;
+    private ChecksumCache checksumCache;
+    private boolean resumeDownloads;
+    private HttpTransport httpTransport;
+    private int downloadSegments = 1;
+    private long segmentThreshold = DEFAULT_SEGMENT_THRESHOLD;
+    private boolean pipelineDownloads;
+    private RateLimiter rateLimiter;
+    private Duration progressInterval = DEFAULT_PROGRESS_INTERVAL;
+    private long progressStep;
+    private BufferPool bufferPool;
 
     @SuppressWarnings("unchecked")
     public T publicKey(PublicKey publicKey) {
@@ -32,7 +57,302 @@ public class UpdateOptions<T extends UpdateOptions<T>> {
         this.injectable = injectable;
         return (T) this;
     }
+
+    /**
+     * Sets the maximum number of files downloaded at the same time. The default is
+     * {@code 1}, i.e. files are downloaded one after another on the calling thread.
+     * 
+     * <p>
+     * When greater than {@code 1}, downloads run on a bounded pool of worker
+     * threads. {@link UpdateHandler#openDownloadStream(FileMetadata)} may then be
+     * called concurrently, but all other handler callbacks are still invoked one
+     * at a time.
+     * 
+     * @param threads
+     *            The maximum number of concurrent downloads, at least {@code 1}.
+     * @return This instance for chaining.
+     */
+    @SuppressWarnings("unchecked")
+    public T concurrentDownloads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Concurrent downloads must be at least 1: " + threads);
+
+        this.concurrentDownloads = threads;
+        return (T) this;
+    }
+
+    /**
+     * Sets the maximum number of files downloaded at the same time from a single
+     * host. A value of {@code 0} (the default) means no per-host limit other than
+     * {@link #concurrentDownloads(int)}.
+     * 
+     * @param threads
+     *            The maximum number of concurrent downloads per host, or {@code 0}
+     *            for no limit.
+     * @return This instance for chaining.
+     */
+    @SuppressWarnings("unchecked")
+    public T concurrentDownloadsPerHost(int threads) {
+        if (threads < 0)
+            throw new IllegalArgumentException("Concurrent downloads per host must not be negative: " + threads);
+
+        this.concurrentDownloadsPerHost = threads;
+        return (T) this;
+    }
+
+    /**
+     * Sets the number of threads used to hash local files while checking which
+     * files require an update. The default is {@code 1}, i.e. files are checked one
+     * after another on the calling thread.
+     * 
+     * <p>
+     * When greater than {@code 1},
+     * {@link UpdateHandler#shouldCheckForUpdate(FileMetadata)} is called for all
+     * files before any check starts, so a file's check may already be underway by
+     * the time {@link UpdateHandler#startCheckUpdateFile(FileMetadata)} is called.
+     * All check callbacks are still invoked one at a time, in config order, on the
+     * calling thread.
+     * 
+     * @param threads
+     *            The number of threads, at least {@code 1}.
+     * @return This instance for chaining.
+     */
+    @SuppressWarnings("unchecked")
+    public T concurrentChecks(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Concurrent checks must be at least 1: " + threads);
+
+        this.concurrentChecks = threads;
+        return (T) this;
+    }
+
+    /**
+     * Sets a cache of installed file checksums, so files that did not change
+     * since they were last hashed are not read again while checking for updates.
+     * The cache is saved once the check completes.
+     * 
+     * @param cache
+     *            The cache to use, or {@code null} to always read every file.
+     * @return This instance for chaining.
+     */
+    @SuppressWarnings("unchecked")
+    public T checksumCache(ChecksumCache cache) {
+        this.checksumCache = cache;
+        return (T) this;
+    }
+
+    /**
+     * Keeps partially downloaded files if the update fails, so the next update
+     * resumes them instead of starting over. Resumed files are requested from
+     * their byte offset via
+     * {@link UpdateHandler#openDownloadStream(FileMetadata, long)}. The default is
+     * {@code false}.
+     * 
+     * <p>
+     * Partial files are kept in a directory next to the archive, named after the
+     * archive with a {@code .parts} suffix, and deleted once an update
+     * succeeds. A partial file is only resumed by a file with the same checksum
+     * and path, so a changed remote file is never mixed with stale bytes.
+     * 
+     * <p>
+     * In archive-based updates, the incomplete archive of a failed update is
+     * kept in the same directory, rather than deleted. The next update
+     * reuses each file already validated into it, if still required with the
+     * same checksum, and only downloads the rest, even if the configuration has
+     * changed in between.
+     * 
+     * @param resume
+     *            Whether to keep and resume partial downloads.
+     * @return This instance for chaining.
+     */
+    @SuppressWarnings("unchecked")
+    public T resumeDownloads(boolean resume) {
+        this.resumeDownloads = resume;
+        return (T) this;
+    }
     
+    /**
+     * Downloads files with the given {@link HttpTransport}, which reuses
+     * connections across files and multiplexes concurrent downloads over HTTP/2,
+     * instead of opening a new {@code URLConnection} for each file. The default
+     * is {@code null}.
+     * 
+     * <p>
+     * The transport is only used if the update handler does not override any of
+     * its {@code open*Stream} methods; a handler that opens streams itself is
+     * always honored.
+     * 
+     * @param transport
+     *            The transport to use, or {@code null} for the handler's
+     *            default.
+     * @return This instance for chaining.
+     */
+    @SuppressWarnings("unchecked")
+    public T httpTransport(HttpTransport transport) {
+        this.httpTransport = transport;
+        return (T) this;
+    }
+    
+    /**
+     * Downloads each file of at least {@link #DEFAULT_SEGMENT_THRESHOLD} bytes as
+     * the given number of concurrent byte ranges. See
+     * {@link #segmentedDownloads(int, long)}.
+     * 
+     * @param segments
+     *            The number of ranges per file, at least {@code 1}.
+     * @return This instance for chaining.
+     */
+    public T segmentedDownloads(int segments) {
+        return segmentedDownloads(segments, DEFAULT_SEGMENT_THRESHOLD);
+    }
+
+    /**
+     * Downloads each file of at least {@code minimumSize} bytes as the given
+     * number of concurrent byte ranges, written into the preallocated file. This
+     * helps large files on links where a single stream cannot use the available
+     * bandwidth. The checksum of the whole file is verified once all ranges
+     * completed. The default is {@code 1}, i.e. files are downloaded as a single
+     * stream.
+     * 
+     * <p>
+     * Ranges are requested via
+     * {@link UpdateHandler#openDownloadStream(FileMetadata, long, long)}, which
+     * may then be called concurrently for the same file. If the first range
+     * cannot be opened (e.g. the server does not support range requests) the file
+     * is downloaded as a single stream. Precompressed files and files with a
+     * partial download to resume are never segmented.
+     * 
+     * @param segments
+     *            The number of ranges per file, at least {@code 1}.
+     * @param minimumSize
+     *            The minimum size of files downloaded in segments, at least
+     *            {@code 1}.
+     * @return This instance for chaining.
+     */
+    @SuppressWarnings("unchecked")
+    public T segmentedDownloads(int segments, long minimumSize) {
+        if (segments < 1)
+            throw new IllegalArgumentException("Segments must be at least 1: " + segments);
+        if (minimumSize < 1)
+            throw new IllegalArgumentException("Minimum size must be at least 1: " + minimumSize);
+
+        this.downloadSegments = segments;
+        this.segmentThreshold = minimumSize;
+        return (T) this;
+    }
+    
+    /**
+     * Starts downloading each file as soon as the update check finds that it
+     * requires an update, while the remaining files are still being checked, so
+     * hashing local files overlaps with downloading. The default is
+     * {@code false}, i.e. all files are checked before the first download starts.
+     * Only honored by archive updates.
+     * 
+     * <p>
+     * Downloads then always run on worker threads, at most
+     * {@link #concurrentDownloads(int)} at a time. Check and download callbacks of
+     * the handler may interleave:
+     * {@link UpdateHandler#startDownloads()} is called before the first file is
+     * downloaded, which may precede {@link UpdateHandler#doneCheckUpdates()}.
+     * Callbacks are still invoked one at a time. The complete list of files
+     * requiring an update is available once {@code doneCheckUpdates()} is called;
+     * until then, download progress is relative to all files not yet found to be
+     * up to date.
+     * 
+     * @param pipeline
+     *            Whether to download while checking.
+     * @return This instance for chaining.
+     */
+    @SuppressWarnings("unchecked")
+    public T pipelineDownloads(boolean pipeline) {
+        this.pipelineDownloads = pipeline;
+        return (T) this;
+    }
+
+    /**
+     * Caps the total bandwidth of the update with the given limiter, shared by
+     * all concurrent downloads, ranges, patches and indexes. The limiter's rate
+     * may be changed while the update is running, e.g. to lift the limit once
+     * the user is idle. The default is {@code null}, i.e. unlimited.
+     * 
+     * <p>
+     * A single limiter may also be shared by several updates running at the same
+     * time, capping their combined bandwidth.
+     * 
+     * @param limiter
+     *            The limiter to draw from, or {@code null} for unlimited.
+     * @return This instance for chaining.
+     */
+    @SuppressWarnings("unchecked")
+    public T rateLimiter(RateLimiter limiter) {
+        this.rateLimiter = limiter;
+        return (T) this;
+    }
+
+    /**
+     * Sets the minimum time between calls to
+     * {@link UpdateHandler#updateDownloadFileProgress(FileMetadata, float)} and
+     * {@link UpdateHandler#updateDownloadProgress(float)}. Progress is counted on
+     * every read but only published to the handler once the interval elapsed, or
+     * once {@link #progressStep(long)} bytes were downloaded, whichever comes
+     * first. The default is {@link #DEFAULT_PROGRESS_INTERVAL}.
+     * 
+     * <p>
+     * Each file's progress is always published once it completed. If both the
+     * interval and the step are zero, progress is published after every read.
+     * Handlers may also poll {@link UpdateContext#getDownloadProgress()} at any
+     * time.
+     * 
+     * @param interval
+     *            The minimum time between progress callbacks, or zero to only
+     *            publish by the step.
+     * @return This instance for chaining.
+     */
+    @SuppressWarnings("unchecked")
+    public T progressInterval(Duration interval) {
+        if (interval.isNegative())
+            throw new IllegalArgumentException("Progress interval must not be negative: " + interval);
+
+        this.progressInterval = interval;
+        return (T) this;
+    }
+
+    /**
+     * Publishes download progress to the handler once the given number of bytes
+     * was downloaded since the last callback, even if the
+     * {@link #progressInterval(Duration)} did not elapse yet. The default is
+     * {@code 0}, i.e. progress is only published by the interval.
+     * 
+     * @param bytes
+     *            The number of bytes between progress callbacks, or zero to only
+     *            publish by the interval.
+     * @return This instance for chaining.
+     */
+    @SuppressWarnings("unchecked")
+    public T progressStep(long bytes) {
+        if (bytes < 0)
+            throw new IllegalArgumentException("Progress step must not be negative: " + bytes);
+
+        this.progressStep = bytes;
+        return (T) this;
+    }
+
+    /**
+     * Sets the pool of I/O buffers used while downloading, e.g. to use larger
+     * buffers on fast links. The default is {@code null}, i.e.
+     * {@link BufferPool#getDefault()}.
+     * 
+     * @param pool
+     *            The pool to take buffers from, or {@code null} for the default
+     *            pool.
+     * @return This instance for chaining.
+     */
+    @SuppressWarnings("unchecked")
+    public T bufferPool(BufferPool pool) {
+        this.bufferPool = pool;
+        return (T) this;
+    }
+
     public PublicKey getPublicKey() {
         return publicKey;
     }
@@ -45,13 +365,105 @@ public class UpdateOptions<T extends UpdateOptions<T>> {
         return injectable;
     }
 
+    public int getConcurrentDownloads() {
+        return concurrentDownloads;
+    }
+
+    public int getConcurrentDownloadsPerHost() {
+        return concurrentDownloadsPerHost;
+    }
+
+    public int getConcurrentChecks() {
+        return concurrentChecks;
+    }
+
+    public ChecksumCache getChecksumCache() {
+        return checksumCache;
+    }
+
+    public boolean isResumeDownloads() {
+        return resumeDownloads;
+    }
+
+    public HttpTransport getHttpTransport() {
+        return httpTransport;
+    }
+
+    public int getDownloadSegments() {
+        return downloadSegments;
+    }
+
+    public long getSegmentThreshold() {
+        return segmentThreshold;
+    }
+
+    public boolean isPipelineDownloads() {
+        return pipelineDownloads;
+    }
+
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    public Duration getProgressInterval() {
+        return progressInterval;
+    }
+
+    public long getProgressStep() {
+        return progressStep;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool == null ? BufferPool.getDefault() : bufferPool;
+    }
+
+    /*
+     * Whether the file is large enough to be downloaded in segments.
+     */
+    boolean isSegmented(FileMetadata file) {
+        return downloadSegments > 1 && file.getCompression() == null && file.getSize() >= segmentThreshold;
+    }
+
     public static ArchiveUpdateOptions archive(Path location) {
         return new ArchiveUpdateOptions(location);
     }
 
+    /**
+     * Returns options for an update staged into a directory instead of a zip
+     * archive. The directory has the layout of an archive, with the
+     * configuration under {@code reserved/} and the files under {@code files/},
+     * and is read and installed with {@link Archive#read(Path)} like an archive.
+     * 
+     * <p>
+     * Downloaded files are moved into the directory, and installing moves them
+     * out again, so if the directory, its {@link ArchiveUpdateOptions#getPartsLocation()
+     * parts location} and the installed files are on the same file system, no file
+     * is copied after being downloaded.
+     * 
+     * <p>
+     * Anything under {@code files/} and {@code reserved/} in the directory is
+     * deleted when the update starts.
+     * 
+     * @param directory
+     *            The staging directory.
+     * @return New options.
+     */
+    public static ArchiveUpdateOptions staged(Path directory) {
+        ArchiveUpdateOptions options = new ArchiveUpdateOptions(directory);
+        options.staged = true;
+
+        return options;
+    }
+
+    public static TempUpdateOptions temp(Path location) {
+        return new TempUpdateOptions(location);
+    }
+
     public static class ArchiveUpdateOptions extends UpdateOptions<ArchiveUpdateOptions> {
 
         private Path location;
+        private boolean staged;
+        private boolean streamToArchive;
 
         private ArchiveUpdateOptions(Path location) {
             this.location = location;
@@ -61,5 +473,83 @@ public class UpdateOptions<T extends UpdateOptions<T>> {
             return location;
         }
 
+        /**
+         * Returns whether the update is staged into a directory, as created by
+         * {@link UpdateOptions#staged(Path)}.
+         * 
+         * @return Whether the archive location is a directory.
+         */
+        public boolean isStaged() {
+            return staged;
+        }
+
+        /**
+         * Returns the directory where files are staged while being downloaded,
+         * before being appended to the archive. Partial downloads are kept there
+         * after a failed update when {@link #resumeDownloads(boolean)} is enabled.
+         * 
+         * @return The directory of partial downloads.
+         */
+        public Path getPartsLocation() {
+            return location.resolveSibling(location.getFileName() + ".parts");
+        }
+
+        /**
+         * Writes files straight into the zip archive while they are downloaded,
+         * instead of into a part file that is then copied into the archive, so
+         * every byte is written once. The default is {@code false}.
+         * 
+         * <p>
+         * Only applies when files are downloaded one at a time, in full, without
+         * {@link #resumeDownloads(boolean) resuming} or
+         * {@link #segmentedDownloads(int) segments}; other files are still
+         * staged, as are jars checked against the boot modules. A file found
+         * invalid is dropped from the archive. Staged updates ignore this option.
+         * 
+         * <p>
+         * A streamed file never exists on its own, so
+         * {@link UpdateHandler#validatingFile(FileMetadata, Path)} and
+         * {@link UpdateHandler#doneDownloadFile(FileMetadata, Path)} are passed a
+         * {@code null} path for it. Only enable this if the update handler does
+         * not read the downloaded files.
+         * 
+         * @param stream
+         *            Whether to stream downloads into the archive.
+         * @return This instance for chaining.
+         */
+        public ArchiveUpdateOptions streamToArchive(boolean stream) {
+            this.streamToArchive = stream;
+            return this;
+        }
+
+        public boolean isStreamToArchive() {
+            return streamToArchive;
+        }
+
+    }
+
+    /**
+     * Options for {@link Configuration#update(TempUpdateOptions)}, the legacy
+     * update mechanism that downloads files into a temporary directory until
+     * {@link Update#finalizeUpdate(Path)} is called.
+     * 
+     * <p>
+     * Only the public key, update handler, injectable, segmented downloads, rate
+     * limiter, progress rate and buffer pool are honored; files are downloaded
+     * one after another. The {@link Configuration#getMirrors() mirrors} of the
+     * configuration are not used, files are always downloaded from their own
+     * URI.
+     */
+    public static class TempUpdateOptions extends UpdateOptions<TempUpdateOptions> {
+
+        private Path location;
+
+        private TempUpdateOptions(Path location) {
+            this.location = location;
+        }
+
+        public Path getTempLocation() {
+            return location;
+        }
     }
 }
@@ -1,20 +1,37 @@
 package org.update4j;
 
+import java.net.URI;
+import java.util.Collections;
+import java.util.Map;
+
 import org.update4j.service.UpdateHandler;
 
 public class UpdateResult {
     
     private UpdateHandler handler;
     private Throwable exception;
+    private Map<FileMetadata, URI> mirrors;
     
-    UpdateResult(UpdateHandler handler, Throwable exception) {
+    UpdateResult(UpdateHandler handler, Throwable exception, Map<FileMetadata, URI> mirrors) {
         this.handler = handler;
         this.exception = exception;
+        this.mirrors = Collections.unmodifiableMap(mirrors);
     }
     
     public Throwable getException() {
         return exception;
     }
+
+    /**
+     * Returns the base URI of the mirror that served each downloaded file, when
+     * the configuration lists {@link Configuration#getMirrors() mirrors}. Files
+     * downloaded from an absolute URI outside the base URI are not listed.
+     * 
+     * @return The mirror of each downloaded file, empty if there are no mirrors.
+     */
+    public Map<FileMetadata, URI> getMirrors() {
+        return mirrors;
+    }
     
     @SuppressWarnings("unchecked")
     public <T> T result() {
@@ -0,0 +1,418 @@
+/*
+ * Copyright 2020 Mordechai Meisels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.update4j;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.update4j.util.FileUtils;
+
+/**
+ * Installs each version of the application into its own directory, and
+ * activates it by atomically switching a link to it.
+ * 
+ * <p>
+ * The layout under the root directory is:
+ * 
+ * <pre>
+ * versions/20260101T120000000Z/...
+ * versions/20260201T120000000Z/...
+ * current -&gt; versions/20260201T120000000Z
+ * </pre>
+ * 
+ * where each version is named after the timestamp of its configuration. A new
+ * version is assembled from the files of the archive, while every other file
+ * is hard-linked from the current version, or copied if links are not
+ * supported; it is then activated by replacing the {@code current} symbolic
+ * link with a single atomic rename. Since no installed file is ever replaced,
+ * the update can be installed while the current version is still running,
+ * and the previous version stays intact for {@link #rollback()}.
+ * 
+ * <p>
+ * The configuration's base path is expected to be the {@code current} link,
+ * e.g. {@code ${app.dir}/current}. Files outside the base path cannot be
+ * versioned, and fail the install.
+ * 
+ * <p>
+ * Where symbolic links cannot be created, as on Windows without the required
+ * privilege, the current version is instead written to the
+ * {@code current.version} pointer file, also replaced atomically. The base path
+ * should then be resolved with {@link #getCurrentDirectory()}, e.g. passed as a
+ * dynamic property when reading the configuration.
+ * 
+ * <p>
+ * Hard-linked files are shared by all versions linking them, so files must
+ * never be modified in place.
+ * 
+ * @author Mordechai Meisels
+ *
+ */
+public final class VersionedInstall {
+
+    private static final DateTimeFormatter VERSION_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmssSSS'Z'")
+                    .withZone(ZoneOffset.UTC);
+
+    private static final String VERSIONS_DIR = "versions";
+    private static final String CURRENT_LINK = "current";
+    private static final String CURRENT_POINTER = "current.version";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path root;
+    private final boolean pointerFile;
+
+    private VersionedInstall(Path root, boolean pointerFile) {
+        this.root = Objects.requireNonNull(root);
+        this.pointerFile = pointerFile;
+    }
+
+    /**
+     * Returns the versioned install rooted at the given directory, activating
+     * versions with a symbolic link where supported.
+     * 
+     * @param root
+     *            The root directory.
+     * @return The versioned install.
+     */
+    public static VersionedInstall at(Path root) {
+        return new VersionedInstall(root, false);
+    }
+
+    /**
+     * Returns the versioned install rooted at the given directory.
+     * 
+     * @param root
+     *            The root directory.
+     * @param pointerFile
+     *            Whether to always activate versions with the pointer file
+     *            instead of a symbolic link.
+     * @return The versioned install.
+     */
+    public static VersionedInstall at(Path root, boolean pointerFile) {
+        return new VersionedInstall(root, pointerFile);
+    }
+
+    /**
+     * Returns the name of the version of the given configuration, derived from
+     * its timestamp, or from the current time if it has none. Names sort in
+     * chronological order.
+     * 
+     * @param config
+     *            The configuration.
+     * @return The version name.
+     */
+    public static String versionOf(Configuration config) {
+        Instant timestamp = config.getTimestamp();
+        return VERSION_FORMAT.format(timestamp == null ? Instant.now() : timestamp);
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * Returns the directory of the given version.
+     * 
+     * @param version
+     *            The version name.
+     * @return The version's directory.
+     */
+    public Path resolve(String version) {
+        return root.resolve(VERSIONS_DIR).resolve(version);
+    }
+
+    /**
+     * Returns all installed versions, oldest first.
+     * 
+     * @return The installed versions.
+     * @throws IOException
+     *             If listing the versions failed.
+     */
+    public List<String> getVersions() throws IOException {
+        Path versions = root.resolve(VERSIONS_DIR);
+        if (Files.notExists(versions))
+            return Collections.emptyList();
+
+        try (Stream<Path> list = Files.list(versions)) {
+            return list.filter(Files::isDirectory)
+                            .map(p -> p.getFileName().toString())
+                            .filter(name -> !name.endsWith(TEMP_SUFFIX))
+                            .sorted()
+                            .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Returns the active version, or {@code null} if none was activated yet.
+     * 
+     * @return The active version, or {@code null}.
+     * @throws IOException
+     *             If reading the link or pointer file failed.
+     */
+    public String getCurrent() throws IOException {
+        Path link = root.resolve(CURRENT_LINK);
+        if (Files.isSymbolicLink(link))
+            return Files.readSymbolicLink(link).getFileName().toString();
+
+        Path pointer = root.resolve(CURRENT_POINTER);
+        if (Files.isRegularFile(pointer))
+            return Files.readString(pointer, StandardCharsets.UTF_8).trim();
+
+        return null;
+    }
+
+    /**
+     * Returns the directory of the active version, or {@code null} if none was
+     * activated yet.
+     * 
+     * @return The active version's directory, or {@code null}.
+     * @throws IOException
+     *             If reading the link or pointer file failed.
+     */
+    public Path getCurrentDirectory() throws IOException {
+        String current = getCurrent();
+        return current == null ? null : resolve(current);
+    }
+
+    /**
+     * Installs the archive as a new version and activates it, then deletes the
+     * archive.
+     * 
+     * @param archive
+     *            The archive to install.
+     * @return The installed version.
+     * @throws IOException
+     *             If installing failed, in which case the current version is
+     *             still active and nothing of the new version is left.
+     */
+    public String install(Archive archive) throws IOException {
+        return install(archive, true);
+    }
+
+    /**
+     * Installs the archive as a new version and activates it.
+     * 
+     * <p>
+     * Files of the configuration that are not in the archive did not require an
+     * update, and are linked from the current version. If there is no current
+     * version, as when migrating from an unversioned install, they are linked
+     * from their path in the configuration. Each is hashed first, and one that
+     * no longer matches the configuration fails the install, so it can be
+     * downloaded by updating again.
+     * 
+     * @param archive
+     *            The archive to install.
+     * @param deleteArchive
+     *            Whether to delete the archive once installed.
+     * @return The installed version.
+     * @throws IOException
+     *             If installing failed, in which case the current version is
+     *             still active and nothing of the new version is left.
+     */
+    public String install(Archive archive, boolean deleteArchive) throws IOException {
+        Configuration config = archive.getConfiguration();
+        Path basePath = config.getBasePath();
+        if (basePath == null)
+            throw new IllegalStateException("Versioned installs require a base path in the configuration");
+
+        basePath = basePath.toAbsolutePath().normalize();
+
+        String version = versionOf(config);
+        String current = getCurrent();
+        if (version.equals(current))
+            throw new FileAlreadyExistsException(resolve(version).toString(), null, "Version is already active");
+
+        Path previous = current == null ? null : resolve(current);
+        Path target = resolve(version);
+        Path temp = target.resolveSibling(version + TEMP_SUFFIX);
+
+        FileUtils.deleteDirectory(temp);
+        Files.createDirectories(temp);
+
+        try {
+            Set<FileMetadata> archived = new HashSet<>(archive.getFiles());
+            for (FileMetadata file : config.getFiles()) {
+                if (!file.appliesToCurrentPlatform())
+                    continue;
+
+                Path path = file.getNormalizedPath().toAbsolutePath().normalize();
+                if (!path.startsWith(basePath))
+                    throw new IOException(path + ": File is outside the base path and cannot be versioned");
+
+                Path relative = basePath.relativize(path);
+                if (!archived.contains(file))
+                    link(file, previous == null ? path : previous.resolve(relative), temp.resolve(relative));
+            }
+
+            Path base = basePath;
+            archive.moveFiles(file -> temp.resolve(base.relativize(file.getNormalizedPath().toAbsolutePath().normalize())));
+
+            // an earlier attempt of the same version that was never activated
+            FileUtils.deleteDirectory(target);
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            FileUtils.deleteDirectory(temp);
+            throw e;
+        }
+
+        activate(version);
+
+        if (deleteArchive && archive.isStaged())
+            FileUtils.deleteDirectory(archive.getLocation());
+        else if (deleteArchive)
+            Files.deleteIfExists(archive.getLocation());
+
+        return version;
+    }
+
+    /**
+     * Makes the given installed version the current one, with a single atomic
+     * rename. The {@code current} link and pointer file are never both left in
+     * place: whichever is not written is deleted afterwards.
+     * 
+     * @param version
+     *            The version to activate.
+     * @throws IOException
+     *             If the version is not installed or switching failed.
+     */
+    public void activate(String version) throws IOException {
+        Path target = resolve(version);
+        if (!Files.isDirectory(target))
+            throw new NoSuchFileException(target.toString(), null, "Version is not installed");
+
+        Path link = root.resolve(CURRENT_LINK);
+        Path pointer = root.resolve(CURRENT_POINTER);
+
+        if (!pointerFile) {
+            Path tempLink = root.resolve(CURRENT_LINK + TEMP_SUFFIX);
+
+            boolean linked = false;
+            try {
+                Files.deleteIfExists(tempLink);
+                Files.createSymbolicLink(tempLink, root.relativize(target));
+                linked = true;
+            } catch (UnsupportedOperationException | FileSystemException e) {
+                // fall back to the pointer file
+            }
+
+            if (linked) {
+                // rename() replaces the old link atomically; the link is read first, so the
+                // pointer is stale from now on
+                Files.move(tempLink, link, StandardCopyOption.ATOMIC_MOVE);
+                Files.deleteIfExists(pointer);
+                return;
+            }
+        }
+
+        Path tempPointer = root.resolve(CURRENT_POINTER + TEMP_SUFFIX);
+        Files.writeString(tempPointer, version, StandardCharsets.UTF_8);
+        Files.move(tempPointer, pointer, StandardCopyOption.ATOMIC_MOVE);
+
+        // would otherwise still be read instead of the pointer; deletes the link, not its target
+        if (Files.isSymbolicLink(link))
+            Files.delete(link);
+    }
+
+    /**
+     * Activates the newest version older than the current one.
+     * 
+     * @return The version activated.
+     * @throws IOException
+     *             If there is no older version or switching failed.
+     */
+    public String rollback() throws IOException {
+        String current = getCurrent();
+        List<String> versions = getVersions();
+
+        String older = null;
+        for (String version : versions) {
+            if (current != null && version.compareTo(current) >= 0)
+                break;
+
+            older = version;
+        }
+
+        if (older == null || current == null)
+            throw new NoSuchFileException(root.resolve(VERSIONS_DIR).toString(), null, "No older version to roll back to");
+
+        activate(older);
+        return older;
+    }
+
+    /**
+     * Deletes all versions but the current one and the given number of newest
+     * others.
+     * 
+     * @param keep
+     *            The number of versions to keep besides the current one.
+     * @return The deleted versions.
+     * @throws IOException
+     *             If deleting failed.
+     */
+    public List<String> prune(int keep) throws IOException {
+        if (keep < 0)
+            throw new IllegalArgumentException("Versions to keep must not be negative: " + keep);
+
+        String current = getCurrent();
+        List<String> others = getVersions().stream()
+                        .filter(v -> !v.equals(current))
+                        .collect(Collectors.toList());
+
+        List<String> deleted = new ArrayList<>(others.subList(0, Math.max(0, others.size() - keep)));
+        for (String version : deleted) {
+            FileUtils.deleteDirectory(resolve(version));
+        }
+
+        return deleted;
+    }
+
+    /*
+     * Hard links the unchanged file, falling back to a copy where links are not supported
+     * or the previous version is on another file store. The file is hashed first, as one
+     * modified in place would otherwise be shared with the new version.
+     */
+    private static void link(FileMetadata file, Path source, Path target) throws IOException {
+        if (!Files.isRegularFile(source) || Files.size(source) != file.getSize()
+                        || !FileUtils.getChecksumString(source, file.getChecksumAlgorithm())
+                                        .equals(file.getChecksumString())) {
+            throw new IOException(source + ": Unchanged file is missing or was modified; "
+                            + "update again to download it");
+        }
+
+        Files.createDirectories(target.getParent());
+        try {
+            Files.createLink(target, source);
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            Files.copy(source, target, StandardCopyOption.COPY_ATTRIBUTES);
+        }
+    }
+}
@@ -0,0 +1,787 @@
+/*
+ * Copyright 2020 Mordechai Meisels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.update4j;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+import static java.lang.System.Logger.Level.WARNING;
+
+/*
+ * Writes the update archive as a plain zip file, appending entries one after another and the
+ * central directory once closed. Unlike the zip file system, entries are never buffered in
+ * memory or in temp files, and the archive is not rewritten when closed, so memory use is
+ * constant regardless of the size of the update.
+ *
+ * Content that is already compressed, as jars, is stored and copied with transferTo();
+ * anything else is deflated at the fastest level. The CRC of each file is computed while it
+ * is downloaded, so stored entries are never read into the JVM. Zip64 records are written
+ * where sizes, offsets or the number of entries require them.
+ *
+ * Entries are appended under the lock of the writer; concurrent downloads are therefore
+ * staged and appended once validated. A file downloaded on its own may instead be streamed
+ * into the archive, and its local header patched once validated; the archive is truncated back
+ * if it is not.
+ *
+ * Files written with their checksum are listed in the manifest, written last, so the archive
+ * can be checked when opened without reading its content.
+ *
+ * A resumed archive, as kept by a failed update, is read back from its own central directory
+ * and manifest, and appended to from where its central directory started. Files that are not
+ * reused are left out of the new central directory, and so are no longer part of the archive.
+ */
+class ZipArchiveWriter implements ArchiveWriter {
+
+    private static final System.Logger logger = System.getLogger(ZipArchiveWriter.class.getName());
+
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int ZIP64_END = 0x06064b50;
+    private static final int ZIP64_LOCATOR = 0x07064b50;
+    private static final int END = 0x06054b50;
+
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+    private static final int UTF8_NAMES = 0x0800;
+    private static final int ZIP64_EXTRA = 0x0001;
+
+    private static final long MAX_32 = 0xFFFFFFFFL;
+    private static final int MAX_16 = 0xFFFF;
+
+    // deflating may slightly grow incompressible content, so large deflated entries are
+    // given zip64 sizes in their local header in advance
+    private static final long DEFLATED_ZIP64_SIZE = 0xF0000000L;
+
+    private final Path location;
+    private final FileChannel channel;
+    private final BufferPool buffers;
+    private final int dosTime;
+    private final List<Entry> entries = new ArrayList<>();
+    private final Map<String, Entry> reusable = new HashMap<>();
+    private ZipStreamedEntry streaming;
+    private boolean closed;
+
+    ZipArchiveWriter(Path location, BufferPool buffers) throws IOException {
+        this(location, buffers, false);
+    }
+
+    ZipArchiveWriter(Path location, BufferPool buffers, boolean resume) throws IOException {
+        this.location = location;
+        this.channel = FileChannel.open(location, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+        this.buffers = buffers;
+
+        LocalDateTime now = LocalDateTime.now();
+        this.dosTime = (now.getYear() - 1980) << 25 | now.getMonthValue() << 21 | now.getDayOfMonth() << 16
+                        | now.getHour() << 11 | now.getMinute() << 5 | now.getSecond() >> 1;
+
+        long start = 0;
+        try {
+            if (resume && channel.size() > 0)
+                start = readReusable();
+        } catch (IOException e) {
+            logger.log(WARNING, "Cannot reuse the files of '" + location + "'; writing it anew.", e);
+            reusable.clear();
+            start = 0;
+        }
+
+        try {
+            channel.truncate(start).position(start);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /*
+     * The entry is read back without holding the lock, so other files are appended meanwhile.
+     */
+    @Override
+    public Path reuse(String name, long size, String checksum, ContentCheck check) throws IOException {
+        Entry entry;
+        synchronized (this) {
+            checkNotStreaming();
+            entry = reusable.remove(name);
+        }
+
+        if (entry == null || entry.size != size || !checksum.equals(entry.checksum))
+            return null;
+
+        Inflater inflater = entry.method == DEFLATED ? new Inflater(true) : null;
+        try (InputStream in = open(entry, inflater)) {
+            if (!check.matches(in))
+                return null;
+        } finally {
+            if (inflater != null)
+                inflater.end();
+        }
+
+        synchronized (this) {
+            entries.add(entry);
+        }
+
+        return location;
+    }
+
+    /*
+     * Small entries are stored.
+     */
+    @Override
+    public synchronized void write(String name, byte[] content) throws IOException {
+        checkNotStreaming();
+        CRC32 crc = new CRC32();
+        crc.update(content);
+
+        long offset = writeLocalHeader(name, STORED, crc.getValue(), content.length, false);
+        writeFully(ByteBuffer.wrap(content));
+
+        entries.add(new Entry(name, STORED, crc.getValue(), content.length, content.length, offset, null));
+    }
+
+    /*
+     * The file is copied and left in place.
+     */
+    @Override
+    public synchronized Path write(String name, Path file, long size, long crc, boolean store, String checksum)
+                    throws IOException {
+        checkNotStreaming();
+        int method = store ? STORED : DEFLATED;
+        boolean zip64 = size >= (store ? MAX_32 : DEFLATED_ZIP64_SIZE);
+
+        long offset = writeLocalHeader(name, method, crc, size, zip64);
+        long compressed = store ? transfer(file, size) : deflate(file);
+
+        if (!store) {
+            // only now is the compressed size known
+            ByteBuffer patch = ByteBuffer.allocate(zip64 ? 8 : 4).order(ByteOrder.LITTLE_ENDIAN);
+            if (zip64) {
+                patch.putLong(compressed).flip();
+                writeFully(patch, offset + 30 + utf8(name).length + 12);
+            } else {
+                patch.putInt((int) compressed).flip();
+                writeFully(patch, offset + 18);
+            }
+        }
+
+        entries.add(new Entry(name, method, crc, compressed, size, offset, checksum));
+
+        return file;
+    }
+
+    /*
+     * The entry is written from the end of the archive, which it holds until committed or
+     * closed.
+     */
+    @Override
+    public synchronized StreamedEntry stream(String name, long size) throws IOException {
+        checkNotStreaming();
+        streaming = new ZipStreamedEntry(name, size);
+
+        return streaming;
+    }
+
+    /*
+     * Writes the manifest and the central directory, and closes the archive.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+
+        closed = true;
+        try (channel) {
+            if (streaming != null)
+                streaming.close();
+
+            ArchiveManifest manifest = new ArchiveManifest();
+            for (Entry e : entries) {
+                if (e.checksum != null)
+                    manifest.add(e.name, e.size, e.crc, e.checksum);
+            }
+
+            if (!manifest.isEmpty())
+                write(ArchiveManifest.PATH, manifest.toBytes());
+
+            writeCentralDirectory();
+        }
+    }
+
+    /*
+     * Reads the central directory and manifest of an archive written by this class, and
+     * returns where the central directory starts.
+     */
+    private long readReusable() throws IOException {
+        long size = channel.size();
+        if (size < 22)
+            throw new ZipException("Not an archive");
+
+        // never written with a comment
+        ByteBuffer end = read(size - 22, 22);
+        if (end.getInt(0) != END)
+            throw new ZipException("End of central directory not found");
+
+        long count = end.getShort(10) & MAX_16;
+        long directorySize = end.getInt(12) & MAX_32;
+        long start = end.getInt(16) & MAX_32;
+
+        if (count == MAX_16 || directorySize == MAX_32 || start == MAX_32) {
+            ByteBuffer locator = read(size - 22 - 20, 20);
+            if (locator.getInt(0) != ZIP64_LOCATOR)
+                throw new ZipException("Zip64 end of central directory locator not found");
+
+            ByteBuffer end64 = read(locator.getLong(8), 56);
+            if (end64.getInt(0) != ZIP64_END)
+                throw new ZipException("Zip64 end of central directory not found");
+
+            count = end64.getLong(32);
+            directorySize = end64.getLong(40);
+            start = end64.getLong(48);
+        }
+
+        if (directorySize > Integer.MAX_VALUE || start + directorySize > size)
+            throw new ZipException("Invalid central directory");
+
+        ByteBuffer directory = read(start, (int) directorySize);
+        Map<String, Entry> found = new HashMap<>();
+        for (long i = 0; i < count; i++) {
+            Entry e = readCentralHeader(directory);
+            found.put(e.name, e);
+        }
+
+        Entry manifestEntry = found.get(ArchiveManifest.PATH);
+        if (manifestEntry == null)
+            throw new ZipException("Manifest not found");
+
+        ArchiveManifest manifest;
+        try (BufferedReader in = new BufferedReader(new StringReader(
+                        StandardCharsets.UTF_8.decode(readStored(manifestEntry)).toString()))) {
+            manifest = ArchiveManifest.read(in);
+        }
+
+        for (String name : manifest.names()) {
+            Entry e = found.get(name);
+            ArchiveManifest.Entry listed = manifest.get(name);
+            if (e != null && e.size == listed.size && e.crc == listed.crc) {
+                reusable.put(name, new Entry(name, e.method, e.crc, e.compressed, e.size, e.offset, listed.checksum));
+            }
+        }
+
+        return start;
+    }
+
+    private Entry readCentralHeader(ByteBuffer directory) throws IOException {
+        if (directory.remaining() < 46 || directory.getInt() != CENTRAL_HEADER)
+            throw new ZipException("Invalid central directory header");
+
+        int pos = directory.position() - 4;
+        int method = directory.getShort(pos + 10) & MAX_16;
+        long crc = directory.getInt(pos + 16) & MAX_32;
+        long compressed = directory.getInt(pos + 20) & MAX_32;
+        long size = directory.getInt(pos + 24) & MAX_32;
+        int nameLength = directory.getShort(pos + 28) & MAX_16;
+        int extraLength = directory.getShort(pos + 30) & MAX_16;
+        int commentLength = directory.getShort(pos + 32) & MAX_16;
+        long offset = directory.getInt(pos + 42) & MAX_32;
+
+        byte[] name = new byte[nameLength];
+        directory.position(pos + 46);
+        directory.get(name);
+
+        int extraEnd = directory.position() + extraLength;
+        while (directory.position() + 4 <= extraEnd) {
+            int id = directory.getShort() & MAX_16;
+            int length = directory.getShort() & MAX_16;
+            int next = directory.position() + length;
+
+            if (id == ZIP64_EXTRA) {
+                if (size == MAX_32)
+                    size = directory.getLong();
+                if (compressed == MAX_32)
+                    compressed = directory.getLong();
+                if (offset == MAX_32)
+                    offset = directory.getLong();
+            }
+
+            directory.position(next);
+        }
+
+        directory.position(extraEnd + commentLength);
+
+        return new Entry(new String(name, StandardCharsets.UTF_8), method, crc, compressed, size, offset, null);
+    }
+
+    private ByteBuffer readStored(Entry entry) throws IOException {
+        if (entry.method != STORED || entry.size > Integer.MAX_VALUE)
+            throw new ZipException("Unexpected entry '" + entry.name + "'");
+
+        return read(dataOffset(entry), (int) entry.size);
+    }
+
+    private long dataOffset(Entry entry) throws IOException {
+        ByteBuffer header = read(entry.offset, 30);
+        if (header.getInt(0) != LOCAL_HEADER)
+            throw new ZipException("Invalid local header of '" + entry.name + "'");
+
+        return entry.offset + 30 + (header.getShort(26) & MAX_16) + (header.getShort(28) & MAX_16);
+    }
+
+    /*
+     * The content of the entry, inflated with the given inflater if deflated. Positional reads
+     * leave the channel to the writing thread.
+     */
+    private InputStream open(Entry entry, Inflater inflater) throws IOException {
+        long start = dataOffset(entry);
+        InputStream raw = new InputStream() {
+            private long position = start;
+            private final long end = start + entry.compressed;
+            // the inflater may ask for a byte past the raw data
+            private boolean padded = inflater == null;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (position >= end) {
+                    if (padded || len == 0)
+                        return -1;
+
+                    padded = true;
+                    b[off] = 0;
+                    return 1;
+                }
+
+                ByteBuffer buffer = ByteBuffer.wrap(b, off, (int) Math.min(len, end - position));
+                int read = channel.read(buffer, position);
+                if (read < 0)
+                    throw new EOFException("Archive ended early");
+
+                position += read;
+                return read;
+            }
+        };
+
+        return inflater == null ? raw : new InflaterInputStream(raw, inflater);
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException("Archive ended early");
+        }
+
+        return buffer.flip();
+    }
+
+    private long writeLocalHeader(String name, int method, long crc, long size, boolean zip64) throws IOException {
+        byte[] nameBytes = utf8(name);
+        long offset = channel.position();
+
+        ByteBuffer header = ByteBuffer.allocate(30 + nameBytes.length + (zip64 ? 20 : 0))
+                        .order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(LOCAL_HEADER)
+                        .putShort((short) versionNeeded(method, zip64))
+                        .putShort((short) UTF8_NAMES)
+                        .putShort((short) method)
+                        .putInt(dosTime)
+                        .putInt((int) crc)
+                        // the compressed size of deflated entries is patched in later
+                        .putInt(zip64 ? (int) MAX_32 : method == STORED ? (int) size : 0)
+                        .putInt(zip64 ? (int) MAX_32 : (int) size)
+                        .putShort((short) nameBytes.length)
+                        .putShort((short) (zip64 ? 20 : 0))
+                        .put(nameBytes);
+
+        if (zip64) {
+            header.putShort((short) ZIP64_EXTRA).putShort((short) 16).putLong(size).putLong(method == STORED ? size : 0);
+        }
+
+        header.flip();
+        writeFully(header);
+
+        return offset;
+    }
+
+    private long transfer(Path file, long size) throws IOException {
+        try (FileChannel in = FileChannel.open(file)) {
+            if (in.size() != size)
+                throw new IOException("File '" + file + "' changed while being archived");
+
+            for (long position = 0; position < size;) {
+                long transferred = in.transferTo(position, size - position, channel);
+                if (transferred <= 0)
+                    throw new IOException("File '" + file + "' changed while being archived");
+
+                position += transferred;
+            }
+        }
+
+        return size;
+    }
+
+    private long deflate(Path file) throws IOException {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        ByteBuffer in = buffers.acquireHeap();
+        ByteBuffer out = buffers.acquireHeap();
+        long compressed = 0;
+
+        try (FileChannel source = FileChannel.open(file)) {
+            int read;
+            while ((read = source.read(in)) > -1) {
+                deflater.setInput(in.array(), 0, read);
+                while (!deflater.needsInput()) {
+                    compressed += writeDeflated(deflater, out);
+                }
+                in.clear();
+            }
+
+            deflater.finish();
+            while (!deflater.finished()) {
+                compressed += writeDeflated(deflater, out);
+            }
+        } finally {
+            deflater.end();
+            buffers.release(in);
+            buffers.release(out);
+        }
+
+        return compressed;
+    }
+
+    private int writeDeflated(Deflater deflater, ByteBuffer out) throws IOException {
+        int n = deflater.deflate(out.array());
+        out.clear().limit(n);
+        writeFully(out);
+        out.clear();
+
+        return n;
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        long start = channel.position();
+        ByteBuffer out = buffers.acquireHeap().order(ByteOrder.LITTLE_ENDIAN);
+
+        try {
+            for (Entry e : entries) {
+                byte[] nameBytes = utf8(e.name);
+                boolean bigSize = e.size >= MAX_32;
+                boolean bigCompressed = e.compressed >= MAX_32;
+                boolean bigOffset = e.offset >= MAX_32;
+                int extra = (bigSize ? 8 : 0) + (bigCompressed ? 8 : 0) + (bigOffset ? 8 : 0);
+                boolean zip64 = extra > 0;
+
+                int length = 46 + nameBytes.length + (zip64 ? 4 + extra : 0);
+                if (out.remaining() < length)
+                    flush(out);
+
+                // only names longer than the buffer need their own record
+                ByteBuffer record = length <= out.capacity() ? out : ByteBuffer.allocate(length);
+
+                record.order(ByteOrder.LITTLE_ENDIAN)
+                                .putInt(CENTRAL_HEADER)
+                                .putShort((short) versionNeeded(e.method, true))
+                                .putShort((short) versionNeeded(e.method, zip64))
+                                .putShort((short) UTF8_NAMES)
+                                .putShort((short) e.method)
+                                .putInt(dosTime)
+                                .putInt((int) e.crc)
+                                .putInt(bigCompressed ? (int) MAX_32 : (int) e.compressed)
+                                .putInt(bigSize ? (int) MAX_32 : (int) e.size)
+                                .putShort((short) nameBytes.length)
+                                .putShort((short) (zip64 ? 4 + extra : 0))
+                                .putShort((short) 0) // comment
+                                .putShort((short) 0) // disk
+                                .putShort((short) 0) // internal attributes
+                                .putInt(0) // external attributes
+                                .putInt(bigOffset ? (int) MAX_32 : (int) e.offset)
+                                .put(nameBytes);
+
+                if (zip64) {
+                    record.putShort((short) ZIP64_EXTRA).putShort((short) extra);
+                    if (bigSize)
+                        record.putLong(e.size);
+                    if (bigCompressed)
+                        record.putLong(e.compressed);
+                    if (bigOffset)
+                        record.putLong(e.offset);
+                }
+
+                if (record != out)
+                    flush(record);
+            }
+
+            long size = channel.position() + out.position() - start;
+            boolean zip64 = entries.size() >= MAX_16 || size >= MAX_32 || start >= MAX_32;
+
+            if (zip64) {
+                if (out.remaining() < 76)
+                    flush(out);
+
+                long end = channel.position() + out.position();
+                out.putInt(ZIP64_END)
+                                .putLong(44)
+                                .putShort((short) 45)
+                                .putShort((short) 45)
+                                .putInt(0)
+                                .putInt(0)
+                                .putLong(entries.size())
+                                .putLong(entries.size())
+                                .putLong(size)
+                                .putLong(start);
+
+                out.putInt(ZIP64_LOCATOR).putInt(0).putLong(end).putInt(1);
+            }
+
+            if (out.remaining() < 22)
+                flush(out);
+
+            int count = Math.min(entries.size(), MAX_16);
+            out.putInt(END)
+                            .putShort((short) 0)
+                            .putShort((short) 0)
+                            .putShort((short) count)
+                            .putShort((short) count)
+                            .putInt((int) Math.min(size, MAX_32))
+                            .putInt((int) Math.min(start, MAX_32))
+                            .putShort((short) 0);
+
+            flush(out);
+        } finally {
+            buffers.release(out.order(ByteOrder.BIG_ENDIAN));
+        }
+    }
+
+    private void checkNotStreaming() {
+        if (streaming != null)
+            throw new IllegalStateException("An entry is being streamed into the archive");
+    }
+
+    private void flush(ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static int versionNeeded(int method, boolean zip64) {
+        return zip64 ? 45 : method == DEFLATED ? 20 : 10;
+    }
+
+    private static byte[] utf8(String name) {
+        return name.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /*
+     * Whether the entry is stored or deflated is decided by its first 4 bytes, as for staged
+     * files, so nothing is written before those arrive. The CRC and sizes are written into the
+     * local header once committed; its sizes are zip64 if the expected size requires it.
+     */
+    private class ZipStreamedEntry implements StreamedEntry {
+        private final String name;
+        private final long expected;
+        private final long offset;
+        private final ByteBuffer head = ByteBuffer.allocate(4);
+        private int method = -1;
+        private boolean zip64;
+        private Deflater deflater;
+        private ByteBuffer out;
+        private long size;
+        private long compressed;
+        private boolean open = true;
+
+        ZipStreamedEntry(String name, long expected) throws IOException {
+            this.name = name;
+            this.expected = expected;
+            this.offset = channel.position();
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            synchronized (ZipArchiveWriter.this) {
+                if (!open)
+                    throw new ClosedChannelException();
+
+                int n = src.remaining();
+                if (method < 0) {
+                    while (head.hasRemaining() && src.hasRemaining())
+                        head.put(src.get());
+
+                    if (!head.hasRemaining()) {
+                        begin(FileDigest.isCompressed(head.getInt(0)));
+                        emit(head.flip());
+                    }
+                }
+
+                if (method >= 0)
+                    emit(src);
+
+                size += n;
+                return n;
+            }
+        }
+
+        @Override
+        public Path commit(long crc, String checksum) throws IOException {
+            synchronized (ZipArchiveWriter.this) {
+                if (!open)
+                    throw new ClosedChannelException();
+
+                // shorter than 4 bytes
+                if (method < 0) {
+                    begin(false);
+                    emit(head.flip());
+                }
+
+                if (method == DEFLATED) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        compressed += writeDeflated(deflater, out);
+                    }
+                }
+
+                if (!zip64 && (size >= MAX_32 || compressed >= MAX_32))
+                    throw new ZipException("Entry '" + name + "' is larger than expected");
+
+                ByteBuffer patch = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+                patch.putInt((int) crc);
+                if (!zip64)
+                    patch.putInt((int) compressed).putInt((int) size);
+
+                writeFully(patch.flip(), offset + 14);
+
+                if (zip64) {
+                    patch.clear().putLong(size).putLong(compressed);
+                    writeFully(patch.flip(), offset + 30 + utf8(name).length + 4);
+                }
+
+                entries.add(new Entry(name, method, crc, compressed, size, offset, checksum));
+                release();
+
+                return location;
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            synchronized (ZipArchiveWriter.this) {
+                return open;
+            }
+        }
+
+        /*
+         * Drops the entry if not committed.
+         */
+        @Override
+        public void close() throws IOException {
+            synchronized (ZipArchiveWriter.this) {
+                if (!open)
+                    return;
+
+                release();
+                channel.truncate(offset).position(offset);
+            }
+        }
+
+        private void begin(boolean store) throws IOException {
+            method = store ? STORED : DEFLATED;
+            zip64 = expected >= (store ? MAX_32 : DEFLATED_ZIP64_SIZE);
+            writeLocalHeader(name, method, 0, expected, zip64);
+
+            if (!store) {
+                deflater = new Deflater(Deflater.BEST_SPEED, true);
+                out = buffers.acquireHeap();
+            }
+        }
+
+        private void emit(ByteBuffer src) throws IOException {
+            if (method == STORED) {
+                compressed += src.remaining();
+                writeFully(src);
+                return;
+            }
+
+            deflater.setInput(src);
+            while (!deflater.needsInput()) {
+                compressed += writeDeflated(deflater, out);
+            }
+        }
+
+        private void release() {
+            open = false;
+            streaming = null;
+
+            if (deflater != null) {
+                deflater.end();
+                buffers.release(out);
+            }
+        }
+    }
+
+    private static class Entry {
+        private final String name;
+        private final int method;
+        private final long crc;
+        private final long compressed;
+        private final long size;
+        private final long offset;
+        private final String checksum;
+
+        Entry(String name, int method, long crc, long compressed, long size, long offset, String checksum) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.compressed = compressed;
+            this.size = size;
+            this.offset = offset;
+            this.checksum = checksum;
+        }
+    }
+}
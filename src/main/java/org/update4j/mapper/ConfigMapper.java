@@ -51,12 +51,14 @@ public class ConfigMapper extends XmlMapper {
     public String signature;
     public String baseUri;
     public String basePath;
+    public final List<String> mirrors;
     public String updateHandler;
     public String launcher;
     public final List<Property> properties;
     public final List<FileMapper> files;
 
     public ConfigMapper() {
+        mirrors = new ArrayList<>();
         properties = new ArrayList<>();
         files = new ArrayList<>();
     }
@@ -72,6 +74,7 @@ public class ConfigMapper extends XmlMapper {
         signature = copy.signature;
         baseUri = copy.baseUri;
         basePath = copy.basePath;
+        mirrors.addAll(copy.mirrors);
         updateHandler = copy.updateHandler;
         launcher = copy.launcher;
 
@@ -94,6 +97,7 @@ public class ConfigMapper extends XmlMapper {
             if ("base".equals(n.getNodeName())) {
                 baseUri = getAttributeValue(n, "uri");
                 basePath = getAttributeValue(n, "path");
+                parseMirrors(n.getChildNodes());
             } else if ("provider".equals(n.getNodeName())) {
                 updateHandler = getAttributeValue(n, "updateHandler");
                 launcher = getAttributeValue(n, "launcher");
@@ -106,6 +110,18 @@ public class ConfigMapper extends XmlMapper {
 
     }
 
+    private void parseMirrors(NodeList list) {
+        for (int i = 0; i < list.getLength(); i++) {
+            Node n = list.item(i);
+            if ("mirror".equals(n.getNodeName())) {
+                String uri = getAttributeValue(n, "uri");
+                if (uri != null) {
+                    mirrors.add(uri);
+                }
+            }
+        }
+    }
+
     private void parseProperties(NodeList list) {
         for (int i = 0; i < list.getLength(); i++) {
             Node n = list.item(i);
@@ -164,14 +180,14 @@ public class ConfigMapper extends XmlMapper {
     private String getChildrenXml() {
 
         // no children
-        if (baseUri == null && basePath == null && updateHandler == null && launcher == null && properties.isEmpty()
+        if (baseUri == null && basePath == null && mirrors.isEmpty() && updateHandler == null && launcher == null && properties.isEmpty()
                         && files.isEmpty()) {
             return "";
         }
 
         StringBuilder builder = new StringBuilder();
 
-        if (baseUri != null || basePath != null) {
+        if (baseUri != null || basePath != null || !mirrors.isEmpty()) {
             builder.append("    <base");
 
             if (baseUri != null) {
@@ -181,7 +197,17 @@ public class ConfigMapper extends XmlMapper {
                 builder.append(" path=\"" + escape(basePath) + "\"");
             }
 
-            builder.append("/>\n");
+            if (mirrors.isEmpty()) {
+                builder.append("/>\n");
+            } else {
+                builder.append(">\n");
+
+                for (String m : mirrors) {
+                    builder.append("        <mirror uri=\"" + escape(m) + "\"/>\n");
+                }
+
+                builder.append("    </base>\n");
+            }
         }
         if (updateHandler != null || launcher != null) {
             builder.append("    <provider");
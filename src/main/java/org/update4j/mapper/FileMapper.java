@@ -16,12 +16,16 @@
 package org.update4j.mapper;
 
 import java.io.IOException;
+import java.net.URI;
 import java.nio.file.Path;
 import java.security.PrivateKey;
 import java.util.ArrayList;
 import java.util.List;
 import org.update4j.AddPackage;
+import org.update4j.ChecksumAlgorithm;
+import org.update4j.Compression;
 import org.update4j.OS;
+import org.update4j.Patch;
 import org.update4j.util.FileUtils;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
@@ -31,6 +35,9 @@ public class FileMapper extends XmlMapper {
     public String uri;
     public String path;
     public String checksum;
+    public ChecksumAlgorithm checksumAlgorithm;
+    public Compression compression;
+    public Long compressedSize;
     public Long size;
     public OS os;
     public String arch;
@@ -39,14 +46,18 @@ public class FileMapper extends XmlMapper {
     public String comment;
     public Boolean ignoreBootConflict;
     public String signature;
+    public String blockIndex;
+    public String jarIndex;
     public final List<AddPackage> addExports;
     public final List<AddPackage> addOpens;
     public final List<String> addReads;
+    public final List<Patch> patches;
 
     public FileMapper() {
         addExports = new ArrayList<>();
         addOpens = new ArrayList<>();
         addReads = new ArrayList<>();
+        patches = new ArrayList<>();
     }
 
     public FileMapper(Node node) {
@@ -59,6 +70,9 @@ public class FileMapper extends XmlMapper {
         uri = copy.uri;
         path = copy.path;
         checksum = copy.checksum;
+        checksumAlgorithm = copy.checksumAlgorithm;
+        compression = copy.compression;
+        compressedSize = copy.compressedSize;
         size = copy.size;
         os = copy.os;
         arch = copy.arch;
@@ -67,10 +81,13 @@ public class FileMapper extends XmlMapper {
         comment = copy.comment;
         ignoreBootConflict = copy.ignoreBootConflict;
         signature = copy.signature;
+        blockIndex = copy.blockIndex;
+        jarIndex = copy.jarIndex;
 
         addExports.addAll(copy.addExports);
         addOpens.addAll(copy.addOpens);
         addReads.addAll(copy.addReads);
+        patches.addAll(copy.patches);
     }
 
     @Override
@@ -82,11 +99,26 @@ public class FileMapper extends XmlMapper {
         path = getAttributeValue(node, "path");
         checksum = getAttributeValue(node, "checksum");
 
+        String checksumAlgorithm = getAttributeValue(node, "checksumAlgorithm");
+        if (checksumAlgorithm != null) {
+            this.checksumAlgorithm = ChecksumAlgorithm.fromName(checksumAlgorithm);
+        }
+
         String size = getAttributeValue(node, "size");
         if (size != null) {
             this.size = Long.parseLong(size);
         }
 
+        String compression = getAttributeValue(node, "compression");
+        if (compression != null) {
+            this.compression = Compression.fromName(compression);
+        }
+
+        String compressedSize = getAttributeValue(node, "compressedSize");
+        if (compressedSize != null) {
+            this.compressedSize = Long.parseLong(compressedSize);
+        }
+
         String os = getAttributeValue(node, "os");
         if (os != null) {
             this.os = OS.fromShortName(os);
@@ -112,6 +144,8 @@ public class FileMapper extends XmlMapper {
         }
 
         signature = getAttributeValue(node, "signature");
+        blockIndex = getAttributeValue(node, "blockIndex");
+        jarIndex = getAttributeValue(node, "jarIndex");
 
         NodeList children = node.getChildNodes();
         for (int i = 0; i < children.getLength(); i++) {
@@ -122,6 +156,8 @@ public class FileMapper extends XmlMapper {
                 parseOpens(n.getChildNodes());
             } else if ("addReads".equals(n.getNodeName())) {
                 parseReads(n.getChildNodes());
+            } else if ("patches".equals(n.getNodeName())) {
+                parsePatches(n.getChildNodes());
             }
         }
     }
@@ -164,6 +200,21 @@ public class FileMapper extends XmlMapper {
         }
     }
 
+    private void parsePatches(NodeList list) {
+        for (int i = 0; i < list.getLength(); i++) {
+            Node n = list.item(i);
+            if ("patch".equals(n.getNodeName())) {
+                String base = getAttributeValue(n, "base");
+                String uri = getAttributeValue(n, "uri");
+                String size = getAttributeValue(n, "size");
+                String checksum = getAttributeValue(n, "checksum");
+                if (base != null && uri != null && size != null && checksum != null) {
+                    patches.add(new Patch(base, URI.create(uri), Long.parseLong(size), checksum));
+                }
+            }
+        }
+    }
+
     @Override
     public String toXml() {
         StringBuilder builder = new StringBuilder();
@@ -181,6 +232,15 @@ public class FileMapper extends XmlMapper {
         if (checksum != null) {
             builder.append(" checksum=\"" + escape(checksum) + "\"");
         }
+        if (checksumAlgorithm != null) {
+            builder.append(" checksumAlgorithm=\"" + checksumAlgorithm.getName() + "\"");
+        }
+        if (compression != null) {
+            builder.append(" compression=\"" + compression.getName() + "\"");
+        }
+        if (compressedSize != null) {
+            builder.append(" compressedSize=\"" + compressedSize + "\"");
+        }
         if (os != null) {
             builder.append(" os=\"" + os.getShortName() + "\"");
         }
@@ -202,8 +262,14 @@ public class FileMapper extends XmlMapper {
         if (signature != null) {
             builder.append(" signature=\"" + escape(signature) + "\"");
         }
+        if (blockIndex != null) {
+            builder.append(" blockIndex=\"" + escape(blockIndex) + "\"");
+        }
+        if (jarIndex != null) {
+            builder.append(" jarIndex=\"" + escape(jarIndex) + "\"");
+        }
 
-        if (!addExports.isEmpty() || !addOpens.isEmpty() || !addReads.isEmpty()) {
+        if (!addExports.isEmpty() || !addOpens.isEmpty() || !addReads.isEmpty() || !patches.isEmpty()) {
 
             builder.append(">\n");
 
@@ -242,6 +308,20 @@ public class FileMapper extends XmlMapper {
                 builder.append("            </addReads>\n");
             }
 
+            if (!patches.isEmpty()) {
+                builder.append("            <patches>\n");
+
+                for (Patch p : patches) {
+                    builder.append("                <patch");
+                    builder.append(" base=\"" + escape(p.getBaseChecksum()) + "\"");
+                    builder.append(" uri=\"" + escape(p.getUri().toString()) + "\"");
+                    builder.append(" size=\"" + p.getSize() + "\"");
+                    builder.append(" checksum=\"" + escape(p.getChecksum()) + "\"/>\n");
+                }
+
+                builder.append("            </patches>\n");
+            }
+
             builder.append("        </file>\n");
         } else {
             builder.append("/>\n");
@@ -258,6 +338,10 @@ public class FileMapper extends XmlMapper {
         return FileUtils.getChecksumString(path);
     }
 
+    public static String getChecksumHex(Path path, ChecksumAlgorithm algorithm) throws IOException {
+        return FileUtils.getChecksumString(path, algorithm);
+    }
+
     public static byte[] getSignature(Path path, PrivateKey key) throws IOException {
         return FileUtils.sign(path, key);
     }
@@ -22,6 +22,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.Writer;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.nio.charset.StandardCharsets;
@@ -39,9 +40,13 @@ import java.util.Map;
 
 import org.update4j.Archive;
 import org.update4j.Bootstrap;
+import org.update4j.ChecksumCache;
 import org.update4j.Configuration;
+import org.update4j.HttpTransport;
+import org.update4j.RateLimiter;
 import org.update4j.SingleInstanceManager;
 import org.update4j.UpdateOptions;
+import org.update4j.UpdateOptions.ArchiveUpdateOptions;
 import org.update4j.inject.InjectSource;
 import org.update4j.util.ArgUtils;
 
@@ -55,11 +60,18 @@ public class DefaultBootstrap implements Delegate {
     private String local;
     private String archivePath = "./update.zip";
     private String cert;
+    private String checksumCache;
 
     private boolean syncLocal;
     private boolean launchFirst;
     private boolean stopOnUpdateError;
     private boolean singleInstance;
+    private boolean httpClient;
+    private boolean resumeDownloads;
+    private long backgroundRate;
+
+    private HttpTransport transport;
+    private RateLimiter rateLimiter;
 
     private PublicKey pk = null;
 
@@ -91,6 +103,10 @@ public class DefaultBootstrap implements Delegate {
         return cert;
     }
 
+    public String getChecksumCache() {
+        return checksumCache;
+    }
+
     public boolean isSyncLocal() {
         return syncLocal;
     }
@@ -107,6 +123,18 @@ public class DefaultBootstrap implements Delegate {
         return singleInstance;
     }
 
+    public boolean isHttpClient() {
+        return httpClient;
+    }
+
+    public boolean isResumeDownloads() {
+        return resumeDownloads;
+    }
+
+    public long getBackgroundRate() {
+        return backgroundRate;
+    }
+
     public PublicKey getPublicKey() {
         return pk;
     }
@@ -191,6 +219,12 @@ public class DefaultBootstrap implements Delegate {
             } else if ("singleInstance".equals(arg)) {
                 ArgUtils.validateNoValue(e);
                 singleInstance = true;
+            } else if ("httpClient".equals(arg)) {
+                ArgUtils.validateNoValue(e);
+                httpClient = true;
+            } else if ("resumeDownloads".equals(arg)) {
+                ArgUtils.validateNoValue(e);
+                resumeDownloads = true;
             } else if ("remote".equals(arg)) {
                 ArgUtils.validateHasValue(e);
                 remote = e.getValue();
@@ -203,6 +237,12 @@ public class DefaultBootstrap implements Delegate {
             } else if ("archive".equals(arg)) {
                 ArgUtils.validateHasValue(e);
                 archivePath = e.getValue();
+            } else if ("checksumCache".equals(arg)) {
+                ArgUtils.validateHasValue(e);
+                checksumCache = e.getValue();
+            } else if ("backgroundRate".equals(arg)) {
+                ArgUtils.validateHasValue(e);
+                backgroundRate = parseRate(e.getValue());
             } else if ("debug".equals(arg)) {
                 ArgUtils.validateNoValue(e);
                 debug = true;
@@ -248,7 +288,8 @@ public class DefaultBootstrap implements Delegate {
             System.out.println("[DEBUG] Checking for updates...");
         }
 
-        boolean success = config.update(UpdateOptions.archive(zip).publicKey(pk)).getException() == null;
+        boolean success = config.update(checkOptions(zip).publicKey(pk).resumeDownloads(resumeDownloads))
+                        .getException() == null;
         if (!success && stopOnUpdateError)
             return;
 
@@ -329,7 +370,7 @@ public class DefaultBootstrap implements Delegate {
         }
 
         Configuration localConfig = getLocalConfig(false);
-        if (localConfig != null && !localConfig.requiresUpdate()) {
+        if (localConfig != null && !localConfig.requiresUpdate(checkOptions(zip))) {
             Configuration finalConfig = localConfig;
             Thread localApp = new Thread(() -> finalConfig.launch(this));
             localApp.start();
@@ -346,7 +387,13 @@ public class DefaultBootstrap implements Delegate {
         if (remoteConfig.equals(localConfig))
             return;
 
-        boolean success = remoteConfig.update(UpdateOptions.archive(zip).publicKey(pk)).getException() == null;
+        boolean success = remoteConfig.update(
+                        UpdateOptions.archive(zip)
+                                        .publicKey(pk)
+                                        .resumeDownloads(resumeDownloads)
+                                        .httpTransport(getTransport())
+                                        .rateLimiter(getRateLimiter()))
+                        .getException() == null;
 
         if (Files.exists(zip)) {
             // persist old config to delete old files on next restart
@@ -363,6 +410,14 @@ public class DefaultBootstrap implements Delegate {
 
     protected Reader openConnection(URL url) throws IOException {
 
+        if (getTransport() != null) {
+            try {
+                return new InputStreamReader(getTransport().open(url.toURI()), StandardCharsets.UTF_8);
+            } catch (URISyntaxException e) {
+                throw new IOException(e);
+            }
+        }
+
         URLConnection connection = url.openConnection();
 
         // Some downloads may fail with HTTP/403, this may solve it
@@ -462,6 +517,55 @@ public class DefaultBootstrap implements Delegate {
         }
     }
 
+    // shared by the config fetch and the update, so the connection is reused
+    protected HttpTransport getTransport() {
+        if (httpClient && transport == null)
+            transport = HttpTransport.create();
+
+        return transport;
+    }
+
+    // caps the background update of --launchFirst; change its rate to throttle it while running
+    protected RateLimiter getRateLimiter() {
+        if (backgroundRate > 0 && rateLimiter == null)
+            rateLimiter = RateLimiter.create(backgroundRate);
+
+        return rateLimiter;
+    }
+
+    // bytes per second, with an optional k or m suffix
+    private static long parseRate(String value) {
+        String rate = value.trim().toLowerCase();
+        long unit = 1;
+        if (rate.endsWith("k")) {
+            unit = 1024;
+        } else if (rate.endsWith("m")) {
+            unit = 1024 * 1024;
+        }
+
+        try {
+            long parsed = Long.parseLong(unit == 1 ? rate : rate.substring(0, rate.length() - 1)) * unit;
+            if (parsed < 0)
+                throw new NumberFormatException();
+
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid --backgroundRate \"" + value + "\".");
+        }
+    }
+
+    // the application waits on these checks, use all cores
+    private ArchiveUpdateOptions checkOptions(Path zip) throws IOException {
+        ArchiveUpdateOptions options = UpdateOptions.archive(zip)
+                        .concurrentChecks(Runtime.getRuntime().availableProcessors())
+                        .httpTransport(getTransport());
+
+        if (checksumCache != null)
+            options.checksumCache(ChecksumCache.load(Paths.get(checksumCache)));
+
+        return options;
+    }
+
     // @formatter:off
     private static void welcome() {
 
@@ -534,7 +638,10 @@ public class DefaultBootstrap implements Delegate {
                 + "\t--local [path] - The path of a local configuration to use if the remote failed to download\n"
                 + "\t\tor was not passed. If both remote and local are missing, startup fails.\n\n"
                 + "\t--archive [path] - The archive location where to temporarily persist the downloaded files.\n"
-                + "\t\tIf not specified, the default value is './update.zip'.\n\n"
+                + "\t\tIf not specified, the default value is './update.zip'. Interrupted downloads are kept\n"
+                + "\t\tin '[path].parts' and resumed on the next start.\n\n"
+                + "\t--checksumCache [path] - A file where to cache checksums of installed files, so unchanged\n"
+                + "\t\tfiles are not read again on every startup. If not specified, every file is read.\n\n"
                 + "\t--syncLocal - Sync the local configuration with the remote if it downloaded, loaded and\n"
                 + "\t\tupdated files successfully. Useful to still allow launching without Internet connection.\n"
                 + "\t\tDefault will not sync unless --launchFirst was specified.\n\n"
@@ -545,6 +652,9 @@ public class DefaultBootstrap implements Delegate {
                 + "\t\tdownload the remote and update first if the local config requires an update\n"
                 + "\t\t(e.g. files were deleted). Must have a local configuration.\n"
                 + "\t\tIf not specified it will update before launch and hang the application until done.\n\n"
+                + "\t--backgroundRate [rate] - The maximum download rate of the silent update of --launchFirst,\n"
+                + "\t\tin bytes per second with an optional 'k' or 'm' suffix (e.g. 512k). Updates the\n"
+                + "\t\tapplication waits on always run at full speed. If not specified, or 0, it is unlimited.\n\n"
                 + "\t--stopOnUpdateError - Will stop the launch if an error occurred while downloading an update.\n"
                 + "\t\tThis does not include if remote failed to download and it used local as a fallback.\n"
                 + "\t\tIf --launchFirst was used, this only applies if the local config requires an update\n"
@@ -552,6 +662,12 @@ public class DefaultBootstrap implements Delegate {
                 + "\t--singleInstance - Run the application as a single instance. Any subsequent attempts\n"
                 + "\t\tto run will just exit. You can better control this feature by directly using the\n"
                 + "\t\tSingleInstanceManager class.\n\n"
+                + "\t--httpClient - Download the config and files with java.net.http.HttpClient, reusing\n"
+                + "\t\tconnections and multiplexing them over HTTP/2 where the server supports it. On the module\n"
+                + "\t\tpath, also pass '--add-modules java.net.http'.\n\n"
+                + "\t--resumeDownloads - Keep the partially downloaded files of a failed update next to the\n"
+                + "\t\tarchive, in a directory named after it with a '.parts' suffix, and resume them on the\n"
+                + "\t\tnext launch instead of starting over. If not specified, a failed update is cleaned up.\n\n"
                 + "\t--debug - Enable debug output for troubleshooting.\n\n"
                 + "To pass arguments to the business application, separate them with '--' (w/o quotes).";
         
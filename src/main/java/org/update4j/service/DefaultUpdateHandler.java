@@ -70,6 +70,11 @@ public class DefaultUpdateHandler implements UpdateHandler {
         clear();
     }
 
+    @Override
+    public void reusedFile(FileMetadata file) throws Throwable {
+        clear();
+    }
+
     @Override
     public void failed(Throwable t) {
         if (out != null) {
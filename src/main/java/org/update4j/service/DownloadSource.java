@@ -0,0 +1,195 @@
+/*
+ * Copyright 2020 Mordechai Meisels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.update4j.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Objects;
+
+import org.update4j.FileMetadata;
+
+/**
+ * The content of a file being downloaded, as returned by
+ * {@link UpdateHandler#openDownloadSource(FileMetadata, long)}.
+ *
+ * <p>
+ * The content is read from a {@link ReadableByteChannel}, which the framework
+ * reads into direct buffers that are hashed and written to the output without
+ * passing through byte arrays. A source may also tell the number of bytes it
+ * will deliver and the entity tag of the remote file, if known.
+ *
+ * <p>
+ * Closing the source closes the channel.
+ *
+ * @author Mordechai Meisels
+ *
+ */
+public final class DownloadSource implements Closeable {
+
+    private final ReadableByteChannel channel;
+    private final long length;
+    private final String etag;
+
+    private DownloadSource(ReadableByteChannel channel, long length, String etag) {
+        this.channel = Objects.requireNonNull(channel);
+        this.length = length < 0 ? -1 : length;
+        this.etag = etag;
+    }
+
+    /**
+     * Adapts a stream, of unknown length.
+     *
+     * @param in
+     *            The stream to read the file from.
+     * @return A new source.
+     */
+    public static DownloadSource of(InputStream in) {
+        return of(new StreamChannel(Objects.requireNonNull(in)), -1);
+    }
+
+    /**
+     * Creates a source reading from the given channel.
+     *
+     * @param channel
+     *            The channel to read the file from.
+     * @param length
+     *            The number of bytes left in the channel, or {@code -1} if
+     *            unknown.
+     * @return A new source.
+     */
+    public static DownloadSource of(ReadableByteChannel channel, long length) {
+        return of(channel, length, null);
+    }
+
+    /**
+     * Creates a source reading from the given channel.
+     *
+     * @param channel
+     *            The channel to read the file from.
+     * @param length
+     *            The number of bytes left in the channel, or {@code -1} if
+     *            unknown.
+     * @param etag
+     *            The entity tag of the remote file, or {@code null} if unknown.
+     * @return A new source.
+     */
+    public static DownloadSource of(ReadableByteChannel channel, long length, String etag) {
+        return new DownloadSource(channel, length, etag);
+    }
+
+    /**
+     * Returns the channel, positioned at the offset the source was opened at.
+     *
+     * @return The channel.
+     */
+    public ReadableByteChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Returns the number of bytes left in the channel, or {@code -1} if unknown.
+     * For {@link FileMetadata#getCompression() precompressed} files, this is the
+     * compressed length.
+     *
+     * <p>
+     * If known for a file that is not precompressed, the download fails before
+     * reading anything unless the offset plus this length equals the size of the
+     * file.
+     *
+     * @return The number of bytes left, or {@code -1}.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the entity tag of the remote file, or {@code null} if unknown.
+     *
+     * @return The entity tag, or {@code null}.
+     */
+    public String getETag() {
+        return etag;
+    }
+
+    /**
+     * Returns the channel as a stream. Closing the stream closes the channel.
+     *
+     * @return The channel as a stream.
+     */
+    public InputStream toInputStream() {
+        return Channels.newInputStream(channel);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /*
+     * Unlike Channels.newChannel(), reads the stream at most once per call, so bytes read
+     * before the stream fails are not lost, e.g. for resuming.
+     */
+    private static class StreamChannel implements ReadableByteChannel {
+
+        private final InputStream in;
+        private byte[] buffer;
+        private boolean open = true;
+
+        StreamChannel(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!open)
+                throw new ClosedChannelException();
+
+            if (dst.hasArray()) {
+                int read = in.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+                if (read > 0)
+                    dst.position(dst.position() + read);
+
+                return read;
+            }
+
+            int len = Math.min(dst.remaining(), 1024 * 64);
+            if (buffer == null || buffer.length < len)
+                buffer = new byte[len];
+
+            int read = in.read(buffer, 0, len);
+            if (read > 0)
+                dst.put(buffer, 0, read);
+
+            return read;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException {
+            open = false;
+            in.close();
+        }
+    }
+}
@@ -15,12 +15,19 @@
  */
 package org.update4j.service;
 
+import java.io.EOFException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
 import java.net.URLConnection;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemNotFoundException;
 import java.nio.file.Path;
 
 import org.update4j.Configuration;
 import org.update4j.FileMetadata;
+import org.update4j.Patch;
 import org.update4j.UpdateContext;
 import org.update4j.UpdateResult;
 import org.update4j.inject.Injectable;
@@ -94,6 +101,18 @@ import org.update4j.inject.Injectable;
  * </ul>
  * 
  * <p>
+ * If the update was started with
+ * {@link org.update4j.UpdateOptions#concurrentDownloads(int)} greater than
+ * {@code 1}, several files are downloaded at the same time on worker threads.
+ * The per-file order above still holds, but the callbacks of different files
+ * may interleave. Callbacks are never invoked concurrently, with the exception
+ * of the methods that open streams ({@code openDownloadStream},
+ * {@link #openDownloadSource(FileMetadata, long)},
+ * {@link #openPatchStream(FileMetadata, Patch)},
+ * {@link #openBlockIndexStream(FileMetadata)} and
+ * {@link #openJarIndexStream(FileMetadata)}) which must then be thread-safe.
+ * 
+ * <p>
  * For more info how to use services, check out the <a href=
  * "https://github.com/update4j/update4j/wiki/Documentation#dealing-with-providers">GitHub
  * Wiki</a>.
@@ -236,6 +255,10 @@ public interface UpdateHandler extends Service {
      * By default it will try to access the file from {@link FileMetadata#getUri()}
      * assuming it is openly available without any authentication.
      * 
+     * <p>
+     * If the file is {@link FileMetadata#getCompression() precompressed}, return
+     * the compressed stream as is; it is decompressed by the framework.
+     * 
      * @param file
      *            The file to get an input stream for.
      * @return The newly opened input stream, unread.
@@ -245,7 +268,268 @@ public interface UpdateHandler extends Service {
      */
     default InputStream openDownloadStream(FileMetadata file) throws Throwable {
 
-        URLConnection connection = file.getUri().toURL().openConnection();
+        return openConnection(file.getUri()).getInputStream();
+
+    }
+
+    /**
+     * Obtain an {@link InputStream} for this file, starting at the given byte
+     * offset. Used to resume a partially downloaded file when
+     * {@link org.update4j.UpdateOptions#resumeDownloads(boolean)} is enabled.
+     * 
+     * <p>
+     * The returned stream must start exactly at {@code offset}. If the source
+     * cannot seek, skip the leading bytes before returning.
+     * 
+     * <p>
+     * By default, if {@link #openDownloadStream(FileMetadata)} was not overridden
+     * it sends an HTTP {@code Range} request, and falls back to skipping the
+     * leading bytes if the server ignores it. If that method was overridden, it is
+     * called and the leading bytes are skipped, so custom protocols keep working
+     * without changes.
+     * 
+     * @param file
+     *            The file to get an input stream for.
+     * @param offset
+     *            The number of bytes already downloaded.
+     * @return The newly opened input stream, positioned at {@code offset}.
+     * @throws Throwable
+     *             Freely throw any exception, it will gracefully terminate the
+     *             update process and revert any file changes.
+     */
+    default InputStream openDownloadStream(FileMetadata file, long offset) throws Throwable {
+        if (offset == 0)
+            return openDownloadStream(file);
+
+        boolean customStream = getClass().getMethod("openDownloadStream", FileMetadata.class)
+                        .getDeclaringClass() != UpdateHandler.class;
+
+        if (customStream) {
+            return skip(openDownloadStream(file), offset);
+        }
+
+        URLConnection connection = openRange(file, offset, -1);
+        InputStream in = connection.getInputStream();
+        if (isPartial(connection, file, offset))
+            return in;
+
+        // server ignored the range, or not HTTP at all
+        return skip(in, offset);
+    }
+
+    /**
+     * Obtain a {@link DownloadSource} for this file, starting at the given byte
+     * offset. Used for every full download of the file, including resumed ones.
+     * 
+     * <p>
+     * Override this to hand the framework a {@link java.nio.channels.ReadableByteChannel}
+     * instead of a stream, e.g. a {@link java.nio.channels.FileChannel} or a
+     * socket channel, and to report the length and entity tag of the file if
+     * known. As with streams, do not read anything from the channel.
+     * 
+     * <p>
+     * The channel must deliver the file as {@link #openDownloadStream(FileMetadata)}
+     * would: precompressed files as is, any other file decoded.
+     * 
+     * <p>
+     * By default, if neither {@link #openDownloadStream(FileMetadata)} nor
+     * {@link #openDownloadStream(FileMetadata, long)} was overridden and the file
+     * is a {@code file:} URI, e.g. on a network share or a local mirror, it opens
+     * a {@link java.nio.channels.FileChannel}, which the framework copies with
+     * {@link java.nio.channels.FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)
+     * transferTo()} where possible. Otherwise it adapts
+     * {@link #openDownloadStream(FileMetadata, long)}, so handlers that only
+     * override the stream methods keep working without changes.
+     * 
+     * @param file
+     *            The file to get a source for.
+     * @param offset
+     *            The number of bytes already downloaded.
+     * @return The newly opened source, positioned at {@code offset}.
+     * @throws Throwable
+     *             Freely throw any exception, it will gracefully terminate the
+     *             update process and revert any file changes.
+     */
+    default DownloadSource openDownloadSource(FileMetadata file, long offset) throws Throwable {
+        boolean customStream = getClass().getMethod("openDownloadStream", FileMetadata.class)
+                        .getDeclaringClass() != UpdateHandler.class
+                        || getClass().getMethod("openDownloadStream", FileMetadata.class, long.class)
+                                        .getDeclaringClass() != UpdateHandler.class;
+
+        Path local = customStream ? null : localPath(file.getUri());
+        if (local == null)
+            return DownloadSource.of(openDownloadStream(file, offset));
+
+        FileChannel channel = FileChannel.open(local);
+        try {
+            long size = channel.size();
+            if (offset > size)
+                throw new EOFException("File ended before resume offset");
+
+            channel.position(offset);
+            return DownloadSource.of(channel, size - offset);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Obtain an {@link InputStream} for {@code length} bytes of this file,
+     * starting at the given byte offset. Used to download the blocks that were
+     * not found in the installed file, when the file lists a
+     * {@link FileMetadata#getBlockIndex() block index}, or the changed entries
+     * when it lists a {@link FileMetadata#getJarIndex() jar index}. Only {@code length} bytes
+     * are read from the stream.
+     * 
+     * <p>
+     * By default, if {@link #openDownloadStream(FileMetadata)} was not overridden
+     * it sends an HTTP {@code Range} request and fails if the server ignores it;
+     * other protocols skip the leading bytes. If that method was overridden, it fails right away, as reading the whole
+     * file for each range would be slower than downloading it once. In both cases
+     * the file is then downloaded in full.
+     * 
+     * @param file
+     *            The file to get an input stream for.
+     * @param offset
+     *            The offset of the first byte.
+     * @param length
+     *            The number of bytes.
+     * @return The newly opened input stream, positioned at {@code offset}.
+     * @throws Throwable
+     *             Freely throw any exception, the file will be downloaded in full
+     *             instead.
+     */
+    default InputStream openDownloadStream(FileMetadata file, long offset, long length) throws Throwable {
+        boolean customStream = getClass().getMethod("openDownloadStream", FileMetadata.class)
+                        .getDeclaringClass() != UpdateHandler.class;
+
+        if (customStream) {
+            throw new UnsupportedOperationException(
+                            "Range requests require overriding openDownloadStream(FileMetadata, long, long)");
+        }
+
+        URLConnection connection = openRange(file, offset, offset + length - 1);
+        InputStream in = connection.getInputStream();
+        if (isPartial(connection, file, offset))
+            return in;
+
+        // local files seek
+        if (!(connection instanceof HttpURLConnection))
+            return skip(in, offset);
+
+        in.close();
+        throw new IOException("Server does not support range requests for '" + file.getUri() + "'");
+    }
+
+    /**
+     * Obtain an {@link InputStream} for the {@link FileMetadata#getBlockIndex()
+     * block index} of this file.
+     * 
+     * <p>
+     * Same as {@link #openDownloadStream(FileMetadata)}, do not read anything
+     * from the stream. If the index cannot be opened or read, the file is
+     * downloaded in full instead.
+     * 
+     * @param file
+     *            The file being updated.
+     * @return The newly opened input stream, unread.
+     * @throws Throwable
+     *             Freely throw any exception, the file will be downloaded in full
+     *             instead.
+     */
+    default InputStream openBlockIndexStream(FileMetadata file) throws Throwable {
+
+        return openConnection(file.getBlockIndex()).getInputStream();
+
+    }
+
+    /**
+     * Obtain an {@link InputStream} for the {@link FileMetadata#getJarIndex() jar
+     * index} of this file.
+     * 
+     * <p>
+     * Same as {@link #openDownloadStream(FileMetadata)}, do not read anything
+     * from the stream. If the index cannot be opened or read, the file is
+     * downloaded in full instead.
+     * 
+     * @param file
+     *            The file being updated.
+     * @return The newly opened input stream, unread.
+     * @throws Throwable
+     *             Freely throw any exception, the file will be downloaded in full
+     *             instead.
+     */
+    default InputStream openJarIndexStream(FileMetadata file) throws Throwable {
+
+        return openConnection(file.getJarIndex()).getInputStream();
+
+    }
+
+    /**
+     * Obtain an {@link InputStream} for a delta patch of this file, used instead
+     * of the full download when the installed file matches the patch's base
+     * checksum.
+     * 
+     * <p>
+     * Same as {@link #openDownloadStream(FileMetadata)}, do not read anything
+     * from the stream. If the patch cannot be opened or applied, the file is
+     * downloaded in full instead.
+     * 
+     * <p>
+     * By default it will try to access the patch from {@link Patch#getUri()}
+     * assuming it is openly available without any authentication.
+     * 
+     * @param file
+     *            The file being updated.
+     * @param patch
+     *            The patch to get an input stream for.
+     * @return The newly opened input stream, unread.
+     * @throws Throwable
+     *             Freely throw any exception, the file will be downloaded in full
+     *             instead.
+     */
+    default InputStream openPatchStream(FileMetadata file, Patch patch) throws Throwable {
+
+        return openConnection(patch.getUri()).getInputStream();
+
+    }
+
+    private URLConnection openRange(FileMetadata file, long first, long last) throws IOException {
+        URLConnection connection = openConnection(file.getUri());
+        connection.setRequestProperty("Range", "bytes=" + first + "-" + (last < 0 ? "" : last));
+
+        return connection;
+    }
+
+    private static boolean isPartial(URLConnection connection, FileMetadata file, long offset) throws IOException {
+        if (!(connection instanceof HttpURLConnection)
+                        || ((HttpURLConnection) connection).getResponseCode() != HttpURLConnection.HTTP_PARTIAL)
+            return false;
+
+        String range = connection.getHeaderField("Content-Range");
+        if (range == null || !range.startsWith("bytes " + offset + "-")) {
+            connection.getInputStream().close();
+            throw new IOException("Unexpected Content-Range for '" + file.getUri() + "': " + range);
+        }
+
+        return true;
+    }
+
+    private static Path localPath(URI uri) {
+        if (uri == null || !"file".equalsIgnoreCase(uri.getScheme()))
+            return null;
+
+        try {
+            return Path.of(uri);
+        } catch (IllegalArgumentException | FileSystemNotFoundException e) {
+            // e.g. a UNC authority on this platform; URLConnection may still handle it
+            return null;
+        }
+    }
+
+    private URLConnection openConnection(URI uri) throws IOException {
+        URLConnection connection = uri.toURL().openConnection();
 
         // Some downloads may fail with HTTP/403, this may solve it
         connection.addRequestProperty("User-Agent", "Mozilla/5.0");
@@ -254,8 +538,27 @@ public interface UpdateHandler extends Service {
         // Set a read timeout of 10 seconds
         connection.setReadTimeout(10 * 1000);
 
-        return connection.getInputStream();
+        return connection;
+    }
+
+    private static InputStream skip(InputStream in, long n) throws IOException {
+        try {
+            while (n > 0) {
+                long skipped = in.skip(n);
+                if (skipped <= 0) {
+                    if (in.read() < 0)
+                        throw new EOFException("Stream ended before resume offset");
+                    skipped = 1;
+                }
 
+                n -= skipped;
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+
+        return in;
     }
 
     /**
@@ -322,7 +625,11 @@ public interface UpdateHandler extends Service {
      *            The file about to be passing through validations.
      * @param path
      *            The actual file, only moved to its final location once all
-     *            downloads succeed. In archive-based updates, the path is inside the archive.
+     *            downloads succeed. In archive-based updates, the path is a
+     *            staged copy next to the archive, appended to the archive once
+     *            validated, or {@code null} if the file is streamed straight
+     *            into the archive, as enabled with
+     *            {@link org.update4j.UpdateOptions.ArchiveUpdateOptions#streamToArchive(boolean)}.
      * @throws Throwable
      *             Freely throw any exception, it will gracefully terminate the
      *             update process and revert any file changes.
@@ -336,7 +643,16 @@ public interface UpdateHandler extends Service {
      * 
      * <p>
      * The file will only be placed in its final location once all files
-     * successfully download. In archive-based updates the path is inside the archive.
+     * successfully download. In archive-based updates the path is a staged copy
+     * that was just appended to the archive; it is deleted once this returns.
+     * The path is {@code null} for a file streamed straight into the archive,
+     * as enabled with
+     * {@link org.update4j.UpdateOptions.ArchiveUpdateOptions#streamToArchive(boolean)}.
+     * In staged updates the path is the file in the staging directory.
+     * 
+     * <p>
+     * A file reused from the archive kept by a failed update is reported with
+     * {@link #reusedFile(FileMetadata)} instead.
      * 
      * 
      * @param file
@@ -344,7 +660,9 @@ public interface UpdateHandler extends Service {
      * @param path
      *            The temporary location of the file, only moved to its final
      *            location once all downloads succeed.
-     *            In archive-based updates, the path is inside the archive.
+     *            In archive-based updates, the path is the staged copy that was
+     *            appended to the archive, or the file in the staging directory;
+     *            {@code null} if the file was streamed into the archive.
      * @throws Throwable
      *             Freely throw any exception, it will gracefully terminate the
      *             update process and revert any file changes.
@@ -352,6 +670,24 @@ public interface UpdateHandler extends Service {
     default void doneDownloadFile(FileMetadata file, Path path) throws Throwable {
     }
 
+    /**
+     * The file was not downloaded, as the archive kept by a failed update,
+     * resumed with {@link org.update4j.UpdateOptions#resumeDownloads(boolean)},
+     * already holds it. It was hashed again, and its signature verified if a
+     * public key is set, before being reused. It is called instead of
+     * {@link #validatingFile(FileMetadata, Path)} and
+     * {@link #doneDownloadFile(FileMetadata, Path)}, and
+     * {@link UpdateContext#getUpdated()} was already updated to reflect this.
+     * 
+     * @param file
+     *            The file that was reused.
+     * @throws Throwable
+     *             Freely throw any exception, it will gracefully terminate the
+     *             update process and revert any file changes.
+     */
+    default void reusedFile(FileMetadata file) throws Throwable {
+    }
+
     /**
      * <b>If the update was a regular — non-temp — update:</b> All downloads
      * completed and all temporary files were moved to its final location. If an
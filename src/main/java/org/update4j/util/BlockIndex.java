@@ -0,0 +1,266 @@
+/*
+ * Copyright 2020 Mordechai Meisels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.update4j.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A zsync-style index of the blocks of a file, used to rebuild it from the
+ * blocks of a different local version, downloading only the blocks that were
+ * not found locally.
+ *
+ * <p>
+ * The index lists a weak rolling checksum and a strong (truncated SHA-256)
+ * checksum for each fixed size block:
+ *
+ * <pre>
+ * header: 'U' '4' 'J' 'B' version(1) blockSize(int) size(long)
+ * blocks: weak(int) strong(16 bytes), for each block
+ * </pre>
+ *
+ * The last block may be shorter than the block size.
+ */
+public class BlockIndex {
+
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    private static final byte[] MAGIC = { 'U', '4', 'J', 'B' };
+    private static final int VERSION = 1;
+    private static final int STRONG_LENGTH = 16;
+
+    private final int blockSize;
+    private final long size;
+    private final int[] weak;
+    private final byte[] strong;
+
+    private BlockIndex(int blockSize, long size, int[] weak, byte[] strong) {
+        this.blockSize = blockSize;
+        this.size = size;
+        this.weak = weak;
+        this.strong = strong;
+    }
+
+    /**
+     * Writes the block index of {@code file} to {@code index}.
+     */
+    public static void write(Path file, Path index) throws IOException {
+        write(file, index, DEFAULT_BLOCK_SIZE);
+    }
+
+    public static void write(Path file, Path index, int blockSize) throws IOException {
+        if (blockSize < 1)
+            throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+
+        MessageDigest md = sha256();
+        byte[] block = new byte[blockSize];
+
+        try (InputStream in = Files.newInputStream(file);
+                        DataOutputStream out = new DataOutputStream(
+                                        new BufferedOutputStream(Files.newOutputStream(index)))) {
+
+            out.write(MAGIC);
+            out.write(VERSION);
+            out.writeInt(blockSize);
+            out.writeLong(Files.size(file));
+
+            int read;
+            while ((read = in.readNBytes(block, 0, blockSize)) > 0) {
+                out.writeInt(RollingChecksum.of(block, 0, read));
+                md.update(block, 0, read);
+                out.write(md.digest(), 0, STRONG_LENGTH);
+            }
+        }
+    }
+
+    /**
+     * Reads a block index written by {@link #write(Path, Path, int)}.
+     */
+    public static BlockIndex read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+
+        byte[] header = new byte[MAGIC.length + 1];
+        data.readFully(header);
+        if (!Arrays.equals(header, 0, MAGIC.length, MAGIC, 0, MAGIC.length) || header[MAGIC.length] != VERSION)
+            throw new IOException("Not a block index or unsupported version");
+
+        int blockSize = data.readInt();
+        long size = data.readLong();
+        if (blockSize < 1 || blockSize > Integer.MAX_VALUE / 2 || size < 0 || (size + blockSize - 1) / blockSize > Integer.MAX_VALUE / STRONG_LENGTH)
+            throw new IOException("Malformed block index");
+
+        int count = (int) ((size + blockSize - 1) / blockSize);
+        int[] weak = new int[count];
+        byte[] strong = new byte[count * STRONG_LENGTH];
+
+        for (int i = 0; i < count; i++) {
+            weak[i] = data.readInt();
+            data.readFully(strong, i * STRONG_LENGTH, STRONG_LENGTH);
+        }
+
+        return new BlockIndex(blockSize, size, weak, strong);
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int getBlockCount() {
+        return weak.length;
+    }
+
+    public long getBlockOffset(int block) {
+        return (long) block * blockSize;
+    }
+
+    public int getBlockLength(int block) {
+        return (int) Math.min(blockSize, size - getBlockOffset(block));
+    }
+
+    /**
+     * Finds the blocks of the indexed file in {@code local}, which is scanned
+     * through a window of two blocks. Returns the offset in {@code local} of each
+     * block, or -1 if it was not found.
+     */
+    public long[] match(Path local) throws IOException {
+        MessageDigest md = sha256();
+
+        long[] found = new long[weak.length];
+        Arrays.fill(found, -1);
+
+        int full = (int) (size / blockSize);
+        Map<Integer, List<Integer>> lookup = new HashMap<>();
+        for (int i = 0; i < full; i++) {
+            lookup.computeIfAbsent(weak[i], k -> new ArrayList<>(1)).add(i);
+        }
+
+        try (FileChannel channel = FileChannel.open(local, StandardOpenOption.READ)) {
+            ByteBuffer window = ByteBuffer.allocate(2 * blockSize);
+            byte[] data = window.array();
+
+            // the offset in the file of data[0]
+            long base = 0;
+            boolean eof = false;
+
+            RollingChecksum checksum = new RollingChecksum(blockSize);
+            boolean rolling = false;
+            int i = 0;
+
+            while (!lookup.isEmpty()) {
+                // rolling needs the byte following the block too
+                if (!eof && i + blockSize >= window.position()) {
+                    int kept = window.position() - i;
+                    System.arraycopy(data, i, data, 0, kept);
+                    base += i;
+                    i = 0;
+
+                    window.position(kept);
+                    while (window.hasRemaining() && !eof) {
+                        eof = channel.read(window) < 0;
+                    }
+                }
+
+                int limit = window.position();
+                if (i + blockSize > limit)
+                    break;
+
+                if (!rolling) {
+                    checksum.reset(data, i);
+                    rolling = true;
+                }
+
+                boolean matched = false;
+                List<Integer> candidates = lookup.get(checksum.getValue());
+                if (candidates != null) {
+                    md.update(data, i, blockSize);
+                    byte[] hash = md.digest();
+
+                    for (int c = candidates.size() - 1; c >= 0; c--) {
+                        int block = candidates.get(c);
+                        if (Arrays.equals(hash, 0, STRONG_LENGTH, strong, block * STRONG_LENGTH,
+                                        (block + 1) * STRONG_LENGTH)) {
+                            found[block] = base + i;
+                            candidates.remove(c);
+                            matched = true;
+                        }
+                    }
+
+                    if (candidates.isEmpty())
+                        lookup.remove(checksum.getValue());
+                }
+
+                if (matched) {
+                    i += blockSize;
+                    rolling = false;
+                } else {
+                    if (i + blockSize < limit)
+                        checksum.roll(data[i], data[i + blockSize]);
+                    i++;
+                }
+            }
+
+            // a short last block can only be matched at the end of the local file
+            if (full < weak.length) {
+                int length = getBlockLength(full);
+                long offset = channel.size() - length;
+
+                if (offset >= 0) {
+                    ByteBuffer tail = ByteBuffer.allocate(length);
+                    while (tail.hasRemaining() && channel.read(tail, offset + tail.position()) >= 0)
+                        ;
+
+                    byte[] last = tail.array();
+                    if (!tail.hasRemaining() && RollingChecksum.of(last, 0, length) == weak[full]) {
+                        md.update(last, 0, length);
+                        if (Arrays.equals(md.digest(), 0, STRONG_LENGTH, strong, full * STRONG_LENGTH,
+                                        (full + 1) * STRONG_LENGTH)) {
+                            found[full] = offset;
+                        }
+                    }
+                }
+            }
+        }
+
+        return found;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2020 Mordechai Meisels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.update4j.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Creates and applies binary delta patches.
+ *
+ * <p>
+ * A patch is a 5 byte header followed by a deflated stream of instructions,
+ * each either copying a range of the base file or inserting literal bytes:
+ *
+ * <pre>
+ * header: 'U' '4' 'J' 'D' version(1)
+ * copy:   0x01 offset(varint) length(varint)
+ * insert: 0x02 length(varint) bytes
+ * end:    0x00
+ * </pre>
+ *
+ * Matches are found by indexing the base file in fixed blocks by a rolling
+ * checksum and sliding the checksum over the target, so content that moved
+ * (as in a jar where one entry grew) is still matched.
+ */
+public class Delta {
+
+    public static final int DEFAULT_BLOCK_SIZE = 1024;
+
+    private static final byte[] MAGIC = { 'U', '4', 'J', 'D' };
+    private static final int VERSION = 1;
+
+    private static final int END = 0x00;
+    private static final int COPY = 0x01;
+    private static final int INSERT = 0x02;
+
+    private Delta() {
+    }
+
+    /**
+     * Writes a patch that turns {@code base} into {@code target}. Both files are
+     * read into memory.
+     */
+    public static void diff(Path base, Path target, Path patch) throws IOException {
+        diff(base, target, patch, DEFAULT_BLOCK_SIZE);
+    }
+
+    public static void diff(Path base, Path target, Path patch, int blockSize) throws IOException {
+        byte[] a = Files.readAllBytes(base);
+        byte[] b = Files.readAllBytes(target);
+
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(patch))) {
+            out.write(MAGIC);
+            out.write(VERSION);
+
+            DeflaterOutputStream deflater = new DeflaterOutputStream(out);
+            new Encoder(a, b, blockSize, deflater).encode();
+            deflater.finish();
+        }
+    }
+
+    /**
+     * Returns a stream of the target file, reconstructed from {@code base} and
+     * the given patch stream. The patch stream is read to its end once the target
+     * is complete, and closed when the returned stream is closed.
+     */
+    public static InputStream apply(Path base, InputStream patch) throws IOException {
+        byte[] header = new byte[MAGIC.length + 1];
+        new DataInputStream(patch).readFully(header);
+        if (!Arrays.equals(header, 0, MAGIC.length, MAGIC, 0, MAGIC.length) || header[MAGIC.length] != VERSION)
+            throw new IOException("Not a delta patch or unsupported version");
+
+        return new Decoder(FileChannel.open(base, StandardOpenOption.READ), patch);
+    }
+
+    private static void writeVarLong(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0)
+                throw new EOFException("Truncated delta patch");
+
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+
+        throw new IOException("Malformed delta patch");
+    }
+
+    private static class Encoder {
+        private final byte[] a;
+        private final byte[] b;
+        private final int blockSize;
+        private final OutputStream out;
+
+        // pending copy, merged with the next one if contiguous
+        private long copyOffset = -1;
+        private long copyLength;
+
+        Encoder(byte[] a, byte[] b, int blockSize, OutputStream out) {
+            this.a = a;
+            this.b = b;
+            this.blockSize = blockSize;
+            this.out = out;
+        }
+
+        void encode() throws IOException {
+            Map<Integer, List<Integer>> index = new HashMap<>();
+            for (int o = 0; o + blockSize <= a.length; o += blockSize) {
+                index.computeIfAbsent(RollingChecksum.of(a, o, blockSize), k -> new ArrayList<>(1)).add(o);
+            }
+
+            RollingChecksum weak = new RollingChecksum(blockSize);
+            int literal = 0;
+            int i = 0;
+            boolean rolling = false;
+
+            while (i + blockSize <= b.length) {
+                if (!rolling) {
+                    weak.reset(b, i);
+                    rolling = true;
+                }
+
+                int match = -1;
+                List<Integer> candidates = index.get(weak.getValue());
+                if (candidates != null) {
+                    for (int o : candidates) {
+                        if (Arrays.equals(a, o, o + blockSize, b, i, i + blockSize)) {
+                            match = o;
+                            break;
+                        }
+                    }
+                }
+
+                if (match < 0) {
+                    if (i + blockSize < b.length)
+                        weak.roll(b[i], b[i + blockSize]);
+                    i++;
+                    continue;
+                }
+
+                // grow the match in both directions
+                int start = i;
+                int from = match;
+                while (start > literal && from > 0 && a[from - 1] == b[start - 1]) {
+                    start--;
+                    from--;
+                }
+
+                int end = i + blockSize;
+                int to = match + blockSize;
+                while (end < b.length && to < a.length && a[to] == b[end]) {
+                    end++;
+                    to++;
+                }
+
+                insert(literal, start);
+                copy(from, end - start);
+
+                i = end;
+                literal = end;
+                rolling = false;
+            }
+
+            insert(literal, b.length);
+            flushCopy();
+            out.write(END);
+        }
+
+        private void copy(long offset, long length) throws IOException {
+            if (copyOffset >= 0 && copyOffset + copyLength == offset) {
+                copyLength += length;
+                return;
+            }
+
+            flushCopy();
+            copyOffset = offset;
+            copyLength = length;
+        }
+
+        private void flushCopy() throws IOException {
+            if (copyOffset < 0)
+                return;
+
+            out.write(COPY);
+            writeVarLong(out, copyOffset);
+            writeVarLong(out, copyLength);
+            copyOffset = -1;
+        }
+
+        private void insert(int from, int to) throws IOException {
+            if (to <= from)
+                return;
+
+            flushCopy();
+            out.write(INSERT);
+            writeVarLong(out, to - from);
+            out.write(b, from, to - from);
+        }
+    }
+
+    private static class Decoder extends InputStream {
+        private final FileChannel base;
+        private final InputStream raw;
+        private final InputStream ops;
+
+        private int op = -1;
+        private long position;
+        private long remaining;
+        private boolean done;
+
+        Decoder(FileChannel base, InputStream raw) {
+            this.base = base;
+            this.raw = raw;
+            this.ops = new InflaterInputStream(raw);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int read = read(one, 0, 1);
+            return read < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+
+            while (remaining == 0) {
+                if (done)
+                    return -1;
+
+                nextOp();
+            }
+
+            int n = (int) Math.min(len, remaining);
+            if (op == COPY) {
+                int read = base.read(ByteBuffer.wrap(buf, off, n), position);
+                if (read < 0)
+                    throw new EOFException("Delta patch copies beyond the end of the base file");
+
+                n = read;
+                position += n;
+            } else {
+                n = ops.read(buf, off, n);
+                if (n < 0)
+                    throw new EOFException("Truncated delta patch");
+            }
+
+            remaining -= n;
+            return n;
+        }
+
+        private void nextOp() throws IOException {
+            op = ops.read();
+            switch (op) {
+            case END:
+                done = true;
+
+                // consume the rest, so a checksum of the raw stream is complete
+                byte[] drain = new byte[1024 * 8];
+                while (raw.read(drain) >= 0)
+                    ;
+                break;
+            case COPY:
+                position = readVarLong(ops);
+                remaining = readVarLong(ops);
+                break;
+            case INSERT:
+                remaining = readVarLong(ops);
+                break;
+            case -1:
+                throw new EOFException("Truncated delta patch");
+            default:
+                throw new IOException("Malformed delta patch");
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                base.close();
+            } finally {
+                ops.close();
+            }
+        }
+    }
+}
@@ -17,11 +17,12 @@ package org.update4j.util;
 
 import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.net.URI;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.AccessDeniedException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
@@ -38,13 +39,17 @@ import java.security.SignatureException;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.zip.Adler32;
 import java.util.zip.ZipFile;
 
+import org.update4j.BufferPool;
+import org.update4j.ChecksumAlgorithm;
 import org.update4j.OS;
 
 public class FileUtils {
@@ -55,22 +60,23 @@ public class FileUtils {
     }
 
     public static long getChecksum(Path path) throws IOException {
-        try (InputStream input = Files.newInputStream(path)) {
-            Adler32 checksum = new Adler32();
-            byte[] buf = new byte[1024 * 8];
+        Adler32 checksum = new Adler32();
+        read(path, BufferPool.getDefault().acquireDirect(), checksum::update);
 
-            int read;
-            while ((read = input.read(buf, 0, buf.length)) > -1)
-                checksum.update(buf, 0, read);
-
-            return checksum.getValue();
-        }
+        return checksum.getValue();
     }
 
     public static String getChecksumString(Path path) throws IOException {
         return Long.toHexString(getChecksum(path));
     }
 
+    public static String getChecksumString(Path path, ChecksumAlgorithm algorithm) throws IOException {
+        Hasher hasher = Hasher.of(algorithm);
+        read(path, BufferPool.getDefault().acquireDirect(), hasher::update);
+
+        return hasher.getValue();
+    }
+
     public static boolean isJarFile(Path path) throws IOException {
         if (!isZipFile(path)) {
             return false;
@@ -103,12 +109,8 @@ public class FileUtils {
             Signature sign = getSignature(key);
             sign.initSign(key);
 
-            try (InputStream input = Files.newInputStream(path)) {
-                byte[] buf = new byte[1024 * 8];
-                int len;
-                while ((len = input.read(buf, 0, buf.length)) > 0)
-                    sign.update(buf, 0, len);
-            }
+            // signatures copy direct buffers into a new array on every update
+            read(path, BufferPool.getDefault().acquireHeap(), sign::update);
 
             return sign.sign();
         } catch (InvalidKeyException | SignatureException e) {
@@ -116,6 +118,28 @@ public class FileUtils {
         } 
     }
 
+    @FunctionalInterface
+    private interface Chunks {
+        void accept(ByteBuffer chunk) throws SignatureException;
+    }
+
+    /*
+     * Reads the file through a channel into the pooled buffer, which is released once done.
+     */
+    private static void read(Path path, ByteBuffer buffer, Chunks chunks) throws IOException {
+        try (FileChannel channel = FileChannel.open(path)) {
+            while (channel.read(buffer) > -1) {
+                buffer.flip();
+                chunks.accept(buffer);
+                buffer.clear();
+            }
+        } catch (SignatureException e) {
+            throw new IOException(e);
+        } finally {
+            BufferPool.getDefault().release(buffer);
+        }
+    }
+
     public static String signAndEncode(Path path, PrivateKey key) throws IOException {
         return Base64.getEncoder().encodeToString(sign(path, key));
     }
@@ -255,6 +279,20 @@ public class FileUtils {
         }
     }
 
+    /*
+     * Deletes the directory and everything in it, if it exists.
+     */
+    public static void deleteDirectory(Path path) throws IOException {
+        if (Files.notExists(path))
+            return;
+
+        try (Stream<Path> walk = Files.walk(path)) {
+            for (Path p : (Iterable<Path>) walk.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        }
+    }
+
     public static void delayedDelete(Collection<Path> files, int secondsDelay) {
         secondsDelay = Math.max(secondsDelay, 1);
         List<String> commands = new ArrayList<>();
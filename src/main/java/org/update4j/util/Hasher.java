@@ -0,0 +1,115 @@
+/*
+ * Copyright 2020 Mordechai Meisels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.update4j.util;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+import org.update4j.ChecksumAlgorithm;
+
+/**
+ * Incrementally computes the checksum of a file in the given
+ * {@link ChecksumAlgorithm}.
+ */
+public abstract class Hasher {
+
+    public static Hasher of(ChecksumAlgorithm algorithm) {
+        switch (algorithm) {
+        case ADLER32:
+            return new ChecksumHasher(new Adler32());
+        case CRC32C:
+            return new ChecksumHasher(new CRC32C());
+        case SHA256:
+            try {
+                return new DigestHasher(MessageDigest.getInstance("SHA-256"));
+            } catch (NoSuchAlgorithmException e) {
+                // every JVM must support SHA-256
+                throw new AssertionError(e);
+            }
+        default:
+            throw new IllegalArgumentException("Unsupported checksum algorithm: " + algorithm);
+        }
+    }
+
+    public abstract void update(byte[] b, int off, int len);
+
+    public abstract void update(ByteBuffer buffer);
+
+    /**
+     * Returns the checksum as lowercase hex, in the canonical form of the
+     * algorithm. Must only be called once.
+     */
+    public abstract String getValue();
+
+    private static class ChecksumHasher extends Hasher {
+        private final Checksum checksum;
+
+        ChecksumHasher(Checksum checksum) {
+            this.checksum = checksum;
+        }
+
+        @Override
+        public void update(byte[] b, int off, int len) {
+            checksum.update(b, off, len);
+        }
+
+        @Override
+        public void update(ByteBuffer buffer) {
+            checksum.update(buffer);
+        }
+
+        @Override
+        public String getValue() {
+            return Long.toHexString(checksum.getValue());
+        }
+    }
+
+    private static class DigestHasher extends Hasher {
+        private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+        private final MessageDigest digest;
+
+        DigestHasher(MessageDigest digest) {
+            this.digest = digest;
+        }
+
+        @Override
+        public void update(byte[] b, int off, int len) {
+            digest.update(b, off, len);
+        }
+
+        @Override
+        public void update(ByteBuffer buffer) {
+            digest.update(buffer);
+        }
+
+        @Override
+        public String getValue() {
+            byte[] hash = digest.digest();
+            char[] hex = new char[hash.length * 2];
+            for (int i = 0; i < hash.length; i++) {
+                hex[i * 2] = HEX[(hash[i] >> 4) & 0xf];
+                hex[i * 2 + 1] = HEX[hash[i] & 0xf];
+            }
+
+            return new String(hex);
+        }
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ * Copyright 2020 Mordechai Meisels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.update4j.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * An index of the entries of a jar file, used to rebuild it from the entries
+ * of a different local version, downloading only the entries that changed.
+ *
+ * <p>
+ * The jar is described as a sequence of segments covering the whole file. The
+ * compressed data of each entry is an entry segment, listed by its SHA-256;
+ * everything in between (local headers, data descriptors and the central
+ * directory) is a literal segment, stored inline. Rebuilding is byte for byte,
+ * so the result can be verified against the checksum of the original.
+ *
+ * <pre>
+ * header:  'U' '4' 'J' 'J' version(1) size(long)
+ * deflated:
+ *   literal: 0x01 length(int) bytes
+ *   entry:   0x02 length(long) sha256(32 bytes)
+ *   end:     0x00
+ * </pre>
+ *
+ * Entry data is matched by content, so an entry whose local header changed (as
+ * its timestamp in a rebuilt jar) is still reused. Zip64 entries are kept as
+ * literals.
+ */
+public class JarIndex {
+
+    private static final byte[] MAGIC = { 'U', '4', 'J', 'J' };
+    private static final int VERSION = 1;
+
+    private static final int END = 0x00;
+    private static final int LITERAL = 0x01;
+    private static final int ENTRY = 0x02;
+
+    private static final int HASH_LENGTH = 32;
+    private static final int CHUNK = 64 * 1024;
+
+    private final long size;
+    private final long[] offsets;
+    private final long[] lengths;
+    private final byte[][] literals;
+    private final byte[][] hashes;
+
+    private JarIndex(long size, long[] offsets, long[] lengths, byte[][] literals, byte[][] hashes) {
+        this.size = size;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.literals = literals;
+        this.hashes = hashes;
+    }
+
+    /**
+     * Writes the index of {@code jar} to {@code index}. The jar is read in
+     * bounded chunks.
+     *
+     * @throws IOException
+     *             If the file is not a valid zip file, or could not be read or
+     *             written.
+     */
+    public static void write(Path jar, Path index) throws IOException {
+        try (FileChannel channel = FileChannel.open(jar, StandardOpenOption.READ)) {
+            long size = channel.size();
+            List<long[]> entries = entries(channel);
+            entries.sort(Comparator.comparingLong(e -> e[0]));
+
+            MessageDigest md = sha256();
+            ByteBuffer buffer = ByteBuffer.allocate(CHUNK);
+
+            try (DataOutputStream out = new DataOutputStream(
+                            new BufferedOutputStream(Files.newOutputStream(index)))) {
+                out.write(MAGIC);
+                out.write(VERSION);
+                out.writeLong(size);
+
+                DeflaterOutputStream deflater = new DeflaterOutputStream(out);
+                DataOutputStream ops = new DataOutputStream(deflater);
+
+                long position = 0;
+                for (long[] entry : entries) {
+                    long offset = entry[0];
+                    long length = entry[1];
+
+                    // overlapping entries are left in the literals
+                    if (offset < position)
+                        continue;
+
+                    if (offset > position)
+                        writeLiteral(channel, position, offset - position, buffer, ops);
+
+                    ops.write(ENTRY);
+                    ops.writeLong(length);
+                    ops.write(hash(channel, offset, length, buffer, md));
+
+                    position = offset + length;
+                }
+
+                if (position < size)
+                    writeLiteral(channel, position, size - position, buffer, ops);
+
+                ops.write(END);
+                ops.flush();
+                deflater.finish();
+            }
+        }
+    }
+
+    /*
+     * Long literals are split, so none is larger than a chunk when read back.
+     */
+    private static void writeLiteral(FileChannel channel, long position, long length, ByteBuffer buffer,
+                    DataOutputStream ops) throws IOException {
+        while (length > 0) {
+            int chunk = (int) Math.min(length, buffer.capacity());
+            fill(channel, position, chunk, buffer);
+
+            ops.write(LITERAL);
+            ops.writeInt(chunk);
+            ops.write(buffer.array(), 0, chunk);
+
+            position += chunk;
+            length -= chunk;
+        }
+    }
+
+    /**
+     * Reads an index written by {@link #write(Path, Path)}.
+     */
+    public static JarIndex read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+
+        byte[] header = new byte[MAGIC.length + 1];
+        data.readFully(header);
+        if (!Arrays.equals(header, 0, MAGIC.length, MAGIC, 0, MAGIC.length) || header[MAGIC.length] != VERSION)
+            throw new IOException("Not a jar index or unsupported version");
+
+        long size = data.readLong();
+        DataInputStream ops = new DataInputStream(new InflaterInputStream(in));
+
+        List<Long> offsets = new ArrayList<>();
+        List<Long> lengths = new ArrayList<>();
+        List<byte[]> literals = new ArrayList<>();
+        List<byte[]> hashes = new ArrayList<>();
+
+        long position = 0;
+        int op;
+        while ((op = ops.readUnsignedByte()) != END) {
+            long length;
+            if (op == LITERAL) {
+                length = ops.readInt();
+                if (length < 0 || position + length > size)
+                    throw new IOException("Malformed jar index");
+
+                byte[] literal = new byte[(int) length];
+                ops.readFully(literal);
+                literals.add(literal);
+                hashes.add(null);
+            } else if (op == ENTRY) {
+                length = ops.readLong();
+                if (length < 0 || position + length > size)
+                    throw new IOException("Malformed jar index");
+
+                byte[] hash = new byte[HASH_LENGTH];
+                ops.readFully(hash);
+                literals.add(null);
+                hashes.add(hash);
+            } else {
+                throw new IOException("Malformed jar index");
+            }
+
+            offsets.add(position);
+            lengths.add(length);
+            position += length;
+        }
+
+        if (position != size)
+            throw new IOException("Jar index does not cover the whole file");
+
+        return new JarIndex(size, offsets.stream().mapToLong(Long::longValue).toArray(),
+                        lengths.stream().mapToLong(Long::longValue).toArray(), literals.toArray(new byte[0][]),
+                        hashes.toArray(new byte[0][]));
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int getSegmentCount() {
+        return offsets.length;
+    }
+
+    public long getOffset(int segment) {
+        return offsets[segment];
+    }
+
+    public long getLength(int segment) {
+        return lengths[segment];
+    }
+
+    /**
+     * Returns the content of a literal segment, or {@code null} if it is an entry
+     * segment.
+     */
+    public byte[] getLiteral(int segment) {
+        return literals[segment];
+    }
+
+    /**
+     * Finds the entry segments in the local jar, which is read in bounded
+     * chunks. Returns the offset in {@code local} of each entry segment's data,
+     * or -1 if it was not found or is a literal segment.
+     */
+    public long[] match(Path local) throws IOException {
+        long[] found = new long[offsets.length];
+        Arrays.fill(found, -1);
+
+        Set<Long> wanted = new HashSet<>();
+        for (int i = 0; i < offsets.length; i++) {
+            if (hashes[i] != null)
+                wanted.add(lengths[i]);
+        }
+
+        Map<String, Long> byHash = new HashMap<>();
+        try (FileChannel channel = FileChannel.open(local, StandardOpenOption.READ)) {
+            List<long[]> entries;
+            try {
+                entries = entries(channel);
+            } catch (IOException e) {
+                // not a jar anymore, nothing to reuse
+                return found;
+            }
+
+            MessageDigest md = sha256();
+            ByteBuffer buffer = ByteBuffer.allocate(CHUNK);
+            for (long[] entry : entries) {
+                // only an entry of the same length can match
+                if (wanted.contains(entry[1]))
+                    byHash.putIfAbsent(key(hash(channel, entry[0], entry[1], buffer, md), entry[1]), entry[0]);
+            }
+        }
+
+        for (int i = 0; i < offsets.length; i++) {
+            if (hashes[i] != null)
+                found[i] = byHash.getOrDefault(key(hashes[i], lengths[i]), -1L);
+        }
+
+        return found;
+    }
+
+    private static String key(byte[] hash, long length) {
+        return length + ":" + Arrays.toString(hash);
+    }
+
+    /*
+     * Returns the offset and length of the compressed data of each non-empty entry,
+     * as listed in the central directory.
+     */
+    private static List<long[]> entries(FileChannel channel) throws IOException {
+        long size = channel.size();
+
+        // end of central directory, followed by a comment of up to 64k
+        int tailLength = (int) Math.min(size, 22 + 0xFFFF);
+        ByteBuffer tail = read(channel, size - tailLength, tailLength);
+
+        int eocd = -1;
+        for (int i = tailLength - 22; i >= 0; i--) {
+            if (tail.getInt(i) == 0x06054b50) {
+                eocd = i;
+                break;
+            }
+        }
+
+        if (eocd < 0)
+            throw new IOException("Not a zip file");
+
+        int count = Short.toUnsignedInt(tail.getShort(eocd + 10));
+        long cdSize = Integer.toUnsignedLong(tail.getInt(eocd + 12));
+        long cdOffset = Integer.toUnsignedLong(tail.getInt(eocd + 16));
+        if (cdOffset >= size || cdOffset + cdSize > size || cdSize > Integer.MAX_VALUE)
+            throw new IOException("Unsupported zip file");
+
+        ByteBuffer cd = read(channel, cdOffset, (int) cdSize);
+
+        List<long[]> entries = new ArrayList<>();
+        int pos = 0;
+        for (int i = 0; i < count; i++) {
+            if (pos + 46 > cd.limit() || cd.getInt(pos) != 0x02014b50)
+                throw new IOException("Malformed zip central directory");
+
+            long compressed = Integer.toUnsignedLong(cd.getInt(pos + 20));
+            int nameLength = Short.toUnsignedInt(cd.getShort(pos + 28));
+            int extraLength = Short.toUnsignedInt(cd.getShort(pos + 30));
+            int commentLength = Short.toUnsignedInt(cd.getShort(pos + 32));
+            long localOffset = Integer.toUnsignedLong(cd.getInt(pos + 42));
+
+            pos += 46 + nameLength + extraLength + commentLength;
+
+            // zip64 values live in the extra field
+            if (compressed == 0xFFFFFFFFL || localOffset == 0xFFFFFFFFL || compressed == 0)
+                continue;
+
+            if (localOffset + 30 > size)
+                throw new IOException("Malformed zip local header");
+
+            ByteBuffer header = read(channel, localOffset, 30);
+            if (header.getInt(0) != 0x04034b50)
+                throw new IOException("Malformed zip local header");
+
+            long dataOffset = localOffset + 30 + Short.toUnsignedInt(header.getShort(26))
+                            + Short.toUnsignedInt(header.getShort(28));
+
+            if (dataOffset + compressed > cdOffset)
+                throw new IOException("Malformed zip entry");
+
+            entries.add(new long[] { dataOffset, compressed });
+        }
+
+        return entries;
+    }
+
+    private static byte[] hash(FileChannel channel, long position, long length, ByteBuffer buffer, MessageDigest md)
+                    throws IOException {
+        while (length > 0) {
+            int chunk = (int) Math.min(length, buffer.capacity());
+            fill(channel, position, chunk, buffer);
+            md.update(buffer.array(), 0, chunk);
+
+            position += chunk;
+            length -= chunk;
+        }
+
+        return md.digest();
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        fill(channel, position, length, buffer);
+
+        return buffer;
+    }
+
+    private static void fill(FileChannel channel, long position, int length, ByteBuffer buffer) throws IOException {
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException("Unexpected end of zip file");
+        }
+
+        buffer.flip();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2020 Mordechai Meisels
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.update4j.util;
+
+/*
+ * The rsync weak checksum over a fixed window, which can slide one byte
+ * at a time in constant time.
+ */
+class RollingChecksum {
+
+    private final int window;
+    private int s1;
+    private int s2;
+
+    RollingChecksum(int window) {
+        this.window = window;
+    }
+
+    void reset(byte[] data, int offset) {
+        s1 = 0;
+        s2 = 0;
+        for (int k = 0; k < window; k++) {
+            s1 += data[offset + k] & 0xff;
+            s2 += s1;
+        }
+    }
+
+    /*
+     * Slides the window one byte, dropping the first byte and adding the next.
+     */
+    void roll(byte dropped, byte added) {
+        int out = dropped & 0xff;
+        s1 += (added & 0xff) - out;
+        s2 += s1 - window * out;
+    }
+
+    int getValue() {
+        return (s1 & 0xffff) | (s2 << 16);
+    }
+
+    static int of(byte[] data, int offset, int window) {
+        RollingChecksum checksum = new RollingChecksum(window);
+        checksum.reset(data, offset);
+
+        return checksum.getValue();
+    }
+}
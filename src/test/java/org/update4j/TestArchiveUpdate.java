@@ -0,0 +1,1017 @@
+package org.update4j;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.update4j.service.UpdateHandler;
+import org.update4j.util.BlockIndex;
+import org.update4j.util.FileUtils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestArchiveUpdate {
+
+    @TempDir
+    Path tempDir;
+
+    private Path sourceDir;
+    private Path installDir;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        sourceDir = tempDir.resolve("source");
+        installDir = tempDir.resolve("install");
+        Files.createDirectories(sourceDir);
+        Files.createDirectories(installDir);
+    }
+
+    @Test
+    public void testConcurrentDownloads() throws Exception {
+        Configuration config = buildConfig(12, 64 * 1024);
+        RecordingHandler handler = new RecordingHandler();
+
+        UpdateResult result = config.update(UpdateOptions.archive(tempDir.resolve("update.zip"))
+                        .updateHandler(handler)
+                        .concurrentDownloads(4)
+                        .concurrentDownloadsPerHost(2));
+
+        assertNull(result.getException());
+        assertFalse(handler.overlapped, "Handler callbacks must never run concurrently");
+        assertEquals(12, handler.done.size());
+        assertEquals(1f, handler.lastProgress);
+
+        for (String file : handler.started) {
+            assertTrue(handler.done.contains(file));
+        }
+
+        Archive.read(tempDir.resolve("update.zip")).install();
+        assertFalse(config.requiresUpdate());
+    }
+
+    @Test
+    public void testConcurrentDownloadFailureDeletesArchive() throws Exception {
+        Configuration config = buildConfig(8, 16 * 1024);
+        Files.delete(sourceDir.resolve("file3.bin"));
+
+        UpdateResult result = config.update(UpdateOptions.archive(tempDir.resolve("update.zip"))
+                        .updateHandler(new RecordingHandler())
+                        .concurrentDownloads(3));
+
+        assertNotNull(result.getException());
+        assertTrue(Files.notExists(tempDir.resolve("update.zip")));
+    }
+
+    @Test
+    public void testChecksumMismatchDetectedWhileDownloading() throws Exception {
+        Configuration config = buildConfig(4, 16 * 1024);
+
+        // same size, different content
+        Path tampered = sourceDir.resolve("file2.bin");
+        byte[] content = Files.readAllBytes(tampered);
+        content[content.length / 2] ^= 1;
+        Files.write(tampered, content);
+
+        UpdateResult result = config.update(UpdateOptions.archive(tempDir.resolve("update.zip"))
+                        .updateHandler(new RecordingHandler())
+                        .concurrentDownloads(2));
+
+        assertTrue(result.getException() instanceof IllegalStateException);
+        assertTrue(result.getException().getMessage().startsWith("Checksum mismatch for file 'file2.bin'"));
+        assertTrue(Files.notExists(tempDir.resolve("update.zip")));
+    }
+
+    @Test
+    public void testStreamedDownloads() throws Exception {
+        Configuration config = buildConfig(4, 64 * 1024);
+        Path zip = tempDir.resolve("update.zip");
+        UpdateOptions.ArchiveUpdateOptions options = UpdateOptions.archive(zip);
+        List<Path> paths = new ArrayList<>();
+
+        // staged by default, the handler reads the downloaded file
+        assertNull(config.update(options.updateHandler(new RecordingHandler() {
+            @Override
+            public void validatingFile(FileMetadata file, Path path) {
+                assertEquals(file.getSize(), path.toFile().length());
+                paths.add(path);
+            }
+        })).getException());
+
+        assertEquals(4, paths.size());
+        for (Path path : paths) {
+            assertEquals(options.getPartsLocation(), path.getParent());
+        }
+
+        Archive.read(zip).install();
+        assertFalse(config.requiresUpdate());
+
+        // streamed, nothing is staged and the handler gets no path
+        Files.deleteIfExists(zip);
+        FileUtils.deleteDirectory(installDir);
+        paths.clear();
+
+        assertNull(config.update(options.streamToArchive(true).updateHandler(new RecordingHandler() {
+            @Override
+            public void validatingFile(FileMetadata file, Path path) {
+                assertNull(path);
+            }
+
+            @Override
+            public void doneDownloadFile(FileMetadata file, Path path) {
+                super.doneDownloadFile(file, path);
+                assertTrue(Files.notExists(options.getPartsLocation()));
+                paths.add(path);
+            }
+        })).getException());
+
+        assertEquals(Collections.nCopies(4, null), paths);
+        Archive.read(zip).install();
+        assertFalse(config.requiresUpdate());
+    }
+
+    @Test
+    public void testChecksumMismatchWhileStreaming() throws Exception {
+        Configuration config = buildConfig(4, 16 * 1024);
+
+        Path tampered = sourceDir.resolve("file2.bin");
+        byte[] content = Files.readAllBytes(tampered);
+        content[content.length / 2] ^= 1;
+        Files.write(tampered, content);
+
+        UpdateResult result = config.update(UpdateOptions.archive(tempDir.resolve("update.zip"))
+                        .streamToArchive(true)
+                        .updateHandler(new RecordingHandler()));
+
+        assertTrue(result.getException() instanceof IllegalStateException);
+        assertTrue(result.getException().getMessage().startsWith("Checksum mismatch for file 'file2.bin'"));
+        assertTrue(Files.notExists(tempDir.resolve("update.zip")));
+    }
+
+    @Test
+    public void testResumeDownloads() throws Exception {
+        Configuration config = buildConfig(4, 64 * 1024);
+        UpdateOptions.ArchiveUpdateOptions options = UpdateOptions.archive(tempDir.resolve("update.zip"))
+                        .resumeDownloads(true);
+
+        // drop the connection halfway through file2.bin
+        UpdateResult failed = config.update(options.updateHandler(new RecordingHandler() {
+            @Override
+            public InputStream openDownloadStream(FileMetadata file) throws Throwable {
+                InputStream in = super.openDownloadStream(file);
+                if (!file.getPath().endsWith("file2.bin"))
+                    return in;
+
+                return new FilterInputStream(in) {
+                    private int count;
+
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        if (count >= 32 * 1024)
+                            throw new IOException("Connection reset");
+
+                        int read = super.read(b, off, Math.min(len, 32 * 1024 - count));
+                        count += Math.max(read, 0);
+                        return read;
+                    }
+                };
+            }
+        }));
+
+        assertNotNull(failed.getException());
+        assertTrue(Files.notExists(tempDir.resolve("update.zip")));
+        assertTrue(Files.isDirectory(options.getPartsLocation()));
+
+        // only the part in flight is kept, those archived were deleted
+        try (Stream<Path> parts = Files.list(options.getPartsLocation())) {
+            assertEquals(1, parts.filter(p -> p.toString().endsWith(".part")).count());
+        }
+
+        List<Long> offsets = new ArrayList<>();
+        UpdateResult resumed = config.update(options.updateHandler(new RecordingHandler() {
+            @Override
+            public InputStream openDownloadStream(FileMetadata file, long offset) throws Throwable {
+                if (file.getPath().endsWith("file2.bin"))
+                    offsets.add(offset);
+
+                return super.openDownloadStream(file, offset);
+            }
+        }));
+
+        assertNull(resumed.getException());
+        assertEquals(List.of(32L * 1024), offsets);
+        assertTrue(Files.notExists(options.getPartsLocation()));
+
+        Archive.read(tempDir.resolve("update.zip")).install();
+        assertFalse(config.requiresUpdate());
+    }
+
+    @Test
+    public void testCorruptPartIsDiscarded() throws Exception {
+        Configuration config = buildConfig(1, 16 * 1024);
+        UpdateOptions.ArchiveUpdateOptions options = UpdateOptions.archive(tempDir.resolve("update.zip"))
+                        .resumeDownloads(true)
+                        .updateHandler(new RecordingHandler());
+
+        // a part with the right name but wrong bytes
+        FileMetadata file = config.getFiles().get(0);
+        Files.createDirectories(options.getPartsLocation());
+        Path part = options.getPartsLocation()
+                        .resolve(file.getChecksumAlgorithm().getName() + "-" + file.getChecksumString() + "-"
+                                        + Integer.toHexString(file.getNormalizedPath().toString().replace("\\", "/").hashCode())
+                                        + ".part");
+        Files.write(part, new byte[1024]);
+
+        assertNotNull(config.update(options).getException());
+        assertTrue(Files.notExists(part));
+
+        assertNull(config.update(options).getException());
+    }
+
+    @Test
+    public void testChecksumAlgorithms() throws Exception {
+        buildConfig(3, 4 * 1024);
+
+        Configuration built = Configuration.builder()
+                        .baseUri(sourceDir.toUri())
+                        .basePath(installDir)
+                        .checksumAlgorithm(ChecksumAlgorithm.SHA256)
+                        .file(FileMetadata.readFrom(sourceDir.resolve("file0.bin")).path("file0.bin"))
+                        .file(FileMetadata.readFrom(sourceDir.resolve("file1.bin"))
+                                        .path("file1.bin")
+                                        .checksumAlgorithm(ChecksumAlgorithm.CRC32C))
+                        .file(FileMetadata.readFrom(sourceDir.resolve("file2.bin"))
+                                        .path("file2.bin")
+                                        .checksumAlgorithm(ChecksumAlgorithm.ADLER32))
+                        .build();
+
+        String xml = built.toString();
+        assertTrue(xml.contains("checksumAlgorithm=\"sha256\""));
+        assertTrue(xml.contains("checksumAlgorithm=\"crc32c\""));
+
+        Configuration config = Configuration.read(new StringReader(xml));
+        assertEquals(ChecksumAlgorithm.SHA256, config.getFiles().get(0).getChecksumAlgorithm());
+        assertEquals(64, config.getFiles().get(0).getChecksumString().length());
+        assertEquals(ChecksumAlgorithm.CRC32C, config.getFiles().get(1).getChecksumAlgorithm());
+        assertEquals(ChecksumAlgorithm.ADLER32, config.getFiles().get(2).getChecksumAlgorithm());
+        assertEquals(FileUtils.getChecksumString(sourceDir.resolve("file2.bin")),
+                        config.getFiles().get(2).getChecksumString());
+
+        UpdateResult result = config.update(UpdateOptions.archive(tempDir.resolve("update.zip"))
+                        .updateHandler(new RecordingHandler()));
+        assertNull(result.getException());
+
+        Archive.read(tempDir.resolve("update.zip")).install();
+        assertFalse(config.requiresUpdate());
+        assertEquals(config, config.sync());
+
+        Files.write(installDir.resolve("file0.bin"), new byte[] { 1 });
+        assertTrue(config.requiresUpdate());
+    }
+
+    @Test
+    public void testConcurrentChecks() throws Exception {
+        Configuration config = buildConfig(10, 8 * 1024);
+        for (int i = 0; i < 10; i += 2) {
+            Files.copy(sourceDir.resolve("file" + i + ".bin"), installDir.resolve("file" + i + ".bin"));
+        }
+
+        assertTrue(config.requiresUpdate(UpdateOptions.archive(tempDir.resolve("update.zip")).concurrentChecks(4)));
+
+        List<String> checked = new ArrayList<>();
+        List<String> outdated = new ArrayList<>();
+        UpdateHandler handler = new RecordingHandler() {
+            @Override
+            public boolean shouldCheckForUpdate(FileMetadata file) {
+                return !file.getPath().endsWith("file9.bin");
+            }
+
+            @Override
+            public void doneCheckUpdateFile(FileMetadata file, boolean requires) {
+                checked.add(file.getPath().getFileName().toString());
+                if (requires)
+                    outdated.add(file.getPath().getFileName().toString());
+            }
+        };
+
+        UpdateResult result = config.update(UpdateOptions.archive(tempDir.resolve("update.zip"))
+                        .updateHandler(handler)
+                        .concurrentChecks(4));
+
+        assertNull(result.getException());
+        assertEquals(config.getFiles()
+                        .stream()
+                        .map(f -> f.getPath().getFileName().toString())
+                        .filter(f -> !f.equals("file9.bin"))
+                        .collect(Collectors.toList()), checked);
+        // results are reported in config order, regardless of which check finished first
+        assertEquals(checked.stream()
+                        .filter(f -> Integer.parseInt(f.replaceAll("\\D", "")) % 2 == 1)
+                        .collect(Collectors.toList()), outdated);
+        assertEquals(4, outdated.size());
+
+        Archive.read(tempDir.resolve("update.zip")).install();
+        assertTrue(config.requiresUpdate(UpdateOptions.archive(tempDir.resolve("update.zip")).concurrentChecks(4)));
+        Files.copy(sourceDir.resolve("file9.bin"), installDir.resolve("file9.bin"));
+        assertFalse(config.requiresUpdate(UpdateOptions.archive(tempDir.resolve("update.zip")).concurrentChecks(4)));
+    }
+
+    @Test
+    public void testPipelinedDownloads() throws Exception {
+        Configuration config = buildConfig(10, 32 * 1024);
+        for (int i = 0; i < 10; i += 3) {
+            Files.copy(sourceDir.resolve("file" + i + ".bin"), installDir.resolve("file" + i + ".bin"));
+        }
+
+        List<String> events = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger requiresUpdate = new AtomicInteger();
+        RecordingHandler handler = new RecordingHandler() {
+            private UpdateContext context;
+
+            @Override
+            public void init(UpdateContext context) {
+                this.context = context;
+            }
+
+            @Override
+            public void startDownloads() {
+                events.add("startDownloads");
+            }
+
+            @Override
+            public void doneCheckUpdates() {
+                events.add("doneCheckUpdates");
+                requiresUpdate.set(context.getRequiresUpdate().size());
+            }
+        };
+
+        UpdateResult result = config.update(UpdateOptions.archive(tempDir.resolve("update.zip"))
+                        .updateHandler(handler)
+                        .concurrentDownloads(2)
+                        .concurrentChecks(2)
+                        .pipelineDownloads(true));
+
+        assertNull(result.getException());
+        assertFalse(handler.overlapped, "Handler callbacks must never run concurrently");
+        // the first outdated file is queued long before the last file is checked
+        assertEquals(List.of("startDownloads", "doneCheckUpdates"), events);
+        assertEquals(6, requiresUpdate.get());
+        assertEquals(6, handler.done.size());
+        assertEquals(1f, handler.lastProgress);
+
+        Archive.read(tempDir.resolve("update.zip")).install();
+        assertFalse(config.requiresUpdate());
+
+        // nothing to download, no archive is left behind
+        Files.deleteIfExists(tempDir.resolve("update.zip"));
+        result = config.update(UpdateOptions.archive(tempDir.resolve("update.zip")).pipelineDownloads(true));
+        assertNull(result.getException());
+        assertTrue(Files.notExists(tempDir.resolve("update.zip")));
+    }
+
+    @Test
+    public void testPipelinedDownloadFailureDeletesArchive() throws Exception {
+        Configuration config = buildConfig(8, 16 * 1024);
+        Files.delete(sourceDir.resolve("file1.bin"));
+
+        UpdateResult result = config.update(UpdateOptions.archive(tempDir.resolve("update.zip"))
+                        .updateHandler(new RecordingHandler())
+                        .pipelineDownloads(true));
+
+        assertNotNull(result.getException());
+        assertTrue(Files.notExists(tempDir.resolve("update.zip")));
+    }
+
+    @Test
+    public void testCoalescedProgress() throws Exception {
+        Configuration config = buildConfig(4, 256 * 1024);
+
+        AtomicInteger fileCallbacks = new AtomicInteger();
+        List<DownloadProgress> snapshots = Collections.synchronizedList(new ArrayList<>());
+        List<Float> completed = Collections.synchronizedList(new ArrayList<>());
+        RecordingHandler handler = new RecordingHandler() {
+            private UpdateContext context;
+
+            @Override
+            public void init(UpdateContext context) {
+                this.context = context;
+            }
+
+            @Override
+            public void updateDownloadFileProgress(FileMetadata file, float frac) {
+                fileCallbacks.incrementAndGet();
+                if (frac == 1f)
+                    completed.add(frac);
+            }
+
+            @Override
+            public void doneDownloadFile(FileMetadata file, Path path) {
+                super.doneDownloadFile(file, path);
+                snapshots.add(context.getDownloadProgress());
+            }
+        };
+
+        // only the start and end of each file are published
+        UpdateResult result = config.update(UpdateOptions.archive(tempDir.resolve("update.zip"))
+                        .updateHandler(handler)
+                        .progressInterval(Duration.ofHours(1)));
+
+        assertNull(result.getException());
+        assertEquals(8, fileCallbacks.get());
+        assertEquals(4, completed.size());
+        assertEquals(1f, handler.lastProgress);
+
+        DownloadProgress last = snapshots.get(3);
+        assertEquals(4, last.getCompletedFiles());
+        assertEquals(4, last.getTotalFiles());
+        assertEquals(last.getTotalBytes(), last.getDownloadedBytes());
+        assertEquals(1f, last.getFraction());
+        assertEquals(1, snapshots.get(0).getCompletedFiles());
+
+        // by bytes, about every 64 KiB
+        fileCallbacks.set(0);
+        Files.deleteIfExists(tempDir.resolve("update.zip"));
+        result = config.update(UpdateOptions.archive(tempDir.resolve("update.zip"))
+                        .updateHandler(handler)
+                        .progressInterval(Duration.ZERO)
+                        .progressStep(64 * 1024));
+
+        assertNull(result.getException());
+        assertTrue(fileCallbacks.get() >= 16 && fileCallbacks.get() <= 30, "Got " + fileCallbacks.get());
+
+        // the legacy local copy is published at the same rates
+        fileCallbacks.set(0);
+        completed.clear();
+        Path temp = tempDir.resolve("temp");
+        result = config.update(UpdateOptions.temp(temp)
+                        .updateHandler(handler)
+                        .progressInterval(Duration.ofHours(1)));
+
+        assertNull(result.getException());
+        assertEquals(8, fileCallbacks.get());
+        assertEquals(4, completed.size());
+
+        fileCallbacks.set(0);
+        FileUtils.deleteDirectory(temp);
+        result = config.update(UpdateOptions.temp(temp)
+                        .updateHandler(handler)
+                        .progressInterval(Duration.ZERO)
+                        .progressStep(64 * 1024));
+
+        assertNull(result.getException());
+        assertTrue(fileCallbacks.get() >= 16 && fileCallbacks.get() <= 30, "Got " + fileCallbacks.get());
+
+        assertThrows(IllegalArgumentException.class,
+                        () -> UpdateOptions.archive(tempDir.resolve("update.zip")).progressStep(-1));
+    }
+
+    @Test
+    public void testPatches() throws Exception {
+        Configuration previous = buildConfig(3, 64 * 1024);
+        Path release = tempDir.resolve("release");
+        Path patchDir = tempDir.resolve("patches");
+        Files.createDirectories(release);
+
+        // install the previous release, then change one byte of each file in the next
+        for (FileMetadata file : previous.getFiles()) {
+            String name = file.getPath().getFileName().toString();
+            Files.copy(sourceDir.resolve(name), installDir.resolve(name));
+
+            byte[] content = Files.readAllBytes(sourceDir.resolve(name));
+            content[content.length / 2] ^= 1;
+            Files.write(release.resolve(name), content);
+        }
+
+        Configuration config = Configuration.builder()
+                        .baseUri(release.toUri())
+                        .basePath(installDir)
+                        .files(FileMetadata.streamDirectory(release))
+                        .patchesFrom(sourceDir, patchDir, patchDir.toUri().toString())
+                        .build();
+
+        config = Configuration.read(new StringReader(config.toString()));
+        assertEquals(1, config.getFiles().get(0).getPatches().size());
+        assertTrue(config.getFiles().get(0).getPatches().get(0).getSize() < 1024);
+
+        // a broken patch falls back to the full file
+        Files.write(patchDir.resolve("file1.bin.patch"), new byte[] { 1, 2, 3 });
+
+        List<String> downloaded = Collections.synchronizedList(new ArrayList<>());
+        List<String> patched = Collections.synchronizedList(new ArrayList<>());
+        RecordingHandler handler = new RecordingHandler() {
+            @Override
+            public InputStream openDownloadStream(FileMetadata file) throws Throwable {
+                downloaded.add(file.getPath().getFileName().toString());
+                return super.openDownloadStream(file);
+            }
+
+            @Override
+            public InputStream openPatchStream(FileMetadata file, Patch patch) throws Throwable {
+                patched.add(file.getPath().getFileName().toString());
+                return super.openPatchStream(file, patch);
+            }
+        };
+
+        UpdateResult result = config.update(UpdateOptions.archive(tempDir.resolve("update.zip"))
+                        .updateHandler(handler));
+
+        assertNull(result.getException());
+        Collections.sort(patched);
+        assertEquals(List.of("file0.bin", "file1.bin", "file2.bin"), patched);
+        assertEquals(List.of("file1.bin"), downloaded);
+        assertEquals(1f, handler.lastProgress);
+
+        Archive.read(tempDir.resolve("update.zip")).install();
+        assertFalse(config.requiresUpdate());
+    }
+
+    @Test
+    public void testBlockIndex() throws Exception {
+        Configuration previous = buildConfig(2, 256 * 1024);
+        Path release = tempDir.resolve("release");
+        Files.createDirectories(release);
+
+        // install the previous release, then insert a few bytes into each file in the next
+        for (FileMetadata file : previous.getFiles()) {
+            String name = file.getPath().getFileName().toString();
+            Files.copy(sourceDir.resolve(name), installDir.resolve(name));
+
+            byte[] content = Files.readAllBytes(sourceDir.resolve(name));
+            byte[] changed = new byte[content.length + 5];
+            System.arraycopy(content, 0, changed, 0, 100_000);
+            System.arraycopy(content, 100_000, changed, 100_005, content.length - 100_000);
+            Files.write(release.resolve(name), changed);
+        }
+
+        Configuration config = Configuration.builder()
+                        .baseUri(release.toUri())
+                        .basePath(installDir)
+                        .files(FileMetadata.streamDirectory(release))
+                        .blockIndexes(tempDir.resolve("blocks"), tempDir.resolve("blocks").toUri().toString())
+                        .build();
+
+        config = Configuration.read(new StringReader(config.toString()));
+        assertNotNull(config.getFiles().get(0).getBlockIndex());
+
+        // a missing index falls back to the full file
+        Files.delete(tempDir.resolve("blocks/file1.bin.blocks"));
+
+        List<String> full = Collections.synchronizedList(new ArrayList<>());
+        AtomicLong ranged = new AtomicLong();
+        RecordingHandler handler = new RecordingHandler() {
+            @Override
+            public InputStream openDownloadStream(FileMetadata file, long offset) throws Throwable {
+                full.add(file.getPath().getFileName().toString());
+                return super.openDownloadStream(file, offset);
+            }
+
+            @Override
+            public InputStream openDownloadStream(FileMetadata file, long offset, long length) throws Throwable {
+                ranged.addAndGet(length);
+                return super.openDownloadStream(file, offset, length);
+            }
+        };
+
+        UpdateResult result = config.update(UpdateOptions.archive(tempDir.resolve("update.zip"))
+                        .updateHandler(handler));
+
+        assertNull(result.getException());
+        assertEquals(List.of("file1.bin"), full);
+        assertTrue(ranged.get() > 0 && ranged.get() <= 2 * BlockIndex.DEFAULT_BLOCK_SIZE);
+        assertEquals(1f, handler.lastProgress);
+
+        Archive.read(tempDir.resolve("update.zip")).install();
+        assertFalse(config.requiresUpdate());
+    }
+
+    @Test
+    public void testJarIndex() throws Exception {
+        Path release = tempDir.resolve("release");
+        Files.createDirectories(release);
+
+        // rebuilt with new timestamps and one changed entry
+        TestJarIndex.writeJar(installDir.resolve("app.jar"), 1000, -1);
+        TestJarIndex.writeJar(release.resolve("app.jar"), 2000, 5);
+
+        Configuration config = Configuration.builder()
+                        .baseUri(release.toUri())
+                        .basePath(installDir)
+                        .files(FileMetadata.streamDirectory(release))
+                        .jarIndexes(tempDir.resolve("entries"), tempDir.resolve("entries").toUri().toString())
+                        .build();
+
+        config = Configuration.read(new StringReader(config.toString()));
+        assertNotNull(config.getFiles().get(0).getJarIndex());
+
+        AtomicLong ranged = new AtomicLong();
+        RecordingHandler handler = new RecordingHandler() {
+            @Override
+            public InputStream openDownloadStream(FileMetadata file, long offset) throws Throwable {
+                throw new AssertionError("Downloaded in full");
+            }
+
+            @Override
+            public InputStream openDownloadStream(FileMetadata file, long offset, long length) throws Throwable {
+                ranged.addAndGet(length);
+                return super.openDownloadStream(file, offset, length);
+            }
+        };
+
+        UpdateResult result = config.update(UpdateOptions.archive(tempDir.resolve("update.zip"))
+                        .updateHandler(handler));
+
+        assertNull(result.getException());
+        assertTrue(ranged.get() > 0 && ranged.get() < 20 * 1024);
+
+        Archive.read(tempDir.resolve("update.zip")).install();
+        assertFalse(config.requiresUpdate());
+    }
+
+    @Test
+    public void testCompressedFiles() throws Exception {
+        // two compressible files and one that does not shrink
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 5000; i++)
+            text.append("resource.key.").append(i).append("=Some repetitive value\n");
+
+        byte[] messagesContent = text.toString().getBytes();
+        Files.write(sourceDir.resolve("messages.properties"), messagesContent);
+        Files.write(sourceDir.resolve("native.so"), text.reverse().toString().getBytes());
+        byte[] random = new byte[32 * 1024];
+        new Random(1).nextBytes(random);
+        Files.write(sourceDir.resolve("random.bin"), random);
+
+        Path compressed = tempDir.resolve("compressed");
+        Configuration built = Configuration.builder()
+                        .baseUri(sourceDir.toUri())
+                        .basePath(installDir)
+                        .file(FileMetadata.readFrom(sourceDir.resolve("messages.properties")).path("messages.properties"))
+                        .file(FileMetadata.readFrom(sourceDir.resolve("native.so"))
+                                        .path("native.so")
+                                        .compress(Compression.DEFLATE, compressed.resolve("native.so.z"),
+                                                        compressed.resolve("native.so.z").toUri().toString()))
+                        .file(FileMetadata.readFrom(sourceDir.resolve("random.bin")).path("random.bin"))
+                        .compressFiles(Compression.GZIP, compressed, compressed.toUri().toString())
+                        .build();
+
+        Configuration config = Configuration.read(new StringReader(built.toString()));
+        FileMetadata messages = config.getFiles().get(0);
+        FileMetadata nativeLib = config.getFiles().get(1);
+        FileMetadata randomFile = config.getFiles().get(2);
+
+        assertEquals(Compression.GZIP, messages.getCompression());
+        assertTrue(messages.getUri().toString().endsWith("messages.properties.gz"));
+        assertEquals(installDir.resolve("messages.properties"), messages.getPath());
+        assertTrue(messages.getCompressedSize() * 5 < messages.getSize());
+
+        assertEquals(Compression.DEFLATE, nativeLib.getCompression());
+        assertTrue(nativeLib.getUri().toString().endsWith("native.so.z"));
+
+        assertNull(randomFile.getCompression());
+        assertEquals(randomFile.getSize(), randomFile.getCompressedSize());
+        assertTrue(Files.notExists(compressed.resolve("random.bin.gz")));
+
+        // the source files are gone; only the compressed copies can be downloaded
+        Files.delete(sourceDir.resolve("messages.properties"));
+        Files.delete(sourceDir.resolve("native.so"));
+
+        UpdateResult result = config.update(UpdateOptions.archive(tempDir.resolve("update.zip"))
+                        .updateHandler(new RecordingHandler())
+                        .resumeDownloads(true));
+        assertNull(result.getException());
+
+        Archive.read(tempDir.resolve("update.zip")).install();
+        assertFalse(config.requiresUpdate());
+        assertArrayEquals(messagesContent, Files.readAllBytes(installDir.resolve("messages.properties")));
+    }
+
+    @Test
+    public void testArchiveVerification() throws Exception {
+        Configuration config = buildConfig(40, 4 * 1024);
+        Path zip = tempDir.resolve("update.zip");
+        assertNull(config.update(UpdateOptions.archive(zip)).getException());
+
+        Archive parallel = Archive.read(zip, 4);
+        Archive sequential = Archive.read(zip, 1);
+        assertEquals(40, parallel.getFiles().size());
+        List<Path> paths = parallel.getFiles().stream().map(FileMetadata::getPath).collect(Collectors.toList());
+        assertEquals(sequential.getFiles().stream().map(FileMetadata::getPath).collect(Collectors.toList()), paths);
+        assertTrue(paths.containsAll(config.getFiles().stream().map(FileMetadata::getPath).collect(Collectors.toList())));
+
+        // tamper with a single entry
+        FileMetadata tampered = config.getFiles().get(17);
+        try (FileSystem fs = FileSystems.newFileSystem(zip, (ClassLoader) null)) {
+            Path entry = fs.getPath(Archive.entryName(tampered));
+            byte[] content = Files.readAllBytes(entry);
+            content[10] ^= 1;
+            Files.write(entry, content);
+        }
+
+        for (int threads : new int[] { 1, 4 }) {
+            IOException e = assertThrows(IOException.class, () -> Archive.read(zip, threads));
+            assertTrue(e.getMessage().endsWith("File has been tampered with"), e.getMessage());
+            assertTrue(e.getMessage().contains(tampered.getPath().getFileName().toString()), e.getMessage());
+        }
+
+        // an entry that is not in the configuration
+        try (FileSystem fs = FileSystems.newFileSystem(zip, (ClassLoader) null)) {
+            Files.delete(fs.getPath(Archive.entryName(tampered)));
+            Path stray = fs.getPath(Archive.entryName(tampered)).resolveSibling("stray.bin");
+            Files.write(stray, new byte[] { 1 });
+        }
+
+        assertThrows(IllegalStateException.class, () -> Archive.read(zip, 4));
+    }
+
+    @Test
+    public void testArchiveManifest() throws Exception {
+        Configuration config = buildConfig(10, 4 * 1024);
+        Path zip = tempDir.resolve("update.zip");
+        FileMetadata tampered = config.getFiles().get(4);
+
+        assertNull(config.update(UpdateOptions.archive(zip)).getException());
+        try (FileSystem fs = FileSystems.newFileSystem(zip, (ClassLoader) null)) {
+            List<String> lines = Files.readAllLines(fs.getPath(ArchiveManifest.PATH));
+            assertEquals(11, lines.size());
+            assertTrue(lines.stream().anyMatch(l -> l.endsWith(" " + Archive.entryName(tampered))));
+        }
+        assertEquals(10, Archive.read(zip).getFiles().size());
+
+        // the changed CRC is found without rehashing
+        try (FileSystem fs = FileSystems.newFileSystem(zip, (ClassLoader) null)) {
+            Path entry = fs.getPath(Archive.entryName(tampered));
+            byte[] content = Files.readAllBytes(entry);
+            content[10] ^= 1;
+            Files.write(entry, content);
+        }
+        IOException e = assertThrows(IOException.class, () -> Archive.read(zip));
+        assertTrue(e.getMessage().endsWith("File has been tampered with"), e.getMessage());
+
+        // a manifest that does not match the configuration
+        Files.delete(zip);
+        assertNull(config.update(UpdateOptions.archive(zip)).getException());
+        try (FileSystem fs = FileSystems.newFileSystem(zip, (ClassLoader) null)) {
+            Path manifest = fs.getPath(ArchiveManifest.PATH);
+            String text = Files.readString(manifest).replace(tampered.getChecksumString(), "0");
+            Files.writeString(manifest, text);
+        }
+        e = assertThrows(IOException.class, () -> Archive.read(zip));
+        assertTrue(e.getMessage().endsWith("File has been tampered with"), e.getMessage());
+
+        // archives without a manifest are rehashed
+        Files.delete(zip);
+        assertNull(config.update(UpdateOptions.archive(zip)).getException());
+        try (FileSystem fs = FileSystems.newFileSystem(zip, (ClassLoader) null)) {
+            Files.delete(fs.getPath(ArchiveManifest.PATH));
+            Path entry = fs.getPath(Archive.entryName(tampered));
+            byte[] content = Files.readAllBytes(entry);
+            content[10] ^= 1;
+            Files.write(entry, content);
+        }
+        e = assertThrows(IOException.class, () -> Archive.read(zip));
+        assertTrue(e.getMessage().endsWith("File has been tampered with"), e.getMessage());
+
+        assertThrows(IllegalArgumentException.class, () -> Archive.read(zip, 0));
+    }
+
+    @Test
+    public void testStagedUpdate() throws Exception {
+        Configuration config = buildConfig(6, 32 * 1024);
+        Path staged = tempDir.resolve("staged");
+
+        // leftovers of an earlier update are dropped
+        Files.createDirectories(staged.resolve("files"));
+        Files.write(staged.resolve("files").resolve("stale.bin"), new byte[] { 1 });
+
+        RecordingHandler handler = new RecordingHandler();
+        UpdateOptions.ArchiveUpdateOptions options = UpdateOptions.staged(staged)
+                        .updateHandler(handler)
+                        .concurrentDownloads(3);
+        assertTrue(options.isStaged());
+        assertNull(config.update(options).getException());
+        assertEquals(6, handler.done.size());
+
+        assertTrue(Files.isRegularFile(staged.resolve("reserved").resolve("config")));
+        assertTrue(Files.isRegularFile(staged.resolve(ArchiveManifest.PATH)));
+        assertTrue(Files.notExists(staged.resolve("files").resolve("stale.bin")));
+        assertTrue(Files.notExists(options.getPartsLocation()));
+
+        Archive archive = Archive.read(staged);
+        assertTrue(archive.isStaged());
+        assertEquals(6, archive.getFiles().size());
+        assertEquals(6, Archive.read(staged, 2).getFiles().size());
+
+        // installed by renaming, not copying
+        FileMetadata first = config.getFiles().get(0);
+        Path entry = staged.resolve(DirectoryArchiveWriter.toEntryName(Archive.entryName(first)));
+        Object key = Files.readAttributes(entry, BasicFileAttributes.class).fileKey();
+
+        archive.install();
+        assertFalse(config.requiresUpdate());
+        assertTrue(Files.notExists(staged));
+        if (key != null)
+            assertEquals(key, Files.readAttributes(first.getNormalizedPath(), BasicFileAttributes.class).fileKey());
+    }
+
+    @Test
+    public void testStagedUpdateTampered() throws Exception {
+        Configuration config = buildConfig(4, 8 * 1024);
+        Path staged = tempDir.resolve("staged");
+        assertNull(config.update(UpdateOptions.staged(staged).pipelineDownloads(true)).getException());
+
+        Path entry = staged.resolve(DirectoryArchiveWriter.toEntryName(Archive.entryName(config.getFiles().get(2))));
+        byte[] content = Files.readAllBytes(entry);
+
+        // a staged directory has no CRC, so is always rehashed
+        content[5] ^= 1;
+        Files.write(entry, content);
+        assertThrows(IOException.class, () -> Archive.read(staged));
+        assertThrows(IOException.class, () -> Archive.read(staged, 2));
+
+        Files.write(entry, Arrays.copyOf(content, content.length - 1));
+        assertThrows(IOException.class, () -> Archive.read(staged));
+    }
+
+    @Test
+    public void testResumeArchive() throws Exception {
+        resumeArchive(UpdateOptions.archive(tempDir.resolve("update.zip")));
+    }
+
+    @Test
+    public void testResumeStagedArchive() throws Exception {
+        resumeArchive(UpdateOptions.staged(tempDir.resolve("staged")));
+    }
+
+    private void resumeArchive(UpdateOptions.ArchiveUpdateOptions options) throws Exception {
+        Configuration config = buildConfig(6, 16 * 1024);
+        List<String> names = config.getFiles()
+                        .stream()
+                        .map(f -> f.getPath().getFileName().toString())
+                        .collect(Collectors.toList());
+        options.resumeDownloads(true);
+
+        // fails on the fifth file, after the first four are archived
+        UpdateResult failed = config.update(options.updateHandler(new RecordingHandler() {
+            @Override
+            public InputStream openDownloadStream(FileMetadata file) throws Throwable {
+                if (file.getPath().endsWith(names.get(4)))
+                    throw new IOException("Connection reset");
+
+                return super.openDownloadStream(file);
+            }
+        }));
+
+        Path location = options.getArchiveLocation();
+        Path kept = options.getPartsLocation().resolve(location.getFileName());
+        assertNotNull(failed.getException());
+        assertTrue(Files.notExists(location));
+        assertTrue(Files.exists(kept));
+
+        // the second file is changed in place, keeping its size
+        if (Files.isDirectory(kept)) {
+            Path file;
+            try (Stream<Path> files = Files.walk(kept)) {
+                file = files.filter(p -> p.endsWith(names.get(1))).findFirst().get();
+            }
+            byte[] content = Files.readAllBytes(file);
+            content[100] ^= 1;
+            Files.write(file, content);
+        } else {
+            try (FileChannel channel = FileChannel.open(kept, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer b = ByteBuffer.allocate(1);
+                channel.read(b, 24 * 1024);
+                b.put(0, (byte) (b.get(0) ^ 1)).rewind();
+                channel.write(b, 24 * 1024);
+            }
+        }
+
+        // a newer configuration, where the first file changed
+        byte[] changed = new byte[1000];
+        new Random(10).nextBytes(changed);
+        Files.write(sourceDir.resolve(names.get(0)), changed);
+        config = Configuration.builder()
+                        .baseUri(sourceDir.toUri())
+                        .basePath(installDir)
+                        .files(FileMetadata.streamDirectory(sourceDir))
+                        .build();
+
+        List<String> opened = Collections.synchronizedList(new ArrayList<>());
+        RecordingHandler handler = new RecordingHandler() {
+            @Override
+            public InputStream openDownloadStream(FileMetadata file) throws Throwable {
+                opened.add(file.getPath().getFileName().toString());
+                return super.openDownloadStream(file);
+            }
+        };
+
+        assertNull(config.update(options.updateHandler(handler)).getException());
+        assertEquals(List.of(names.get(0), names.get(1), names.get(4), names.get(5)), opened);
+        assertEquals(4, handler.done.size());
+        assertEquals(List.of(names.get(2), names.get(3)), handler.reused);
+        assertTrue(Files.notExists(options.getPartsLocation()));
+
+        Archive archive = Archive.read(location);
+        assertEquals(6, archive.getFiles().size());
+        assertEquals(6, Archive.read(location, 2).getFiles().size());
+
+        archive.install();
+        assertFalse(config.requiresUpdate());
+        assertArrayEquals(changed, Files.readAllBytes(installDir.resolve(names.get(0))));
+    }
+
+    @Test
+    public void testInvalidConcurrency() {
+        assertThrows(IllegalArgumentException.class,
+                        () -> UpdateOptions.archive(tempDir.resolve("update.zip")).concurrentDownloads(0));
+        assertThrows(IllegalArgumentException.class,
+                        () -> UpdateOptions.archive(tempDir.resolve("update.zip")).concurrentDownloadsPerHost(-1));
+        assertThrows(IllegalArgumentException.class,
+                        () -> UpdateOptions.archive(tempDir.resolve("update.zip")).concurrentChecks(0));
+    }
+
+    private Configuration buildConfig(int count, int size) throws Exception {
+        Random random = new Random(count);
+        for (int i = 0; i < count; i++) {
+            byte[] content = new byte[size + i];
+            random.nextBytes(content);
+            Files.write(sourceDir.resolve("file" + i + ".bin"), content);
+        }
+
+        return Configuration.builder()
+                        .baseUri(sourceDir.toUri())
+                        .basePath(installDir)
+                        .files(FileMetadata.streamDirectory(sourceDir))
+                        .build();
+    }
+
+    private static class RecordingHandler implements UpdateHandler {
+
+        private final AtomicInteger active = new AtomicInteger();
+        private volatile boolean overlapped;
+
+        private final List<String> started = Collections.synchronizedList(new ArrayList<>());
+        private final List<String> done = Collections.synchronizedList(new ArrayList<>());
+        private final List<String> reused = Collections.synchronizedList(new ArrayList<>());
+        private float lastProgress;
+
+        private void enter() {
+            if (active.incrementAndGet() > 1)
+                overlapped = true;
+        }
+
+        private void exit() {
+            active.decrementAndGet();
+        }
+
+        @Override
+        public void startDownloadFile(FileMetadata file) {
+            enter();
+            started.add(file.getPath().getFileName().toString());
+            exit();
+        }
+
+        @Override
+        public void updateDownloadProgress(float frac) {
+            enter();
+            lastProgress = frac;
+            exit();
+        }
+
+        @Override
+        public void doneDownloadFile(FileMetadata file, Path path) {
+            enter();
+            assertTrue(started.contains(file.getPath().getFileName().toString()));
+            done.add(file.getPath().getFileName().toString());
+            exit();
+        }
+
+        @Override
+        public void reusedFile(FileMetadata file) {
+            enter();
+            assertTrue(started.contains(file.getPath().getFileName().toString()));
+            reused.add(file.getPath().getFileName().toString());
+            exit();
+        }
+    }
+}
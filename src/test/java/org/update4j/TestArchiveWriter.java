@@ -0,0 +1,225 @@
+package org.update4j;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestArchiveWriter {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testEntries() throws Exception {
+        byte[] text = "hello archive\n".repeat(20_000).getBytes(StandardCharsets.UTF_8);
+        byte[] jar = zipped(text);
+
+        Path textFile = tempDir.resolve("text.txt");
+        Path jarFile = tempDir.resolve("lib.jar");
+        Files.write(textFile, text);
+        Files.write(jarFile, jar);
+
+        FileDigest textDigest = digest(text);
+        FileDigest jarDigest = digest(jar);
+        assertFalse(textDigest.isCompressed());
+        assertTrue(jarDigest.isCompressed());
+
+        Path zip = tempDir.resolve("update.zip");
+        try (ZipArchiveWriter archive = new ZipArchiveWriter(zip, BufferPool.create(4096))) {
+            archive.write("reserved/config", "<configuration/>".getBytes(StandardCharsets.UTF_8));
+            archive.write("files/opt/app/text.txt", textFile, text.length, textDigest.getCrc(),
+                            textDigest.isCompressed());
+            archive.write("files/opt/app/lib/lib.jar", jarFile, jar.length, jarDigest.getCrc(),
+                            jarDigest.isCompressed());
+            archive.write("files/opt/app/empty", Files.createFile(tempDir.resolve("empty")), 0, 0, false);
+        }
+
+        try (ZipFile file = new ZipFile(zip.toFile())) {
+            assertEquals(4, file.size());
+            assertEquals(ZipEntry.DEFLATED, file.getEntry("files/opt/app/text.txt").getMethod());
+            assertTrue(file.getEntry("files/opt/app/text.txt").getCompressedSize() < text.length / 10);
+            assertEquals(ZipEntry.STORED, file.getEntry("files/opt/app/lib/lib.jar").getMethod());
+
+            assertArrayEquals(text, read(file, "files/opt/app/text.txt"));
+            assertArrayEquals(jar, read(file, "files/opt/app/lib/lib.jar"));
+            assertEquals(0, read(file, "files/opt/app/empty").length);
+        }
+
+        try (FileSystem fs = FileSystems.newFileSystem(zip, (ClassLoader) null)) {
+            assertEquals("<configuration/>", Files.readString(fs.getPath("reserved", "config")));
+            assertArrayEquals(text, Files.readAllBytes(fs.getPath("files", "opt", "app", "text.txt")));
+            assertArrayEquals(jar, Files.readAllBytes(fs.getPath("files", "opt", "app", "lib", "lib.jar")));
+        }
+    }
+
+    @Test
+    public void testStreamedEntries() throws Exception {
+        byte[] text = "hello archive\n".repeat(20_000).getBytes(StandardCharsets.UTF_8);
+        byte[] jar = zipped(text);
+        byte[] tiny = { 1, 2 };
+
+        Path zip = tempDir.resolve("update.zip");
+        try (ZipArchiveWriter archive = new ZipArchiveWriter(zip, BufferPool.create(4096))) {
+            archive.write("reserved/config", "<configuration/>".getBytes(StandardCharsets.UTF_8));
+            assertEquals(zip, stream(archive, "files/text.txt", text, "text"));
+
+            // dropped once closed, as when the download fails
+            try (ArchiveWriter.StreamedEntry entry = archive.stream("files/failed.jar", jar.length)) {
+                entry.write(ByteBuffer.wrap(jar, 0, jar.length / 2));
+                assertThrows(IllegalStateException.class, () -> archive.write("files/other", new byte[1]));
+            }
+
+            stream(archive, "files/lib.jar", jar, "jar");
+            stream(archive, "files/tiny", tiny, null);
+        }
+
+        try (ZipFile file = new ZipFile(zip.toFile())) {
+            assertEquals(5, file.size());
+            assertNull(file.getEntry("files/failed.jar"));
+            assertEquals(ZipEntry.DEFLATED, file.getEntry("files/text.txt").getMethod());
+            assertTrue(file.getEntry("files/text.txt").getCompressedSize() < text.length / 10);
+            assertEquals(ZipEntry.STORED, file.getEntry("files/lib.jar").getMethod());
+
+            assertArrayEquals(text, read(file, "files/text.txt"));
+            assertArrayEquals(jar, read(file, "files/lib.jar"));
+            assertArrayEquals(tiny, read(file, "files/tiny"));
+        }
+
+        try (FileSystem fs = FileSystems.newFileSystem(zip, (ClassLoader) null)) {
+            assertArrayEquals(text, Files.readAllBytes(fs.getPath("files", "text.txt")));
+            assertArrayEquals(jar, Files.readAllBytes(fs.getPath("files", "lib.jar")));
+
+            // only committed entries with a checksum are listed
+            try (BufferedReader in = Files.newBufferedReader(fs.getPath(ArchiveManifest.PATH))) {
+                ArchiveManifest manifest = ArchiveManifest.read(in);
+                assertEquals(2, manifest.names().size());
+                assertEquals("jar", manifest.get("files/lib.jar").checksum);
+            }
+        }
+    }
+
+    @Test
+    public void testManyEntries() throws Exception {
+        // more entries than the end of central directory record can count
+        int count = 70_000;
+        Path zip = tempDir.resolve("many.zip");
+
+        try (ZipArchiveWriter archive = new ZipArchiveWriter(zip, BufferPool.getDefault())) {
+            for (int i = 0; i < count; i++) {
+                archive.write("files/" + i, new byte[] { (byte) i });
+            }
+        }
+
+        try (ZipFile file = new ZipFile(zip.toFile())) {
+            assertEquals(count, file.size());
+            assertArrayEquals(new byte[] { (byte) 69_999 }, read(file, "files/69999"));
+        }
+
+        try (FileSystem fs = FileSystems.newFileSystem(zip, (ClassLoader) null)) {
+            assertArrayEquals(new byte[] { (byte) 12_345 }, Files.readAllBytes(fs.getPath("files", "12345")));
+        }
+    }
+
+    @Test
+    public void testUpdate() throws Exception {
+        Path source = tempDir.resolve("source");
+        Files.createDirectories(source.resolve("lib"));
+
+        Random random = new Random(8);
+        byte[] binary = new byte[300_000];
+        random.nextBytes(binary);
+        Files.write(source.resolve("data.bin"), binary);
+        Files.writeString(source.resolve("readme.txt"), "read me\n".repeat(1000));
+        Files.write(source.resolve("lib").resolve("lib.jar"), zipped(binary));
+
+        Configuration config = Configuration.builder()
+                        .baseUri(source.toUri())
+                        .basePath(tempDir.resolve("install"))
+                        .files(FileMetadata.streamDirectory(source))
+                        .property("key", "value")
+                        .build();
+
+        Path zip = tempDir.resolve("update.zip");
+        UpdateOptions.ArchiveUpdateOptions options = UpdateOptions.archive(zip).concurrentDownloads(2);
+        assertNull(config.update(options).getException());
+
+        // staged files are deleted once archived
+        assertTrue(Files.notExists(options.getPartsLocation()));
+
+        try (ZipFile file = new ZipFile(zip.toFile())) {
+            String prefix = Archive.entryName(config.getFiles().get(0)).replaceFirst("[^/]+$", "");
+            assertEquals(ZipEntry.STORED, file.getEntry(prefix + "lib/lib.jar").getMethod());
+            assertEquals(ZipEntry.DEFLATED, file.getEntry(prefix + "readme.txt").getMethod());
+        }
+
+        Archive archive = Archive.read(zip);
+        assertEquals(3, archive.getFiles().size());
+        assertEquals("value", archive.getConfiguration().getResolvedProperty("key"));
+
+        archive.install();
+        assertFalse(config.requiresUpdate());
+        assertArrayEquals(binary, Files.readAllBytes(tempDir.resolve("install").resolve("data.bin")));
+    }
+
+    private static Path stream(ArchiveWriter archive, String name, byte[] content, String checksum)
+                    throws Exception {
+        try (ArchiveWriter.StreamedEntry entry = archive.stream(name, content.length)) {
+            // the first write is shorter than the header deciding how the entry is written
+            for (int offset = 0; offset < content.length;) {
+                int length = Math.min(offset == 0 ? 1 : 7919, content.length - offset);
+                entry.write(ByteBuffer.wrap(content, offset, length));
+                offset += length;
+            }
+
+            return entry.commit(digest(content).getCrc(), checksum);
+        }
+    }
+
+    private static FileDigest digest(byte[] content) throws Exception {
+        FileDigest digest = new FileDigest(ChecksumAlgorithm.ADLER32, null, true);
+        digest.update(content, 0, content.length);
+
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        assertEquals(crc.getValue(), digest.getCrc());
+
+        return digest;
+    }
+
+    private static byte[] zipped(byte[] content) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+
+        try (JarOutputStream out = new JarOutputStream(bytes, manifest)) {
+            out.putNextEntry(new ZipEntry("content"));
+            out.write(content);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private static byte[] read(ZipFile file, String name) throws Exception {
+        try (InputStream in = file.getInputStream(file.getEntry(name))) {
+            return in.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package org.update4j;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.update4j.util.BlockIndex;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestBlockIndex {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testMatchShiftedBlocks() throws Exception {
+        Random random = new Random(3);
+        byte[] target = new byte[10 * 1024 + 100];
+        random.nextBytes(target);
+
+        // local copy has a prefix, shifting every block, and a changed second block
+        byte[] local = new byte[target.length + 7];
+        System.arraycopy(target, 0, local, 7, target.length);
+        local[7 + 1024 + 5] ^= 1;
+
+        BlockIndex index = write(target, 1024);
+        assertEquals(target.length, index.getSize());
+        assertEquals(11, index.getBlockCount());
+        assertEquals(100, index.getBlockLength(10));
+
+        Path localFile = tempDir.resolve("local");
+        Files.write(localFile, local);
+        long[] found = index.match(localFile);
+
+        assertEquals(-1, found[1]);
+        for (int i = 0; i < found.length; i++) {
+            if (i == 1)
+                continue;
+
+            assertEquals(7 + index.getBlockOffset(i), found[i], "block " + i);
+        }
+    }
+
+    @Test
+    public void testMatchReorderedBlocks() throws Exception {
+        Random random = new Random(4);
+        byte[] target = new byte[20 * 512 + 37];
+        random.nextBytes(target);
+        BlockIndex index = write(target, 512);
+
+        // full blocks in reverse order, with gaps longer than the scanning window between them
+        ByteArrayOutputStream local = new ByteArrayOutputStream();
+        long[] expected = new long[index.getBlockCount()];
+        for (int i = 19; i >= 0; i--) {
+            byte[] gap = new byte[random.nextInt(2500)];
+            random.nextBytes(gap);
+            local.write(gap);
+
+            expected[i] = local.size();
+            local.write(target, (int) index.getBlockOffset(i), 512);
+        }
+        expected[20] = local.size();
+        local.write(target, 20 * 512, 37);
+
+        Path localFile = tempDir.resolve("local");
+        Files.write(localFile, local.toByteArray());
+
+        assertArrayEquals(expected, index.match(localFile));
+    }
+
+    @Test
+    public void testNoMatch() throws Exception {
+        byte[] target = new byte[3000];
+        new Random(5).nextBytes(target);
+        BlockIndex index = write(target, 1024);
+
+        Path localFile = tempDir.resolve("local");
+        Files.write(localFile, new byte[500]);
+
+        assertTrue(Arrays.stream(index.match(localFile)).allMatch(o -> o == -1));
+    }
+
+    @Test
+    public void testReadRejectsGarbage() {
+        assertThrows(IOException.class, () -> BlockIndex.read(new ByteArrayInputStream("garbage".getBytes())));
+    }
+
+    private BlockIndex write(byte[] content, int blockSize) throws IOException {
+        Path file = tempDir.resolve("target");
+        Path indexFile = tempDir.resolve("target.blocks");
+        Files.write(file, content);
+
+        BlockIndex.write(file, indexFile, blockSize);
+        try (InputStream in = Files.newInputStream(indexFile)) {
+            return BlockIndex.read(in);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package org.update4j;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.update4j.util.FileUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.Random;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32C;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestBufferPool {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testReuse() {
+        BufferPool pool = BufferPool.create(4096, 1);
+
+        ByteBuffer direct = pool.acquireDirect();
+        ByteBuffer heap = pool.acquireHeap();
+        assertTrue(direct.isDirect());
+        assertFalse(heap.isDirect());
+        assertEquals(4096, heap.array().length);
+
+        direct.put((byte) 1);
+        pool.release(direct);
+        pool.release(heap);
+
+        ByteBuffer reused = pool.acquireDirect();
+        assertSame(direct, reused);
+        assertEquals(0, reused.position());
+        assertSame(heap, pool.acquireHeap());
+
+        // only one idle buffer is retained
+        ByteBuffer other = pool.acquireDirect();
+        pool.release(reused);
+        pool.release(other);
+        assertSame(reused, pool.acquireDirect());
+        assertNotSame(other, pool.acquireDirect());
+
+        // foreign buffers are ignored
+        pool.release(ByteBuffer.allocate(1024));
+        assertEquals(4096, pool.acquireHeap().capacity());
+
+        assertThrows(IllegalArgumentException.class, () -> BufferPool.create(100));
+    }
+
+    @Test
+    public void testChecksum() throws Exception {
+        byte[] content = new byte[200_003];
+        new Random(4).nextBytes(content);
+        Path file = tempDir.resolve("file.bin");
+        Files.write(file, content);
+
+        Adler32 adler = new Adler32();
+        adler.update(content);
+        CRC32C crc = new CRC32C();
+        crc.update(content);
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keys = generator.generateKeyPair();
+
+        BufferPool previous = BufferPool.getDefault();
+        try {
+            for (int size : new int[] { 1024, 8 * 1024, 1024 * 1024 }) {
+                BufferPool.setDefault(BufferPool.create(size));
+
+                assertEquals(adler.getValue(), FileUtils.getChecksum(file));
+                assertEquals(Long.toHexString(crc.getValue()),
+                                FileUtils.getChecksumString(file, ChecksumAlgorithm.CRC32C));
+
+                Signature verify = Signature.getInstance("SHA256withRSA");
+                verify.initVerify(keys.getPublic());
+                verify.update(content);
+                assertTrue(verify.verify(FileUtils.sign(file, keys.getPrivate())));
+            }
+        } finally {
+            BufferPool.setDefault(previous);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.update4j;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestChecksumCache {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testLoadMissingFile() throws Exception {
+        ChecksumCache cache = ChecksumCache.load(tempDir.resolve("missing"));
+        assertEquals(tempDir.resolve("missing"), cache.getLocation());
+
+        // nothing to save
+        cache.save();
+        assertTrue(Files.notExists(tempDir.resolve("missing")));
+    }
+
+    @Test
+    public void testUnchangedFileIsNotRead() throws Exception {
+        Path file = tempDir.resolve("app.jar");
+        Files.write(file, "first".getBytes());
+        FileTime modified = FileTime.from(Instant.now().minus(1, ChronoUnit.HOURS));
+        Files.setLastModifiedTime(file, modified);
+
+        FileMetadata metadata = metadata(file);
+        Path location = tempDir.resolve("cache/checksums");
+
+        ChecksumCache cache = ChecksumCache.load(location);
+        assertFalse(metadata.requiresUpdate(cache));
+        cache.save();
+        assertTrue(Files.exists(location));
+
+        // same size and timestamp, different content: trusted from the cache
+        Files.write(file, "other".getBytes());
+        Files.setLastModifiedTime(file, modified);
+
+        cache = ChecksumCache.load(location);
+        assertFalse(metadata.requiresUpdate(cache));
+        assertTrue(metadata.requiresUpdate());
+
+        cache.invalidate(file);
+        assertTrue(metadata.requiresUpdate(cache));
+    }
+
+    @Test
+    public void testChangedTimestampRehashes() throws Exception {
+        Path file = tempDir.resolve("lib.jar");
+        Files.write(file, "content".getBytes());
+        Files.setLastModifiedTime(file, FileTime.from(Instant.now().minus(1, ChronoUnit.HOURS)));
+
+        FileMetadata metadata = metadata(file);
+        ChecksumCache cache = ChecksumCache.load(tempDir.resolve("checksums"));
+        assertFalse(metadata.requiresUpdate(cache));
+
+        Files.write(file, "changed".getBytes());
+        Files.setLastModifiedTime(file, FileTime.from(Instant.now().minus(30, ChronoUnit.MINUTES)));
+        assertTrue(metadata.requiresUpdate(cache));
+
+        Files.delete(file);
+        assertTrue(metadata.requiresUpdate(cache));
+    }
+
+    @Test
+    public void testRecentlyModifiedFileIsNotCached() throws Exception {
+        Path file = tempDir.resolve("fresh.jar");
+        Files.write(file, "fresh".getBytes());
+
+        ChecksumCache cache = ChecksumCache.load(tempDir.resolve("checksums"));
+        cache.getChecksum(file, ChecksumAlgorithm.ADLER32);
+        cache.save();
+
+        assertTrue(Files.notExists(tempDir.resolve("checksums")));
+    }
+
+    @Test
+    public void testCorruptFileIsIgnored() throws Exception {
+        Path location = tempDir.resolve("checksums");
+        Files.write(location, List.of("update4j-checksum-cache 1", "garbage"));
+
+        Path file = tempDir.resolve("a.jar");
+        Files.write(file, "a".getBytes());
+        FileMetadata metadata = metadata(file);
+
+        assertFalse(metadata.requiresUpdate(ChecksumCache.load(location)));
+    }
+
+    private FileMetadata metadata(Path file) {
+        return Configuration.builder()
+                        .baseUri(tempDir.toUri())
+                        .basePath(tempDir)
+                        .file(FileMetadata.readFrom(file).path(file.getFileName()))
+                        .build()
+                        .getFiles()
+                        .get(0);
+    }
+
+    @Test
+    public void testConfigurationUsesCache() throws Exception {
+        Path file = tempDir.resolve("b.jar");
+        Files.write(file, "b".getBytes());
+        Files.setLastModifiedTime(file, FileTime.from(Instant.now().minus(1, ChronoUnit.HOURS)));
+
+        Configuration config = Configuration.builder()
+                        .baseUri(tempDir.toUri())
+                        .basePath(tempDir)
+                        .file(FileMetadata.readFrom(file).path(file.getFileName()))
+                        .build();
+
+        Path location = tempDir.resolve("checksums");
+        assertFalse(config.requiresUpdate(
+                        UpdateOptions.archive(tempDir.resolve("update.zip")).checksumCache(ChecksumCache.load(location))));
+        assertTrue(Files.exists(location));
+    }
+}
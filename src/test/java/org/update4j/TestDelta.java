@@ -0,0 +1,80 @@
+package org.update4j;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.update4j.util.Delta;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestDelta {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Random random = new Random(7);
+        byte[] base = new byte[200 * 1024];
+        random.nextBytes(base);
+
+        // an insertion, a change and a deletion, shifting everything after them
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        target.write(base, 0, 10_000);
+        target.write("inserted".getBytes());
+        target.write(base, 10_000, 50_000);
+        byte[] changed = new byte[3000];
+        random.nextBytes(changed);
+        target.write(changed);
+        target.write(base, 63_000, 100_000);
+        target.write(base, 180_000, base.length - 180_000);
+
+        Path patch = roundTrip(base, target.toByteArray());
+        assertTrue(Files.size(patch) < 8 * 1024, "Patch should only contain the changes");
+    }
+
+    @Test
+    public void testUnrelatedAndEmptyFiles() throws Exception {
+        Random random = new Random(11);
+        byte[] a = new byte[5000];
+        byte[] b = new byte[7000];
+        random.nextBytes(a);
+        random.nextBytes(b);
+
+        roundTrip(a, b);
+        roundTrip(new byte[0], b);
+        roundTrip(a, new byte[0]);
+        roundTrip(new byte[100], new byte[100]);
+    }
+
+    @Test
+    public void testApplyRejectsGarbage() throws Exception {
+        Path base = tempDir.resolve("base");
+        Files.write(base, new byte[10]);
+
+        assertThrows(IOException.class, () -> Delta.apply(base, new ByteArrayInputStream("garbage".getBytes())));
+    }
+
+    private Path roundTrip(byte[] a, byte[] b) throws IOException {
+        Path base = tempDir.resolve("base");
+        Path target = tempDir.resolve("target");
+        Path patch = tempDir.resolve("patch");
+        Files.write(base, a);
+        Files.write(target, b);
+
+        Delta.diff(base, target, patch);
+
+        try (InputStream in = Delta.apply(base, Files.newInputStream(patch))) {
+            assertArrayEquals(b, in.readAllBytes());
+        }
+
+        return patch;
+    }
+}
@@ -0,0 +1,217 @@
+package org.update4j;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.update4j.service.DownloadSource;
+import org.update4j.service.UpdateHandler;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestDownloadSource {
+
+    @TempDir
+    Path tempDir;
+
+    private Path sourceDir;
+    private Configuration config;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        sourceDir = tempDir.resolve("source");
+        Files.createDirectories(sourceDir);
+
+        Random random = new Random(5);
+        for (int i = 0; i < 3; i++) {
+            byte[] content = new byte[100_000 + i];
+            random.nextBytes(content);
+            Files.write(sourceDir.resolve("file" + i + ".bin"), content);
+        }
+
+        config = Configuration.builder()
+                        .baseUri(sourceDir.toUri())
+                        .basePath(tempDir.resolve("install"))
+                        .files(FileMetadata.streamDirectory(sourceDir))
+                        .build();
+    }
+
+    @Test
+    public void testChannelHandler() throws Exception {
+        ChannelHandler handler = new ChannelHandler(0);
+
+        Path zip = tempDir.resolve("update.zip");
+        UpdateResult result = config.update(UpdateOptions.archive(zip)
+                        .updateHandler(handler)
+                        .concurrentDownloads(2)
+                        .httpTransport(HttpTransport.create()));
+        assertNull(result.getException());
+        assertEquals(3, handler.opened.get());
+
+        Archive.read(zip).install();
+        assertFalse(config.requiresUpdate());
+
+        // legacy temp mode opens sources too
+        Files.delete(tempDir.resolve("install").resolve("file1.bin"));
+        Path temp = tempDir.resolve("temp");
+        result = config.update(UpdateOptions.temp(temp).updateHandler(handler));
+        assertNull(result.getException());
+        assertEquals(4, handler.opened.get());
+
+        assertTrue(Update.finalizeUpdate(temp));
+        assertFalse(config.requiresUpdate());
+    }
+
+    @Test
+    public void testLengthMismatch() throws Exception {
+        UpdateResult result = config.update(UpdateOptions.archive(tempDir.resolve("update.zip"))
+                        .updateHandler(new ChannelHandler(1)));
+
+        assertTrue(result.getException() instanceof IOException);
+        assertTrue(result.getException().getMessage().contains("expected"), result.getException().getMessage());
+        assertTrue(result.getException().getMessage().contains("\"v1\""), result.getException().getMessage());
+    }
+
+    @Test
+    public void testStreamHandler() throws Exception {
+        AtomicInteger opened = new AtomicInteger();
+        UpdateHandler handler = new UpdateHandler() {
+            @Override
+            public InputStream openDownloadStream(FileMetadata file) throws Throwable {
+                opened.incrementAndGet();
+                return Files.newInputStream(Path.of(file.getUri()));
+            }
+        };
+
+        Path zip = tempDir.resolve("update.zip");
+        UpdateResult result = config.update(UpdateOptions.archive(zip).updateHandler(handler));
+        assertNull(result.getException());
+        assertEquals(3, opened.get());
+
+        Archive.read(zip).install();
+        assertFalse(config.requiresUpdate());
+    }
+
+    @Test
+    public void testLocalFiles() throws Exception {
+        // spans several transfer chunks
+        byte[] large = new byte[2_500_000];
+        new Random(6).nextBytes(large);
+        Files.write(sourceDir.resolve("large.bin"), large);
+        config = Configuration.builder()
+                        .baseUri(sourceDir.toUri())
+                        .basePath(tempDir.resolve("install"))
+                        .files(FileMetadata.streamDirectory(sourceDir))
+                        .build();
+
+        UpdateOptions.ArchiveUpdateOptions options = UpdateOptions.archive(tempDir.resolve("update.zip"))
+                        .resumeDownloads(true);
+
+        // drop the connection halfway through the large file
+        UpdateResult failed = config.update(options.updateHandler(new UpdateHandler() {
+            @Override
+            public InputStream openDownloadStream(FileMetadata file) throws Throwable {
+                InputStream in = Files.newInputStream(Path.of(file.getUri()));
+                if (!file.getPath().endsWith("large.bin"))
+                    return in;
+
+                return new FilterInputStream(in) {
+                    private int count;
+
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        if (count >= 1_500_000)
+                            throw new IOException("Connection reset");
+
+                        int read = super.read(b, off, Math.min(len, 1_500_000 - count));
+                        count += Math.max(read, 0);
+                        return read;
+                    }
+                };
+            }
+        }));
+        assertNotNull(failed.getException());
+
+        // resumed from the local file
+        AtomicLong downloaded = new AtomicLong();
+        UpdateResult resumed = config.update(options.updateHandler(new UpdateHandler() {
+            @Override
+            public void doneDownloadFile(FileMetadata file, Path path) {
+                downloaded.incrementAndGet();
+            }
+        }));
+        assertNull(resumed.getException());
+        assertEquals(4, downloaded.get());
+
+        Archive.read(tempDir.resolve("update.zip")).install();
+        assertArrayEquals(large, Files.readAllBytes(tempDir.resolve("install").resolve("large.bin")));
+        assertFalse(config.requiresUpdate());
+
+        Files.delete(tempDir.resolve("install").resolve("large.bin"));
+        Path temp = tempDir.resolve("temp");
+        assertNull(config.update(UpdateOptions.temp(temp)).getException());
+        assertTrue(Update.finalizeUpdate(temp));
+        assertArrayEquals(large, Files.readAllBytes(tempDir.resolve("install").resolve("large.bin")));
+    }
+
+    @Test
+    public void testTransferLocal() throws Throwable {
+        byte[] content = new byte[2_500_000];
+        new Random(7).nextBytes(content);
+        Path source = tempDir.resolve("source.bin");
+        Path target = tempDir.resolve("target.bin");
+        Files.write(source, content);
+        Files.write(target, Arrays.copyOf(content, 1000));
+
+        FileDigest digest = new FileDigest(ChecksumAlgorithm.CRC32C, null);
+        AtomicLong reported = new AtomicLong();
+
+        try (FileChannel in = FileChannel.open(source);
+                        FileChannel out = FileChannel.open(target, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            in.position(1000);
+            out.position(1000);
+
+            Downloader.transferLocal(in, out, Downloader.LOCAL_CHUNK, digest, BufferPool.create(4096), reported::addAndGet);
+        }
+
+        CRC32C crc = new CRC32C();
+        crc.update(content, 1000, content.length - 1000);
+
+        assertEquals(content.length - 1000, reported.get());
+        assertEquals(content.length - 1000, digest.getSize());
+        assertEquals(Long.toHexString(crc.getValue()), digest.getChecksum());
+        assertArrayEquals(content, Files.readAllBytes(target));
+    }
+
+    private static class ChannelHandler implements UpdateHandler {
+
+        private final AtomicInteger opened = new AtomicInteger();
+        private final long extra;
+
+        ChannelHandler(long extra) {
+            this.extra = extra;
+        }
+
+        @Override
+        public DownloadSource openDownloadSource(FileMetadata file, long offset) throws Throwable {
+            opened.incrementAndGet();
+
+            FileChannel channel = FileChannel.open(Path.of(file.getUri()));
+            channel.position(offset);
+
+            return DownloadSource.of(channel, channel.size() - offset + extra, "\"v1\"");
+        }
+    }
+}
@@ -33,6 +33,31 @@ public class TestFileMetadata {
                 () -> placeholderBuilder().os(null).arch(currentArch).build().appliesToCurrentPlatform());
     }
 
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testChecksumAlgorithm() {
+        FileMetadata legacy = placeholderBuilder().checksum("0FD7ADFB7").build();
+        assertEquals(ChecksumAlgorithm.ADLER32, legacy.getChecksumAlgorithm());
+        assertEquals("fd7adfb7", legacy.getChecksumString());
+        assertEquals(0xfd7adfb7L, legacy.getChecksum());
+
+        FileMetadata crc = placeholderBuilder().checksumAlgorithm(ChecksumAlgorithm.CRC32C).checksum("e3069283").build();
+        assertEquals(0xe3069283L, crc.getChecksum());
+        assertThrows(IllegalArgumentException.class,
+                () -> placeholderBuilder().checksumAlgorithm(ChecksumAlgorithm.CRC32C).checksum("1e3069283").build());
+
+        String hash = "9F86D081884C7D659A2FEAA0C55AD015A3BF4F1B2B0B822CD15D6C15B0F00A08";
+        FileMetadata sha = placeholderBuilder().checksumAlgorithm(ChecksumAlgorithm.SHA256).checksum(hash).build();
+        assertEquals(hash.toLowerCase(), sha.getChecksumString());
+        assertThrows(UnsupportedOperationException.class, sha::getChecksum);
+        assertThrows(IllegalArgumentException.class,
+                () -> placeholderBuilder().checksumAlgorithm(ChecksumAlgorithm.SHA256).checksum("fd7adfb7").build());
+
+        assertEquals(ChecksumAlgorithm.SHA256, ChecksumAlgorithm.fromName("SHA-256"));
+        assertEquals(ChecksumAlgorithm.ADLER32, ChecksumAlgorithm.fromName(null));
+        assertThrows(IllegalArgumentException.class, () -> ChecksumAlgorithm.fromName("md5"));
+    }
+
     private FileMetadata.Builder placeholderBuilder() {
         return FileMetadata.builder().uri(URI.create("http://localhost/placeholder")).path(Paths.get("/tmp", "placeholder").toAbsolutePath());
     }
@@ -0,0 +1,283 @@
+package org.update4j;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ProxySelector;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestHttpTransport {
+
+    @TempDir
+    Path tempDir;
+
+    private Server server;
+    private HttpTransport transport;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        server = new Server(tempDir.resolve("www"));
+        transport = HttpTransport.create();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void testRanges() throws Exception {
+        byte[] content = write("file.bin", 10_000);
+        URI uri = server.uri("file.bin");
+
+        try (InputStream in = transport.open(uri)) {
+            assertArrayEquals(content, in.readAllBytes());
+        }
+        try (InputStream in = transport.open(uri, 4000, -1, false)) {
+            assertArrayEquals(Arrays.copyOfRange(content, 4000, content.length), in.readAllBytes());
+        }
+        try (InputStream in = transport.open(uri, 100, 50, false)) {
+            assertArrayEquals(Arrays.copyOfRange(content, 100, 150), in.readNBytes(50));
+        }
+
+        // resuming skips, exact ranges fail so the file is downloaded in full
+        server.ignoreRanges = true;
+        try (InputStream in = transport.open(uri, 4000, -1, false)) {
+            assertArrayEquals(Arrays.copyOfRange(content, 4000, content.length), in.readAllBytes());
+        }
+        assertThrows(IOException.class, () -> transport.open(uri, 100, 50, false));
+
+        assertThrows(IOException.class, () -> transport.open(server.uri("missing.bin")));
+    }
+
+    @Test
+    public void testGzipEncoding() throws Exception {
+        byte[] content = new byte[50_000];
+        Files.createDirectories(server.root);
+        Files.write(server.root.resolve("zeros.bin"), content);
+
+        server.gzip = true;
+        try (InputStream in = transport.open(server.uri("zeros.bin"))) {
+            assertArrayEquals(content, in.readAllBytes());
+        }
+        assertTrue(server.gzipped.get() > 0);
+    }
+
+    @Test
+    public void testSettings() throws Exception {
+        ProxySelector proxy = ProxySelector.of(null);
+        HttpTransport configured = transport.withProxy(proxy).withTimeout(Duration.ofSeconds(3));
+
+        // settings carry over to transports derived from it
+        assertSame(proxy, configured.getProxy());
+        assertEquals(Duration.ofSeconds(3), configured.getTimeout());
+        assertNull(configured.getAuthenticator());
+        assertNull(transport.getProxy());
+
+        byte[] content = write("file.bin", 1000);
+        try (InputStream in = configured.open(server.uri("file.bin"))) {
+            assertArrayEquals(content, in.readAllBytes());
+        }
+    }
+
+    @Test
+    public void testStalledBody() throws Exception {
+        write("file.bin", 100_000);
+        server.stallAfter = 10_000;
+
+        HttpTransport impatient = transport.withTimeout(Duration.ofMillis(300));
+        long start = System.nanoTime();
+        try (InputStream in = impatient.open(server.uri("file.bin"))) {
+            assertThrows(SocketTimeoutException.class, in::readAllBytes);
+        }
+
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    }
+
+    @Test
+    public void testUpdateReusesConnections() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            write("file" + i + ".bin", 8 * 1024 + i);
+        }
+
+        Path installDir = tempDir.resolve("install");
+        Configuration config = Configuration.builder()
+                        .baseUri(server.uri(""))
+                        .basePath(installDir)
+                        .files(FileMetadata.streamDirectory(server.root))
+                        .build();
+
+        Path zip = tempDir.resolve("update.zip");
+        UpdateResult result = config.update(UpdateOptions.archive(zip).httpTransport(transport));
+        assertNull(result.getException());
+
+        Archive.read(zip).install();
+        assertFalse(config.requiresUpdate());
+
+        assertEquals(20, server.requests.get());
+        assertEquals(1, server.connections.get(), "Sequential downloads should share a single connection");
+    }
+
+    private byte[] write(String name, int size) throws IOException {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+
+        Files.createDirectories(server.root);
+        Files.write(server.root.resolve(name), content);
+
+        return content;
+    }
+
+    /*
+     * A minimal HTTP/1.1 server with keep-alive and single byte ranges.
+     */
+    private static class Server implements AutoCloseable {
+
+        private final Path root;
+        private final ServerSocket socket;
+
+        private final AtomicInteger connections = new AtomicInteger();
+        private final AtomicInteger requests = new AtomicInteger();
+        private final AtomicInteger gzipped = new AtomicInteger();
+        private volatile boolean ignoreRanges;
+        private volatile boolean gzip;
+        private volatile int stallAfter = -1;
+
+        Server(Path root) throws IOException {
+            this.root = root;
+            this.socket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+
+            Thread accept = new Thread(() -> {
+                while (!socket.isClosed()) {
+                    try {
+                        Socket client = socket.accept();
+                        connections.incrementAndGet();
+
+                        Thread t = new Thread(() -> serve(client));
+                        t.setDaemon(true);
+                        t.start();
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            });
+            accept.setDaemon(true);
+            accept.start();
+        }
+
+        URI uri(String path) {
+            return URI.create("http://localhost:" + socket.getLocalPort() + "/" + path);
+        }
+
+        private void serve(Socket client) {
+            try (client;
+                            BufferedReader in = new BufferedReader(
+                                            new InputStreamReader(client.getInputStream(), StandardCharsets.ISO_8859_1));
+                            OutputStream out = client.getOutputStream()) {
+
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.isEmpty())
+                        continue;
+
+                    String path = line.split(" ")[1].substring(1);
+                    Map<String, String> headers = new HashMap<>();
+                    while (!(line = in.readLine()).isEmpty()) {
+                        int colon = line.indexOf(':');
+                        headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+                    }
+
+                    requests.incrementAndGet();
+                    respond(out, path, headers);
+                }
+            } catch (IOException e) {
+                // client went away
+            }
+        }
+
+        private void respond(OutputStream out, String path, Map<String, String> headers) throws IOException {
+            Path file = root.resolve(path);
+            if (!Files.isRegularFile(file)) {
+                out.write("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+                out.flush();
+                return;
+            }
+
+            byte[] content = Files.readAllBytes(file);
+            String range = headers.get("range");
+            String status = "200 OK";
+            String extra = "";
+
+            if (range != null && !ignoreRanges) {
+                String[] bounds = range.substring("bytes=".length()).split("-", -1);
+                int first = Integer.parseInt(bounds[0]);
+                int last = bounds[1].isEmpty() ? content.length - 1 : Integer.parseInt(bounds[1]);
+
+                extra = "Content-Range: bytes " + first + "-" + last + "/" + content.length + "\r\n";
+                status = "206 Partial Content";
+                content = Arrays.copyOfRange(content, first, last + 1);
+            } else if (gzip && headers.getOrDefault("accept-encoding", "").contains("gzip")) {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                try (GZIPOutputStream gz = new GZIPOutputStream(compressed)) {
+                    gz.write(content);
+                }
+
+                extra = "Content-Encoding: gzip\r\n";
+                content = compressed.toByteArray();
+                gzipped.incrementAndGet();
+            }
+
+            out.write(("HTTP/1.1 " + status + "\r\n" + extra + "Content-Length: " + content.length + "\r\n\r\n")
+                            .getBytes(StandardCharsets.ISO_8859_1));
+
+            if (stallAfter >= 0) {
+                out.write(content, 0, stallAfter);
+                out.flush();
+
+                // keep the connection open without sending the rest
+                while (!socket.isClosed()) {
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+
+                return;
+            }
+
+            out.write(content);
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
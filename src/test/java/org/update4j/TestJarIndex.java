@@ -0,0 +1,125 @@
+package org.update4j;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.update4j.util.JarIndex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestJarIndex {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testMatchUnchangedEntries() throws Exception {
+        Path previous = tempDir.resolve("previous.jar");
+        Path current = tempDir.resolve("current.jar");
+        writeJar(previous, 1000, -1);
+        writeJar(current, 2000, 3);
+
+        JarIndex index = read(current);
+        assertEquals(Files.size(current), index.getSize());
+
+        // the segments cover the whole file
+        long position = 0;
+        for (int i = 0; i < index.getSegmentCount(); i++) {
+            assertEquals(position, index.getOffset(i));
+            position += index.getLength(i);
+        }
+        assertEquals(index.getSize(), position);
+
+        long[] found = index.match(previous);
+        int entries = 0;
+        int reused = 0;
+        for (int i = 0; i < index.getSegmentCount(); i++) {
+            if (index.getLiteral(i) == null) {
+                entries++;
+                if (found[i] >= 0)
+                    reused++;
+            }
+        }
+
+        assertEquals(9, entries);
+        // all but the changed entry, including the manifest
+        assertEquals(8, reused);
+    }
+
+    @Test
+    public void testLargeCentralDirectory() throws Exception {
+        // a central directory larger than a read chunk
+        Path jar = tempDir.resolve("many.jar");
+        try (OutputStream out = Files.newOutputStream(jar); JarOutputStream jos = new JarOutputStream(out)) {
+            for (int i = 0; i < 3000; i++) {
+                jos.putNextEntry(new JarEntry("org/example/generated/Class" + i + ".class"));
+                jos.write(("class " + i).getBytes());
+                jos.closeEntry();
+            }
+        }
+
+        JarIndex index = read(jar);
+        byte[] original = Files.readAllBytes(jar);
+        long[] found = index.match(jar);
+
+        ByteArrayOutputStream rebuilt = new ByteArrayOutputStream();
+        for (int i = 0; i < index.getSegmentCount(); i++) {
+            byte[] literal = index.getLiteral(i);
+            if (literal != null) {
+                assertTrue(literal.length <= 64 * 1024);
+                rebuilt.write(literal);
+            } else {
+                assertEquals(index.getOffset(i), found[i]);
+                rebuilt.write(original, (int) found[i], (int) index.getLength(i));
+            }
+        }
+
+        assertArrayEquals(original, rebuilt.toByteArray());
+    }
+
+    @Test
+    public void testNotAJar() throws Exception {
+        Path file = tempDir.resolve("file.jar");
+        Files.write(file, new byte[100]);
+
+        assertThrows(IOException.class, () -> JarIndex.write(file, tempDir.resolve("index")));
+    }
+
+    private JarIndex read(Path jar) throws IOException {
+        Path indexFile = tempDir.resolve(jar.getFileName() + ".entries");
+        JarIndex.write(jar, indexFile);
+
+        try (InputStream in = Files.newInputStream(indexFile)) {
+            return JarIndex.read(in);
+        }
+    }
+
+    static void writeJar(Path jar, long time, int changed) throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+
+        try (OutputStream out = Files.newOutputStream(jar); JarOutputStream jos = new JarOutputStream(out, manifest)) {
+            for (int i = 0; i < 8; i++) {
+                byte[] content = new byte[16 * 1024];
+                new Random(i == changed ? 100 + i : i).nextBytes(content);
+
+                JarEntry entry = new JarEntry("org/example/Class" + i + ".class");
+                entry.setTime(time);
+                jos.putNextEntry(entry);
+                jos.write(content);
+                jos.closeEntry();
+            }
+        }
+    }
+}
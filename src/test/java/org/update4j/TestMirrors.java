@@ -0,0 +1,178 @@
+package org.update4j;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.update4j.service.UpdateHandler;
+
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestMirrors {
+
+    @TempDir
+    Path tempDir;
+
+    private Path baseDir;
+    private Path mirrorDir;
+    private Path installDir;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        baseDir = tempDir.resolve("base");
+        mirrorDir = tempDir.resolve("mirror");
+        installDir = tempDir.resolve("install");
+        Files.createDirectories(baseDir);
+        Files.createDirectories(mirrorDir);
+    }
+
+    @Test
+    public void testReadWrite() throws Exception {
+        KeyPair keys = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+        Configuration config = Configuration.builder()
+                        .baseUri("https://example.com/app")
+                        .mirror("https://eu.example.com/app/")
+                        .mirror(URI.create("https://us.example.com/app/"))
+                        .basePath(installDir)
+                        .signer(keys.getPrivate())
+                        .build();
+
+        StringWriter out = new StringWriter();
+        config.write(out);
+        assertTrue(out.toString().contains("<mirror uri=\"https://eu.example.com/app/\"/>"));
+
+        Configuration read = Configuration.read(new StringReader(out.toString()), keys.getPublic());
+        assertEquals(List.of(URI.create("https://eu.example.com/app/"), URI.create("https://us.example.com/app/")),
+                        read.getMirrors());
+
+        assertThrows(IllegalStateException.class, () -> Configuration.builder().mirror("https://example.com/").build());
+    }
+
+    @Test
+    public void testFastestMirrorSelected() throws Exception {
+        Configuration config = buildConfig(5);
+        copyFiles(mirrorDir, 5);
+
+        UpdateResult result = config.update(UpdateOptions.archive(tempDir.resolve("update.zip"))
+                        .updateHandler(new DelayingHandler(baseDir)));
+
+        assertNull(result.getException());
+        assertEquals(5, result.getMirrors().size());
+        assertTrue(result.getMirrors().values().stream().allMatch(mirrorDir.toUri()::equals));
+
+        Archive.read(tempDir.resolve("update.zip")).install();
+        assertFalse(config.requiresUpdate());
+    }
+
+    @Test
+    public void testFailover() throws Exception {
+        Configuration config = buildConfig(6);
+        copyFiles(mirrorDir, 6);
+        Files.delete(mirrorDir.resolve("file2.bin"));
+
+        UpdateResult result = config.update(UpdateOptions.archive(tempDir.resolve("update.zip"))
+                        .updateHandler(new DelayingHandler(baseDir)));
+
+        assertNull(result.getException());
+
+        Map<String, URI> served = new HashMap<>();
+        result.getMirrors().forEach((file, origin) -> served.put(file.getPath().getFileName().toString(), origin));
+
+        assertEquals(mirrorDir.toUri(), served.get("file0.bin"));
+        assertEquals(mirrorDir.toUri(), served.get("file1.bin"));
+        // the mirror failed, the rest comes from the base
+        assertEquals(baseDir.toUri(), served.get("file2.bin"));
+        assertEquals(baseDir.toUri(), served.get("file5.bin"));
+
+        Archive.read(tempDir.resolve("update.zip")).install();
+        assertFalse(config.requiresUpdate());
+    }
+
+    @Test
+    public void testStaleMirror() throws Exception {
+        Configuration config = buildConfig(3);
+        copyFiles(mirrorDir, 3);
+
+        // same size, different content
+        byte[] stale = Files.readAllBytes(mirrorDir.resolve("file1.bin"));
+        stale[stale.length - 1] ^= 1;
+        Files.write(mirrorDir.resolve("file1.bin"), stale);
+
+        UpdateResult result = config.update(UpdateOptions.archive(tempDir.resolve("update.zip"))
+                        .updateHandler(new DelayingHandler(baseDir))
+                        .resumeDownloads(true));
+
+        assertNull(result.getException());
+        assertEquals(3, result.getMirrors().size());
+
+        Archive.read(tempDir.resolve("update.zip")).install();
+        assertFalse(config.requiresUpdate());
+    }
+
+    @Test
+    public void testAllMirrorsFail() throws Exception {
+        Configuration config = buildConfig(2);
+        Files.delete(baseDir.resolve("file1.bin"));
+
+        UpdateResult result = config.update(UpdateOptions.archive(tempDir.resolve("update.zip")));
+
+        assertNotNull(result.getException());
+        assertTrue(Files.notExists(tempDir.resolve("update.zip")));
+    }
+
+    private Configuration buildConfig(int count) throws Exception {
+        Random random = new Random(count);
+        for (int i = 0; i < count; i++) {
+            byte[] content = new byte[16 * 1024 + i];
+            random.nextBytes(content);
+            Files.write(baseDir.resolve("file" + i + ".bin"), content);
+        }
+
+        return Configuration.builder()
+                        .baseUri(baseDir.toUri())
+                        .mirror(mirrorDir.toUri())
+                        .basePath(installDir)
+                        .files(FileMetadata.streamDirectory(baseDir).sorted(Comparator.comparing(r -> r.getSource())))
+                        .build();
+    }
+
+    private void copyFiles(Path target, int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            Files.copy(baseDir.resolve("file" + i + ".bin"), target.resolve("file" + i + ".bin"));
+        }
+    }
+
+    /*
+     * Makes one origin slow, so the ranking is predictable.
+     */
+    private static class DelayingHandler implements UpdateHandler {
+
+        private final Path slow;
+
+        DelayingHandler(Path slow) {
+            this.slow = slow;
+        }
+
+        @Override
+        public InputStream openDownloadStream(FileMetadata file) throws Throwable {
+            if (Paths.get(file.getUri()).startsWith(slow))
+                Thread.sleep(300);
+
+            return UpdateHandler.super.openDownloadStream(file);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package org.update4j;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestRateLimiter {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testLimit() throws Exception {
+        RateLimiter limiter = RateLimiter.create(100 * 1024);
+
+        long start = System.nanoTime();
+        // the first second worth of bytes is a burst
+        assertEquals(200 * 1024, drain(limiter.limit(new ByteArrayInputStream(new byte[200 * 1024]))));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue(elapsed >= 900, "Took " + elapsed + "ms");
+    }
+
+    @Test
+    public void testReconfigure() throws Exception {
+        RateLimiter limiter = RateLimiter.create(1024);
+        InputStream in = limiter.limit(new ByteArrayInputStream(new byte[1024 * 1024]));
+
+        CompletableFuture<Long> read = CompletableFuture.supplyAsync(() -> {
+            try {
+                return drain(in);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        Thread.sleep(200);
+        assertFalse(read.isDone());
+
+        limiter.setRate(0);
+        assertEquals(1024 * 1024, read.get(5, TimeUnit.SECONDS));
+        assertEquals(0, limiter.getRate());
+
+        assertThrows(IllegalArgumentException.class, () -> limiter.setRate(-1));
+    }
+
+    @Test
+    public void testUpdate() throws Exception {
+        Path sourceDir = tempDir.resolve("source");
+        Files.createDirectories(sourceDir);
+
+        Random random = new Random(3);
+        for (int i = 0; i < 3; i++) {
+            byte[] content = new byte[32 * 1024];
+            random.nextBytes(content);
+            Files.write(sourceDir.resolve("file" + i + ".bin"), content);
+        }
+
+        Configuration config = Configuration.builder()
+                        .baseUri(sourceDir.toUri())
+                        .basePath(tempDir.resolve("install"))
+                        .files(FileMetadata.streamDirectory(sourceDir))
+                        .build();
+
+        RateLimiter limiter = RateLimiter.create(48 * 1024);
+
+        long start = System.nanoTime();
+        UpdateResult result = config.update(UpdateOptions.archive(tempDir.resolve("update.zip"))
+                        .concurrentDownloads(3)
+                        .rateLimiter(limiter));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertNull(result.getException());
+        assertTrue(elapsed >= 900, "Took " + elapsed + "ms");
+
+        Archive.read(tempDir.resolve("update.zip")).install();
+        assertFalse(config.requiresUpdate());
+
+        // legacy temp mode draws from the same limiter
+        Path temp = tempDir.resolve("temp");
+        Files.delete(tempDir.resolve("install").resolve("file0.bin"));
+        limiter.setRate(16 * 1024);
+
+        start = System.nanoTime();
+        result = config.update(UpdateOptions.temp(temp).rateLimiter(limiter));
+        elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertNull(result.getException());
+        assertTrue(elapsed >= 900, "Took " + elapsed + "ms");
+
+        assertTrue(Update.finalizeUpdate(temp));
+        assertFalse(config.requiresUpdate());
+    }
+
+    private static long drain(InputStream in) throws Exception {
+        byte[] buffer = new byte[8 * 1024];
+        long total = 0;
+        int read;
+        while ((read = in.read(buffer)) > -1) {
+            total += read;
+        }
+
+        return total;
+    }
+}
@@ -0,0 +1,164 @@
+package org.update4j;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.update4j.service.UpdateHandler;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestSegmentedDownload {
+
+    @TempDir
+    Path tempDir;
+
+    private Path sourceDir;
+    private Path installDir;
+    private byte[] content;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        sourceDir = tempDir.resolve("source");
+        installDir = tempDir.resolve("install");
+        Files.createDirectories(sourceDir);
+
+        content = new byte[300_001];
+        new Random(1).nextBytes(content);
+        Files.write(sourceDir.resolve("large.bin"), content);
+        Files.write(sourceDir.resolve("small.bin"), Arrays.copyOf(content, 100));
+    }
+
+    @Test
+    public void testArchiveUpdate() throws Exception {
+        Configuration config = buildConfig();
+        RangeCountingHandler handler = new RangeCountingHandler();
+
+        Path zip = tempDir.resolve("update.zip");
+        UpdateResult result = config.update(UpdateOptions.archive(zip)
+                        .updateHandler(handler)
+                        .segmentedDownloads(4, 1000));
+        assertNull(result.getException());
+
+        // the small file is below the threshold
+        assertEquals(4, handler.ranges.get());
+
+        Archive.read(zip).install();
+        assertArrayEquals(content, Files.readAllBytes(installDir.resolve("large.bin")));
+        assertFalse(config.requiresUpdate());
+    }
+
+    @Test
+    public void testTempUpdate() throws Exception {
+        Configuration config = buildConfig();
+        RangeCountingHandler handler = new RangeCountingHandler();
+
+        Path temp = tempDir.resolve("temp");
+        UpdateResult result = config.update(UpdateOptions.temp(temp)
+                        .updateHandler(handler)
+                        .segmentedDownloads(3, 1000));
+        assertNull(result.getException());
+        assertEquals(3, handler.ranges.get());
+        assertEquals(1f, handler.progress, 0.0001f);
+
+        assertTrue(Update.finalizeUpdate(temp));
+        assertArrayEquals(content, Files.readAllBytes(installDir.resolve("large.bin")));
+        assertFalse(config.requiresUpdate());
+    }
+
+    @Test
+    public void testFallbackWithoutRanges() throws Exception {
+        Configuration config = buildConfig();
+
+        // only the full stream is overridden, so ranges are refused
+        UpdateHandler handler = new UpdateHandler() {
+            @Override
+            public InputStream openDownloadStream(FileMetadata file) throws Throwable {
+                return UpdateHandler.super.openDownloadStream(file);
+            }
+        };
+
+        Path zip = tempDir.resolve("update.zip");
+        UpdateResult result = config.update(UpdateOptions.archive(zip)
+                        .updateHandler(handler)
+                        .segmentedDownloads(4, 1000));
+        assertNull(result.getException());
+
+        Archive.read(zip).install();
+        assertFalse(config.requiresUpdate());
+    }
+
+    @Test
+    public void testSegmentFailure() throws Exception {
+        Path output = tempDir.resolve("output.bin");
+        SegmentedDownload download = new SegmentedDownload(output, content.length, 4, BufferPool.getDefault());
+        AtomicLong written = new AtomicLong();
+
+        IOException failure = new IOException("Connection reset");
+        IOException thrown = assertThrows(IOException.class,
+                        () -> download.download("output.bin", (offset, length) -> {
+                            if (offset > 0 && offset + length == content.length)
+                                throw failure;
+
+                            return new ByteArrayInputStream(content, (int) offset, (int) length);
+                        }, written::addAndGet));
+
+        assertSame(failure, thrown);
+        assertTrue(written.get() < content.length);
+    }
+
+    @Test
+    public void testSegments() throws Throwable {
+        Path output = tempDir.resolve("output.bin");
+        AtomicInteger opened = new AtomicInteger();
+
+        SegmentedDownload download = new SegmentedDownload(output, content.length, 7, BufferPool.getDefault());
+        assertTrue(download.download("output.bin", (offset, length) -> {
+            opened.incrementAndGet();
+            return new ByteArrayInputStream(content, (int) offset, (int) length);
+        }, read -> {
+        }));
+
+        assertEquals(7, opened.get());
+        assertArrayEquals(content, Files.readAllBytes(output));
+
+        assertFalse(new SegmentedDownload(output, content.length, 4, BufferPool.getDefault()).download("output.bin", (offset, length) -> {
+            throw new IOException();
+        }, read -> {
+        }));
+    }
+
+    private Configuration buildConfig() throws IOException {
+        return Configuration.builder()
+                        .baseUri(sourceDir.toUri())
+                        .basePath(installDir)
+                        .files(FileMetadata.streamDirectory(sourceDir))
+                        .build();
+    }
+
+    private static class RangeCountingHandler implements UpdateHandler {
+
+        private final AtomicInteger ranges = new AtomicInteger();
+        private volatile float progress;
+
+        @Override
+        public InputStream openDownloadStream(FileMetadata file, long offset, long length) throws Throwable {
+            ranges.incrementAndGet();
+            return UpdateHandler.super.openDownloadStream(file, offset, length);
+        }
+
+        @Override
+        public void updateDownloadProgress(float frac) {
+            progress = frac;
+        }
+    }
+}
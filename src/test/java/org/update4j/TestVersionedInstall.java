@@ -0,0 +1,183 @@
+package org.update4j;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestVersionedInstall {
+
+    @TempDir
+    Path tempDir;
+
+    private Path sourceDir;
+    private Path root;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        sourceDir = tempDir.resolve("source");
+        root = tempDir.resolve("app");
+        Files.createDirectories(sourceDir.resolve("lib"));
+
+        Random random = new Random(9);
+        for (String name : new String[] { "a.bin", "lib/b.bin", "lib/c.bin" }) {
+            byte[] content = new byte[10_000];
+            random.nextBytes(content);
+            Files.write(sourceDir.resolve(name), content);
+        }
+    }
+
+    @Test
+    public void testSymbolicLink() throws Exception {
+        VersionedInstall versions = VersionedInstall.at(root);
+
+        String first = update(versions, UpdateOptions.archive(tempDir.resolve("update.zip")));
+        assertEquals(first, versions.getCurrent());
+        assertTrue(Files.isSymbolicLink(root.resolve("current")));
+        assertTrue(Files.notExists(tempDir.resolve("update.zip")));
+
+        // only b changes
+        Files.write(sourceDir.resolve("lib").resolve("b.bin"), new byte[] { 1, 2, 3 });
+        Thread.sleep(5);
+        String second = update(versions, UpdateOptions.archive(tempDir.resolve("update.zip")));
+
+        assertTrue(second.compareTo(first) > 0);
+        assertEquals(List.of(first, second), versions.getVersions());
+        assertEquals(second, versions.getCurrent());
+        assertArrayEquals(new byte[] { 1, 2, 3 }, Files.readAllBytes(root.resolve("current/lib/b.bin")));
+
+        // unchanged files are shared, the old version is intact
+        assertEquals(fileKey(versions.resolve(first).resolve("a.bin")), fileKey(versions.resolve(second).resolve("a.bin")));
+        assertEquals(10_000, Files.size(versions.resolve(first).resolve("lib/b.bin")));
+
+        assertEquals(first, versions.rollback());
+        assertEquals(10_000, Files.size(root.resolve("current/lib/b.bin")));
+        assertThrows(NoSuchFileException.class, versions::rollback);
+
+        versions.activate(second);
+        assertEquals(List.of(first), versions.prune(0));
+        assertEquals(List.of(second), versions.getVersions());
+    }
+
+    @Test
+    public void testPointerFile() throws Exception {
+        VersionedInstall versions = VersionedInstall.at(root, true);
+
+        String first = update(versions, UpdateOptions.staged(tempDir.resolve("staged")));
+        assertTrue(Files.notExists(root.resolve("current")));
+        assertEquals(first, Files.readString(root.resolve("current.version")));
+        assertEquals(versions.resolve(first), versions.getCurrentDirectory());
+        assertTrue(Files.notExists(tempDir.resolve("staged")));
+
+        Files.write(sourceDir.resolve("a.bin"), new byte[] { 4 });
+        Thread.sleep(5);
+        String second = update(versions, UpdateOptions.staged(tempDir.resolve("staged")));
+
+        assertEquals(second, versions.getCurrent());
+        assertArrayEquals(new byte[] { 4 }, Files.readAllBytes(versions.getCurrentDirectory().resolve("a.bin")));
+        assertEquals(fileKey(versions.resolve(first).resolve("lib/c.bin")),
+                        fileKey(versions.resolve(second).resolve("lib/c.bin")));
+    }
+
+    @Test
+    public void testSwitchLinkAndPointer() throws Exception {
+        VersionedInstall linked = VersionedInstall.at(root);
+        VersionedInstall pointed = VersionedInstall.at(root, true);
+
+        String first = update(linked, UpdateOptions.archive(tempDir.resolve("update.zip")));
+        assertTrue(Files.isSymbolicLink(root.resolve("current")));
+
+        Files.write(sourceDir.resolve("a.bin"), new byte[] { 7 });
+        Thread.sleep(5);
+        String second = update(pointed, UpdateOptions.archive(tempDir.resolve("update.zip")));
+
+        // the stale link is gone rather than shadowing the pointer
+        assertTrue(Files.notExists(root.resolve("current"), LinkOption.NOFOLLOW_LINKS));
+        assertEquals(second, linked.getCurrent());
+        assertEquals(first, pointed.rollback());
+        assertEquals(first, Files.readString(root.resolve("current.version")));
+        assertEquals(first, linked.getCurrent());
+
+        linked.activate(second);
+        assertTrue(Files.isSymbolicLink(root.resolve("current")));
+        assertTrue(Files.notExists(root.resolve("current.version")));
+        assertEquals(second, pointed.getCurrent());
+        assertEquals(first, linked.rollback());
+        assertTrue(Files.notExists(root.resolve("current.version")));
+    }
+
+    @Test
+    public void testFailedInstall() throws Exception {
+        VersionedInstall versions = VersionedInstall.at(root);
+        String first = update(versions, UpdateOptions.archive(tempDir.resolve("update.zip")));
+
+        Files.write(sourceDir.resolve("a.bin"), new byte[] { 5 });
+        Thread.sleep(5);
+        Configuration config = config(versions);
+        assertNull(config.update(UpdateOptions.archive(tempDir.resolve("update.zip"))).getException());
+
+        // an unchanged file was modified in place
+        Files.write(versions.resolve(first).resolve("lib/c.bin"), new byte[] { 6 });
+
+        assertThrows(IOException.class, () -> versions.install(Archive.read(tempDir.resolve("update.zip"))));
+        assertEquals(first, versions.getCurrent());
+        assertEquals(List.of(first), versions.getVersions());
+    }
+
+    @Test
+    public void testModifiedInPlace() throws Exception {
+        VersionedInstall versions = VersionedInstall.at(root);
+        String first = update(versions, UpdateOptions.archive(tempDir.resolve("update.zip")));
+
+        Files.write(sourceDir.resolve("a.bin"), new byte[] { 5 });
+        Thread.sleep(5);
+        Configuration config = config(versions);
+        assertNull(config.update(UpdateOptions.archive(tempDir.resolve("update.zip"))).getException());
+
+        // same size, different content
+        Path unchanged = versions.resolve(first).resolve("lib/c.bin");
+        byte[] content = Files.readAllBytes(unchanged);
+        content[0] ^= 1;
+        Files.write(unchanged, content);
+
+        assertThrows(IOException.class, () -> versions.install(Archive.read(tempDir.resolve("update.zip"))));
+        assertEquals(List.of(first), versions.getVersions());
+    }
+
+    private String update(VersionedInstall versions, UpdateOptions.ArchiveUpdateOptions options) throws Exception {
+        Configuration config = config(versions);
+        assertNull(config.update(options).getException());
+
+        String version = versions.install(Archive.read(options.getArchiveLocation()));
+        assertEquals(VersionedInstall.versionOf(config), version);
+        assertFalse(config(versions).requiresUpdate());
+
+        return version;
+    }
+
+    private Configuration config(VersionedInstall versions) throws Exception {
+        Path current = versions.getCurrentDirectory();
+
+        return Configuration.builder()
+                        .baseUri(sourceDir.toUri())
+                        .basePath(current == null || Files.isSymbolicLink(root.resolve("current"))
+                                        ? root.resolve("current")
+                                        : current)
+                        .files(FileMetadata.streamDirectory(sourceDir))
+                        .build();
+    }
+
+    private static Object fileKey(Path path) throws IOException {
+        return Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+    }
+}
@@ -145,6 +145,17 @@ public class TestDefaultBootstrap {
         assertEquals("custom-archive.zip", bootstrap.getArchivePath());
     }
 
+    @Test
+    public void testParseArgsWithChecksumCache() {
+        List<String> args = new ArrayList<>();
+        args.add("--checksumCache");
+        args.add("app/.checksums");
+
+        bootstrap.parseArgs(args);
+
+        assertEquals("app/.checksums", bootstrap.getChecksumCache());
+    }
+
     @Test
     public void testParseArgsWithCert() {
         List<String> args = new ArrayList<>();
@@ -176,6 +187,18 @@ public class TestDefaultBootstrap {
         assertTrue(bootstrap.isLaunchFirst());
     }
 
+    @Test
+    public void testParseArgsResumeDownloads() {
+        assertFalse(bootstrap.isResumeDownloads());
+
+        List<String> args = new ArrayList<>();
+        args.add("--resumeDownloads");
+
+        bootstrap.parseArgs(args);
+
+        assertTrue(bootstrap.isResumeDownloads());
+    }
+
     @Test
     public void testParseArgsStopOnUpdateError() {
         List<String> args = new ArrayList<>();